@@ -0,0 +1,253 @@
+package de.greyshine.jsonpersister;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import de.greyshine.jsonpersister.exceptions.OverloadedException;
+
+/**
+ * Limits the amount of concurrent operations by their kind, so load spikes are shed early instead of slowing down all callers together.<br/>
+ * An operation beyond the limit waits in a bounded queue for up to a timeout; if the queue is full or the timeout elapses, an {@link OverloadedException} is thrown.
+ * Operations of a thread running an admitted operation of the same controller, e.g. reads within a list's callback, are always admitted.
+ * <p>
+ * An adaptive limit is adjusted by the latency of completed operations (AIMD): it grows by one per limit's worth of operations completing
+ * while the limit was used up, and shrinks by 10% when an operation takes more than twice the lowest latency observed, which marks queueing at the disk.
+ * The lowest latency slowly drifts up to the observed latencies, so it follows lasting changes.
+ * </p>
+ * Operations without a limit are admitted at once.
+ */
+public class AdmissionController {
+
+	public enum Operation { READ, WRITE, SCAN }
+
+	/**
+	 * operations of the thread admitted by this controller and not completed yet
+	 */
+	private final ThreadLocal<int[]> admitted = ThreadLocal.withInitial( ()->new int[1] );
+
+	private final Metrics metrics;
+	private final Map<Operation, Limiter> limiters = new EnumMap<>( Operation.class );
+
+	AdmissionController(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param limit concurrent operations
+	 * @param maxQueued operations waiting for admission; 0 rejects at once
+	 * @param timeoutMillis time an operation waits for admission at most
+	 */
+	public void setLimit(Operation operation, int limit, int maxQueued, long timeoutMillis) {
+		setLimiter( operation, new Limiter( operation, limit, limit, limit, maxQueued, timeoutMillis ) );
+	}
+
+	/**
+	 * Sets a limit adjusting between the given bounds by the observed latency, starting at the lower bound.
+	 *
+	 * @see #setLimit(Operation, int, int, long)
+	 */
+	public void setAdaptiveLimit(Operation operation, int minLimit, int maxLimit, int maxQueued, long timeoutMillis) {
+		setLimiter( operation, new Limiter( operation, minLimit, minLimit, maxLimit, maxQueued, timeoutMillis ) );
+	}
+
+	/**
+	 * Operations already admitted or waiting are still released to the former limit.
+	 */
+	public synchronized void removeLimit(Operation operation) {
+		limiters.remove( operation );
+	}
+
+	private synchronized void setLimiter(Operation operation, Limiter limiter) {
+
+		if ( operation == null ) {
+			throw new IllegalArgumentException("No operation specified.");
+		}
+
+		limiters.put( operation, limiter );
+	}
+
+	private synchronized Limiter getLimiter(Operation operation) {
+		return limiters.get( operation );
+	}
+
+	/**
+	 * @return current limit of the operation; <code>-1</code> if it is not limited
+	 */
+	public int getLimit(Operation operation) {
+		final Limiter limiter = getLimiter( operation );
+		return limiter == null ? -1 : limiter.getLimit();
+	}
+
+	/**
+	 * @return admitted operations running
+	 */
+	public int getRunning(Operation operation) {
+		final Limiter limiter = getLimiter( operation );
+		return limiter == null ? 0 : limiter.getRunning();
+	}
+
+	/**
+	 * @return operations waiting for admission
+	 */
+	public int getQueued(Operation operation) {
+		final Limiter limiter = getLimiter( operation );
+		return limiter == null ? 0 : limiter.getQueued();
+	}
+
+	/**
+	 * Admits an operation, waiting while its limit is reached.
+	 *
+	 * @return permit to close when the operation completed
+	 * @throws OverloadedException if the operation is not admitted
+	 */
+	Permit admit(Operation operation) {
+
+		final int[] admitted = this.admitted.get();
+		final Limiter limiter = admitted[0] > 0 ? null : getLimiter( operation );
+
+		if ( limiter != null ) {
+			try {
+				limiter.acquire();
+			} catch (OverloadedException e) {
+				metrics.overloads.incrementAndGet();
+				throw e;
+			}
+		}
+
+		admitted[0]++;
+		return new Permit( admitted, limiter, System.nanoTime() );
+	}
+
+	/**
+	 * Admission of an operation, released by closing it on the admitted thread.
+	 */
+	static class Permit implements AutoCloseable {
+
+		private final int[] admitted;
+		private final Limiter limiter;
+		private final long start;
+
+		private Permit(int[] admitted, Limiter limiter, long start) {
+			this.admitted = admitted;
+			this.limiter = limiter;
+			this.start = start;
+		}
+
+		@Override
+		public void close() {
+
+			admitted[0]--;
+
+			if ( limiter != null ) {
+				limiter.release( System.nanoTime() - start );
+			}
+		}
+	}
+
+	private static class Limiter {
+
+		private final Operation operation;
+		private final int minLimit;
+		private final int maxLimit;
+		private final int maxQueued;
+		private final long timeoutMillis;
+
+		private double limit;
+		private int running;
+		private int queued;
+		/**
+		 * lowest latency observed in nanoseconds, taken as the latency without queueing; 0 until observed
+		 */
+		private double minLatency;
+
+		private Limiter(Operation operation, int limit, int minLimit, int maxLimit, int maxQueued, long timeoutMillis) {
+
+			if ( minLimit < 1 || maxLimit < minLimit ) {
+				throw new IllegalArgumentException("Bad limits: "+ minLimit +".."+ maxLimit);
+			} else if ( maxQueued < 0 || timeoutMillis < 0 ) {
+				throw new IllegalArgumentException("maxQueued and timeoutMillis must not be negative");
+			}
+
+			this.operation = operation;
+			this.limit = limit;
+			this.minLimit = minLimit;
+			this.maxLimit = maxLimit;
+			this.maxQueued = maxQueued;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		synchronized int getLimit() {
+			return (int)limit;
+		}
+
+		synchronized int getRunning() {
+			return running;
+		}
+
+		synchronized int getQueued() {
+			return queued;
+		}
+
+		synchronized void acquire() {
+
+			if ( running < (int)limit ) {
+				running++;
+				return;
+			} else if ( queued >= maxQueued ) {
+				throw new OverloadedException( operation.name(), (int)limit, "queue full" );
+			}
+
+			queued++;
+
+			try {
+
+				final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+				while ( running >= (int)limit ) {
+
+					final long remaining = deadline - System.currentTimeMillis();
+
+					if ( remaining <= 0 ) {
+						throw new OverloadedException( operation.name(), (int)limit, "timed out after "+ timeoutMillis +" ms" );
+					}
+
+					try {
+						wait( remaining );
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new OverloadedException( operation.name(), (int)limit, "interrupted" );
+					}
+				}
+
+				running++;
+
+			} finally {
+				queued--;
+			}
+		}
+
+		synchronized void release(long latency) {
+
+			final boolean isUsedUp = running >= (int)limit;
+
+			running--;
+
+			if ( maxLimit > minLimit ) {
+
+				if ( minLatency == 0 || latency < minLatency ) {
+					minLatency = latency;
+				} else {
+					minLatency += ( latency - minLatency ) * 0.001;
+				}
+
+				if ( latency > 2 * minLatency ) {
+					limit = Math.max( minLimit, limit * 0.9 );
+				} else if ( isUsedUp ) {
+					limit = Math.min( maxLimit, limit + 1 / limit );
+				}
+			}
+
+			notifyAll();
+		}
+	}
+}
@@ -1,30 +1,57 @@
 package de.greyshine.jsonpersister;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.greyshine.jsonpersister.JsonPersister.Storage;
+import de.greyshine.jsonpersister.util.ReusableBuffer;
 import de.greyshine.jsonpersister.util.Utils;
 
+/**
+ * Writes and reads backups of all files below the base directory except the meta directory.<br/>
+ * A backup of version 1.1 is a stream of entries of a path, a method, the file's length, the entry's length, the content and its CRC32, ended by the SHA-256 over all contents.
+ * Files up to {@value #MAX_DEFLATED_LENGTH} bytes are deflated; larger files, blobs and packs, which are compressed already or not compressible, are stored as they are.
+ * Backups of version 1.0, a gzip stream of paths, lengths and contents, are still read.
+ */
 public class BackupHandler {
 	
 	private static final Logger LOG = LoggerFactory.getLogger( BackupHandler.class );
 	
+	static final int STORED = 0;
+	static final int DEFLATED = 8;
+	static final int MAX_DEFLATED_LENGTH = 1024 * 1024;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
 	private final JsonPersister jp;
 	
 	BackupHandler( JsonPersister jsonPersister ) {
@@ -32,69 +59,395 @@ public class BackupHandler {
 	}
 	
 	public void writeBackup(OutputStream out) throws IOException {
+		writeBackup(out, Long.MIN_VALUE);
+	}
+	
+	/**
+	 * @param modifiedSince partitions of partitioned types not modified since are left out
+	 */
+	public void writeBackup(OutputStream out, long modifiedSince) throws IOException {
+		writeBackup(out, modifiedSince, null);
+	}
+	
+	/**
+	 * @param snapshot objects are written as seen by the snapshot, so writers may go on meanwhile; <code>null</code> if writers are blocked
+	 */
+	void writeBackup(OutputStream out, long modifiedSince, JsonPersister.Snapshot snapshot) throws IOException {
 
 		if ( out == null ) { throw new IllegalArgumentException( "OutputStream is null" ); }
 		
 		final Map<String,Integer> itemCounts = new HashMap<>();
+		final Map<File,Boolean> skippedDirs = new HashMap<>();
+		final Set<String> objectKeys = new HashSet<>();
+		final Set<String> chunkedKeys = new HashSet<>();
 		
 		try {
-		
-			// https://stackoverflow.com/a/3103722
-			final MessageDigest md = MessageDigest.getInstance("SHA-256");
 			
-			final GZIPOutputStream gzipOut = new GZIPOutputStream( out );
-			final DataOutputStream dos = new DataOutputStream( gzipOut );
+			final EntryWriter writer = new EntryWriter( out );
+			final ReusableBuffer content = new ReusableBuffer( BUFFER_SIZE );
 			
-			dos.writeUTF("v:"+Storage.VERSION+"\n");
+			final String metaDirPath = jp.getMetaDir().getAbsolutePath() + File.separator;
+			final Map<File,Long> packFiles = snapshot == null ? null : getPackFiles();
 			
 			Utils.travers( jp.getBaseDir(), (file)->{
 				
-				if ( file.isDirectory() ) { return; }
+				if ( file.isDirectory() || file.getAbsolutePath().startsWith( metaDirPath ) || isSkipped( file, modifiedSince, skippedDirs ) ) { return; }
+				
+				final String path = file.getAbsolutePath().substring( jp.getBaseDir().getAbsolutePath().length() );
+				
+				if ( snapshot != null && PackStore.DIR_NAME.equals( file.getParentFile().getName() ) ) {
+					
+					final Long length = packFiles.get( file.getAbsoluteFile() );
+					
+					// objects of packs written later are written as files below, as seen by the snapshot
+					if ( length == null || !writer.write( path, file, content, length ) ) {
+						return;
+					}
+					
+				} else if ( snapshot != null && getObjectId( path ) != null && !isObjectFile( path ) ) {
+					
+					final String typeName = path.substring( 1, path.indexOf( '/', 1 ) );
+					
+					// all files of the object's elements at once, read under its lock
+					if ( chunkedKeys.add( typeName +"/"+ getObjectId( path ) ) ) {
+						jp.readChunkFiles( typeName, getObjectId( path ), (chunkFile, chunkContent)->writer.write( chunkFile.getAbsolutePath().substring( jp.getBaseDir().getAbsolutePath().length() ), chunkContent ) );
+					}
+					
+					return;
+					
+				} else if ( snapshot != null && isObjectFile( path ) ) {
+					
+					final String typeName = path.substring( 1, path.indexOf( '/', 1 ) );
+					final String id = file.getName().substring( 0, file.getName().length()-".json".length() );
+					
+					// created after the snapshot was opened otherwise
+					if ( objectKeys.add( typeName +"/"+ id ) && jp.readSnapshotObject( snapshot, typeName, id, file, content ) ) {
+						writer.write( path, content );
+					}
+					
+				} else if ( !writer.write( path, file, content ) ) {
+					
+					LOG.debug( "deleted meanwhile: {}", file );
+					return;
+				}
 				
-				LOG.info( "store: {} ...", file );
+				LOG.info( "stored: {}", file );
 				
 				final String itemCountKey = file.getParentFile().getParentFile().getName();
 				itemCounts.putIfAbsent( itemCountKey, 0);
 				itemCounts.put( itemCountKey, itemCounts.get( itemCountKey ).intValue()+1 );
+			} );
+			
+			if ( snapshot != null ) {
+				jp.readSnapshotRemainder( snapshot, objectKeys, packFiles.keySet(), (file, json)->writer.write( file.getAbsolutePath().substring( jp.getBaseDir().getAbsolutePath().length() ), json ) );
+			}
+			
+			writer.finish();
+			
+			itemCounts.forEach( (k,v)->LOG.debug( "item count '{}': {}", k, v ) );
+			
+		} catch(IOException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new IOException(e);
+		} 
+	}
+	
+	/**
+	 * Packs are never rewritten and removals of their entries are appended, so the packs, indexes and removals existing now hold the objects packed
+	 * when a snapshot was opened just before; packs written later and removals appended later are left out. An object removed from a pack after the snapshot
+	 * was opened, e.g. by a write, is also written as file by its version of the snapshot.
+	 * 
+	 * @return the absolute pack files to back up with their length
+	 */
+	private Map<File,Long> getPackFiles() {
+		
+		final Map<File,Long> packFiles = new HashMap<>();
+		
+		for (File typeDir : Utils.list( jp.getBaseDir(), File::isDirectory )) {
+			
+			final File dir = new File( typeDir, PackStore.DIR_NAME ).getAbsoluteFile();
+			
+			for (File file : Utils.list( dir, File::isFile )) {
 				
-				final String path = file.getAbsolutePath().substring( jp.getBaseDir().getAbsolutePath().length() );
-				dos.writeUTF( "F:"+path );
-				dos.writeLong( file.length() );
+				final String name = file.getName();
+				
+				if ( PackStore.DELETED_FILE_NAME.equals( name ) ) {
+					packFiles.put( file, file.length() );
+				} else if ( PackStore.isIndex( file ) ) {
+					// the pack is complete once its index exists
+					final File packFile = PackStore.getPackFile( file );
+					packFiles.put( file, file.length() );
+					packFiles.put( packFile, packFile.length() );
+				}
+			}
+		}
+		
+		return packFiles;
+	}
+	
+	/**
+	 * @param path relative to the base directory
+	 * @return <code>true</code> for the file of an object, which is in the buckets of its type directory, apart from the internal dot names
+	 */
+	/**
+	 * @param path relative to the base directory
+	 * @return id of the object a file belongs to, i.e. the object's file or a file of its {@link de.greyshine.jsonpersister.annotations.Chunked} fields;
+	 * <code>null</code> for files of the type, e.g. packs, blobs and dictionaries
+	 */
+	static String getObjectId(String path) {
+		
+		final String[] names = path.split( "/" );
+		
+		if ( isObjectFile( path ) ) {
+			return names[ names.length-1 ].substring( 0, names[ names.length-1 ].length()-".json".length() );
+		}
+		
+		return names.length > 4 && Chunks.DIR_NAME.equals( names[2] ) ? names[4] : null;
+	}
+	
+	/**
+	 * Deletes the directories of all types.
+	 * 
+	 * @return names of the deleted types
+	 */
+	Set<String> clear() {
+		
+		final Set<String> typeNames = new HashSet<>();
+		
+		for (File typeDir : Utils.list( jp.getBaseDir(), (f)->f.isDirectory() && !f.getName().startsWith( "." ) )) {
+			Utils.delete( typeDir );
+			typeNames.add( typeDir.getName() );
+		}
+		
+		return typeNames;
+	}
+	
+	static boolean isObjectFile(String path) {
+		
+		final String[] names = path.split( "/" );
+		
+		for (int i = 2; i < names.length; i++) {
+			if ( names[i].startsWith( "." ) ) {
+				return false;
+			}
+		}
+		
+		return names.length > 2 && path.endsWith( ".json" );
+	}
+	
+	/**
+	 * Consumer of an object's JSON and the file it belongs to.
+	 */
+	@FunctionalInterface
+	interface ObjectConsumer {
+		void accept(File file, ReusableBuffer json) throws IOException;
+	}
+	
+	/**
+	 * Writes the entries of a backup of the current version; the bytes are accounted to the maintenance job of the backup.
+	 */
+	private class EntryWriter {
+		
+		private final DataOutputStream dos;
+		// https://stackoverflow.com/a/3103722
+		private final MessageDigest md;
+		private final byte[] buffer = new byte[ BUFFER_SIZE ];
+		private final ReusableBuffer deflated = new ReusableBuffer( BUFFER_SIZE );
+		private final Deflater deflater = new Deflater();
+		
+		private EntryWriter(OutputStream out) throws IOException, NoSuchAlgorithmException {
+			
+			this.md = MessageDigest.getInstance("SHA-256");
+			this.dos = new DataOutputStream( new BufferedOutputStream( out, BUFFER_SIZE ) );
+			
+			dos.writeUTF("v:"+Storage.VERSION+"\n");
+		}
+		
+		/**
+		 * @param content buffer to read the file into, unless it is stored as it is
+		 * @return <code>false</code> if the file does not exist
+		 */
+		boolean write(String path, File file, ReusableBuffer content) throws IOException {
+			return write( path, file, content, Long.MAX_VALUE );
+		}
+		
+		/**
+		 * @param maxLength length to write at most of a file stored as it is
+		 * @return <code>false</code> if the file does not exist
+		 */
+		boolean write(String path, File file, ReusableBuffer content, long maxLength) throws IOException {
+			
+			if ( !isStored( file ) ) {
+				
+				try {
+					content.readFile( file );
+				} catch (FileNotFoundException e) {
+					return false;
+				}
 				
-				final long copiedBytes = Utils.copy( new FileInputStream(file), dos, md );
+				write( path, content );
+				return true;
+			}
+			
+			final InputStream in;
+			
+			try {
+				in = new FileInputStream( file );
+			} catch (FileNotFoundException e) {
+				return false;
+			}
+			
+			try {
 				
-				if ( file.length()!=copiedBytes ) {
-					throw new IOException("copy error; unequal size");
+				// files appended to meanwhile are written up to the length they had
+				final long length = Math.min( file.length(), maxLength );
+				final CRC32 crc = new CRC32();
+				
+				dos.writeUTF( "F:"+path );
+				dos.writeByte( STORED );
+				dos.writeLong( length );
+				dos.writeLong( length );
+				
+				if ( length != copy( in, dos, length, buffer, md, crc, jp.getIoScheduler() ) ) {
+					throw new IOException("copy error; unequal size: "+ file);
 				}
-				LOG.debug( "bytes: {}", copiedBytes );
-			} );
-						
+				
+				dos.writeInt( (int)crc.getValue() );
+				
+			} finally {
+				in.close();
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Writes the content deflated.
+		 */
+		void write(String path, ReusableBuffer content) throws IOException {
+			
+			jp.getIoScheduler().maintain( content.length() );
+			
+			final CRC32 crc = new CRC32();
+			
+			md.update( content.array(), 0, content.length() );
+			crc.update( content.array(), 0, content.length() );
+			
+			deflater.reset();
+			deflater.setInput( content.array(), 0, content.length() );
+			deflater.finish();
+			deflated.reset();
+			
+			while ( !deflater.finished() ) {
+				deflated.write( buffer, 0, deflater.deflate( buffer ) );
+			}
+			
+			dos.writeUTF( "F:"+path );
+			dos.writeByte( DEFLATED );
+			dos.writeLong( content.length() );
+			dos.writeLong( deflated.length() );
+			dos.write( deflated.array(), 0, deflated.length() );
+			dos.writeInt( (int)crc.getValue() );
+		}
+		
+		void finish() throws IOException {
+			
+			deflater.end();
+			
 			final String checksum = String.format("%064x", new BigInteger(1, md.digest())).toLowerCase();
 			LOG.debug( "checksum: {}", checksum );
 			dos.writeUTF("$:"+checksum );
 			
 			dos.flush();
-			gzipOut.finish();
-			gzipOut.flush();
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the file is stored as it is rather than deflated
+	 */
+	private static boolean isStored(File file) {
+		
+		final String typeDirChild = file.getParentFile().getParentFile().getName();
+		
+		return file.length() > MAX_DEFLATED_LENGTH || BlobStore.DIR_NAME.equals( typeDirChild ) || PackStore.DIR_NAME.equals( file.getParentFile().getName() );
+	}
+	
+	/**
+	 * Copies up to the given amount of bytes.
+	 * 
+	 * @return amount of copied bytes
+	 */
+	private static long copy(InputStream in, OutputStream out, long maxBytes, byte[] buffer, MessageDigest md, CRC32 crc) throws IOException {
+		return copy( in, out, maxBytes, buffer, md, crc, null );
+	}
+	
+	/**
+	 * @param scheduler accounts the copied bytes to the maintenance job of the current thread; <code>null</code> for none
+	 */
+	private static long copy(InputStream in, OutputStream out, long maxBytes, byte[] buffer, MessageDigest md, CRC32 crc, IoScheduler scheduler) throws IOException {
+		
+		long count = 0;
+		int n;
+		
+		while ( count < maxBytes && Utils.EOF != (n = in.read( buffer, 0, (int)Math.min( buffer.length, maxBytes-count ) )) ) {
+			if ( scheduler != null ) {
+				scheduler.maintain( n );
+			}
+			md.update( buffer, 0, n );
+			crc.update( buffer, 0, n );
+			out.write( buffer, 0, n );
+			count += n;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @return <code>true</code> if the file is in a dropped partition or in a partition not modified since the given time
+	 */
+	private boolean isSkipped(File file, long modifiedSince, Map<File,Boolean> skippedDirs) {
+		
+		File partitionDir = file.getParentFile();
+		
+		while ( partitionDir != null && partitionDir.getParentFile() != null && !jp.getBaseDir().equals( partitionDir.getParentFile().getParentFile() ) ) {
+			partitionDir = partitionDir.getParentFile();
+		}
+		
+		if ( partitionDir == null || partitionDir.getParentFile() == null || partitionDir.getParentFile().getParentFile() == null ) {
+			return false;
+		}
+		
+		return skippedDirs.computeIfAbsent( partitionDir, (d)->{
 			
-			itemCounts.forEach( (k,v)->LOG.debug( "item count '{}': {}", k, v ) );
+			if ( !new File( d.getParentFile(), Partitioning.FILE_NAME ).isFile() ) {
+				return false;
+			}
 			
-		} catch(IOException e) {
-			throw e;
-		} catch(Exception e) {
-			throw new IOException(e);
-		} 
+			return d.getName().startsWith( Partitioning.DROPPED_PREFIX ) || ( !d.getName().startsWith( "." ) && d.lastModified() < modifiedSince );
+		} );
 	}
 	
 	/**
 	 * 
 	 * @param in
 	 * @param additive if backup will not delete all existing files but just replace existing files. Existing files not also being a backup file will still live on.
+	 * @return names of the restored types
 	 * @throws IOException
 	 */
-	public void readBackup(InputStream in, boolean additive) throws IOException {
+	public Set<String> readBackup(InputStream in, boolean additive) throws IOException {
+		return readBackup( in, (path)->Collections.singletonList( jp.getBaseDir() ) );
+	}
+	
+	/**
+	 * Restores each file into the base directories it is routed to; the backup is read up to its checksum, not beyond.
+	 * 
+	 * @param baseDirs base directories by the path of a file relative to the base directory
+	 * @return names of the restored types
+	 */
+	Set<String> readBackup(InputStream in, Function<String, List<File>> baseDirs) throws IOException {
 
-		if ( in == null ) { return; }
+		if ( in == null ) { return new HashSet<>(0); }
 		
 		final Map<String,Integer> itemCounts = new HashMap<>();
 		
@@ -102,16 +455,28 @@ public class BackupHandler {
 			// https://stackoverflow.com/a/3103722
 			final MessageDigest md = MessageDigest.getInstance("SHA-256");
 			
-			final DataInputStream dis = new DataInputStream( new GZIPInputStream( in ) );	
+			final BufferedInputStream bis = new BufferedInputStream( in, BUFFER_SIZE );
+			
+			// version 1.0 is a gzip stream
+			bis.mark( 2 );
+			final boolean isGzip = bis.read() == 0x1f && bis.read() == 0x8b;
+			bis.reset();
+			
+			final DataInputStream dis = new DataInputStream( isGzip ? new GZIPInputStream( bis ) : bis );	
+			final byte[] buffer = new byte[ BUFFER_SIZE ];
 			
 			String version = dis.readUTF().trim();
 			if ( !version.startsWith( "v:" ) ) { throw new IOException("Expected version string 'v:<version>'"); }
 			version = version.substring(2);
 			LOG.debug( "reading version: {}", version );
 			
+			if ( !isGzip && !"1.1".equals( version ) ) {
+				throw new IOException("Unsupported backup version: "+ version);
+			}
+			
 			String checksum = null;
 			String fileLine = null;
-			while( dis.available() > 0 ) {
+			while( !isGzip || dis.available() > 0 ) {
 				
 				fileLine = dis.readUTF();
 				LOG.debug( "line: {}", fileLine );
@@ -121,18 +486,52 @@ public class BackupHandler {
 					final String typeName = fileLine.substring(3, fileLine.indexOf('/', 3) );
 					final Class<?> clazz = Class.forName( typeName );
 					
+					final int method = isGzip ? STORED : dis.readUnsignedByte();
 					final long sizeToRead = dis.readLong();
+					final long entryLength = isGzip ? sizeToRead : dis.readLong();
 					
-					final File fileToSafe = new File( jp.getBaseDir(), fileLine.substring(3) );
+					final List<File> targetDirs = baseDirs.apply( fileLine.substring(2) );
+					final File fileToSafe = new File( targetDirs.get( 0 ), fileLine.substring(3) );
 					LOG.debug( "Saving file (exist={}): {}", fileToSafe.exists(), fileToSafe.getAbsolutePath() );
 					
 					if ( !fileToSafe.getParentFile().isDirectory() ) {
 						fileToSafe.getParentFile().mkdirs();
 					}
 					
-					final FileOutputStream fos = new FileOutputStream( fileToSafe );
-					Utils.copy(dis, fos, sizeToRead, md);
-					Utils.closeSafe( fos );
+					final CRC32 crc = new CRC32();
+					final long copiedBytes;
+					
+					try (OutputStream fos = new FileOutputStream( fileToSafe )) {
+						
+						if ( method == STORED && entryLength == sizeToRead ) {
+							
+							copiedBytes = copy( dis, fos, sizeToRead, buffer, md, crc );
+							
+						} else if ( method == DEFLATED && entryLength <= Integer.MAX_VALUE ) {
+							
+							final byte[] entry = new byte[ (int)entryLength ];
+							dis.readFully( entry );
+							
+							try (InputStream inflating = new InflaterInputStream( new ByteArrayInputStream( entry ) )) {
+								copiedBytes = copy( inflating, fos, sizeToRead, buffer, md, crc );
+							}
+							
+						} else {
+							throw new IOException("Bad entry method "+ method +": "+ fileLine);
+						}
+					}
+					
+					if ( copiedBytes != sizeToRead ) {
+						throw new IOException("Truncated entry: "+ fileLine);
+					} else if ( !isGzip && dis.readInt() != (int)crc.getValue() ) {
+						throw new IOException("Bad CRC32: "+ fileLine);
+					}
+					
+					for (File targetDir : targetDirs.subList( 1, targetDirs.size() )) {
+						final File copy = new File( targetDir, fileLine.substring(3) );
+						Utils.mkParentDirs( copy );
+						Files.copy( fileToSafe.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING );
+					}
 					
 					itemCounts.putIfAbsent( clazz.getTypeName(), 0);
 					itemCounts.put( clazz.getTypeName(), itemCounts.get( clazz.getTypeName() )+1 );
@@ -156,6 +555,8 @@ public class BackupHandler {
 				throw new IOException("Bad checksum calculated="+ String.format("%064x", new BigInteger(1, md.digest())) +"; expected="+ checksum   );
 			}
 			
+			return itemCounts.keySet();
+			
 		} catch(IOException e) {
 			throw e;
 		} catch(Exception e) {	
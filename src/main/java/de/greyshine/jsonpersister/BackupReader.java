@@ -0,0 +1,790 @@
+package de.greyshine.jsonpersister;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import de.greyshine.jsonpersister.util.ReusableBuffer;
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Reads a backup written by {@link BackupHandler} without restoring it: verifies its checksums, lists its contents or extracts types or single objects into a live {@link JsonPersister}.<br/>
+ * Verifying inflates deflated entries and checks their CRC32 on several threads, while the SHA-256 over all contents is computed in the order of the entries.
+ * Listing skips the contents of the entries but the indexes of packs. Backups of version 1.0 are a single gzip stream, which is inflated in one pass and has no CRC32 per entry.
+ * <p>
+ * Packs are written to a temporary directory to read their entries; an object contained both as file and packed is counted once and extracted from its file.
+ * </p>
+ */
+public class BackupReader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	public BackupReader(File file) {
+
+		if ( file == null ) {
+			throw new IllegalArgumentException("No backup file specified.");
+		}
+
+		this.file = file;
+	}
+
+	/**
+	 * @param parallelism threads inflating and checking entries while verifying; 1 to verify on the calling thread only
+	 */
+	public void setParallelism(int parallelism) {
+
+		if ( parallelism < 1 ) {
+			throw new IllegalArgumentException("Parallelism must be positive: "+ parallelism);
+		}
+
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Lists the entries without reading their contents, so broken contents are not noticed.
+	 */
+	public Contents list() throws IOException {
+
+		try (EntryInput in = new EntryInput( file ); PackSpool packs = new PackSpool()) {
+
+			final Contents contents = new Contents( in.version );
+
+			while ( in.next() ) {
+
+				contents.add( in.path, in.length );
+
+				final File spoolFile = packs.getIndexFile( in.path );
+
+				if ( spoolFile == null ) {
+					in.skip();
+				} else {
+					in.copy( spoolFile, packs.dir );
+				}
+			}
+
+			contents.addPacks( packs );
+			contents.checksum = in.checksum;
+			return contents;
+		}
+	}
+
+	/**
+	 * Reads all entries, checking their CRC32 and the SHA-256 over all contents.
+	 *
+	 * @throws IOException if the backup is broken or truncated
+	 */
+	public Contents verify() throws IOException {
+
+		final ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool( parallelism ) : null;
+
+		try (EntryInput in = new EntryInput( file ); PackSpool packs = new PackSpool()) {
+
+			final Contents contents = new Contents( in.version );
+			final MessageDigest md = newDigest();
+			final byte[] buffer = new byte[ BUFFER_SIZE ];
+			// inflated contents in the order of the entries
+			final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+			while ( in.next() ) {
+
+				contents.add( in.path, in.length );
+
+				final File spoolFile = packs.getIndexFile( in.path );
+
+				if ( in.method == BackupHandler.DEFLATED ) {
+
+					final String path = in.path;
+					final long length = in.length;
+					final byte[] entry = in.readEntry();
+					final int crc = in.readCrc();
+					final Callable<byte[]> inflate = ()->PackSpool.write( spoolFile, inflate( path, entry, length, crc ) );
+
+					if ( executor == null ) {
+						md.update( inflate.call() );
+						continue;
+					}
+
+					pending.add( executor.submit( inflate ) );
+
+					// bounds the contents held in memory
+					if ( pending.size() > 2 * parallelism ) {
+						md.update( get( pending.poll() ) );
+					}
+
+					continue;
+				}
+
+				while ( !pending.isEmpty() ) {
+					md.update( get( pending.poll() ) );
+				}
+
+				in.checkStored();
+
+				final CRC32 crc = new CRC32();
+				long remaining = in.length;
+
+				try (OutputStream spool = spoolFile == null ? null : new FileOutputStream( spoolFile )) {
+
+					while ( remaining > 0 ) {
+
+						final int n = in.dis.read( buffer, 0, (int)Math.min( buffer.length, remaining ) );
+
+						if ( n == Utils.EOF ) {
+							throw new IOException("Truncated entry: "+ in.path);
+						}
+
+						md.update( buffer, 0, n );
+						crc.update( buffer, 0, n );
+						remaining -= n;
+
+						if ( spool != null ) {
+							spool.write( buffer, 0, n );
+						}
+					}
+				}
+
+				if ( !in.isGzip && in.readCrc() != (int)crc.getValue() ) {
+					throw new IOException("Bad CRC32: "+ in.path);
+				}
+			}
+
+			while ( !pending.isEmpty() ) {
+				md.update( get( pending.poll() ) );
+			}
+
+			contents.addPacks( packs );
+
+			final String checksum = String.format( "%064x", new BigInteger( 1, md.digest() ) );
+
+			if ( !checksum.equalsIgnoreCase( in.checksum ) ) {
+				throw new IOException("Bad checksum calculated="+ checksum +"; expected="+ in.checksum);
+			}
+
+			contents.checksum = in.checksum;
+			return contents;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Verification interrupted");
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException( e );
+		} finally {
+			if ( executor != null ) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Extracts all objects of the given types.
+	 *
+	 * @see #extract(JsonPersister, Class, Collection)
+	 */
+	public int extract(JsonPersister target, Class<?>... types) throws IOException {
+
+		final Map<String, Class<?>> selected = new HashMap<>();
+
+		for (Class<?> clazz : types == null ? new Class<?>[0] : types) {
+			selected.put( clazz.getTypeName(), clazz );
+		}
+
+		return extract( target, selected, null );
+	}
+
+	/**
+	 * Extracts objects of a type into a persister: objects are written like upserts, replacing the stored ones; the elements of their {@link de.greyshine.jsonpersister.annotations.Chunked} fields
+	 * replace the stored elements, and blobs and dictionaries of the type are copied unless they exist; blobs not referenced by the extracted objects are removed by
+	 * {@link JsonPersister#collectBlobs(Class, long)}. Objects not contained in the backup are left as they are.<br/>
+	 * The CRC32 of the extracted entries is checked, the checksum over all contents is not; see {@link #verify()}.
+	 *
+	 * @param ids <code>null</code> for all objects of the type
+	 * @return amount of extracted objects
+	 */
+	public int extract(JsonPersister target, Class<?> clazz, Collection<String> ids) throws IOException {
+
+		if ( clazz == null ) {
+			throw new IllegalArgumentException("No class specified.");
+		}
+
+		return extract( target, Collections.singletonMap( clazz.getTypeName(), clazz ), ids == null ? null : new HashSet<>( ids ) );
+	}
+
+	private int extract(JsonPersister target, Map<String, Class<?>> types, Set<String> ids) throws IOException {
+
+		if ( target == null ) {
+			throw new IllegalArgumentException("No target specified.");
+		}
+
+		// pending writes would replace the extracted objects
+		target.flush();
+
+		try (EntryInput in = new EntryInput( file ); PackSpool packs = new PackSpool()) {
+
+			final ReusableBuffer content = new ReusableBuffer( BUFFER_SIZE );
+			// objects compressed with a dictionary, written once all dictionaries are restored
+			final List<Object[]> compressed = new ArrayList<>();
+			// type name and id of the objects extracted from files
+			final Set<String> extracted = new HashSet<>();
+			int count = 0;
+
+			while ( in.next() ) {
+
+				final String[] names = in.path.split( "/" );
+				final Class<?> clazz = names.length > 2 ? types.get( names[1] ) : null;
+				final String path = clazz == null ? null : in.path.substring( names[1].length()+2 );
+				final String name = names[ names.length-1 ];
+
+				if ( clazz == null ) {
+
+					in.skip();
+
+				} else if ( BackupHandler.isObjectFile( in.path ) ) {
+
+					final String id = name.substring( 0, name.length()-".json".length() );
+
+					if ( ids != null && !ids.contains( id ) ) {
+						in.skip();
+					} else {
+						extracted.add( names[1] +"/"+ id );
+						count += restore( target, clazz, id, in.read( content ), compressed );
+					}
+
+				} else if ( PackStore.DIR_NAME.equals( names[2] ) && names.length == 4 ) {
+
+					in.copy( packs.getFile( names[1], name ), packs.dir );
+
+				} else if ( Chunks.DIR_NAME.equals( names[2] ) && names.length > 4 ) {
+
+					if ( ids != null && !ids.contains( names[4] ) ) {
+						in.skip();
+					} else {
+						target.restoreChunkFile( clazz, names[4], path, in.read( content ) );
+					}
+
+				} else if ( BlobStore.DIR_NAME.equals( names[2] ) || ( DictionaryCompression.DIR_NAME.equals( names[2] ) && !DictionaryCompression.CURRENT_FILE_NAME.equals( name ) ) ) {
+
+					// content addressed, so an existing file is equal
+					final File sharedFile = new File( new File( target.getBaseDir(), names[1] ), path );
+
+					if ( sharedFile.exists() ) {
+						in.skip();
+					} else {
+						in.copy( sharedFile, new File( target.getMetaDir(), "tmp" ) );
+					}
+
+				} else {
+
+					in.skip();
+				}
+			}
+
+			for (Map.Entry<String, Class<?>> type : types.entrySet()) {
+
+				final PackStore packStore = packs.get( type.getKey() );
+
+				for (String id : packStore.getIds()) {
+					if ( ( ids == null || ids.contains( id ) ) && !extracted.contains( type.getKey() +"/"+ id ) ) {
+						packStore.read( packStore.get( id ), content );
+						count += restore( target, type.getValue(), id, content, compressed );
+					}
+				}
+			}
+
+			for (Object[] object : compressed) {
+
+				final byte[] bytes = (byte[])object[2];
+
+				content.reset();
+				content.write( bytes, 0, bytes.length );
+				target.restoreObject( (Class<?>)object[0], (String)object[1], content );
+				count++;
+			}
+
+			return count;
+		}
+	}
+
+	/**
+	 * @return amount of restored objects; 0 if the object is compressed with a dictionary and added to the compressed objects
+	 */
+	private static int restore(JsonPersister target, Class<?> clazz, String id, ReusableBuffer content, List<Object[]> compressed) throws IOException {
+
+		if ( DictionaryCompression.isCompressed( content ) ) {
+			compressed.add( new Object[] { clazz, id, content.toByteArray() } );
+			return 0;
+		}
+
+		target.restoreObject( clazz, id, content );
+		return 1;
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance( "SHA-256" );
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException( e );
+		}
+	}
+
+	private static byte[] inflate(String path, byte[] entry, long length, int crc) throws IOException {
+
+		if ( length > Integer.MAX_VALUE ) {
+			throw new IOException("Bad entry length: "+ path);
+		}
+
+		final byte[] inflated = new byte[ (int)length ];
+		final CRC32 crc32 = new CRC32();
+
+		try (InputStream in = new InflaterInputStream( new ByteArrayInputStream( entry ) )) {
+
+			int count = 0;
+			int n;
+
+			while ( count < inflated.length && Utils.EOF != (n = in.read( inflated, count, inflated.length-count )) ) {
+				count += n;
+			}
+
+			if ( count != inflated.length ) {
+				throw new IOException("Truncated entry: "+ path);
+			}
+		}
+
+		crc32.update( inflated, 0, inflated.length );
+
+		if ( (int)crc32.getValue() != crc ) {
+			throw new IOException("Bad CRC32: "+ path);
+		}
+
+		return inflated;
+	}
+
+	private static byte[] get(Future<byte[]> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Contents of a backup.
+	 */
+	public static class Contents {
+
+		private final String version;
+		private final List<Entry> entries = new ArrayList<>();
+		private final Map<String, Set<String>> ids = new TreeMap<>();
+		private String checksum;
+
+		private Contents(String version) {
+			this.version = version;
+		}
+
+		private void add(String path, long length) {
+
+			entries.add( new Entry( path, length ) );
+
+			if ( BackupHandler.isObjectFile( path ) ) {
+				add( path.substring( 1, path.indexOf( '/', 1 ) ), path.substring( path.lastIndexOf( '/' )+1, path.length()-".json".length() ) );
+			}
+		}
+
+		private void add(String typeName, String id) {
+			ids.computeIfAbsent( typeName, (k)->new HashSet<>() ).add( id );
+		}
+
+		private void addPacks(PackSpool packs) throws IOException {
+			for (String typeName : packs.getTypeNames()) {
+				for (String id : packs.get( typeName ).getIds()) {
+					add( typeName, id );
+				}
+			}
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return entries in the order of the backup
+		 */
+		public List<Entry> getEntries() {
+			return Collections.unmodifiableList( entries );
+		}
+
+		/**
+		 * @return amount of objects by the name of their type
+		 */
+		public Map<String, Integer> getCounts() {
+
+			final Map<String, Integer> counts = new TreeMap<>();
+			ids.forEach( (typeName, typeIds)->counts.put( typeName, typeIds.size() ) );
+
+			return Collections.unmodifiableMap( counts );
+		}
+
+		/**
+		 * @return length of all files
+		 */
+		public long getLength() {
+			return entries.stream().mapToLong( Entry::getLength ).sum();
+		}
+
+		/**
+		 * @return SHA-256 over all contents as stated by the backup
+		 */
+		public String getChecksum() {
+			return checksum;
+		}
+
+		@Override
+		public String toString() {
+			return "Contents [version=" + version + ", entries=" + entries.size() + ", counts=" + getCounts() + "]";
+		}
+	}
+
+	/**
+	 * File contained in a backup.
+	 */
+	public static class Entry {
+
+		private final String path;
+		private final long length;
+
+		private Entry(String path, long length) {
+			this.path = path;
+			this.length = length;
+		}
+
+		/**
+		 * @return path relative to the base directory, starting with the name of the type
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return length of the file
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return path +" ("+ length +")";
+		}
+	}
+
+	/**
+	 * Pack files of a backup written to a temporary directory, laid out like the base directory, so their entries are read by {@link PackStore}.
+	 */
+	private static class PackSpool implements Closeable {
+
+		private final File dir;
+		private final Map<String, PackStore> packStores = new HashMap<>();
+
+		private PackSpool() throws IOException {
+			dir = Files.createTempDirectory( "backup-packs" ).toFile();
+		}
+
+		/**
+		 * @return the file to write an entry to; <code>null</code> if the entry is no index or removals of a pack
+		 */
+		private File getIndexFile(String path) {
+
+			final String[] names = path.split( "/" );
+
+			if ( names.length != 4 || !PackStore.DIR_NAME.equals( names[2] ) ) {
+				return null;
+			} else if ( !PackStore.DELETED_FILE_NAME.equals( names[3] ) && !PackStore.isIndex( new File( names[3] ) ) ) {
+				return null;
+			}
+
+			return getFile( names[1], names[3] );
+		}
+
+		private File getFile(String typeName, String name) {
+
+			final File file = new File( new File( new File( dir, typeName ), PackStore.DIR_NAME ), name );
+			Utils.mkParentDirs( file );
+
+			return file;
+		}
+
+		private static byte[] write(File file, byte[] content) throws IOException {
+
+			if ( file != null ) {
+				Files.write( file.toPath(), content );
+			}
+
+			return content;
+		}
+
+		private Collection<String> getTypeNames() {
+
+			final List<String> typeNames = new ArrayList<>();
+
+			for (File typeDir : Utils.list( dir, File::isDirectory )) {
+				typeNames.add( typeDir.getName() );
+			}
+
+			return typeNames;
+		}
+
+		private PackStore get(String typeName) {
+			return packStores.computeIfAbsent( typeName, (k)->new PackStore( new File( dir, typeName ), false ) );
+		}
+
+		@Override
+		public void close() {
+			Utils.delete( dir );
+		}
+	}
+
+	/**
+	 * Reads the entries of a backup one after another; after {@link #next()} the content of the entry is read or skipped.
+	 */
+	private static class EntryInput implements Closeable {
+
+		private final DataInputStream dis;
+		private final boolean isGzip;
+		private final String version;
+
+		private String path;
+		private int method;
+		private long length;
+		private long entryLength;
+		private String checksum;
+
+		private EntryInput(File file) throws IOException {
+
+			final BufferedInputStream bis = new BufferedInputStream( new FileInputStream( file ), BUFFER_SIZE );
+
+			try {
+
+				// version 1.0 is a gzip stream
+				bis.mark( 2 );
+				isGzip = bis.read() == 0x1f && bis.read() == 0x8b;
+				bis.reset();
+
+				dis = new DataInputStream( isGzip ? new BufferedInputStream( new GZIPInputStream( bis, BUFFER_SIZE ), BUFFER_SIZE ) : bis );
+
+				final String line = dis.readUTF().trim();
+
+				if ( !line.startsWith( "v:" ) ) {
+					throw new IOException("Expected version string 'v:<version>'");
+				}
+
+				version = line.substring( 2 );
+
+				if ( !isGzip && !"1.1".equals( version ) ) {
+					throw new IOException("Unsupported backup version: "+ version);
+				}
+
+			} catch (IOException | RuntimeException e) {
+				bis.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return <code>false</code> at the end of the backup
+		 */
+		private boolean next() throws IOException {
+
+			final String line;
+
+			try {
+				line = dis.readUTF();
+			} catch (EOFException e) {
+				throw new IOException("Truncated backup; no checksum", e);
+			}
+
+			if ( line.startsWith( "$:" ) ) {
+				checksum = line.substring( 2 );
+				return false;
+			} else if ( !line.startsWith( "F:/" ) ) {
+				throw new IOException("Bad entry line: "+ line);
+			}
+
+			path = line.substring( 2 );
+			method = isGzip ? BackupHandler.STORED : dis.readUnsignedByte();
+			length = dis.readLong();
+			entryLength = isGzip ? length : dis.readLong();
+
+			if ( length < 0 || entryLength < 0 ) {
+				throw new IOException("Bad entry length: "+ path);
+			}
+
+			return true;
+		}
+
+		private void skip() throws IOException {
+
+			long remaining = entryLength;
+
+			while ( remaining > 0 ) {
+
+				final long n = dis.skip( remaining );
+
+				if ( n > 0 ) {
+					remaining -= n;
+				} else if ( dis.read() == Utils.EOF ) {
+					throw new IOException("Truncated entry: "+ path);
+				} else {
+					remaining--;
+				}
+			}
+
+			if ( !isGzip ) {
+				dis.readInt();
+			}
+		}
+
+		private byte[] readEntry() throws IOException {
+
+			if ( entryLength > Integer.MAX_VALUE ) {
+				throw new IOException("Bad entry length: "+ path);
+			}
+
+			final byte[] entry = new byte[ (int)entryLength ];
+			dis.readFully( entry );
+			return entry;
+		}
+
+		private int readCrc() throws IOException {
+			return dis.readInt();
+		}
+
+		private void checkStored() throws IOException {
+			if ( method != BackupHandler.STORED || entryLength != length ) {
+				throw new IOException("Bad entry method "+ method +": "+ path);
+			}
+		}
+
+		/**
+		 * Reads the content of the entry, checking its CRC32.
+		 */
+		private ReusableBuffer read(ReusableBuffer content) throws IOException {
+
+			content.reset();
+
+			if ( method == BackupHandler.DEFLATED ) {
+				final byte[] inflated = inflate( path, readEntry(), length, readCrc() );
+				content.write( inflated, 0, inflated.length );
+				return content;
+			}
+
+			checkStored();
+
+			if ( Utils.copy( dis, content, length, null ) != length ) {
+				throw new IOException("Truncated entry: "+ path);
+			}
+
+			if ( !isGzip ) {
+
+				final CRC32 crc = new CRC32();
+				crc.update( content.array(), 0, content.length() );
+
+				if ( readCrc() != (int)crc.getValue() ) {
+					throw new IOException("Bad CRC32: "+ path);
+				}
+			}
+
+			return content;
+		}
+
+		/**
+		 * Copies the content of the entry to a file, checking its CRC32; the content is written to a temporary file first, which is moved to the file.
+		 */
+		private void copy(File file, File tmpDir) throws IOException {
+
+			if ( method == BackupHandler.DEFLATED ) {
+				Utils.writeFileAtomically( file, inflate( path, readEntry(), length, readCrc() ) );
+				return;
+			}
+
+			checkStored();
+
+			tmpDir.mkdirs();
+			final File tmpFile = File.createTempFile( "restore", null, tmpDir );
+
+			try {
+
+				final CRC32 crc = new CRC32();
+				final byte[] buffer = new byte[ BUFFER_SIZE ];
+				long remaining = length;
+
+				try (OutputStream out = new FileOutputStream( tmpFile )) {
+
+					while ( remaining > 0 ) {
+
+						final int n = dis.read( buffer, 0, (int)Math.min( buffer.length, remaining ) );
+
+						if ( n == Utils.EOF ) {
+							throw new IOException("Truncated entry: "+ path);
+						}
+
+						crc.update( buffer, 0, n );
+						out.write( buffer, 0, n );
+						remaining -= n;
+					}
+				}
+
+				if ( !isGzip && readCrc() != (int)crc.getValue() ) {
+					throw new IOException("Bad CRC32: "+ path);
+				}
+
+				Utils.mkParentDirs( file );
+				Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+
+			} finally {
+				Utils.delete( tmpFile );
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			dis.close();
+		}
+	}
+}
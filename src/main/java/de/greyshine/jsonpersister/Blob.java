@@ -0,0 +1,46 @@
+package de.greyshine.jsonpersister;
+
+/**
+ * Reference to binary content stored apart from the JSON of an object, e.g. as field of an Entity.<br/>
+ * Only the content's SHA-256 and length are serialized; the content is written by {@link JsonPersister#writeBlob(Class, java.io.InputStream)}
+ * and read by {@link JsonPersister#openBlob(Class, Blob)} or {@link JsonPersister#transferBlob(Class, Blob, java.nio.channels.WritableByteChannel)}.
+ * Equal contents of a type are stored once.
+ */
+public class Blob {
+
+	private String hash;
+	private long length;
+
+	Blob() {}
+
+	Blob(String hash, long length) {
+		this.hash = hash;
+		this.length = length;
+	}
+
+	/**
+	 * @return SHA-256 of the content as lower case hex
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash == null ? 0 : hash.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof Blob && hash != null && hash.equals( ((Blob)obj).hash ) && length == ((Blob)obj).length;
+	}
+
+	@Override
+	public String toString() {
+		return "Blob [hash=" + hash + ", length=" + length + "]";
+	}
+}
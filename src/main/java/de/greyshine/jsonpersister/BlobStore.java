@@ -0,0 +1,200 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Content addressed files of the {@link Blob}s of a type in its directory {@value #DIR_NAME}: <code>&lt;first two hex digits&gt;/&lt;SHA-256&gt;</code>.<br/>
+ * Equal contents are stored once. Contents are transferred between channels and files by {@link FileChannel#transferFrom(ReadableByteChannel, long, long)},
+ * so they do not pass the heap; the hash is computed by a read of the written file.
+ */
+class BlobStore {
+
+	static final String DIR_NAME = ".blobs";
+
+	private static final Pattern HASH = Pattern.compile( "[0-9a-f]{64}" );
+	private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
+	private final File dir;
+	/**
+	 * directory of the contents being written, below the meta directory so backups leave them out
+	 */
+	private final File tmpDir;
+
+	BlobStore(File typeDir, File tmpDir) {
+		this.dir = new File( typeDir, DIR_NAME );
+		this.tmpDir = tmpDir;
+	}
+
+	/**
+	 * @return the file of the blob's content
+	 */
+	File getFile(Blob blob) {
+
+		if ( blob == null || blob.getHash() == null || !HASH.matcher( blob.getHash() ).matches() ) {
+			throw new IllegalArgumentException("Bad blob: "+ blob);
+		}
+
+		return new File( new File( dir, blob.getHash().substring( 0, 2 ) ), blob.getHash() );
+	}
+
+	/**
+	 * Writes the content to a temporary file of the store.
+	 */
+	File writeTemporary(InputStream in) throws IOException {
+		return writeTemporary( Channels.newChannel( in ) );
+	}
+
+	File writeTemporary(ReadableByteChannel in) throws IOException {
+
+		tmpDir.mkdirs();
+
+		final File tmpFile = File.createTempFile( "blob", ".tmp", tmpDir );
+
+		try (FileChannel out = FileChannel.open( tmpFile.toPath(), StandardOpenOption.WRITE )) {
+
+			long position = 0;
+			long n;
+
+			// a transfer may end early only at the end of the source
+			while ( (n = out.transferFrom( in, position, TRANSFER_SIZE )) > 0 ) {
+				position += n;
+			}
+
+		} catch (IOException | RuntimeException e) {
+			Utils.delete( tmpFile );
+			throw e;
+		}
+
+		return tmpFile;
+	}
+
+	/**
+	 * @return the blob of the file's content
+	 */
+	static Blob hash(File file) throws IOException {
+
+		final MessageDigest md;
+
+		try {
+			md = MessageDigest.getInstance( "SHA-256" );
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException( e );
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( 64 * 1024 );
+
+		try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+
+			while ( channel.read( buffer ) != Utils.EOF ) {
+				buffer.flip();
+				md.update( buffer );
+				buffer.clear();
+			}
+		}
+
+		return new Blob( String.format( "%064x", new BigInteger( 1, md.digest() ) ), file.length() );
+	}
+
+	/**
+	 * Moves a temporary file to the blob's file; if the content is stored already, the temporary file is deleted.
+	 */
+	void store(File tmpFile, Blob blob) throws IOException {
+
+		final File file = getFile( blob );
+
+		if ( file.isFile() && file.length() == blob.getLength() ) {
+			Utils.delete( tmpFile );
+			// a used blob is not collected
+			file.setLastModified( System.currentTimeMillis() );
+			return;
+		}
+
+		file.getParentFile().mkdirs();
+		Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/**
+	 * @param referenced hashes of the blobs to keep
+	 * @param modifiedBefore files modified later are kept, e.g. blobs written for objects not stored yet
+	 * @return files of the blobs to delete
+	 */
+	List<File> getUnreferenced(Set<String> referenced, long modifiedBefore) {
+
+		final List<File> files = new ArrayList<>();
+
+		for (File subDir : Utils.list( dir, File::isDirectory )) {
+			for (File file : Utils.list( subDir, File::isFile )) {
+				if ( !referenced.contains( file.getName() ) && file.lastModified() < modifiedBefore ) {
+					files.add( file );
+				}
+			}
+		}
+
+		return files;
+	}
+
+	/**
+	 * Adds the hashes of the blobs referenced by a JSON document: the values of all members named <code>hash</code> looking like a SHA-256, at any depth.
+	 * This may keep contents which are not blobs, but does not miss blobs in nested objects or collections.
+	 */
+	static void addReferences(JsonReader reader, Set<String> hashes) throws IOException {
+
+		boolean isHashName = false;
+
+		while ( true ) {
+
+			final JsonToken token = reader.peek();
+
+			switch ( token ) {
+			case BEGIN_OBJECT:
+				reader.beginObject();
+				break;
+			case END_OBJECT:
+				reader.endObject();
+				break;
+			case BEGIN_ARRAY:
+				reader.beginArray();
+				break;
+			case END_ARRAY:
+				reader.endArray();
+				break;
+			case NAME:
+				isHashName = "hash".equals( reader.nextName() );
+				continue;
+			case STRING:
+				final String value = reader.nextString();
+				if ( isHashName && HASH.matcher( value ).matches() ) {
+					hashes.add( value );
+				}
+				break;
+			case END_DOCUMENT:
+				return;
+			default:
+				reader.skipValue();
+			}
+
+			isHashName = false;
+		}
+	}
+}
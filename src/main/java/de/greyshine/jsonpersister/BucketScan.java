@@ -0,0 +1,63 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Fork join scan over the bucket directories of a type.<br/>
+ * Each bucket's files are processed into a partial result by one worker; partial results are merged while the tasks are joined, so no state is shared between workers.
+ */
+class BucketScan<R> extends RecursiveTask<R> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final File dir;
+	private final int depth;
+	private final Function<List<File>, R> bucketFunction;
+	private final BinaryOperator<R> merger;
+
+	/**
+	 * @param dir directory of the type
+	 * @param depth levels of bucket directories
+	 * @param bucketFunction computes the partial result of the object files of one bucket
+	 * @param merger merges two partial results
+	 */
+	BucketScan(File dir, int depth, Function<List<File>, R> bucketFunction, BinaryOperator<R> merger) {
+		this.dir = dir;
+		this.depth = depth;
+		this.bucketFunction = bucketFunction;
+		this.merger = merger;
+	}
+
+	@Override
+	protected R compute() {
+
+		final List<File> files = new ArrayList<>();
+		final List<BucketScan<R>> tasks = new ArrayList<>();
+
+		for (File f : Utils.defaultIfNull( dir.listFiles(), Utils.EMPTY_FILES )) {
+
+			if ( f.getName().startsWith(".") ) {
+				continue;
+			} else if ( depth > 0 && f.isDirectory() ) {
+				tasks.add( new BucketScan<>( f, depth-1, bucketFunction, merger ) );
+			} else if ( depth == 0 && f.isFile() && f.getName().toLowerCase().endsWith(".json") ) {
+				files.add( f );
+			}
+		}
+
+		R result = bucketFunction.apply( files );
+
+		for (BucketScan<R> task : invokeAll( tasks )) {
+			result = merger.apply( result, task.join() );
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,273 @@
+package de.greyshine.jsonpersister;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ordered feed of upserts and deletes of objects and of appends to and clears of their {@link de.greyshine.jsonpersister.annotations.Chunked} fields.<br/>
+ * Events are numbered by a sequence and kept in a ring buffer of bounded capacity, so a subscriber can resume after a known sequence as long as it is still retained.
+ * Events are delivered in sequence order by a single dispatcher thread, so slow listeners do not stall writers.
+ */
+public class ChangeFeed {
+	
+	private static final Logger LOG = LoggerFactory.getLogger( ChangeFeed.class );
+	
+	public static final int DEFAULT_CAPACITY = 1024;
+	
+	public enum Type { UPSERT, DELETE, APPEND, CLEAR }
+	
+	private final Event[] ring;
+	private final boolean retainPayloads;
+	
+	private long lastSequence = 0;
+	
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	private Thread dispatcher;
+	
+	ChangeFeed() {
+		this( DEFAULT_CAPACITY, false );
+	}
+	
+	/**
+	 * @param capacity maximum amount of events retained for resuming subscribers
+	 * @param retainPayloads whether the JSON of upserted objects is kept with the events
+	 */
+	ChangeFeed(int capacity, boolean retainPayloads) {
+		
+		if ( capacity < 1 ) {
+			throw new IllegalArgumentException("capacity must be positive: "+ capacity);
+		}
+		
+		this.ring = new Event[capacity];
+		this.retainPayloads = retainPayloads;
+	}
+	
+	public boolean isRetainingPayloads() {
+		return retainPayloads;
+	}
+	
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+	
+	/**
+	 * @return the oldest sequence still available for resuming
+	 */
+	public synchronized long getFirstRetainedSequence() {
+		return Math.max( 1, lastSequence - ring.length + 1 );
+	}
+	
+	void publish(Type type, Class<?> clazz, String id, Long version, String json) {
+		publish( type, clazz, id, null, version, json );
+	}
+	
+	/**
+	 * @param field the {@link de.greyshine.jsonpersister.annotations.Chunked} field of {@link Type#APPEND} and {@link Type#CLEAR} events
+	 */
+	void publish(Type type, Class<?> clazz, String id, String field, Long version, String json) {
+		
+		synchronized (this) {
+			
+			final long sequence = ++lastSequence;
+			ring[ (int)(sequence % ring.length) ] = new Event( sequence, type, clazz, id, field, version, retainPayloads ? json : null );
+			
+			if ( !subscriptions.isEmpty() ) {
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * @param clazz type of the events to receive; <code>null</code> receives events of all types
+	 * @param afterSequence the last sequence already known to the subscriber; events after it are delivered. <code>-1</code> starts with the next new event.
+	 */
+	public Subscription subscribe(Class<?> clazz, Listener listener, long afterSequence) {
+		
+		if ( listener == null ) {
+			throw new IllegalArgumentException("No listener specified.");
+		}
+		
+		synchronized (this) {
+			
+			final Subscription subscription = new Subscription( clazz, listener, afterSequence < 0 ? lastSequence+1 : afterSequence+1 );
+			subscriptions.add( subscription );
+			
+			if ( dispatcher == null ) {
+				dispatcher = new Thread( this::dispatch, "json-persister-changefeed" );
+				dispatcher.setDaemon( true );
+				dispatcher.start();
+			}
+			
+			notifyAll();
+			return subscription;
+		}
+	}
+	
+	private void dispatch() {
+		
+		final List<Event> events = new ArrayList<>();
+		// subscriptions are served in turns, starting after the one served last, so a subscription always ready does not starve the others
+		int next = 0;
+		
+		while( true ) {
+			
+			Subscription subscription = null;
+			long missedFrom = -1;
+			
+			synchronized (this) {
+				
+				while( subscription == null ) {
+					
+					if ( subscriptions.isEmpty() ) {
+						dispatcher = null;
+						return;
+					}
+					
+					final Object[] candidates = subscriptions.toArray();
+					
+					for (int i = 0; i < candidates.length; i++) {
+						
+						final Subscription s = (Subscription) candidates[ (next + i) % candidates.length ];
+						
+						if ( s.nextSequence <= lastSequence ) {
+							subscription = s;
+							next = (next + i + 1) % candidates.length;
+							break;
+						}
+					}
+					
+					if ( subscription == null ) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							LOG.warn("dispatching was interrupted: {}", e);
+						}
+					}
+				}
+				
+				final long firstRetained = getFirstRetainedSequence();
+				
+				if ( subscription.nextSequence < firstRetained ) {
+					missedFrom = subscription.nextSequence;
+					subscription.nextSequence = firstRetained;
+				}
+				
+				for (long sequence = subscription.nextSequence; sequence <= lastSequence; sequence++) {
+					
+					final Event event = ring[ (int)(sequence % ring.length) ];
+					
+					if ( subscription.clazz == null || subscription.clazz == event.clazz ) {
+						events.add( event );
+					}
+				}
+				
+				subscription.nextSequence = lastSequence+1;
+			}
+			
+			if ( missedFrom > -1 ) {
+				subscription.listener.onMissed( missedFrom, events.isEmpty() ? subscription.nextSequence : events.get(0).sequence );
+			}
+			
+			for (Event event : events) {
+				
+				if ( subscription.isCancelled() ) {
+					break;
+				}
+				
+				try {
+					subscription.listener.onChange( event );
+				} catch (Exception e) {
+					LOG.error( "listener failed on {}: {}", event, e );
+				}
+			}
+			
+			events.clear();
+		}
+	}
+	
+	public static class Event {
+		
+		public final long sequence;
+		public final Type type;
+		public final Class<?> clazz;
+		public final String id;
+		/**
+		 * the {@link de.greyshine.jsonpersister.annotations.Chunked} field of {@link Type#APPEND} and {@link Type#CLEAR} events, otherwise <code>null</code>
+		 */
+		public final String field;
+		/**
+		 * the value of the object's {@link de.greyshine.jsonpersister.annotations.Version} field; <code>null</code> if unknown
+		 */
+		public final Long version;
+		/**
+		 * JSON of the upserted object or a JSON array of the appended elements if payloads are retained, otherwise <code>null</code>
+		 */
+		public final String json;
+		
+		Event(long sequence, Type type, Class<?> clazz, String id, String field, Long version, String json) {
+			this.sequence = sequence;
+			this.type = type;
+			this.clazz = clazz;
+			this.id = id;
+			this.field = field;
+			this.version = version;
+			this.json = json;
+		}
+		
+		@Override
+		public String toString() {
+			return "Event [sequence=" + sequence + ", type=" + type + ", class=" + clazz.getTypeName() + ", id=" + id + ", field=" + field + ", version=" + version + "]";
+		}
+	}
+	
+	@FunctionalInterface
+	public interface Listener {
+		
+		void onChange(Event event);
+		
+		/**
+		 * Called when events were dropped from the ring buffer before they could be delivered, e.g. when resuming from an old sequence.
+		 * Subscribers keeping derived state should rebuild it.
+		 * 
+		 * @param fromSequence first sequence missed
+		 * @param resumedSequence sequence delivery goes on with
+		 */
+		default void onMissed(long fromSequence, long resumedSequence) {}
+	}
+	
+	public class Subscription implements AutoCloseable {
+		
+		private final Class<?> clazz;
+		private final Listener listener;
+		private long nextSequence;
+		private volatile boolean cancelled = false;
+		
+		private Subscription(Class<?> clazz, Listener listener, long nextSequence) {
+			this.clazz = clazz;
+			this.listener = listener;
+			this.nextSequence = nextSequence;
+		}
+		
+		public boolean isCancelled() {
+			return cancelled;
+		}
+		
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove( this );
+			synchronized (ChangeFeed.this) {
+				ChangeFeed.this.notifyAll();
+			}
+		}
+		
+		@Override
+		public void close() {
+			cancel();
+		}
+	}
+
+}
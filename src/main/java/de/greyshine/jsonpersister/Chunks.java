@@ -0,0 +1,167 @@
+package de.greyshine.jsonpersister;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.function.Function;
+
+import de.greyshine.jsonpersister.annotations.Chunked;
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Elements of a {@link Chunked} field of an object: JSON lines in numbered chunk files of a fixed amount of elements below the type's directory, 
+ * <code>.chunks/&lt;hash&gt;/&lt;id&gt;/&lt;field&gt;/&lt;chunk&gt;.jsonl</code>.<br/>
+ * The file {@value #STATE_FILE_NAME} holds the amount of elements, the length of the last chunk and the chunk size; it is replaced atomically after the chunks were appended,
+ * so elements of an interrupted append are not visible and are cut off by the next append.
+ * Chunks are full except the last one, so the chunk of an element follows from its position. The caller holds the object's lock.
+ */
+class Chunks {
+
+	static final String DIR_NAME = ".chunks";
+	static final String STATE_FILE_NAME = "state";
+
+	private final File dir;
+	private final File stateFile;
+	private final int defaultChunkSize;
+
+	/**
+	 * @param chunkSize elements per chunk unless the elements are stored with another chunk size
+	 */
+	Chunks(File typeDir, String id, String field, int chunkSize) {
+		this.dir = new File( getDir( typeDir, id ), field );
+		this.stateFile = new File( dir, STATE_FILE_NAME );
+		this.defaultChunkSize = chunkSize;
+	}
+
+	/**
+	 * @return directory of the chunked fields of an object; ids are hashed to 256 directories, independent of the type's layout
+	 */
+	static File getDir(File typeDir, String id) {
+		return new File( new File( new File( typeDir, DIR_NAME ), String.format( "%02x", id.hashCode() & 0xff ) ), id );
+	}
+
+	/**
+	 * @return amount of elements, length of the last chunk and chunk size
+	 */
+	private long[] readState() throws IOException {
+
+		if ( !stateFile.isFile() ) {
+			return new long[] { 0, 0, defaultChunkSize };
+		}
+
+		final String[] parts = Utils.readToString( stateFile, Utils.CHARSET_UTF8 ).trim().split( " " );
+
+		try {
+			return new long[] { Long.parseLong( parts[0] ), Long.parseLong( parts[1] ), Long.parseLong( parts[2] ) };
+		} catch (RuntimeException e) {
+			throw new IOException("Bad chunk state: "+ stateFile, e);
+		}
+	}
+
+	long size() throws IOException {
+		return readState()[0];
+	}
+
+	private File getChunk(long index) {
+		return new File( dir, String.format( "%08d.jsonl", index ) );
+	}
+
+	/**
+	 * Appends elements; only the last chunk and new chunks are written.
+	 *
+	 * @param lines the elements' JSON, each on a single line
+	 */
+	void append(List<byte[]> lines) throws IOException {
+
+		if ( lines.isEmpty() ) {
+			return;
+		}
+
+		final long[] state = readState();
+		long size = state[0];
+		long chunkLength = state[1];
+		final long chunkSize = state[2];
+
+		dir.mkdirs();
+
+		int i = 0;
+
+		while ( i < lines.size() ) {
+
+			final long inChunk = size % chunkSize;
+
+			if ( inChunk == 0 ) {
+				chunkLength = 0;
+			}
+
+			try (RandomAccessFile raf = new RandomAccessFile( getChunk( size / chunkSize ), "rw" )) {
+
+				// cuts off the elements of an interrupted append
+				raf.setLength( chunkLength );
+				raf.seek( chunkLength );
+
+				for (long n = inChunk; n < chunkSize && i < lines.size(); n++, i++, size++) {
+					raf.write( lines.get( i ) );
+					raf.write( '\n' );
+					chunkLength += lines.get( i ).length + 1;
+				}
+			}
+		}
+
+		Utils.writeFileAtomically( stateFile, size +" "+ chunkLength +" "+ chunkSize, Utils.CHARSET_UTF8 );
+	}
+
+	/**
+	 * Reads elements from a position on.
+	 *
+	 * @param lineHandler receives the JSON of each element; returning <code>false</code> stops reading
+	 */
+	void read(long offset, Function<String, Boolean> lineHandler) throws IOException {
+
+		final long[] state = readState();
+		final long size = state[0];
+		final long chunkSize = state[2];
+
+		long position = Math.max( 0, offset );
+
+		while ( position < size ) {
+
+			try (BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( getChunk( position / chunkSize ) ), Utils.CHARSET_UTF8 ) )) {
+
+				for (long n = position % chunkSize; n > 0; n--) {
+					reader.readLine();
+				}
+
+				final long chunkEnd = Math.min( size, (position / chunkSize + 1) * chunkSize );
+
+				for (; position < chunkEnd; position++) {
+
+					final String line = reader.readLine();
+
+					if ( line == null ) {
+						throw new IOException("Truncated chunk: "+ getChunk( position / chunkSize ));
+					} else if ( !Boolean.TRUE.equals( lineHandler.apply( line ) ) ) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if there were no elements
+	 */
+	boolean clear() {
+
+		if ( !dir.exists() ) {
+			return false;
+		}
+
+		Utils.delete( dir );
+		return true;
+	}
+}
@@ -0,0 +1,276 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates writers and keeps a generation counter per type which is incremented on each change.<br/>
+ * In multi process mode the coordination is done with {@link FileLock}s on files below the meta directory, so several processes can share one base directory:
+ * <ul>
+ * <li>writers hold a shared lock on a global lock file and an exclusive lock on the lock file of the bucket they write to</li>
+ * <li>backup and restore hold the global lock exclusively</li>
+ * <li>generation counters are kept in files, so each process can cheaply detect changes made by others</li>
+ * </ul>
+ * Otherwise locking is left to the JVM monitors of {@link JsonPersister} and generations are only counted in memory.
+ */
+class Coordinator {
+	
+	private static final Logger LOG = LoggerFactory.getLogger( Coordinator.class );
+	
+	private final boolean multiProcess;
+	private final File locksDir;
+	private final File generationsDir;
+	
+	/**
+	 * {@link FileLock}s are held on behalf of the whole JVM, so the locks are shared by all instances using the same base directory.
+	 */
+	private static final Map<String,ProcessLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+	
+	private final ProcessLock globalLock;
+	private final Map<String,AtomicLong> localGenerations = new ConcurrentHashMap<>();
+	
+	Coordinator(File metaDir, boolean multiProcess) {
+		
+		this.multiProcess = multiProcess;
+		this.locksDir = new File( metaDir, "locks" );
+		this.generationsDir = new File( metaDir, "generations" );
+		this.globalLock = getProcessLock( "global.lock" );
+		
+		if ( multiProcess ) {
+			locksDir.mkdirs();
+			generationsDir.mkdirs();
+		}
+	}
+	
+	boolean isMultiProcess() {
+		return multiProcess;
+	}
+	
+	/**
+	 * Runs a write to the given bucket directory.
+	 * 
+	 * @param bucket path of the bucket relative to the base directory
+	 */
+	<T> T write(Class<?> clazz, String bucket, IoAction<T> action) throws IOException {
+		
+		if ( !multiProcess ) {
+			final T result = action.run();
+			localGenerations.computeIfAbsent( clazz.getTypeName(), (k)->new AtomicLong() ).incrementAndGet();
+			return result;
+		}
+		
+		final ProcessLock bucketLock = getProcessLock( "buckets/"+ bucket +".lock" );
+		
+		globalLock.lock( true );
+		
+		try {
+			
+			bucketLock.lock( false );
+			
+			try {
+				
+				final T result = action.run();
+				incrementGeneration( clazz.getTypeName() );
+				return result;
+				
+			} finally {
+				bucketLock.unlock( false );
+			}
+			
+		} finally {
+			globalLock.unlock( true );
+		}
+	}
+	
+	/**
+	 * Runs an action while no writer of any process is active.
+	 */
+	<T> T exclusive(IoAction<T> action) throws IOException {
+		
+		if ( !multiProcess ) {
+			return action.run();
+		}
+		
+		globalLock.lock( false );
+		
+		try {
+			return action.run();
+		} finally {
+			globalLock.unlock( false );
+		}
+	}
+	
+	/**
+	 * @return a counter which changes whenever an object of the type is written or deleted, also by other processes in multi process mode
+	 */
+	long getGeneration(Class<?> clazz) throws IOException {
+		
+		if ( !multiProcess ) {
+			final AtomicLong generation = localGenerations.get( clazz.getTypeName() );
+			return generation == null ? 0 : generation.get();
+		}
+		
+		final File file = new File( generationsDir, clazz.getTypeName() );
+		
+		if ( !file.isFile() ) {
+			return 0;
+		}
+		
+		try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+			return readLong( channel );
+		}
+	}
+	
+	void incrementGenerations(Iterable<String> typeNames) throws IOException {
+		
+		for (String typeName : typeNames) {
+			
+			if ( multiProcess ) {
+				incrementGeneration( typeName );
+			} else {
+				localGenerations.computeIfAbsent( typeName, (k)->new AtomicLong() ).incrementAndGet();
+			}
+		}
+	}
+	
+	private void incrementGeneration(String typeName) throws IOException {
+		
+		// lock files are kept apart from the counter files since closing any channel may release the locks held on a file
+		final ProcessLock lock = getProcessLock( "generations/"+ typeName +".lock" );
+		
+		lock.lock( false );
+		
+		try (FileChannel channel = FileChannel.open( new File( generationsDir, typeName ).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE )) {
+			
+			final long generation = readLong( channel ) + 1;
+			final ByteBuffer bb = ByteBuffer.allocate( 8 );
+			bb.putLong( generation ).flip();
+			
+			while( bb.hasRemaining() ) {
+				channel.write( bb, bb.position() );
+			}
+			
+		} finally {
+			lock.unlock( false );
+		}
+	}
+	
+	private ProcessLock getProcessLock(String relativePath) {
+		final File file = new File( locksDir, relativePath );
+		return PROCESS_LOCKS.computeIfAbsent( file.getAbsolutePath(), (p)->new ProcessLock( file ) );
+	}
+	
+	private static long readLong(FileChannel channel) throws IOException {
+		
+		final ByteBuffer bb = ByteBuffer.allocate( 8 );
+		
+		while( bb.hasRemaining() ) {
+			if ( channel.read( bb, bb.position() ) < 0 ) {
+				return 0;
+			}
+		}
+		
+		bb.flip();
+		return bb.getLong();
+	}
+	
+	@FunctionalInterface
+	interface IoAction<T> {
+		T run() throws IOException;
+	}
+	
+	/**
+	 * Lock on a file shared by the threads of this JVM: the first thread entering acquires the {@link FileLock}, the last one leaving releases it.
+	 * Exclusive holders may re-enter.
+	 */
+	private static class ProcessLock {
+		
+		private final File file;
+		private final ReentrantReadWriteLock jvmLock = new ReentrantReadWriteLock();
+		
+		private int holds = 0;
+		private FileChannel channel;
+		private FileLock fileLock;
+		
+		private ProcessLock(File file) {
+			this.file = file;
+		}
+		
+		void lock(boolean shared) throws IOException {
+			
+			if ( shared ) {
+				jvmLock.readLock().lock();
+			} else {
+				jvmLock.writeLock().lock();
+			}
+			
+			synchronized (this) {
+				
+				if ( holds > 0 ) {
+					holds++;
+					return;
+				}
+				
+				try {
+					
+					file.getParentFile().mkdirs();
+					channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+					fileLock = channel.lock( 0, Long.MAX_VALUE, shared );
+					holds++;
+					
+				} catch (IOException | RuntimeException e) {
+					
+					if ( channel != null ) {
+						channel.close();
+						channel = null;
+					}
+					
+					if ( shared ) {
+						jvmLock.readLock().unlock();
+					} else {
+						jvmLock.writeLock().unlock();
+					}
+					
+					throw e;
+				}
+			}
+		}
+		
+		void unlock(boolean shared) {
+			
+			synchronized (this) {
+				
+				if ( --holds == 0 ) {
+					
+					try {
+						fileLock.release();
+						channel.close();
+					} catch (IOException e) {
+						LOG.warn( "failed to release lock {}: {}", file, e );
+					}
+					
+					fileLock = null;
+					channel = null;
+				}
+			}
+			
+			if ( shared ) {
+				jvmLock.readLock().unlock();
+			} else {
+				jvmLock.writeLock().unlock();
+			}
+		}
+	}
+
+}
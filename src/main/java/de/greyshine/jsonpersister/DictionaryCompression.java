@@ -0,0 +1,270 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import de.greyshine.jsonpersister.util.ReusableBuffer;
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Compresses the files of one type with a preset {@link Deflater} dictionary trained from stored documents.<br/>
+ * Small documents of a type share most of their bytes (member names, indentation, frequent values), which a generic compressor cannot exploit per file but a dictionary can.
+ * <p>
+ * Dictionaries are kept in the directory {@value #DIR_NAME} of the type directory, named by their Adler-32 checksum, which is also the dictionary id zlib stores in each compressed stream.
+ * The file {@value #CURRENT_FILE_NAME} names the dictionary new writes are compressed with; without it files are written plain.
+ * Older dictionaries are kept, so files compressed with them stay readable.
+ * </p>
+ * A compressed file starts with a zero byte, which no JSON document does, followed by a format byte and the zlib stream.
+ */
+class DictionaryCompression {
+
+	static final String DIR_NAME = ".dictionaries";
+	static final String CURRENT_FILE_NAME = "current";
+
+	/**
+	 * Deflate only looks back 32K, bytes of a larger dictionary would never be referenced
+	 */
+	static final int MAX_DICTIONARY_SIZE = 16 * 1024;
+
+	private static final byte MAGIC = 0x00;
+	private static final byte FORMAT = 0x01;
+
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial( ()->new Deflater( Deflater.BEST_COMPRESSION ) );
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial( Inflater::new );
+	private static final ThreadLocal<ReusableBuffer> BUFFERS = ThreadLocal.withInitial( ()->new ReusableBuffer( 8 * 1024 ) );
+	private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial( ()->new byte[4 * 1024] );
+
+	private final File dir;
+	private final Map<Long, byte[]> dictionaries = new ConcurrentHashMap<>();
+
+	/**
+	 * the dictionary used for writing; an empty array for plain writes, <code>null</code> if not loaded yet
+	 */
+	private volatile byte[] current;
+
+	DictionaryCompression(File typeDir) {
+		this.dir = new File( typeDir, DIR_NAME );
+	}
+
+	static boolean isCompressed(ReusableBuffer buffer) {
+		return buffer.length() > 1 && buffer.array()[0] == MAGIC;
+	}
+
+	boolean isEnabled() throws IOException {
+		return getCurrent().length > 0;
+	}
+
+	private byte[] getCurrent() throws IOException {
+
+		byte[] current = this.current;
+
+		if ( current == null ) {
+
+			final File currentFile = new File( dir, CURRENT_FILE_NAME );
+
+			current = !currentFile.isFile() ? new byte[0] : getDictionary( Long.parseLong( new String( Files.readAllBytes( currentFile.toPath() ), Utils.CHARSET_UTF8 ).trim(), 16 ) );
+			this.current = current;
+		}
+
+		return current;
+	}
+
+	/**
+	 * Stores the dictionary and uses it for following writes.
+	 */
+	void setCurrent(byte[] dictionary) throws IOException {
+
+		final long id = getId( dictionary );
+		final File dictionaryFile = new File( dir, toName( id ) );
+
+		dir.mkdirs();
+
+		if ( !dictionaryFile.isFile() ) {
+			Utils.writeFileAtomically( dictionaryFile, dictionary );
+		}
+
+		Utils.writeFileAtomically( new File( dir, CURRENT_FILE_NAME ), Long.toHexString( id ).getBytes( Utils.CHARSET_UTF8 ) );
+
+		dictionaries.put( id, dictionary );
+		current = dictionary;
+	}
+
+	/**
+	 * Following writes are plain; existing dictionaries are kept for reading.
+	 */
+	void clearCurrent() throws IOException {
+
+		Files.deleteIfExists( new File( dir, CURRENT_FILE_NAME ).toPath() );
+		current = new byte[0];
+	}
+
+	/**
+	 * @param out receives the compressed document
+	 * @return <code>false</code> if compression is not enabled, then nothing is written to out
+	 */
+	boolean compress(byte[] json, int length, ReusableBuffer out) throws IOException {
+
+		final byte[] dictionary = getCurrent();
+
+		if ( dictionary.length == 0 ) {
+			return false;
+		}
+
+		final Deflater deflater = DEFLATERS.get();
+		final byte[] chunk = CHUNKS.get();
+
+		deflater.reset();
+		deflater.setDictionary( dictionary );
+		deflater.setInput( json, 0, length );
+		deflater.finish();
+
+		out.write( MAGIC );
+		out.write( FORMAT );
+
+		while( !deflater.finished() ) {
+			out.write( chunk, 0, deflater.deflate( chunk ) );
+		}
+
+		return true;
+	}
+
+	/**
+	 * Replaces the compressed content of the buffer by the document.
+	 */
+	void decompress(ReusableBuffer buffer) throws IOException {
+
+		if ( buffer.array()[1] != FORMAT ) {
+			throw new IOException("Unknown compression format: "+ buffer.array()[1]);
+		}
+
+		final Inflater inflater = INFLATERS.get();
+		final ReusableBuffer out = BUFFERS.get();
+		final byte[] chunk = CHUNKS.get();
+
+		try {
+
+			inflater.reset();
+			inflater.setInput( buffer.array(), 2, buffer.length()-2 );
+
+			while( !inflater.finished() ) {
+
+				final int length = inflater.inflate( chunk );
+
+				if ( length > 0 ) {
+					out.write( chunk, 0, length );
+				} else if ( inflater.needsDictionary() ) {
+					inflater.setDictionary( getDictionary( inflater.getAdler() & 0xffffffffL ) );
+				} else if ( inflater.needsInput() ) {
+					throw new IOException("Compressed document is truncated.");
+				}
+			}
+
+			buffer.reset();
+			buffer.write( out.array(), 0, out.length() );
+
+		} catch (DataFormatException e) {
+			throw new IOException( "Compressed document is corrupt: "+ e.getMessage(), e );
+		} finally {
+			out.reset( JsonPersister.MAX_RETAINED_BUFFER_SIZE );
+		}
+	}
+
+	private byte[] getDictionary(long id) throws IOException {
+
+		byte[] dictionary = dictionaries.get( id );
+
+		if ( dictionary == null ) {
+
+			final File dictionaryFile = new File( dir, toName( id ) );
+
+			if ( !dictionaryFile.isFile() ) {
+				throw new IOException("Missing dictionary: "+ dictionaryFile);
+			}
+
+			dictionary = Files.readAllBytes( dictionaryFile.toPath() );
+			dictionaries.put( id, dictionary );
+		}
+
+		return dictionary;
+	}
+
+	private static long getId(byte[] dictionary) {
+		final Adler32 adler32 = new Adler32();
+		adler32.update( dictionary );
+		return adler32.getValue();
+	}
+
+	private static String toName(long id) {
+		return String.format( "%08x.dict", id );
+	}
+
+	/**
+	 * Builds a dictionary from the lines of pretty printed sample documents.
+	 * Line prefixes ending at a space shared by several samples are taken, i.e. member names with their indentation, frequent values and common beginnings of values;
+	 * the most valuable ones are put at the end, where deflate references them with the shortest distances.
+	 */
+	static byte[] train(Collection<byte[]> samples, int maxSize) {
+
+		final Map<String,Integer> counts = new HashMap<>();
+
+		for (byte[] sample : samples) {
+
+			final Set<String> segments = new HashSet<>();
+
+			for (String line : new String( sample, Utils.CHARSET_UTF8 ).split( "\n" )) {
+
+				segments.add( line + "\n" );
+
+				for (int idx = line.indexOf( ' ', line.length() - line.trim().length() ); idx > 0; idx = line.indexOf( ' ', idx+1 )) {
+					segments.add( line.substring( 0, idx+1 ) );
+				}
+			}
+
+			// counted once per sample
+			segments.forEach( (segment)->counts.merge( segment, 1, Integer::sum ) );
+		}
+
+		final int minCount = samples.size() > 1 ? 2 : 1;
+		final List<Map.Entry<String,Integer>> segments = new ArrayList<>();
+
+		counts.entrySet().stream().filter( (e)->e.getValue() >= minCount ).forEach( segments::add );
+
+		// descending by the amount of bytes a segment saves
+		segments.sort( (e1,e2)->Long.compare( (long)e2.getValue() * e2.getKey().length(), (long)e1.getValue() * e1.getKey().length() ) );
+
+		final List<String> picked = new ArrayList<>();
+		int size = 0;
+
+		for (Map.Entry<String,Integer> segment : segments) {
+
+			final String text = segment.getKey();
+			final int length = text.getBytes( Utils.CHARSET_UTF8 ).length;
+
+			if ( size + length <= maxSize && picked.stream().noneMatch( (p)->p.contains( text ) ) ) {
+				picked.add( text );
+				size += length;
+			}
+		}
+
+		final StringBuilder dictionary = new StringBuilder( size );
+
+		for (int i = picked.size()-1; i >= 0; i--) {
+			dictionary.append( picked.get( i ) );
+		}
+
+		return dictionary.toString().getBytes( Utils.CHARSET_UTF8 );
+	}
+}
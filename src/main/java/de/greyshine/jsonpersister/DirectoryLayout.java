@@ -0,0 +1,141 @@
+package de.greyshine.jsonpersister;
+
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Strategy distributing the files of a type into bucket directories below the type's directory.<br/>
+ * The layout of a type is persisted in the file {@value #FILE_NAME} of the type's directory.
+ */
+public abstract class DirectoryLayout {
+	
+	public static final String FILE_NAME = ".layout";
+	
+	/**
+	 * The scheme used before layouts were configurable: one level of up to 36^5 directories named by {@link Utils#getHash(String, int, String)}.
+	 */
+	public static final DirectoryLayout LEGACY = new DirectoryLayout() {
+		
+		@Override
+		public String getBucket(String id) {
+			return Utils.getHash(id.trim(), 5, "0123456789abcdefghijklmnopqrstuvwxyz");
+		}
+		
+		@Override
+		public int getDepth() {
+			return 1;
+		}
+		
+		@Override
+		public String toString() {
+			return "legacy";
+		}
+	};
+	
+	DirectoryLayout() {}
+	
+	/**
+	 * Layout based on the Murmur3 hash of the id giving a uniform distribution.
+	 * 
+	 * @param depth levels of directories
+	 * @param fanOut amount of directories per level
+	 */
+	public static DirectoryLayout hashed(int depth, int fanOut) {
+		return new Hashed( depth, fanOut );
+	}
+	
+	/**
+	 * @param descriptor as returned by {@link #toString()}
+	 */
+	public static DirectoryLayout parse(String descriptor) {
+		
+		final String d = descriptor == null ? "" : descriptor.trim();
+		
+		if ( LEGACY.toString().equals( d ) ) {
+			return LEGACY;
+		}
+		
+		final String[] parts = d.split( ":" );
+		
+		if ( parts.length != 3 || !"hashed".equals( parts[0] ) ) {
+			throw new IllegalArgumentException("Bad layout descriptor: "+ descriptor);
+		}
+		
+		return hashed( Integer.parseInt( parts[1] ), Integer.parseInt( parts[2] ) );
+	}
+	
+	/**
+	 * @return path of the bucket directory relative to the type's directory; levels are separated by <code>/</code>
+	 */
+	public abstract String getBucket(String id);
+	
+	/**
+	 * @return levels of bucket directories
+	 */
+	public abstract int getDepth();
+	
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof DirectoryLayout && toString().equals( obj.toString() );
+	}
+	
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+	
+	private static class Hashed extends DirectoryLayout {
+		
+		private final int depth;
+		private final int fanOut;
+		private final int digits;
+		
+		private Hashed(int depth, int fanOut) {
+			
+			if ( depth < 1 || fanOut < 2 ) {
+				throw new IllegalArgumentException( "depth must be positive and fanOut greater than 1 [depth="+ depth +", fanOut="+ fanOut +"]" );
+			} else if ( Math.pow( fanOut, depth ) > 0xffffffffL+1 ) {
+				throw new IllegalArgumentException( "fanOut^depth must not exceed 2^32 [depth="+ depth +", fanOut="+ fanOut +"]" );
+			}
+			
+			this.depth = depth;
+			this.fanOut = fanOut;
+			this.digits = Integer.toHexString( fanOut-1 ).length();
+		}
+		
+		@Override
+		public String getBucket(String id) {
+			
+			long hash = Utils.murmur3( id.trim(), 0 ) & 0xffffffffL;
+			
+			final StringBuilder sb = new StringBuilder();
+			
+			for (int i = 0; i < depth; i++) {
+				
+				if ( i > 0 ) {
+					sb.append( '/' );
+				}
+				
+				final String hex = Long.toHexString( hash % fanOut );
+				
+				for (int d = hex.length(); d < digits; d++) {
+					sb.append( '0' );
+				}
+				
+				sb.append( hex );
+				hash /= fanOut;
+			}
+			
+			return sb.toString();
+		}
+		
+		@Override
+		public int getDepth() {
+			return depth;
+		}
+		
+		@Override
+		public String toString() {
+			return "hashed:"+ depth +":"+ fanOut;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package de.greyshine.jsonpersister;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import com.google.gson.stream.JsonReader;
+
+import de.greyshine.jsonpersister.annotations.Expires;
+import de.greyshine.jsonpersister.query.FieldExtractor;
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Expiry of the objects of a type: by the value of its {@link Expires} field and/or by a time to live counted from the last write.
+ */
+class Expiry {
+
+	private final String path;
+	private final long timeToLive;
+	private final FieldExtractor extractor;
+
+	/**
+	 * @param path name of the {@link Expires} field or <code>null</code>
+	 * @param timeToLive milliseconds after the last write; 0 for none
+	 */
+	Expiry(String path, long timeToLive) {
+		this.path = path;
+		this.timeToLive = timeToLive;
+		this.extractor = path == null ? null : new FieldExtractor( Collections.singleton( path ) );
+	}
+
+	boolean hasTimeToLive() {
+		return timeToLive > 0;
+	}
+
+	/**
+	 * @param json the object's JSON
+	 * @param writtenAt time the object was last written
+	 * @return the object's expiry time; <code>null</code> if it does not expire
+	 */
+	Long getExpiresAt(InputStream json, long writtenAt) throws IOException {
+
+		Long expiresAt = timeToLive > 0 ? writtenAt + timeToLive : null;
+
+		if ( extractor == null ) {
+			return expiresAt;
+		}
+
+		final Object value;
+
+		try (JsonReader reader = new JsonReader( new InputStreamReader( json, Utils.CHARSET_UTF8 ) )) {
+			value = extractor.extract( reader ).get( path );
+		}
+
+		if ( value instanceof BigDecimal && ((BigDecimal)value).signum() > 0 ) {
+			final long at = ((BigDecimal)value).longValue();
+			expiresAt = expiresAt == null ? at : Math.min( expiresAt, at );
+		}
+
+		return expiresAt;
+	}
+}
@@ -0,0 +1,102 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Time ordered index of the expiring objects below the meta directory, so expired objects are found without scanning their types.<br/>
+ * The index is a coarse timing wheel on disk: <code>expiry/&lt;type&gt;/&lt;minute&gt;.idx</code> lists the ids of the objects expiring in that minute, one per line.
+ * Ids are appended on each write; an id listed for a minute its object does not expire in anymore is skipped when swept.
+ * A sweep claims a due file by renaming it, so ids appended meanwhile go to a new file.
+ */
+class ExpiryIndex {
+
+	static final long BUCKET_MILLIS = 60 * 1000;
+
+	private static final String SUFFIX = ".idx";
+	private static final String CLAIMED_SUFFIX = ".sweeping";
+
+	private final File dir;
+
+	ExpiryIndex(File metaDir) {
+		this.dir = new File( metaDir, "expiry" );
+	}
+
+	synchronized void add(String typeName, String id, long expiresAt) throws IOException {
+
+		final File file = new File( new File( dir, typeName ), String.format( "%013d", Math.max( 0, expiresAt / BUCKET_MILLIS ) ) + SUFFIX );
+		Utils.mkParentDirs( file );
+
+		try (OutputStream out = new FileOutputStream( file, true )) {
+			out.write( (id +"\n").getBytes( Utils.CHARSET_UTF8 ) );
+		}
+	}
+
+	/**
+	 * Claims the files of the minutes passed, including files claimed by an interrupted sweep.
+	 * 
+	 * @return claimed files, oldest first
+	 */
+	List<File> claimDue(long now) {
+
+		final List<File> claimed = new ArrayList<>();
+
+		for (File typeDir : Utils.list( dir, File::isDirectory )) {
+
+			for (File file : Utils.list( typeDir, File::isFile )) {
+
+				final String name = file.getName();
+
+				if ( name.endsWith( CLAIMED_SUFFIX ) ) {
+					claimed.add( file );
+					continue;
+				} else if ( !name.endsWith( SUFFIX ) ) {
+					continue;
+				}
+
+				final long bucket;
+
+				try {
+					bucket = Long.parseLong( name.substring( 0, name.length()-SUFFIX.length() ) );
+				} catch (NumberFormatException e) {
+					continue;
+				}
+
+				final File claimedFile = new File( typeDir, name.substring( 0, name.length()-SUFFIX.length() ) + CLAIMED_SUFFIX );
+
+				if ( (bucket+1) * BUCKET_MILLIS <= now && file.renameTo( claimedFile ) ) {
+					claimed.add( claimedFile );
+				}
+			}
+		}
+
+		Collections.sort( claimed, (f1, f2)->f1.getName().compareTo( f2.getName() ) );
+		return claimed;
+	}
+
+	static String getTypeName(File file) {
+		return file.getParentFile().getName();
+	}
+
+	static Set<String> readIds(File file) throws IOException {
+
+		final Set<String> ids = new LinkedHashSet<>();
+
+		for (String line : Utils.readToString( file, Utils.CHARSET_UTF8 ).split( "\n" )) {
+			if ( !line.trim().isEmpty() ) {
+				ids.add( line.trim() );
+			}
+		}
+
+		return ids;
+	}
+}
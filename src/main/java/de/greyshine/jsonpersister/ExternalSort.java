@@ -0,0 +1,323 @@
+package de.greyshine.jsonpersister;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import de.greyshine.jsonpersister.query.Values;
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Sorts entries of a sort value and an id with bounded memory.<br/>
+ * Up to <code>maxEntries</code> entries are sorted in memory; beyond that, sorted runs are spilled to temporary files which are merged while iterating.
+ */
+class ExternalSort implements Closeable {
+
+	/**
+	 * by value as of {@link Values#compareOrdered(Object, Object)}, ties broken by id, so the order is total and can be resumed after any entry
+	 */
+	static final Comparator<Entry> ORDER = (e1, e2)->{
+		final int c = Values.compareOrdered( e1.value, e2.value );
+		return c != 0 ? c : e1.id.compareTo( e2.id );
+	};
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File dir;
+	private final int maxEntries;
+
+	private final List<Entry> entries = new ArrayList<>();
+	private final List<File> runs = new ArrayList<>();
+	private final List<DataInputStream> inputs = new ArrayList<>();
+
+	ExternalSort(File dir, int maxEntries) {
+
+		if ( maxEntries < 1 ) {
+			throw new IllegalArgumentException("maxEntries must be positive: "+ maxEntries);
+		}
+
+		this.dir = dir;
+		this.maxEntries = maxEntries;
+	}
+
+	void add(Object value, String id) throws IOException {
+
+		entries.add( new Entry( value, id ) );
+
+		if ( entries.size() >= maxEntries ) {
+			spill();
+		}
+	}
+
+	int getRuns() {
+		return runs.size();
+	}
+
+	private void spill() throws IOException {
+
+		entries.sort( ORDER );
+
+		dir.mkdirs();
+		final File run = File.createTempFile( "run", ".sort", dir );
+		runs.add( run );
+
+		try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( run ), BUFFER_SIZE ) )) {
+			for (Entry entry : entries) {
+				write( out, entry );
+			}
+		}
+
+		entries.clear();
+	}
+
+	/**
+	 * Ends adding; the iterator throws {@link UncheckedIOException} on failures reading the runs.
+	 */
+	Iterator<Entry> iterator() throws IOException {
+
+		if ( runs.isEmpty() ) {
+			entries.sort( ORDER );
+			return entries.iterator();
+		}
+
+		if ( !entries.isEmpty() ) {
+			spill();
+		}
+
+		final PriorityQueue<Run> queue = new PriorityQueue<>( runs.size(), (r1, r2)->ORDER.compare( r1.head, r2.head ) );
+
+		for (File file : runs) {
+
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), BUFFER_SIZE ) );
+			inputs.add( in );
+
+			final Run run = new Run( in );
+
+			if ( run.advance() ) {
+				queue.add( run );
+			}
+		}
+
+		return new Iterator<Entry>() {
+
+			@Override
+			public boolean hasNext() {
+				return !queue.isEmpty();
+			}
+
+			@Override
+			public Entry next() {
+
+				final Run run = queue.poll();
+
+				if ( run == null ) {
+					throw new NoSuchElementException();
+				}
+
+				final Entry entry = run.head;
+
+				try {
+					if ( run.advance() ) {
+						queue.add( run );
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException( e );
+				}
+
+				return entry;
+			}
+		};
+	}
+
+	/**
+	 * Deletes the spilled runs.
+	 */
+	@Override
+	public void close() {
+
+		inputs.forEach( Utils::closeSafe );
+		inputs.clear();
+		runs.forEach( Utils::delete );
+		runs.clear();
+		entries.clear();
+	}
+
+	private static void write(DataOutputStream out, Entry entry) throws IOException {
+
+		final Object value = entry.value;
+
+		if ( value == null ) {
+			out.writeByte( 0 );
+		} else if ( value instanceof Boolean ) {
+			out.writeByte( (Boolean)value ? 2 : 1 );
+		} else if ( value instanceof BigDecimal ) {
+			out.writeByte( 3 );
+			out.writeUTF( value.toString() );
+		} else {
+			// writeUTF is limited to 64k bytes
+			final byte[] bytes = value.toString().getBytes( Utils.CHARSET_UTF8 );
+			out.writeByte( 4 );
+			out.writeInt( bytes.length );
+			out.write( bytes );
+		}
+
+		out.writeUTF( entry.id );
+	}
+
+	/**
+	 * @return <code>null</code> at the end of the run
+	 */
+	private static Entry read(DataInputStream in) throws IOException {
+
+		final int type = in.read();
+		final Object value;
+
+		switch ( type ) {
+		case -1:
+			return null;
+		case 0:
+			value = null;
+			break;
+		case 1:
+		case 2:
+			value = type == 2;
+			break;
+		case 3:
+			value = new BigDecimal( in.readUTF() );
+			break;
+		case 4:
+			final byte[] bytes = new byte[ in.readInt() ];
+			in.readFully( bytes );
+			value = new String( bytes, Utils.CHARSET_UTF8 );
+			break;
+		default:
+			throw new IOException("Bad sort run entry type: "+ type);
+		}
+
+		return new Entry( value, in.readUTF() );
+	}
+
+	private static class Run {
+
+		private final DataInputStream in;
+		private Entry head;
+
+		private Run(DataInputStream in) {
+			this.in = in;
+		}
+
+		private boolean advance() throws IOException {
+
+			try {
+				head = read( in );
+			} catch (EOFException e) {
+				throw new IOException("Truncated sort run", e);
+			}
+
+			return head != null;
+		}
+	}
+
+	/**
+	 * Sort value and id of an object.
+	 */
+	static class Entry {
+
+		final Object value;
+		final String id;
+
+		Entry(Object value, String id) {
+			this.value = value;
+			this.id = id;
+		}
+
+		/**
+		 * @return key of the entry within the order by the field, a JSON array of the value and the id
+		 */
+		String toKey() {
+
+			final StringWriter sw = new StringWriter();
+
+			try (JsonWriter writer = new JsonWriter( sw )) {
+
+				writer.beginArray();
+
+				if ( value == null ) {
+					writer.nullValue();
+				} else if ( value instanceof Boolean ) {
+					writer.value( (Boolean)value );
+				} else if ( value instanceof BigDecimal ) {
+					writer.value( (BigDecimal)value );
+				} else {
+					writer.value( value.toString() );
+				}
+
+				writer.value( id ).endArray();
+
+			} catch (IOException e) {
+				throw new UncheckedIOException( e );
+			}
+
+			return sw.toString();
+		}
+
+		/**
+		 * @param key as returned by {@link #toKey()}
+		 */
+		static Entry parseKey(String key) {
+
+			try (JsonReader reader = new JsonReader( new StringReader( key ) )) {
+
+				reader.beginArray();
+
+				final JsonToken token = reader.peek();
+				final Object value;
+
+				if ( token == JsonToken.NULL ) {
+					reader.nextNull();
+					value = null;
+				} else if ( token == JsonToken.BOOLEAN ) {
+					value = reader.nextBoolean();
+				} else if ( token == JsonToken.NUMBER ) {
+					value = new BigDecimal( reader.nextString() );
+				} else {
+					value = reader.nextString();
+				}
+
+				final String id = reader.nextString();
+				reader.endArray();
+
+				return new Entry( value, id );
+
+			} catch (IOException | IllegalStateException | NumberFormatException e) {
+				throw new IllegalArgumentException("Bad page key: "+ key, e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Entry [value=" + value + ", id=" + id + "]";
+		}
+	}
+}
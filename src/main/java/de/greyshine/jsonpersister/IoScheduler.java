@@ -0,0 +1,156 @@
+package de.greyshine.jsonpersister;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the disk I/O of two priority classes: foreground reads and writes of callers, and maintenance jobs like backups, packing or migrations.<br/>
+ * Foreground I/O is never delayed, it is only counted while in progress. Maintenance jobs report the bytes they read or write by {@link #maintain(long)},
+ * which first yields to foreground I/O in progress for up to {@value #MAX_YIELD_MILLIS} ms and then takes the bytes from a token bucket
+ * holding up to one second's worth of the configured rate. Larger amounts leave the bucket in debt, which the next caller waits for.
+ * <p>
+ * Jobs are bound to their thread, so foreground I/O done on behalf of a maintenance job, e.g. writing a migrated file, is accounted to the job.
+ * </p>
+ */
+class IoScheduler {
+
+	static final long MAX_YIELD_MILLIS = 50;
+
+	private static final ThreadLocal<AtomicLong> JOBS = new ThreadLocal<>();
+
+	private final Metrics metrics;
+	private final AtomicInteger foreground = new AtomicInteger();
+
+	/**
+	 * bytes per second of all maintenance jobs; 0 for no limit
+	 */
+	private volatile long rate;
+	private double tokens;
+	private long refillTime = System.currentTimeMillis();
+
+	IoScheduler(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	synchronized void setRate(long bytesPerSecond) {
+
+		if ( bytesPerSecond < 0 ) {
+			throw new IllegalArgumentException("Rate must not be negative: "+ bytesPerSecond);
+		}
+
+		this.rate = bytesPerSecond;
+		this.tokens = bytesPerSecond;
+		this.refillTime = System.currentTimeMillis();
+	}
+
+	long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Runs an action as maintenance job; within a job it is part of the running job.
+	 *
+	 * @param name shown with the job's progress in the {@link Metrics}
+	 */
+	<T> T runMaintenance(String name, Coordinator.IoAction<T> action) throws IOException {
+
+		if ( JOBS.get() != null ) {
+			return action.run();
+		}
+
+		final AtomicLong progress = new AtomicLong();
+		String key = name;
+
+		for (int i = 2; metrics.maintenanceProgress.putIfAbsent( key, progress ) != null; i++) {
+			key = name +" #"+ i;
+		}
+
+		JOBS.set( progress );
+
+		try {
+			return action.run();
+		} finally {
+			JOBS.remove();
+			metrics.maintenanceProgress.remove( key );
+		}
+	}
+
+	boolean isMaintenance() {
+		return JOBS.get() != null;
+	}
+
+	void beginForeground() {
+		if ( JOBS.get() == null ) {
+			foreground.incrementAndGet();
+		}
+	}
+
+	void endForeground() {
+		if ( JOBS.get() == null ) {
+			foreground.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Accounts bytes read or written by the maintenance job of the current thread, waiting as long as the job has to yield or is throttled.
+	 * Outside of a job nothing is accounted.
+	 */
+	void maintain(long bytes) throws InterruptedIOException {
+
+		final AtomicLong progress = JOBS.get();
+
+		if ( progress == null ) {
+			return;
+		}
+
+		try {
+
+			final long yieldStart = System.currentTimeMillis();
+			long yielded = 0;
+
+			while ( foreground.get() > 0 && yielded < MAX_YIELD_MILLIS ) {
+				Thread.sleep( 1 );
+				yielded = System.currentTimeMillis() - yieldStart;
+			}
+
+			metrics.maintenanceYieldedMillis.addAndGet( yielded );
+
+			final long wait = take( bytes );
+
+			if ( wait > 0 ) {
+				metrics.maintenanceThrottledMillis.addAndGet( wait );
+				Thread.sleep( wait );
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Maintenance interrupted");
+		}
+
+		progress.addAndGet( bytes );
+		metrics.maintenanceBytes.addAndGet( bytes );
+	}
+
+	/**
+	 * @return milliseconds to wait until the bucket is out of debt
+	 */
+	private synchronized long take(long bytes) {
+
+		final long rate = this.rate;
+
+		if ( rate == 0 ) {
+			return 0;
+		}
+
+		final long now = System.currentTimeMillis();
+		tokens = Math.min( rate, tokens + (now - refillTime) * rate / 1000d ) - bytes;
+		refillTime = now;
+
+		return tokens >= 0 ? 0 : (long)Math.ceil( -tokens * 1000 / rate );
+	}
+}
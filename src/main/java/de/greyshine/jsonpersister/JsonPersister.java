@@ -1,20 +1,59 @@
 package de.greyshine.jsonpersister;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BinaryOperator;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
@@ -22,19 +61,72 @@ import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import de.greyshine.jsonpersister.AdmissionController.Operation;
+import de.greyshine.jsonpersister.annotations.Chunked;
+import de.greyshine.jsonpersister.annotations.Expires;
 import de.greyshine.jsonpersister.annotations.Id;
+import de.greyshine.jsonpersister.annotations.Partition;
+import de.greyshine.jsonpersister.annotations.Version;
+import de.greyshine.jsonpersister.codegen.JsonCodec;
+import de.greyshine.jsonpersister.codegen.JsonCodecs;
+import de.greyshine.jsonpersister.query.Aggregate;
+import de.greyshine.jsonpersister.query.FieldExtractor;
+import de.greyshine.jsonpersister.query.Filter;
+import de.greyshine.jsonpersister.query.Values;
 import de.greyshine.jsonpersister.util.Assert;
+import de.greyshine.jsonpersister.util.ReusableBuffer;
+import de.greyshine.jsonpersister.util.Utf8Writer;
 import de.greyshine.jsonpersister.util.Utils;
 import de.greyshine.jsonpersister.util.Utils.Wrapper;
 
-public class JsonPersister {
+public class JsonPersister implements Closeable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(JsonPersister.class);
+	
+	private static final int COMPRESSION_SAMPLES = 256;
+	
+	static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+	private static final ThreadLocal<ReusableBuffer> BUFFERS = ThreadLocal.withInitial( ()->new ReusableBuffer( 8 * 1024 ) );
+	/**
+	 * serialized JSON on its way to the file, kept apart from {@link #BUFFERS} which hold the JSON read from a file
+	 */
+	private static final ThreadLocal<ReusableBuffer> WRITE_BUFFERS = ThreadLocal.withInitial( ()->new ReusableBuffer( 8 * 1024 ) );
+	private static final ThreadLocal<ReusableBuffer> COMPRESS_BUFFERS = ThreadLocal.withInitial( ()->new ReusableBuffer( 4 * 1024 ) );
+	private static final ThreadLocal<Utf8Writer> WRITERS = ThreadLocal.withInitial( Utf8Writer::new );
+	
+	/**
+	 * Monitors guarding the object files; a file is mapped to a stripe by its path, so instances sharing a base directory share the monitors as well.
+	 */
+	private static final Object[] LOCK_STRIPES = new Object[1024];
+	/**
+	 * beyond, fingerprints are dropped, which only costs writing an unchanged object
+	 */
+	private static final int MAX_FINGERPRINTS = 100_000;
+	/**
+	 * Monitors guarding the objects of partitioned types, mapped by their type and id; they are taken before the monitor of a file.
+	 */
+	private static final Object[] OBJECT_LOCK_STRIPES = new Object[1024];
+	static {
+		for (int i = 0; i < LOCK_STRIPES.length; i++) {
+			LOCK_STRIPES[i] = new Object();
+			OBJECT_LOCK_STRIPES[i] = new Object();
+		}
+	}
+	
+	/**
+	 * Name of the directory below the base directory holding internal data like lock files; it is not part of backups.
+	 */
+	public static final String META_DIR_NAME = ".jsonpersister";
 
 	private final File baseDir;
+	private final Coordinator coordinator;
 
 	private final BackupHandler backupHandler = new BackupHandler(this);
 	
@@ -42,18 +134,89 @@ public class JsonPersister {
 	private AtomicInteger concurrentAccesses = new AtomicInteger(0);
 	
 	private final Storage storage = new Storage();
-	private final Gson gson = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
-
-	private IIdProvider idProvider = new IIdProvider() {
+	private volatile ChangeFeed changeFeed = new ChangeFeed();
+	/**
+	 * codecs generated at build time take over serialization of their types, others are serialized by reflection
+	 */
+	private final Gson gson = new GsonBuilder().registerTypeAdapterFactory( JsonCodecs.getTypeAdapterFactory() ).setExclusionStrategies( new ExclusionStrategy() {
+		
+		// elements of chunked fields are stored apart from the object
 		@Override
-		public String getId(Object inObject) {
-			return UUID.randomUUID().toString();
+		public boolean shouldSkipField(FieldAttributes f) {
+			return f.getAnnotation( Chunked.class ) != null;
+		}
+		
+		@Override
+		public boolean shouldSkipClass(Class<?> clazz) {
+			return false;
 		}
-	};
+		
+	} ).setPrettyPrinting().serializeNulls().create();
+
+	private volatile IIdProvider idProvider = new TimeOrderedIdProvider();
 
 	private final Map<Class<?>, Field> idFields = new HashMap<>(0);
+	
+	private volatile WriteBehind writeBehind;
+	private volatile OffHeapCache cache;
+	
+	private final Metrics metrics = new Metrics();
+	private final IoScheduler ioScheduler = new IoScheduler( metrics );
+	private final AdmissionController admission = new AdmissionController( metrics );
+	private volatile boolean skipUnchangedWrites = true;
+	/**
+	 * content hashes of the object files by type and id, together with the file's size and modification time at hashing;
+	 * taken of written objects and of objects read one by one, at most {@link #MAX_FINGERPRINTS}
+	 */
+	private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+	
+	private int ioThreads = Math.max( 4, Runtime.getRuntime().availableProcessors() );
+	private ExecutorService ioExecutor;
+	
+	private volatile DirectoryLayout defaultLayout = DirectoryLayout.hashed(1, 256);
+	private final Map<Class<?>, DirectoryLayout> layouts = new ConcurrentHashMap<>();
+	/**
+	 * former layouts of the types whose files are being migrated to a new layout
+	 */
+	private final Map<Class<?>, DirectoryLayout> formerLayouts = new ConcurrentHashMap<>();
+	private final Set<Class<?>> storedLayouts = ConcurrentHashMap.newKeySet();
+	private final Map<Class<?>, DictionaryCompression> compressions = new ConcurrentHashMap<>();
+	private final Map<Class<?>, Optional<Field>> versionFields = new ConcurrentHashMap<>();
+	private final Map<Class<?>, Optional<Partitioning>> partitionings = new ConcurrentHashMap<>();
+	private volatile int maxSortEntries = 100_000;
+	/**
+	 * amount of objects by type, maintained once counted; writes changing the amount hold the read lock of {@link #countLock}, counting holds the write lock
+	 */
+	private final Map<Class<?>, AtomicLong> counts = new ConcurrentHashMap<>();
+	private final ReentrantReadWriteLock countLock = new ReentrantReadWriteLock();
+	private ForkJoinPool scanPool;
+	
+	private final Map<Class<?>, Long> timesToLive = new ConcurrentHashMap<>();
+	private final Map<Class<?>, Optional<Expiry>> expiries = new ConcurrentHashMap<>();
+	private final ExpiryIndex expiryIndex;
+	private volatile int expirySweepRate = 1000;
+	private ScheduledExecutorService expirySweeper;
+	
+	private final Map<Class<?>, PackStore> packStores = new ConcurrentHashMap<>();
+	/**
+	 * serializes packing, which is not meant to run concurrently
+	 */
+	private final Object packLock = new Object();
+	private ScheduledExecutorService packer;
+	
+	private final Map<Class<?>, Map<String, Field>> chunkedFields = new ConcurrentHashMap<>();
+	
+	private final Snapshots snapshots;
 
 	public JsonPersister(File path) {
+		this(path, false);
+	}
+	
+	/**
+	 * @param multiProcess if <code>true</code> writes are coordinated by file locks, so several processes can use the same base directory.
+	 * Files are then replaced atomically and changes of other processes can be detected by {@link #getGeneration(Class)}.
+	 */
+	public JsonPersister(File path, boolean multiProcess) {
 
 		Assert.notNull("No base directory", path);
 
@@ -64,20 +227,79 @@ public class JsonPersister {
 		Assert.isDirectory(path);
 
 		baseDir = Utils.getCanonicalFile(path);
+		coordinator = new Coordinator(getMetaDir(), multiProcess);
+		expiryIndex = new ExpiryIndex(getMetaDir());
+		snapshots = new Snapshots(new File(getMetaDir(), "snapshots/"+ Long.toHexString(System.nanoTime())));
 
-		LOG.info("storage: {}", baseDir.getAbsolutePath());
+		LOG.info("storage: {} (multiProcess={})", baseDir.getAbsolutePath(), multiProcess);
 	}
 	
 	public File getBaseDir() {
 		return baseDir;
 	}
+	
+	File getMetaDir() {
+		return new File(baseDir, META_DIR_NAME);
+	}
 
+	BackupHandler getBackupHandler() {
+		return backupHandler;
+	}
+	
+	public boolean isMultiProcess() {
+		return coordinator.isMultiProcess();
+	}
+	
+	/**
+	 * Cheap change detection, e.g. for keeping caches: the returned counter changes with every write or delete of an object of the given type.
+	 * In multi process mode this includes changes made by other processes.
+	 */
+	public long getGeneration(Class<?> clazz) throws IOException {
+		Assert.notNull("No class specified", clazz);
+		return coordinator.getGeneration(clazz);
+	}
+
+	/**
+	 * @param idProvider assigns the ids of objects upserted without one; the default is a {@link TimeOrderedIdProvider}
+	 */
 	public void setIdProvider(IIdProvider idProvider) {
 		if (idProvider == null) {
 			throw new IllegalArgumentException(IIdProvider.class.getTypeName() + " must not be null");
 		}
 		this.idProvider = idProvider;
 	}
+	
+	/**
+	 * Replaces the change feed; existing subscriptions stay on the former feed, so configure before subscribing.
+	 * 
+	 * @param capacity amount of events retained for resuming subscribers
+	 * @param retainPayloads whether events carry the JSON of upserted objects
+	 */
+	public void configureChangeFeed(int capacity, boolean retainPayloads) {
+		this.changeFeed = new ChangeFeed( capacity, retainPayloads );
+	}
+	
+	public ChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+	
+	/**
+	 * Subscribes to upserts and deletes happening from now on.
+	 * 
+	 * @param clazz <code>null</code> for all types
+	 */
+	public ChangeFeed.Subscription subscribe(Class<?> clazz, ChangeFeed.Listener listener) {
+		return changeFeed.subscribe( clazz, listener, -1 );
+	}
+	
+	/**
+	 * Subscribes to upserts and deletes following the given sequence, e.g. the last one processed before a restart of the subscriber.
+	 * 
+	 * @param clazz <code>null</code> for all types
+	 */
+	public ChangeFeed.Subscription subscribe(Class<?> clazz, ChangeFeed.Listener listener, long afterSequence) {
+		return changeFeed.subscribe( clazz, listener, afterSequence );
+	}
 
 	/**
 	 * Reads an Object from the file System
@@ -87,342 +309,3773 @@ public class JsonPersister {
 	 * @return
 	 * @throws IOException
 	 */
+	@SuppressWarnings("try")
 	public <T> T read(Class<T> clazz, String id) throws IOException {
 
-		if (clazz == null || id == null) {
-			return null;
-		}
+		try (AdmissionController.Permit permit = admission.admit( Operation.READ )) {
 
-		final File file = getFile(clazz, id);
+			if (clazz == null || id == null) {
+				return null;
+			}
 
-		concurrentAccesses.incrementAndGet();
+			final ReusableBuffer buffer = BUFFERS.get();
 		
-		try {
+			try {
 			
-			synchronized (file.getCanonicalPath().intern()) {
-
-				if (file == null || !file.isFile()) {
+				if ( !readJson( clazz, id, buffer ) ) {
 					return null;
 				}
-
-				try (FileReader reader = new FileReader(file)) {
-
-					final T result = gson.fromJson(reader, clazz);
-
-					LOG.info("read [id={}]:\n{}", id, result);
-
-					return result;
-				}
-			}
 			
-		} finally {
-			concurrentAccesses.decrementAndGet();
+				final T result = fromJson( buffer, clazz );
+			
+				LOG.debug("read [id={}]:\n{}", id, result);
+			
+				return result;
+			
+			} finally {
+				buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+			}
 		}
 	}
-
-	public <T> String upsert(T object) throws IOException {
-
-		if (object == null) {
-			throw new IllegalArgumentException("No object specified.");
-		}
-
-		final Field idField = getIdField(object.getClass());
-
-		String id = Utils.getFieldValue(idField, object);
-
-		if (Utils.isBlank(id)) {
-
-			id = idProvider.getId(object);
-
-			if (id == null) {
-				throw new IllegalStateException("Id for object is null [object=" + object + "]");
-			}
-
-			Utils.setFieldValue(idField, object, id);
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the limits of concurrent reads, writes and scans, which are not limited by default
+	 */
+	public AdmissionController getAdmissionController() {
+		return admission;
+	}
+	
+	/**
+	 * Limits the disk I/O of maintenance jobs like backups, packing, migrations and recompressions, which also yield to reads and writes in progress.
+	 * Throttling and the progress of running jobs show in the {@link Metrics}.
+	 * 
+	 * @param bytesPerSecond bytes read or written per second by all maintenance jobs together; 0 for no limit, which is the default
+	 * @see IoScheduler
+	 */
+	public void setMaintenanceRate(long bytesPerSecond) {
+		ioScheduler.setRate( bytesPerSecond );
+	}
+	
+	IoScheduler getIoScheduler() {
+		return ioScheduler;
+	}
+	
+	/**
+	 * @return name of a maintenance job on a type shown in the {@link Metrics}
+	 */
+	private static String getJobName(String job, Class<?> clazz) {
+		return clazz == null ? job : job +" "+ clazz.getTypeName();
+	}
+	
+	/**
+	 * @param skipUnchangedWrites if <code>true</code> (default) an upsert whose JSON is identical to the stored one neither writes the file nor publishes a change.
+	 * In multi process mode only patches are skipped, as they compare with the stored file; a file's size and modification time do not tell reliably whether another process changed it.
+	 */
+	public void setSkipUnchangedWrites(boolean skipUnchangedWrites) {
+		this.skipUnchangedWrites = skipUnchangedWrites;
+		if ( !skipUnchangedWrites ) {
+			fingerprints.clear();
 		}
-
-		final File file = getFile(object.getClass(), id);
+	}
+	
+	/**
+	 * Buffers upserts and deletes in memory and writes them in the background; repeated writes of an object are coalesced.<br/>
+	 * Reads see pending writes. Scans and backups flush pending writes before they start.
+	 * Pending writes are flushed on {@link #close()} and on JVM shutdown.
+	 * 
+	 * @param maxPending amount of pending objects triggering a flush
+	 * @param maxDelayMillis maximum time a write stays pending
+	 */
+	public synchronized void enableWriteBehind(int maxPending, long maxDelayMillis) throws IOException {
 		
-		final List<Object> objects = new ArrayList<>();
-
-		// idea for setting relative objects; see testcase CrossReferenceTests.java
-		//traversRelativeObjects( objects, object );
-		objects.add( object ); // workaround for not having 'traversRelativeObjects' implemented
+		disableWriteBehind();
+		writeBehind = new WriteBehind( this, maxPending, maxDelayMillis );
+	}
+	
+	/**
+	 * Flushes pending writes; following writes go directly to the disk. Writes running meanwhile wait for the flush and are written directly as well.
+	 * 
+	 * @throws IOException if pending writes failed; they stay pending and visible to reads, and flushing or disabling again retries them
+	 */
+	public synchronized void disableWriteBehind() throws IOException {
 		
-		final List<String> jsonStrings = new ArrayList<>();
-		objects.forEach( (aObject)->jsonStrings.add( gson.toJson(object) ) );
+		final WriteBehind writeBehind = this.writeBehind;
 		
-		final String jsonString = jsonStrings.get(0);
+		if ( writeBehind != null ) {
+			writeBehind.close();
+			this.writeBehind = null;
+		}
+	}
+	
+	/**
+	 * Caches the JSON of read and written objects outside of the heap, so reads of the working set neither touch the disk nor add to the heap; objects are deserialized on each read.<br/>
+	 * Scans by {@link #list(Class, Filter, Function)} bypass the cache. In multi process mode a cached object is checked against its file's length and modification time.
+	 * 
+	 * @param capacity bytes of direct memory to use; the JVM's limit is set by <code>-XX:MaxDirectMemorySize</code>
+	 */
+	public synchronized void enableOffHeapCache(long capacity) {
+		cache = new OffHeapCache( capacity );
+	}
+	
+	/**
+	 * The memory is released when the cache is garbage collected.
+	 */
+	public synchronized void disableOffHeapCache() {
+		cache = null;
+	}
+	
+	/**
+	 * Writes pending writes of the write behind mode to the disk.
+	 */
+	public void flush() throws IOException {
 		
-		LOG.info("upsert [object={}]:\n{}", object, jsonString);
+		final WriteBehind writeBehind = this.writeBehind;
 		
-		Utils.wait( block, ()->block.get(), ()->concurrentAccesses.incrementAndGet());
+		if ( writeBehind != null ) {
+			writeBehind.flush();
+		}
+	}
+	
+	/**
+	 * Flushes pending writes and stops background threads.
+	 */
+	@Override
+	public void close() throws IOException {
 		
-		try {
+		disableWriteBehind();
+		stopExpirySweeper();
+		stopPacker();
+		snapshots.clear();
 		
-			synchronized (file.getCanonicalPath().intern()) {
-				Utils.writeFile(file, jsonString, Utils.CHARSET_UTF8);
-			}
+		synchronized (this) {
 			
-		} finally {
+			if ( ioExecutor != null ) {
+				ioExecutor.shutdown();
+				ioExecutor = null;
+			}
 			
-			concurrentAccesses.decrementAndGet();
-			Utils.notify(block);
+			if ( scanPool != null ) {
+				scanPool.shutdown();
+				scanPool = null;
+			}
 		}
-
-		return id;
 	}
+	
+	/**
+	 * Reads several objects at once. The reads are ordered by their directories and run in parallel on the I/O threads.
+	 * 
+	 * @return the found objects by their id in the order of the given ids; missing objects are left out
+	 */
+	@SuppressWarnings("try")
+	public <T> Map<String,T> readAll(Class<T> clazz, Collection<String> ids) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.READ )) {
 
-	private void traversRelativeObjects(List<Object> resultList, Object object) {
+			if ( clazz == null || ids == null || ids.isEmpty() ) {
+				return new LinkedHashMap<>(0);
+			}
 		
-		if ( object == null ) { return; }
-		if ( resultList.contains( object ) ) { return; }
+			final TreeMap<String,List<String>> idsByBucket = new TreeMap<>();
 		
-		final List<Field> oneFields = new ArrayList<>();
-		final List<Field> mapFields = new ArrayList<>();
+			for (String id : new LinkedHashSet<>( ids )) {
+				if ( id != null ) {
+					idsByBucket.computeIfAbsent( getBucket( getFile( clazz, id ) ), (b)->new ArrayList<>() ).add( id );
+				}
+			}
 		
-		// standard 1:1 fields
-		Stream.of( object.getClass().getDeclaredFields() )
-			.filter( (field)->{
-				final int modifiers = field.getModifiers();
-				if ( Modifier.isStatic( modifiers ) ) { return false; }
-				return true;
-			} )
-			.forEach( field->{
-				field.setAccessible(true);
-			} );
+			final Map<String,T> objects = new ConcurrentHashMap<>();
+			final List<Future<?>> futures = new ArrayList<>( idsByBucket.size() );
 		
-	}
-
-	public boolean delete(Object object) throws IOException {
-
-		if (object == null) {
-			return false;
-		}
-
-		final Field idField = getIdField(object.getClass());
-
-		final String id = Utils.getFieldValue(idField, object);
-
-		if (id == null) {
-			return false;
+			for (List<String> bucketIds : idsByBucket.values()) {
+			
+				futures.add( getIoExecutor().submit( ()->{
+				
+					final ReusableBuffer buffer = BUFFERS.get();
+				
+					try {
+					
+						for (String id : bucketIds) {
+						
+							if ( readJson( clazz, id, buffer ) ) {
+								objects.put( id, fromJson( buffer, clazz ) );
+							}
+						
+							buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+						}
+					
+					} finally {
+						buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+					}
+				
+					return null;
+				} ) );
+			}
+		
+			for (Future<?> future : futures) {
+			
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException( "interrupted reading "+ clazz.getTypeName() );
+				} catch (ExecutionException e) {
+				
+					if ( e.getCause() instanceof IOException ) {
+						throw (IOException)e.getCause();
+					}
+				
+					throw Utils.toRuntimeException( e );
+				}
+			}
+		
+			final Map<String,T> result = new LinkedHashMap<>( objects.size() );
+		
+			for (String id : ids) {
+				if ( id != null && objects.containsKey( id ) ) {
+					result.put( id, objects.get( id ) );
+				}
+			}
+		
+			LOG.debug( "readAll [type={}]: {} of {} found", clazz.getTypeName(), result.size(), ids.size() );
+		
+			return result;
 		}
-
-		return delete(object.getClass(), id);
 	}
-
-	public boolean delete(Class<?> inClass, String inId) throws IOException {
-
-		if (inClass == null || inId == null) {
-			return true;
+	
+	/**
+	 * @param ioThreads amount of threads used for parallel reads, e.g. by {@link #readAll(Class, Collection)}
+	 */
+	public synchronized void setIoThreads(int ioThreads) {
+		
+		if ( ioThreads < 1 ) {
+			throw new IllegalArgumentException("ioThreads must be positive: "+ ioThreads);
 		}
-
-		final File file = getFile(inClass, inId);
-
-		if (!file.exists()) {
-			return false;
+		
+		this.ioThreads = ioThreads;
+		
+		if ( ioExecutor != null ) {
+			ioExecutor.shutdown();
+			ioExecutor = null;
 		}
 		
-		Utils.wait( block, ()->block.get(), ()->concurrentAccesses.incrementAndGet());
+		if ( scanPool != null ) {
+			scanPool.shutdown();
+			scanPool = null;
+		}
+	}
+	
+	private synchronized ExecutorService getIoExecutor() {
 		
-		try {
+		if ( ioExecutor == null ) {
 			
-			synchronized (file.getCanonicalPath().intern()) {
-				file.delete();
-			}			
+			final AtomicInteger threadCount = new AtomicInteger();
 			
-		} finally {
-			concurrentAccesses.decrementAndGet();
-			Utils.notify( block );
+			ioExecutor = Executors.newFixedThreadPool( ioThreads, (r)->{
+				final Thread thread = new Thread( r, "json-persister-io-"+ threadCount.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			} );
 		}
+		
+		return ioExecutor;
+	}
+	
+	/**
+	 * @return pool of the fork join scans by {@link BucketScan}, as many threads as I/O threads
+	 */
+	private synchronized ForkJoinPool getScanPool() {
+		
+		if ( scanPool == null ) {
+			
+			final AtomicInteger threadCount = new AtomicInteger();
+			
+			scanPool = new ForkJoinPool( ioThreads, (pool)->{
+				final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+				thread.setName( "json-persister-scan-"+ threadCount.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}, null, false );
+		}
+		
+		return scanPool;
+	}
+	
+	private static Object getLock(File file) {
+		return LOCK_STRIPES[ (file.getAbsolutePath().hashCode() & 0x7fffffff) % LOCK_STRIPES.length ];
+	}
+	
+	/**
+	 * Runs an action under the lock of an object of a partitioned type: a write moving the object to another partition deletes the file in the former one,
+	 * which is locked by the file's lock of neither the moving write nor a concurrent write to a third partition.
+	 * So writes and deletes of such an object locate its file and change it one at a time; other types run the action as it is.
+	 */
+	private <T> T objectLocked(Class<?> clazz, String id, Coordinator.IoAction<T> action) throws IOException {
+		
+		if ( getPartitioning( clazz ) == null ) {
+			return action.run();
+		}
+		
+		final String key = baseDir.getAbsolutePath() +"/"+ getKey( clazz, id );
+		
+		synchronized (OBJECT_LOCK_STRIPES[ (key.hashCode() & 0x7fffffff) % OBJECT_LOCK_STRIPES.length ]) {
+			return action.run();
+		}
+	}
+	
+	private boolean readJson(Class<?> clazz, String id, ReusableBuffer buffer) throws IOException {
+		return readJson(clazz, id, buffer, true);
+	}
+	
+	/**
+	 * Reads the file of an object into the buffer under the file's lock, unless the object is cached.
+	 * While the type is migrated to a new layout, the file is looked up in the former layout as well.
+	 * Objects without a file are looked up in the type's packs.
+	 * 
+	 * @param cacheable <code>false</code> for scans, which would evict the working set from the cache
+	 * @return <code>false</code> if there is no such file or the object expired
+	 */
+	private boolean readJson(Class<?> clazz, String id, ReusableBuffer buffer, boolean cacheable) throws IOException {
+		return readJson(clazz, id, null, buffer, cacheable);
+	}
+	
+	/**
+	 * @param knownFile the object's file if known, e.g. by a scan; spares locating the file of a partitioned type
+	 */
+	private boolean readJson(Class<?> clazz, String id, File knownFile, ReusableBuffer buffer, boolean cacheable) throws IOException {
+		
+		final WriteBehind.Pending pending = writeBehind == null ? null : writeBehind.get(clazz, id);
+		
+		if ( pending != null ) {
+			
+			if ( pending.json == null ) {
+				return false;
+			}
+			
+			buffer.reset();
+			buffer.write( pending.json, 0, pending.json.length );
+			return !isExpired( clazz, buffer, System.currentTimeMillis() );
+		}
+		
+		return readStoredJson(clazz, id, knownFile, buffer, cacheable, true);
+	}
+	
+	/**
+	 * Reads the stored version of an object, leaving out pending writes of the write behind mode.
+	 * 
+	 * @param decompress <code>false</code> to read the bytes as stored, which may be compressed, see {@link #decompress(Class, ReusableBuffer)};
+	 * the cache holding decompressed documents is bypassed then
+	 */
+	private boolean readStoredJson(Class<?> clazz, String id, File knownFile, ReusableBuffer buffer, boolean cacheable, boolean decompress) throws IOException {
+		
+		final File file = knownFile != null ? knownFile : getFile(clazz, id);
+		final OffHeapCache cache = this.cache;
+		
+		if ( cache != null && decompress ) {
+			
+			final OffHeapCache.Entry entry = cache.get( getKey( clazz, id ), buffer );
+			
+			// other processes do not update the cache, their writes are detected by the file's attributes
+			if ( entry != null && ( !coordinator.isMultiProcess() || ( file.length() == entry.fileLength && file.lastModified() == entry.lastModified ) ) ) {
+				metrics.cacheHits.incrementAndGet();
+				return !isExpired( clazz, buffer, entry.lastModified );
+			}
+			
+			metrics.cacheMisses.incrementAndGet();
+		}
+		
+		concurrentAccesses.incrementAndGet();
+		ioScheduler.beginForeground();
+		
+		try {
+			
+			synchronized (getLock(file)) {
+				
+				if ( file.isFile() ) {
+					
+					final long length = file.length();
+					final long lastModified = file.lastModified();
+					
+					buffer.readFile( file );
+					metrics.reads.incrementAndGet();
+					
+					final boolean isComplete = buffer.length() == length;
+					
+					if ( !decompress ) {
+						return !isExpired( clazz, buffer, lastModified );
+					}
+					
+					decompress( clazz, buffer );
+					
+					// scans would fill the fingerprints with objects hardly written
+					if ( cacheable && isComplete && isFingerprinting() && !fingerprints.containsKey( getKey( clazz, id ) ) ) {
+						putFingerprint( clazz, id, new Fingerprint( Utils.fnv1a64( buffer.array(), 0, buffer.length() ), buffer.length(), length, lastModified ) );
+					}
+					
+					if ( cache != null && cacheable && isComplete ) {
+						cache.put( getKey( clazz, id ), buffer.array(), buffer.length(), length, lastModified );
+					}
+					
+					return !isExpired( clazz, buffer, lastModified );
+				}
+				
+				final File formerFile = getFormerFile(clazz, id);
+				
+				if ( formerFile != null && formerFile.isFile() ) {
+					
+					final long lastModified = formerFile.lastModified();
+					
+					buffer.readFile( formerFile );
+					metrics.reads.incrementAndGet();
+					
+					if ( decompress ) {
+						decompress( clazz, buffer );
+					}
+					
+					return !isExpired( clazz, buffer, lastModified );
+				}
+				
+				final PackStore packs = getPacks( clazz );
+				final PackStore.Entry packed = packs.get( id );
+				
+				if ( packed == null ) {
+					return false;
+				}
+				
+				packs.read( packed, buffer );
+				metrics.reads.incrementAndGet();
+				
+				if ( decompress ) {
+					decompress( clazz, buffer );
+				}
+				
+				return !isExpired( clazz, buffer, packed.lastModified );
+			}
+			
+		} finally {
+			concurrentAccesses.decrementAndGet();
+			ioScheduler.endForeground();
+		}
+	}
+	
+	private void decompress(Class<?> clazz, ReusableBuffer buffer) throws IOException {
+		if ( DictionaryCompression.isCompressed( buffer ) ) {
+			getCompression( clazz ).decompress( buffer );
+		}
+	}
+	
+	/**
+	 * @return the buffer or, if it holds a compressed document, a decompressed copy of it
+	 */
+	private ReusableBuffer toDecompressed(Class<?> clazz, ReusableBuffer buffer) throws IOException {
+		
+		if ( !DictionaryCompression.isCompressed( buffer ) ) {
+			return buffer;
+		}
+		
+		final ReusableBuffer copy = new ReusableBuffer( buffer.length() * 4 );
+		copy.write( buffer.array(), 0, buffer.length() );
+		decompress( clazz, copy );
+		return copy;
+	}
+	
+	private DictionaryCompression getCompression(Class<?> clazz) {
+		return compressions.computeIfAbsent( clazz, (c)->new DictionaryCompression( getDir( c ) ) );
+	}
+	
+	private <T> T fromJson(ReusableBuffer buffer, Class<T> clazz) throws IOException {
+		
+		try (InputStreamReader reader = new InputStreamReader( buffer.asInputStream(), Utils.CHARSET_UTF8 )) {
+			return gson.fromJson(reader, clazz);
+		}
+	}
+	
+	/**
+	 * Evaluates the filter on the token stream of the buffered document; reading stops as soon as the filter is decided.
+	 */
+	private static boolean isAccepted(Filter filter, FieldExtractor extractor, ReusableBuffer buffer) throws IOException {
+		
+		final Map<String,Object> values = new HashMap<>();
+		final Wrapper<Boolean> decision = new Wrapper<>(null);
+		
+		try (JsonReader reader = new JsonReader( new InputStreamReader( buffer.asInputStream(), Utils.CHARSET_UTF8 ) )) {
+			
+			extractor.extract( reader, values, (v)->{
+				decision.value = filter.evaluate( v, false );
+				return decision.value == null;
+			});
+		}
+		
+		return Boolean.TRUE.equals( decision.isNotNull() ? decision.value : filter.evaluate( values, true ) );
+	}
+
+	/**
+	 * Picks the extractor's values from the token stream of the buffered document; reading stops as soon as the filter rejects the document.
+	 * Objects and arrays are returned as <code>null</code>, as they are neither ordered nor aggregated.
+	 * 
+	 * @param filter <code>null</code> accepts all
+	 * @return <code>null</code> if the filter rejects the document
+	 */
+	private static Map<String,Object> extract(FieldExtractor extractor, Filter filter, ReusableBuffer buffer) throws IOException {
+		
+		final Map<String,Object> values = new HashMap<>();
+		
+		try (JsonReader reader = new JsonReader( new InputStreamReader( buffer.asInputStream(), Utils.CHARSET_UTF8 ) )) {
+			extractor.extract( reader, values, filter == null ? null : (v)->!Boolean.FALSE.equals( filter.evaluate( v, false ) ) );
+		}
+		
+		if ( filter != null && !Boolean.TRUE.equals( filter.evaluate( values, true ) ) ) {
+			return null;
+		}
+		
+		values.replaceAll( (path, value)->value == Values.NON_SCALAR ? null : value );
+		return values;
+	}
+
+	@SuppressWarnings("try")
+	public <T> String upsert(T object) throws IOException {
+
+		try (AdmissionController.Permit permit = admission.admit( Operation.WRITE )) {
+
+			if (object == null) {
+				throw new IllegalArgumentException("No object specified.");
+			}
+
+			final String id = getOrCreateId(object);
+		
+			// relative objects are not stored yet; see traversRelativeObjects and testcase CrossReferenceTests.java
+		
+			final ReusableBuffer json = WRITE_BUFFERS.get();
+		
+			try {
+			
+				gson.toJson( object, object.getClass(), newJsonWriter( json ) );
+			
+				if ( LOG.isDebugEnabled() ) {
+					LOG.debug("upsert [object={}]:\n{}", object, json.toString( Utils.CHARSET_UTF8 ));
+				}
+			
+				final WriteBehind writeBehind = this.writeBehind;
+			
+				if ( isUnchanged( object.getClass(), id, json.array(), json.length() ) ) {
+				
+					metrics.skippedWrites.incrementAndGet();
+					LOG.debug("upsert skipped, content unchanged [id={}]", id);
+				
+				} else if ( writeBehind != null && isPendingWrite( writeBehind, object.getClass(), id, json ) ) {
+				
+					publishUpsert( object.getClass(), id, getVersion( object ), json.array(), json.length() );
+				
+				} else {
+				
+					writeJson( object.getClass(), id, json.array(), json.length(), getVersion( object ), true );
+				}
+			
+			} finally {
+				json.reset( MAX_RETAINED_BUFFER_SIZE );
+			}
+
+			return id;
+		}
+	}
+	
+	/**
+	 * @return <code>false</code> if the write behind was closed meanwhile, after its pending writes were written; the write is to be done directly
+	 */
+	private boolean isPendingWrite(WriteBehind writeBehind, Class<?> clazz, String id, ReusableBuffer json) throws IOException {
+		
+		final Partitioning partitioning = getPartitioning( clazz );
+		
+		if ( partitioning != null ) {
+			// fails before the write is pending
+			getPartitionedFile( partitioning, clazz, id, json.array(), json.length() );
+		}
+		
+		// pending writes outlive the buffer
+		if ( writeBehind.put( clazz, id, json.toByteArray() ) ) {
+			return true;
+		}
+		
+		writeBehind.awaitDrained( clazz, id );
+		return false;
+	}
+	
+	/**
+	 * @return writer serializing into the buffer, which is reset before
+	 */
+	private JsonWriter newJsonWriter(ReusableBuffer buffer) throws IOException {
+		return gson.newJsonWriter( WRITERS.get().reset( buffer.reset() ) );
+	}
+	
+	/**
+	 * The JSON is only decoded to a string if the change feed retains payloads.
+	 */
+	private void publishUpsert(Class<?> clazz, String id, Long version, byte[] json, int length) {
+		
+		final ChangeFeed changeFeed = this.changeFeed;
+		changeFeed.publish( ChangeFeed.Type.UPSERT, clazz, id, version, changeFeed.isRetainingPayloads() ? new String( json, 0, length, Utils.CHARSET_UTF8 ) : null );
+	}
+	
+	private static String getKey(Class<?> clazz, String id) {
+		return clazz.getTypeName() +"/"+ id;
+	}
+	
+	private boolean isFingerprinting() {
+		return skipUnchangedWrites && !coordinator.isMultiProcess();
+	}
+	
+	private void putFingerprint(Class<?> clazz, String id, Fingerprint fingerprint) {
+		
+		fingerprints.put( getKey( clazz, id ), fingerprint );
+		
+		if ( fingerprints.size() > MAX_FINGERPRINTS ) {
+			
+			final Iterator<String> keys = fingerprints.keySet().iterator();
+			
+			if ( keys.hasNext() ) {
+				keys.next();
+				keys.remove();
+			}
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the JSON is known to be identical to the stored JSON of the object
+	 */
+	private boolean isUnchanged(Class<?> clazz, String id, byte[] json, int length) {
+		
+		final Expiry expiry = getExpiry( clazz );
+		
+		// writing an object of a type with a time to live renews it
+		if ( !isFingerprinting() || ( expiry != null && expiry.hasTimeToLive() ) ) {
+			return false;
+		}
+		
+		final WriteBehind.Pending pending = writeBehind == null ? null : writeBehind.get(clazz, id);
+		
+		if ( pending != null ) {
+			return pending.json != null && pending.json.length == length && Utils.fnv1a64( json, 0, length ) == Utils.fnv1a64( pending.json, 0, length );
+		}
+		
+		final Fingerprint fingerprint = fingerprints.get( getKey( clazz, id ) );
+		
+		if ( fingerprint == null ) {
+			return false;
+		}
+		
+		final File file = getFile(clazz, id);
+		
+		if ( file.length() != fingerprint.fileLength || file.lastModified() != fingerprint.lastModified ) {
+			// changed beyond this instance, e.g. by another process
+			return false;
+		}
+		
+		return length == fingerprint.length && Utils.fnv1a64( json, 0, length ) == fingerprint.hash;
+	}
+	
+	/**
+	 * Writes the JSON of an object to its file.
+	 * 
+	 * @param publish whether to publish the change on the change feed
+	 */
+	void writeJson(Class<?> clazz, String id, byte[] json, int length, Long version, boolean publish) throws IOException {
+		
+		final Partitioning partitioning = getPartitioning( clazz );
+		final File file = partitioning == null ? getFile(clazz, id) : getPartitionedFile( partitioning, clazz, id, json, length );
+		
+		objectLocked( clazz, id, ()->writeLocked( clazz, file, ()->{
+			writeJsonLocked( clazz, id, file, json, length, version, publish );
+			return null;
+		} ) );
+	}
+	
+	/**
+	 * Runs a write of a file while no backup is running, under the file's lock and within {@link Coordinator#write(Class, String, Coordinator.IoAction)}.
+	 * The read lock of the snapshots is held, so snapshots are not opened in the middle of the write.
+	 */
+	private <T> T writeLocked(Class<?> clazz, File file, Coordinator.IoAction<T> action) throws IOException {
+		
+		Utils.wait( block, ()->block.get(), ()->concurrentAccesses.incrementAndGet());
+		ioScheduler.beginForeground();
+		
+		try {
+			
+			synchronized (getLock(file)) {
+				
+				snapshots.getLock().readLock().lock();
+				
+				try {
+					return coordinator.write( clazz, getBucket( file ), action );
+				} finally {
+					snapshots.getLock().readLock().unlock();
+				}
+			}
+			
+		} finally {
+			
+			concurrentAccesses.decrementAndGet();
+			ioScheduler.endForeground();
+			Utils.notify(block);
+		}
+	}
+	
+	/**
+	 * Writes the file of an object; the caller holds the file's lock and runs within {@link Coordinator#write(Class, String, Coordinator.IoAction)}.
+	 * Of a partitioned type the caller holds the object's lock as well, see {@link #objectLocked(Class, String, Coordinator.IoAction)}.
+	 */
+	private void writeJsonLocked(Class<?> clazz, String id, File locatedFile, byte[] json, int length, Long version, boolean publish) throws IOException {
+		
+		storeLayout( clazz );
+		
+		final Partitioning partitioning = getPartitioning( clazz );
+		// a changed timestamp moves the object to another partition
+		final File file = partitioning == null ? locatedFile : getPartitionedFile( partitioning, clazz, id, json, length );
+		final File movedFile = partitioning == null || file.isFile() ? null : getFile( clazz, id );
+		
+		final ReusableBuffer compressed = COMPRESS_BUFFERS.get();
+		
+		retainForSnapshots( clazz, id, file );
+		
+		countLock.readLock().lock();
+		
+		try {
+			
+			final AtomicLong count = counts.get( clazz );
+			final boolean isCreated = count != null && ( partitioning == null ? !isExistingFile( clazz, id ) : !file.isFile() && ( movedFile == null || !movedFile.isFile() ) );
+			
+			final boolean isCompressed = getCompression( clazz ).compress( json, length, compressed.reset() );
+			final byte[] bytes = isCompressed ? compressed.array() : json;
+			final int bytesLength = isCompressed ? compressed.length() : length;
+			
+			if ( coordinator.isMultiProcess() ) {
+				Utils.writeFileAtomically(file, bytes, 0, bytesLength);
+			} else {
+				Utils.writeFile(file, bytes, 0, bytesLength);
+			}
+			
+			if ( isCreated ) {
+				count.incrementAndGet();
+			}
+			
+		} finally {
+			countLock.readLock().unlock();
+			compressed.reset( MAX_RETAINED_BUFFER_SIZE );
+		}
+		
+		if ( partitioning != null ) {
+			
+			final String partition = partitioning.getPartition( file );
+			partitioning.written( partition );
+			partitioning.touch( partition );
+			
+			if ( movedFile != null && !movedFile.equals( file ) && movedFile.delete() ) {
+				partitioning.touch( partitioning.getPartition( movedFile ) );
+			}
+		}
+		
+		metrics.writes.incrementAndGet();
+		
+		final Expiry expiry = getExpiry( clazz );
+		final Long expiresAt = expiry == null ? null : expiry.getExpiresAt( new ByteArrayInputStream( json, 0, length ), System.currentTimeMillis() );
+		
+		if ( expiresAt != null ) {
+			expiryIndex.add( clazz.getTypeName(), id, expiresAt );
+		}
+		
+		final OffHeapCache cache = this.cache;
+		
+		if ( isFingerprinting() || cache != null ) {
+			
+			final long fileLength = file.length();
+			final long lastModified = file.lastModified();
+			
+			if ( isFingerprinting() ) {
+				putFingerprint( clazz, id, new Fingerprint( Utils.fnv1a64( json, 0, length ), length, fileLength, lastModified ) );
+			}
+			
+			if ( cache != null ) {
+				cache.put( getKey( clazz, id ), json, length, fileLength, lastModified );
+			}
+		}
+		
+		deleteFormerFile( clazz, id );
+		// the file takes precedence anyway; removing the packed entry keeps it from showing up again on a delete
+		getPacks( clazz ).remove( id );
+		
+		if ( publish ) {
+			publishUpsert( clazz, id, version, json, length );
+		}
+	}
+	
+	/**
+	 * Numbers a write of an object for the snapshots, which retain the stored version as stored, i.e. compressed if it is, if an open snapshot may read it.
+	 * 
+	 * @param file file of the object whose lock the caller holds
+	 */
+	private void retainForSnapshots(Class<?> clazz, String id, File file) throws IOException {
+		
+		snapshots.write( getKey( clazz, id ), (buffer)->{
+			
+			if ( file.isFile() || getPartitioning( clazz ) == null ) {
+				return readStoredJson( clazz, id, file, buffer, false, false );
+			}
+			
+			// the object moves to another partition; its former file is guarded by the object's lock
+			final File movedFile = getFile( clazz, id );
+			
+			if ( !movedFile.isFile() ) {
+				return false;
+			}
+			
+			buffer.readFile( movedFile );
+			return true;
+		} );
+	}
+	
+	/**
+	 * Changes fields of a stored object without reading it into an object: the patch is applied as JSON merge patch (RFC 7386) while the stored document is streamed to the new one.<br/>
+	 * Keys are the JSON member names; a <code>null</code> value removes the member, a {@link Map} value is merged into a nested object, other values are serialized and replace the member.
+	 * A field annotated with {@link Version} is incremented.<br/>
+	 * Reading and writing happen under the object's lock, so concurrent patches of the same object do not lose updates.
+	 * 
+	 * @return <code>false</code> if there is no such object
+	 */
+	@SuppressWarnings("try")
+	public boolean patch(Class<?> clazz, String id, Map<String,Object> patch) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.WRITE )) {
+
+			if ( clazz == null || id == null ) {
+				throw new IllegalArgumentException("No class or id specified.");
+			} else if ( patch == null ) {
+				throw new IllegalArgumentException("No patch specified.");
+			}
+		
+			final JsonCodec<Object> codec = getCodec( clazz );
+			final Field versionField = codec != null ? null : getVersionField( clazz );
+			final String versionName = codec != null ? codec.getVersionName() : versionField == null ? null : versionField.getName();
+		
+			if ( patch.containsKey( codec != null ? codec.getIdName() : getIdField( clazz ).getName() ) ) {
+				throw new IllegalArgumentException("The id must not be patched.");
+			} else if ( versionName != null && patch.containsKey( versionName ) ) {
+				throw new IllegalArgumentException("The version is incremented by the patch and must not be set.");
+			} else if ( getChunkedFields( clazz ).keySet().stream().anyMatch( patch::containsKey ) ) {
+				throw new IllegalArgumentException("Elements of @Chunked fields are stored by appendElements.");
+			}
+		
+			final MergePatch mergePatch = new MergePatch( gson, patch, versionName );
+			final File file = getFile(clazz, id);
+			final WriteBehind writeBehind = this.writeBehind;
+		
+			if ( writeBehind != null ) {
+			
+				final boolean isPatched;
+				final AtomicBoolean isRejected = new AtomicBoolean( false );
+			
+				synchronized (getLock(file)) {
+					isPatched = patchLocked( clazz, id, mergePatch, (json, length, version)->{
+						if ( writeBehind.store( clazz, id, Arrays.copyOf( json, length ) ) ) {
+							publishUpsert( clazz, id, version, json, length );
+						} else {
+							isRejected.set( true );
+						}
+					} );
+				}
+			
+				if ( !isRejected.get() ) {
+					writeBehind.afterStore();
+					return isPatched;
+				}
+			
+				// closed meanwhile; the patch is applied again to the written state
+				writeBehind.awaitDrained( clazz, id );
+			}
+		
+			// the patch may move the object to another partition, so its file is located under the object's lock
+			return objectLocked( clazz, id, ()->{
+				final File storedFile = getFile(clazz, id);
+				return writeLocked( clazz, storedFile, ()->patchLocked( clazz, id, mergePatch, (json, length, version)->writeJsonLocked( clazz, id, storedFile, json, length, version, true ) ) );
+			} );
+		}
+	}
+	
+	private boolean patchLocked(Class<?> clazz, String id, MergePatch mergePatch, PatchWriter patchWriter) throws IOException {
+		
+		final ReusableBuffer buffer = BUFFERS.get();
+		final ReusableBuffer json = WRITE_BUFFERS.get();
+		
+		try {
+			
+			if ( !readJson( clazz, id, buffer ) ) {
+				return false;
+			}
+			
+			final Long version;
+			
+			try (JsonReader reader = new JsonReader( new InputStreamReader( buffer.asInputStream(), Utils.CHARSET_UTF8 ) )) {
+				version = mergePatch.apply( reader, newJsonWriter( json ) );
+			}
+			
+			if ( skipUnchangedWrites && buffer.contentEquals( json.array(), 0, json.length() ) ) {
+				metrics.skippedWrites.incrementAndGet();
+				return true;
+			}
+			
+			if ( LOG.isDebugEnabled() ) {
+				LOG.debug("patch [id={}]:\n{}", id, json.toString( Utils.CHARSET_UTF8 ));
+			}
+			
+			patchWriter.write( json.array(), json.length(), version );
+			return true;
+			
+		} finally {
+			buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+			json.reset( MAX_RETAINED_BUFFER_SIZE );
+		}
+	}
+	
+	@FunctionalInterface
+	private interface PatchWriter {
+		void write(byte[] json, int length, Long version) throws IOException;
+	}
+
+	/**
+	 * @return the {@link Chunked} fields of the type by name
+	 */
+	private Map<String, Field> getChunkedFields(Class<?> clazz) {
+		return chunkedFields.computeIfAbsent( clazz, (c)->{
+			
+			final Map<String, Field> fields = new HashMap<>(0);
+			
+			for (Field f : c.getDeclaredFields()) {
+				
+				if ( f.getDeclaredAnnotation(Chunked.class) == null ) {
+					continue;
+				} else if ( !Collection.class.isAssignableFrom( f.getType() ) ) {
+					throw new IllegalArgumentException("@Chunked field must be a Collection");
+				} else if ( Modifier.isStatic(f.getModifiers()) ) {
+					throw new IllegalArgumentException("@Chunked field must not be static");
+				} else if ( f.getDeclaredAnnotation(Chunked.class).value() < 1 ) {
+					throw new IllegalArgumentException("@Chunked chunk size must be positive");
+				}
+				
+				fields.put( f.getName(), f );
+			}
+			
+			return fields;
+		} );
+	}
+	
+	private Chunks getChunks(Class<?> clazz, String id, String field) {
+		
+		if ( clazz == null || id == null ) {
+			throw new IllegalArgumentException("No class or id specified.");
+		}
+		
+		final Field chunkedField = field == null ? null : getChunkedFields( clazz ).get( field );
+		
+		if ( chunkedField == null ) {
+			throw new IllegalArgumentException("No @Chunked field "+ field +" in "+ clazz.getTypeName());
+		}
+		
+		return new Chunks( getDir( clazz ), id, field, chunkedField.getDeclaredAnnotation(Chunked.class).value() );
+	}
+	
+	/**
+	 * @return type of the elements of a {@link Chunked} field as declared
+	 */
+	private Type getElementType(Class<?> clazz, String field) {
+		
+		final Type type = getChunkedFields( clazz ).get( field ).getGenericType();
+		
+		return type instanceof ParameterizedType ? ((ParameterizedType)type).getActualTypeArguments()[0] : Object.class;
+	}
+	
+	/**
+	 * Appends elements to a {@link Chunked} field of a stored object. Only the last chunk of the field is written, the object's file is not touched,
+	 * so an append costs as much as the appended elements, regardless of the elements stored already.<br/>
+	 * Appends are published on the change feed as {@link ChangeFeed.Type#APPEND}; they are not versioned for snapshots.
+	 * 
+	 * @return <code>false</code> if there is no such object
+	 */
+	@SuppressWarnings("try")
+	public boolean appendElements(Class<?> clazz, String id, String field, Collection<?> elements) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.WRITE )) {
+
+			final Chunks chunks = getChunks( clazz, id, field );
+			final Type elementType = getElementType( clazz, field );
+			final List<byte[]> lines = new ArrayList<>( elements == null ? 0 : elements.size() );
+			final ReusableBuffer json = WRITE_BUFFERS.get();
+		
+			try {
+			
+				for (Object element : elements == null ? Collections.emptyList() : elements) {
+				
+					// not pretty printed, so each element is a single line
+					final JsonWriter writer = new JsonWriter( WRITERS.get().reset( json.reset() ) );
+					gson.toJson( element, elementType, writer );
+					writer.flush();
+					lines.add( json.toByteArray() );
+				}
+			
+			} finally {
+				json.reset( MAX_RETAINED_BUFFER_SIZE );
+			}
+		
+			return writeLocked( clazz, getFile( clazz, id ), ()->{
+			
+				if ( !isExisting( clazz, id ) ) {
+					return false;
+				}
+			
+				chunks.append( lines );
+			
+				final ChangeFeed changeFeed = this.changeFeed;
+			
+				if ( !lines.isEmpty() ) {
+					changeFeed.publish( ChangeFeed.Type.APPEND, clazz, id, field, null, changeFeed.isRetainingPayloads() ? toJsonArray( lines ) : null );
+				}
+			
+				return true;
+			} );
+		}
+	}
+	
+	/**
+	 * Reads the elements of a {@link Chunked} field chunk by chunk; elements are built one at a time.<br/>
+	 * Elements are read without the object's lock: appends meanwhile do not disturb reading, elements appended after reading started may be left out.
+	 * 
+	 * @param addItemDecision called for each element; returning <code>null</code> stops reading
+	 */
+	public <E> void listElements(Class<?> clazz, String id, String field, Function<E, Boolean> addItemDecision) throws IOException {
+		readElements( clazz, id, field, 0, addItemDecision );
+	}
+	
+	/**
+	 * Reads a page of the elements of a {@link Chunked} field; the chunk holding the offset is read directly.
+	 * 
+	 * @param offset position of the first element
+	 */
+	public <E> List<E> pageElements(Class<?> clazz, String id, String field, long offset, int limit) throws IOException {
+		
+		if ( offset < 0 ) {
+			throw new IllegalArgumentException("offset must not be negative: "+ offset);
+		} else if ( limit < 1 ) {
+			throw new IllegalArgumentException("limit must be positive: "+ limit);
+		}
+		
+		final List<E> elements = new ArrayList<>( Math.min( limit, 1024 ) );
+		
+		readElements( clazz, id, field, offset, (E element)->{
+			elements.add( element );
+			return elements.size() < limit ? Boolean.TRUE : null;
+		} );
+		
+		return elements;
+	}
+	
+	@SuppressWarnings({ "unchecked", "try" })
+	private <E> void readElements(Class<?> clazz, String id, String field, long offset, Function<E, Boolean> elementHandler) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.READ )) {
+
+			final Chunks chunks = getChunks( clazz, id, field );
+			final Type elementType = getElementType( clazz, field );
+		
+			chunks.read( offset, (line)->elementHandler.apply( (E)gson.fromJson( line, elementType ) ) != null );
+		}
+	}
+	
+	/**
+	 * @return amount of elements of a {@link Chunked} field
+	 */
+	@SuppressWarnings("try")
+	public long countElements(Class<?> clazz, String id, String field) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.READ )) {
+
+			return getChunks( clazz, id, field ).size();
+		}
+	}
+	
+	/**
+	 * Removes the elements of a {@link Chunked} field, which is published on the change feed as {@link ChangeFeed.Type#CLEAR}.
+	 * 
+	 * @return <code>false</code> if there were no elements
+	 */
+	@SuppressWarnings("try")
+	public boolean clearElements(Class<?> clazz, String id, String field) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.WRITE )) {
+
+			final Chunks chunks = getChunks( clazz, id, field );
+		
+			return writeLocked( clazz, getFile( clazz, id ), ()->{
+			
+				if ( !chunks.clear() ) {
+					return false;
+				}
+			
+				changeFeed.publish( ChangeFeed.Type.CLEAR, clazz, id, field, null, null );
+				return true;
+			} );
+		}
+	}
+	
+	/**
+	 * @param lines JSON of elements
+	 */
+	private static String toJsonArray(List<byte[]> lines) {
+		
+		final StringBuilder sb = new StringBuilder( "[" );
+		
+		for (byte[] line : lines) {
+			sb.append( sb.length() == 1 ? "" : "," ).append( new String( line, Utils.CHARSET_UTF8 ) );
+		}
+		
+		return sb.append( ']' ).toString();
+	}
+	
+	/**
+	 * @return the id of the object; a new one is assigned if it has none yet
+	 */
+	String getOrCreateId(Object object) {
+		
+		String id = getId(object);
+
+		if (Utils.isBlank(id)) {
+
+			id = idProvider.getId(object);
+
+			if (id == null) {
+				throw new IllegalStateException("Id for object is null [object=" + object + "]");
+			}
+			
+			final JsonCodec<Object> codec = getCodec( object.getClass() );
+			
+			if ( codec != null ) {
+				codec.setId( object, id );
+			} else {
+				Utils.setFieldValue(getIdField(object.getClass()), object, id);
+			}
+		}
+		
+		return id;
+	}
+	
+	/**
+	 * @return the id of the object or <code>null</code> if it has none
+	 */
+	String getId(Object object) {
+		final JsonCodec<Object> codec = getCodec( object.getClass() );
+		return codec != null ? codec.getId( object ) : Utils.getFieldValue(getIdField(object.getClass()), object);
+	}
+	
+	/**
+	 * @return the codec generated for the type or <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	private static JsonCodec<Object> getCodec(Class<?> clazz) {
+		return (JsonCodec<Object>) JsonCodecs.get( clazz );
+	}
+
+	private void traversRelativeObjects(List<Object> resultList, Object object) {
+		
+		if ( object == null ) { return; }
+		if ( resultList.contains( object ) ) { return; }
+		
+		final List<Field> oneFields = new ArrayList<>();
+		final List<Field> mapFields = new ArrayList<>();
+		
+		// standard 1:1 fields
+		Stream.of( object.getClass().getDeclaredFields() )
+			.filter( (field)->{
+				final int modifiers = field.getModifiers();
+				if ( Modifier.isStatic( modifiers ) ) { return false; }
+				return true;
+			} )
+			.forEach( field->{
+				field.setAccessible(true);
+			} );
+		
+	}
+
+	public boolean delete(Object object) throws IOException {
+
+		if (object == null) {
+			return false;
+		}
+
+		final String id = getId(object);
+
+		if (id == null) {
+			return false;
+		}
+
+		return delete(object.getClass(), id);
+	}
+
+	@SuppressWarnings("try")
+	public boolean delete(Class<?> inClass, String inId) throws IOException {
+
+		try (AdmissionController.Permit permit = admission.admit( Operation.WRITE )) {
+
+			if (inClass == null || inId == null) {
+				return true;
+			}
+		
+			final WriteBehind writeBehind = this.writeBehind;
+		
+			if ( writeBehind != null ) {
+			
+				if ( !isExisting(inClass, inId) ) {
+					return false;
+				}
+			
+				if ( writeBehind.put( inClass, inId, null ) ) {
+					changeFeed.publish( ChangeFeed.Type.DELETE, inClass, inId, null, null );
+					return true;
+				}
+			
+				writeBehind.awaitDrained( inClass, inId );
+			}
+		
+			return deleteFile(inClass, inId, true);
+		}
+	}
+	
+	/**
+	 * @param publish whether to publish the change on the change feed
+	 * @return <code>true</code> if the object's file does not exist anymore
+	 */
+	boolean deleteFile(Class<?> inClass, String inId, boolean publish) throws IOException {
+		return deleteFile(inClass, inId, publish, null);
+	}
+	
+	/**
+	 * @param condition checked under the file's lock before deleting; <code>null</code> deletes unconditionally
+	 */
+	private boolean deleteFile(Class<?> inClass, String inId, boolean publish, Coordinator.IoAction<Boolean> condition) throws IOException {
+		return objectLocked( inClass, inId, ()->deleteFileLocked( inClass, inId, publish, condition ) );
+	}
+	
+	private boolean deleteFileLocked(Class<?> inClass, String inId, boolean publish, Coordinator.IoAction<Boolean> condition) throws IOException {
+
+		final File file = getFile(inClass, inId);
+
+		if (!isExistingFile(inClass, inId)) {
+			return false;
+		}
+		
+		Utils.wait( block, ()->block.get(), ()->concurrentAccesses.incrementAndGet());
+		ioScheduler.beginForeground();
+		
+		try {
+			
+			synchronized (getLock(file)) {
+				
+				snapshots.getLock().readLock().lock();
+				
+				try {
+					coordinator.write( inClass, getBucket( file ), ()->{
+					
+						if ( condition != null && !condition.run() ) {
+							return null;
+						}
+					
+						retainForSnapshots( inClass, inId, file );
+					
+						fingerprints.remove( getKey( inClass, inId ) );
+					
+						final OffHeapCache cache = this.cache;
+					
+						if ( cache != null ) {
+							cache.remove( getKey( inClass, inId ) );
+						}
+					
+						countLock.readLock().lock();
+					
+						try {
+						
+							if ( !( file.delete() | deleteFormerFile( inClass, inId ) | getPacks( inClass ).remove( inId ) ) ) {
+								return null;
+							}
+						
+							final AtomicLong count = counts.get( inClass );
+						
+							if ( count != null ) {
+								count.decrementAndGet();
+							}
+						
+							if ( !getChunkedFields( inClass ).isEmpty() ) {
+								Utils.delete( Chunks.getDir( getDir( inClass ), inId ) );
+							}
+						
+							final Partitioning partitioning = getPartitioning( inClass );
+						
+							if ( partitioning != null ) {
+								partitioning.touch( partitioning.getPartition( file ) );
+							}
+						
+						} finally {
+							countLock.readLock().unlock();
+						}
+					
+						metrics.deletes.incrementAndGet();
+					
+						if ( publish ) {
+							changeFeed.publish( ChangeFeed.Type.DELETE, inClass, inId, null, null );
+						}
+					
+						return null;
+					} );
+				} finally {
+					snapshots.getLock().readLock().unlock();
+				}
+			}			
+			
+		} finally {
+			concurrentAccesses.decrementAndGet();
+			ioScheduler.endForeground();
+			Utils.notify( block );
+		}
+
+		return !isExistingFile(inClass, inId);
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+
+	private File getDir(Class<?> inClass) {
+		return new File(baseDir, inClass.getTypeName());
+	}
+
+	private File getDir(Class<?> inClass, String id) {
+
+		if (inClass == null || Utils.isBlank(id)) {
+			return null;
+		}
+
+		return new File(getDir(inClass), getLayout(inClass).getBucket(id));
+	}
+	
+	/**
+	 * Sets the layout used for types not stored yet. Types already having files keep the layout they were created with.
+	 */
+	public void setDefaultLayout(DirectoryLayout layout) {
+		Assert.notNull("No layout specified", layout);
+		this.defaultLayout = layout;
+	}
+	
+	/**
+	 * @return the layout of the type's directory; types with files stored before layouts were configurable have the {@link DirectoryLayout#LEGACY} layout
+	 */
+	public DirectoryLayout getLayout(Class<?> clazz) {
+		return layouts.computeIfAbsent( clazz, (c)->{
+			
+			final File typeDir = getDir(c);
+			final File layoutFile = new File( typeDir, DirectoryLayout.FILE_NAME );
+			final File formerLayoutFile = new File( typeDir, DirectoryLayout.FILE_NAME +".former" );
+			
+			try {
+				
+				if ( formerLayoutFile.isFile() ) {
+					formerLayouts.put( c, DirectoryLayout.parse( Utils.readToString( formerLayoutFile, Utils.CHARSET_UTF8 ) ) );
+				}
+				
+				if ( layoutFile.isFile() ) {
+					storedLayouts.add( c );
+					return DirectoryLayout.parse( Utils.readToString( layoutFile, Utils.CHARSET_UTF8 ) );
+				}
+				
+			} catch (IOException e) {
+				throw new UncheckedIOException( e );
+			}
+			
+			return Utils.list( typeDir, (f)->f.isDirectory() && !f.getName().startsWith(".") ).isEmpty() ? defaultLayout : DirectoryLayout.LEGACY;
+		} );
+	}
+	
+	private void storeLayout(Class<?> clazz) throws IOException {
+		
+		if ( storedLayouts.contains( clazz ) ) {
+			return;
+		}
+		
+		final File layoutFile = new File( getDir(clazz), DirectoryLayout.FILE_NAME );
+		
+		// other processes may read it while it is written
+		if ( !layoutFile.isFile() ) {
+			Utils.writeFileAtomically( layoutFile, getLayout( clazz ).toString(), Utils.CHARSET_UTF8 );
+		}
+		
+		final Partitioning partitioning = getPartitioning( clazz );
+		final File partitioningFile = new File( getDir(clazz), Partitioning.FILE_NAME );
+		
+		if ( partitioning != null && !partitioningFile.isFile() ) {
+			Utils.writeFileAtomically( partitioningFile, partitioning.getUnit().name(), Utils.CHARSET_UTF8 );
+		}
+		
+		storedLayouts.add( clazz );
+	}
+	
+	/**
+	 * @return levels of directories below the type's directory: its partitions, if any, and the buckets of its layout
+	 */
+	private int getDepth(Class<?> clazz) {
+		return getLayout( clazz ).getDepth() + ( getPartitioning( clazz ) == null ? 0 : 1 );
+	}
+	
+	/**
+	 * @return the partitions of the type if it declares a {@link Partition} field, otherwise <code>null</code>
+	 */
+	private Partitioning getPartitioning(Class<?> clazz) {
+		return partitionings.computeIfAbsent( clazz, (c)->{
+			
+			Field partitionField = null;
+			
+			for (Field f : c.getDeclaredFields()) {
+				
+				if ( f.getDeclaredAnnotation(Partition.class) == null ) {
+					continue;
+				} else if ( f.getType() != long.class && f.getType() != Long.class ) {
+					throw new IllegalArgumentException("@Partition field must be a long");
+				} else if ( Modifier.isStatic(f.getModifiers()) ) {
+					throw new IllegalArgumentException("@Partition field must not be static");
+				} else if ( partitionField != null ) {
+					throw new IllegalArgumentException("Only one @Partition field allowed");
+				}
+				
+				partitionField = f;
+			}
+			
+			final File partitioningFile = new File( getDir(c), Partitioning.FILE_NAME );
+			
+			try {
+				
+				final String storedUnit = partitioningFile.isFile() ? Utils.readToString( partitioningFile, Utils.CHARSET_UTF8 ).trim() : null;
+				
+				if ( partitionField == null && storedUnit == null ) {
+					return Optional.empty();
+				} else if ( partitionField == null ) {
+					throw new IllegalStateException( c.getTypeName() +" is stored in partitions but declares no @Partition field" );
+				} else if ( storedUnit == null && new File( getDir(c), DirectoryLayout.FILE_NAME ).isFile() ) {
+					throw new IllegalStateException( c.getTypeName() +" is stored without partitions" );
+				}
+				
+				final Partition.Unit unit = partitionField.getDeclaredAnnotation(Partition.class).value();
+				
+				if ( storedUnit != null && !storedUnit.equals( unit.name() ) ) {
+					throw new IllegalStateException( c.getTypeName() +" is stored in partitions of "+ storedUnit +", not "+ unit );
+				}
+				
+				return Optional.of( new Partitioning( getDir(c), partitionField.getName(), unit ) );
+				
+			} catch (IOException e) {
+				throw new UncheckedIOException( e );
+			}
+			
+		} ).orElse( null );
+	}
+	
+	/**
+	 * @return the file of an object in the partition of the timestamp in its JSON
+	 */
+	private File getPartitionedFile(Partitioning partitioning, Class<?> clazz, String id, byte[] json, int length) throws IOException {
+		
+		final Long timestamp = partitioning.getTimestamp( json, length );
+		
+		if ( timestamp == null ) {
+			throw new IllegalArgumentException( "@Partition field "+ partitioning.getPath() +" of "+ clazz.getTypeName() +" is not set [id="+ id +"]" );
+		}
+		
+		return partitioning.getFile( partitioning.getPartition( timestamp ), getLayout( clazz ).getBucket( id ), id );
+	}
+	
+	/**
+	 * @return the file of an object in the former layout of its type if the type is being migrated and the file differs from the one in the current layout, otherwise <code>null</code>
+	 */
+	private File getFormerFile(Class<?> clazz, String id) {
+		
+		final DirectoryLayout formerLayout = formerLayouts.get( clazz );
+		
+		if ( formerLayout == null || formerLayout.getBucket( id ).equals( getLayout( clazz ).getBucket( id ) ) ) {
+			return null;
+		}
+		
+		return new File( new File( getDir(clazz), formerLayout.getBucket( id ) ), id +".json" );
+	}
+	
+	private boolean deleteFormerFile(Class<?> clazz, String id) {
+		final File formerFile = getFormerFile(clazz, id);
+		return formerFile != null && formerFile.delete();
+	}
+	
+	/**
+	 * Moves the files of a type into a new layout.<br/>
+	 * Reads and writes may go on meanwhile: lookups fall back to the former layout until a file has been moved.
+	 * An interrupted migration is resumed by calling this method again with the same layout.
+	 * In multi process mode no other process must use the type meanwhile.
+	 * 
+	 * @return amount of moved files
+	 */
+	public synchronized int migrateLayout(Class<?> clazz, DirectoryLayout layout) throws IOException {
+		return ioScheduler.runMaintenance( getJobName( "migrate layout", clazz ), ()->{
+		
+			Assert.notNull("No class specified", clazz);
+			Assert.notNull("No layout specified", layout);
+		
+			if ( getPartitioning( clazz ) != null ) {
+				throw new IllegalStateException( "The layout of the partitioned type "+ clazz.getTypeName() +" cannot be migrated" );
+			}
+		
+			flush();
+		
+			final DirectoryLayout currentLayout = getLayout( clazz );
+			final DirectoryLayout formerLayout = Utils.defaultIfNull( formerLayouts.get( clazz ), currentLayout );
+			final File typeDir = getDir(clazz);
+			final File formerLayoutFile = new File( typeDir, DirectoryLayout.FILE_NAME +".former" );
+		
+			if ( formerLayout.equals( layout ) && currentLayout.equals( layout ) ) {
+				return 0;
+			} else if ( !currentLayout.equals( layout ) && formerLayouts.containsKey( clazz ) ) {
+				throw new IllegalStateException( "Migration of "+ clazz.getTypeName() +" to "+ currentLayout +" has not finished" );
+			}
+		
+			LOG.info( "migrating layout of {}: {} -> {}", clazz.getTypeName(), formerLayout, layout );
+		
+			typeDir.mkdirs();
+			Utils.writeFile( formerLayoutFile, formerLayout.toString() );
+			Utils.writeFile( new File( typeDir, DirectoryLayout.FILE_NAME ), layout.toString() );
+			formerLayouts.put( clazz, formerLayout );
+			layouts.put( clazz, layout );
+			storedLayouts.add( clazz );
+		
+			final List<File> files = new ArrayList<>();
+			walk( typeDir, formerLayout.getDepth(), files::add );
+		
+			int moved = 0;
+		
+			for (File formerFile : files) {
+			
+				final String id = formerFile.getName().substring( 0, formerFile.getName().length()-".json".length() );
+				final File file = getFile( clazz, id );
+			
+				if ( file.equals( formerFile ) ) {
+					continue;
+				}
+			
+				ioScheduler.maintain( formerFile.length() );
+			
+				synchronized (getLock(file)) {
+				
+					moved += coordinator.write( clazz, getBucket( file ), ()->{
+					
+						if ( !formerFile.isFile() ) {
+							return 0;
+						} else if ( file.isFile() ) {
+							// written meanwhile
+							formerFile.delete();
+							return 0;
+						}
+					
+						Utils.mkParentDirs( file );
+						Files.move( formerFile.toPath(), file.toPath() );
+						return 1;
+					} );
+				}
+			}
+		
+			formerLayouts.remove( clazz );
+			formerLayoutFile.delete();
+		
+			// remove emptied bucket directories
+			for (File formerFile : files) {
+				for (File dir = formerFile.getParentFile(); !dir.equals( typeDir ) && dir.delete(); dir = dir.getParentFile()) {}
+			}
+		
+			LOG.info( "migrated layout of {}: {} files moved", clazz.getTypeName(), moved );
+		
+			return moved;
+		} );
+	}
+	
+	/**
+	 * Compresses the files of a type with a dictionary trained from up to {@value #COMPRESSION_SAMPLES} stored objects, see {@link DictionaryCompression}.<br/>
+	 * Following writes are compressed, reads handle compressed and plain files alike; existing files are compressed by {@link #recompress(Class)}.
+	 * Calling it again trains a new dictionary, e.g. after the fields of the type changed.
+	 * In multi process mode other processes keep writing plain files until they are restarted.
+	 */
+	public synchronized void enableCompression(Class<?> clazz) throws IOException {
+		
+		flush();
+		
+		final List<byte[]> samples = new ArrayList<>();
+		
+		storage.traversIds( clazz, (id)->{
+			
+			if ( samples.size() >= COMPRESSION_SAMPLES ) {
+				return;
+			}
+			
+			final ReusableBuffer buffer = BUFFERS.get();
+			
+			try {
+				if ( readJson( clazz, id, buffer, false ) ) {
+					samples.add( buffer.toByteArray() );
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException( e );
+			} finally {
+				buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+			}
+		} );
+		
+		final byte[] dictionary = DictionaryCompression.train( samples, DictionaryCompression.MAX_DICTIONARY_SIZE );
+		
+		if ( dictionary.length == 0 ) {
+			throw new IllegalStateException("No stored objects to train a dictionary from [type="+ clazz.getTypeName() +"]");
+		}
+		
+		getCompression( clazz ).setCurrent( dictionary );
+		
+		LOG.info( "compression enabled [type={}, samples={}, dictionary={} bytes]", clazz.getTypeName(), samples.size(), dictionary.length );
+	}
+	
+	/**
+	 * Following writes of the type are plain; compressed files stay readable and are decompressed by {@link #recompress(Class)}.
+	 */
+	public synchronized void disableCompression(Class<?> clazz) throws IOException {
+		getCompression( clazz ).clearCurrent();
+	}
+	
+	/**
+	 * Rewrites all files of a type, so they are compressed with the current dictionary or plain if compression is disabled; packed objects stay packed.
+	 * 
+	 * @return amount of rewritten files
+	 */
+	public int recompress(Class<?> clazz) throws IOException {
+		return ioScheduler.runMaintenance( getJobName( "recompress", clazz ), ()->{
+		
+			flush();
+		
+			final List<String> ids = new ArrayList<>();
+			storage.traversIds( clazz, ids::add );
+		
+			int count = 0;
+		
+			for (String id : ids) {
+			
+				final File file = getFile( clazz, id );
+			
+				ioScheduler.maintain( file.length() );
+			
+				final boolean isRewritten = writeLocked( clazz, file, ()->{
+				
+					// packs are deflated anyway; rewriting would unpack the object
+					if ( !file.isFile() && getPacks( clazz ).get( id ) != null ) {
+						return false;
+					}
+				
+					final ReusableBuffer buffer = BUFFERS.get();
+				
+					try {
+					
+						if ( !readJson( clazz, id, buffer, false ) ) {
+							return false;
+						}
+					
+						writeJsonLocked( clazz, id, file, buffer.array(), buffer.length(), null, false );
+						return true;
+					
+					} finally {
+						buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+					}
+				} );
+			
+				count += isRewritten ? 1 : 0;
+			}
+		
+			return count;
+		} );
+	}
+	
+	/**
+	 * Walks the bucket directories down to the given depth and hands over the object files found there.
+	 */
+	private static void walk(File dir, int depth, Consumer<File> fileConsumer) {
+		
+		for (File f : Utils.defaultIfNull( dir.listFiles(), Utils.EMPTY_FILES )) {
+			
+			if ( f.getName().startsWith(".") ) {
+				continue;
+			} else if ( depth > 0 && f.isDirectory() ) {
+				walk( f, depth-1, fileConsumer );
+			} else if ( depth == 0 && f.isFile() && f.getName().toLowerCase().endsWith(".json") ) {
+				fileConsumer.accept( f );
+			}
+		}
+	}
+
+	/**
+	 * @return the path of the file's directory relative to the base directory
+	 */
+	private String getBucket(File file) {
+		return file.getParentFile().getAbsolutePath().substring( baseDir.getAbsolutePath().length()+1 ).replace( File.separatorChar, '/' );
+	}
+
+	private File getFile(Class<?> clazz, String id) {
+
+		if (clazz == null || id == null) {
+			return null;
+		}
+		
+		final Partitioning partitioning = getPartitioning( clazz );
+		
+		if ( partitioning != null ) {
+			return partitioning.locate( id, getLayout( clazz ).getBucket( id ), coordinator.isMultiProcess() );
+		}
+		
+		return new File(getDir(clazz, id), id + ".json");
+	}
+
+	public boolean isExisting(Class<?> clazz, String id) {
+
+		if (clazz == null) {
+			throw new IllegalArgumentException("No class specified.");
+		} else if (Utils.isBlank(id)) {
+			return false;
+		}
+		
+		if ( getExpiry( clazz ) != null ) {
+			
+			try {
+				return readJson( clazz, id, new ReusableBuffer( 1024 ), false );
+			} catch (IOException e) {
+				throw new UncheckedIOException( e );
+			}
+		}
+		
+		final WriteBehind.Pending pending = writeBehind == null ? null : writeBehind.get(clazz, id);
+		
+		if ( pending != null ) {
+			return pending.json != null;
+		}
+		
+		return isExistingFile(clazz, id);
+	}
+	
+	/**
+	 * @return <code>true</code> if the object has a file or is packed
+	 */
+	private boolean isExistingFile(Class<?> clazz, String id) {
+		
+		if ( isLooseFile(clazz, id) ) {
+			return true;
+		}
+		
+		try {
+			return getPacks( clazz ).get( id ) != null;
+		} catch (IOException e) {
+			throw new UncheckedIOException( e );
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the object has a file in the type's layout or its former layout
+	 */
+	private boolean isLooseFile(Class<?> clazz, String id) {
+
+		if ( getFile(clazz, id).exists() ) {
+			return true;
+		}
+		
+		final File formerFile = getFormerFile(clazz, id);
+		
+		return formerFile != null && formerFile.exists();
+	}
+
+	private <T> Field getIdField(Class<?> clazz) {
+
+		final Field idField = idFields.get(clazz);
+
+		if (idField != null) {
+			return idField;
+		}
+
+		final Utils.Wrapper<Field> fieldWrapper = new Utils.Wrapper<>(null);
+
+		Stream.of(clazz.getDeclaredFields()).filter((f) -> f.getDeclaredAnnotation(Id.class) != null).filter((f) -> {
+			if (f.getType() != String.class) {
+				throw new IllegalArgumentException("@Id field must be a String");
+			}
+			if (Modifier.isStatic(f.getModifiers())) {
+				throw new IllegalArgumentException("@Id field must not be static");
+			}
+			if (Modifier.isFinal(f.getModifiers())) {
+				throw new IllegalArgumentException("@Id field must not be final");
+			}
+			return true;
+		}).forEach((f) -> {
+			if (fieldWrapper.value != null) {
+				throw new IllegalArgumentException("Only one @Id field allowed");
+			}
+			fieldWrapper.value = f;
+		});
+
+		if (fieldWrapper.isNull()) {
+			throw new IllegalArgumentException(clazz.getTypeName() + " does not declare an @Id-String field");
+		}
+
+		idFields.put(clazz, fieldWrapper.value);
+		return fieldWrapper.value;
+	}
+	
+	/**
+	 * @return the field annotated with {@link Version} or <code>null</code> if the class does not declare one
+	 */
+	private Field getVersionField(Class<?> clazz) {
+		return versionFields.computeIfAbsent( clazz, (c)->{
+			
+			Field versionField = null;
+			
+			for (Field f : c.getDeclaredFields()) {
+				
+				if ( f.getDeclaredAnnotation(Version.class) == null ) {
+					continue;
+				} else if ( f.getType() != long.class && f.getType() != Long.class ) {
+					throw new IllegalArgumentException("@Version field must be a long");
+				} else if ( Modifier.isStatic(f.getModifiers()) ) {
+					throw new IllegalArgumentException("@Version field must not be static");
+				} else if ( versionField != null ) {
+					throw new IllegalArgumentException("Only one @Version field allowed");
+				}
+				
+				versionField = f;
+			}
+			
+			return Optional.ofNullable( versionField );
+		} ).orElse( null );
+	}
+	
+	private Long getVersion(Object object) {
+		
+		final JsonCodec<Object> codec = getCodec( object.getClass() );
+		
+		if ( codec != null ) {
+			return codec.getVersion( object );
+		}
+		
+		final Field versionField = getVersionField( object.getClass() );
+		return versionField == null ? null : Utils.getFieldValue( versionField, object );
+	}
+
+	public <T> List<T> getList(Class<T> clazz, Function<T, Boolean> addDecision) {
+		return getList(clazz, null, addDecision);
+	}
+
+	/**
+	 * @param filter evaluated on each file's token stream before an object is built; <code>null</code> accepts all
+	 * @param addDecision decides on the objects passing the filter; <code>null</code> accepts all
+	 */
+	public <T> List<T> getList(Class<T> clazz, Filter filter, Function<T, Boolean> addDecision) {
+
+		if (clazz == null) {
+			return null;
+		}
+		
+		final List<T> list = new ArrayList<>();
+
+		list(clazz, filter, (T) -> {
+
+			final Boolean r;
+
+			try {
+				r = addDecision == null || addDecision.apply(T);
+			} catch (Exception e) {
+				throw Utils.toRuntimeException(e);
+			}
+
+			if (Boolean.TRUE.equals(r)) {
+				list.add(T);
+			}
+
+			return r;
+		});
+
+		return list;
+	}
+
+	public <T> void list(Class<T> clazz, Function<T, Boolean> addItemDecision) {
+		list(clazz, null, addItemDecision);
+	}
+	
+	/**
+	 * Traverses the stored objects of a type.<br/>
+	 * The filter is evaluated on the token stream of each file and rejects a file before any object is built from it.
+	 * 
+	 * @param filter <code>null</code> accepts all
+	 * @param addItemDecision called for each object passing the filter; returning <code>null</code> stops traversing
+	 */
+	@SuppressWarnings("try")
+	public <T> void list(Class<T> clazz, Filter filter, Function<T, Boolean> addItemDecision) {
+
+		try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
+
+			if (clazz == null) {
+				return;
+			}
+		
+			try {
+				flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException( e );
+			}
+		
+			list( clazz, filter, addItemDecision, (fileConsumer)->this.storage.traversObjects(clazz, fileConsumer), null );
+		}
+	}
+	
+	/**
+	 * Opens a read only view of the stored objects as they are now, e.g. for reports scanning many objects while others keep writing.<br/>
+	 * Writers are not blocked: while a snapshot is open, a write first copies the version of the object the snapshot sees, see {@link Snapshot}.
+	 * Snapshots should be closed soon, as the copies are kept until then.
+	 * <p>
+	 * Pending writes are flushed before. Not covered are the elements of {@link Chunked} fields, dropped partitions and blobs;
+	 * restoring a backup invalidates open snapshots.
+	 * </p>
+	 * 
+	 * @throws IllegalStateException in multi process mode, as writes of other processes are not copied
+	 */
+	public Snapshot openSnapshot() throws IOException {
+		
+		if ( coordinator.isMultiProcess() ) {
+			throw new IllegalStateException("Snapshots are not supported in multi process mode");
+		}
+		
+		flush();
+		
+		final long epoch = snapshots.getEpoch();
+		return new Snapshot( snapshots.open(), epoch );
+	}
+	
+	/**
+	 * Drops the partitions of a type ending before the given time as a whole instead of deleting their objects one by one.<br/>
+	 * Each partition is renamed to a hidden name, which removes its objects at once; the files are deleted in the background afterwards.
+	 * Writes are blocked while renaming. Dropped objects are not published on the change feed.
+	 * 
+	 * @param before milliseconds since the epoch; partitions ending at or before it are dropped
+	 * @return names of the dropped partitions
+	 * @see Partition
+	 */
+	public List<String> dropPartitionsBefore(Class<?> clazz, long before) throws IOException {
+		
+		final Partitioning partitioning = clazz == null ? null : getPartitioning( clazz );
+		
+		if ( partitioning == null ) {
+			throw new IllegalArgumentException( "No partitioned type specified: "+ clazz );
+		}
+		
+		flush();
+		
+		final List<String> dropped = new ArrayList<>();
+		
+		Utils.wait( block, ()->block.get(), ()->block.set(true) );
+		
+		try {
+			coordinator.exclusive( ()->{
+				
+				partitioning.refresh();
+				
+				for (String partition : partitioning.getPartitions()) {
+					
+					if ( partitioning.getEnd( partition ) > before ) {
+						break;
+					}
+					
+					final File droppedDir = new File( getDir(clazz), Partitioning.DROPPED_PREFIX + partition +"-"+ System.nanoTime() );
+					Files.move( partitioning.getDir( partition ).toPath(), droppedDir.toPath(), StandardCopyOption.ATOMIC_MOVE );
+					dropped.add( partition );
+				}
+				
+				partitioning.refresh();
+				
+				if ( !dropped.isEmpty() ) {
+					coordinator.incrementGenerations( Collections.singleton( clazz.getTypeName() ) );
+				}
+				
+				return null;
+			} );
+			
+		} finally {
+			Utils.notify( block, ()->block.set(false) );
+		}
+		
+		if ( dropped.isEmpty() ) {
+			return dropped;
+		}
+		
+		LOG.info( "dropped partitions of {}: {}", clazz.getTypeName(), dropped );
+		
+		final String keyPrefix = getKey( clazz, "" );
+		fingerprints.keySet().removeIf( (k)->k.startsWith( keyPrefix ) );
+		counts.remove( clazz );
+		
+		final OffHeapCache cache = this.cache;
+		
+		if ( cache != null ) {
+			cache.clear();
+		}
+		
+		// also deletes what is left over by former drops
+		getIoExecutor().submit( ()->{
+			for (File droppedDir : Utils.list( getDir(clazz), (f)->f.isDirectory() && f.getName().startsWith( Partitioning.DROPPED_PREFIX ) )) {
+				Utils.delete( droppedDir );
+			}
+		} );
+		
+		return dropped;
+	}
+	
+	/**
+	 * Traverses the stored objects of a partitioned type whose timestamp is in the given range; only the partitions overlapping the range are read.
+	 * 
+	 * @param from milliseconds since the epoch, inclusive
+	 * @param to milliseconds since the epoch, exclusive
+	 * @param filter <code>null</code> accepts all
+	 * @param addItemDecision called for each object passing the filter; returning <code>null</code> stops traversing
+	 * @see Partition
+	 */
+	@SuppressWarnings("try")
+	public <T> void listRange(Class<T> clazz, long from, long to, Filter filter, Function<T, Boolean> addItemDecision) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
+
+			final Partitioning partitioning = clazz == null ? null : getPartitioning( clazz );
+		
+			if ( partitioning == null ) {
+				throw new IllegalArgumentException( "No partitioned type specified: "+ clazz );
+			}
+		
+			flush();
+		
+			final Filter range = Filter.and( Filter.ge( partitioning.getPath(), from ), Filter.lt( partitioning.getPath(), to ) );
+			final int depth = getLayout( clazz ).getDepth();
+		
+			if ( coordinator.isMultiProcess() ) {
+				partitioning.refresh();
+			}
+		
+			list( clazz, filter == null ? range : Filter.and( range, filter ), addItemDecision, (fileConsumer)->{
+				for (String partition : partitioning.getPartitions( from, to )) {
+					walk( partitioning.getDir( partition ), depth, fileConsumer );
+				}
+			}, null );
+		}
+	}
+	
+	/**
+	 * @param traversal passes the files to read to the given consumer
+	 * @param snapshot reads the objects as seen by the snapshot; <code>null</code> reads the current objects
+	 */
+	private <T> void list(Class<T> clazz, Filter filter, Function<T, Boolean> addItemDecision, Consumer<Consumer<File>> traversal, Snapshot snapshot) {
+		
+		final FieldExtractor extractor = filter == null ? null : new FieldExtractor( filter.getPaths() );
+		final Wrapper<Boolean> quitFlag = new Wrapper<>(null);
+		final Wrapper<Exception> exceptionWrapper = new Wrapper<>(null);
+		
+		traversal.accept( (file) -> {
+
+			if (Boolean.TRUE.equals(quitFlag.value) || exceptionWrapper.value != null) {
+				return;
+			}
+
+			final int indexFileEnding = file.getName().lastIndexOf(".json");
+			if (indexFileEnding < 1) {
+				return;
+			}
+			final String id = file.getName().substring(0, indexFileEnding);
+			
+			final ReusableBuffer buffer = BUFFERS.get();
+
+			try {
+				
+				final boolean isRead = snapshot == null ? readJson( clazz, id, file, buffer, false ) : snapshot.readJson( clazz, id, file, buffer );
+				
+				if ( !isRead || (filter != null && !isAccepted( filter, extractor, buffer )) ) {
+					return;
+				}
+
+				final T object = fromJson( buffer, clazz );
+				
+				if ( addItemDecision != null && addItemDecision.apply(object) == null ) {
+					quitFlag.value = true;
+				}
+
+			} catch (Exception e) {
+				exceptionWrapper.value = e;
+				return;
+			
+			} finally {
+				buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+			}
+
+		});
+
+		if (exceptionWrapper.value != null) {
+			throw Utils.toRuntimeException(exceptionWrapper.value);
+		}
+	}
+
+	/**
+	 * @see #page(Class, Filter, String, String, int)
+	 */
+	public <T> Page<T> page(Class<T> clazz, String orderBy, String afterKey, int limit) throws IOException {
+		return page( clazz, null, orderBy, afterKey, limit );
+	}
+	
+	/**
+	 * Reads a page of objects in ascending order of a field, starting after the key of the former page's last object.<br/>
+	 * Ordered by id without a filter, a page is picked from the file names and only the page's objects are read.
+	 * Ordered by id with a filter, files are read in id order until the page is full.
+	 * Ordered by another field, the field is picked from the token stream of each file and the smallest keys are kept in a heap of the page's size.
+	 * Values of different JSON types are ordered as of {@link de.greyshine.jsonpersister.query.Values#compareOrdered(Object, Object)}; ties are broken by the id.
+	 * 
+	 * @param filter <code>null</code> accepts all
+	 * @param orderBy dotted path of a scalar field; <code>null</code> orders by id
+	 * @param afterKey {@link Page#getNextKey()} of the former page; <code>null</code> for the first page
+	 */
+	@SuppressWarnings("try")
+	public <T> Page<T> page(Class<T> clazz, Filter filter, String orderBy, String afterKey, int limit) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
+
+			if ( clazz == null ) {
+				throw new IllegalArgumentException("No class specified.");
+			} else if ( limit < 1 ) {
+				throw new IllegalArgumentException("limit must be positive: "+ limit);
+			}
+		
+			flush();
+		
+			final boolean byId = isOrderedById( clazz, orderBy );
+			final ExternalSort.Entry after = afterKey == null ? null : byId ? new ExternalSort.Entry( null, afterKey ) : ExternalSort.Entry.parseKey( afterKey );
+			final List<T> items = new ArrayList<>( limit );
+			final List<ExternalSort.Entry> entries = new ArrayList<>( limit );
+			// one more than the page holds tells whether there is a next page
+			final Wrapper<Boolean> hasNext = new Wrapper<>( false );
+		
+			final Function<ExternalSort.Entry, Boolean> collector = (entry)->{
+			
+				if ( entries.size() == limit ) {
+					hasNext.value = true;
+					return false;
+				}
+			
+				entries.add( entry );
+				return true;
+			};
+		
+			if ( byId && filter != null ) {
+			
+				try (ExternalSort sort = new ExternalSort( getSortDir(), maxSortEntries )) {
+				
+					storage.traversIds( clazz, (id)->{
+						if ( after == null || id.compareTo( after.id ) > 0 ) {
+							addSortEntry( sort, null, id );
+						}
+					} );
+				
+					readOrdered( clazz, sort.iterator(), filter, (entry, object)->{
+					
+						if ( !collector.apply( entry ) ) {
+							return false;
+						}
+					
+						items.add( object );
+						return true;
+					} );
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			
+			} else {
+			
+				ExternalSort.Entry from = after;
+			
+				while ( true ) {
+				
+					final ExternalSort.Entry cursor = from;
+					final int size = limit+1 - entries.size();
+					final PriorityQueue<ExternalSort.Entry> heap = new PriorityQueue<>( size, ExternalSort.ORDER.reversed() );
+					final Wrapper<Boolean> truncated = new Wrapper<>( false );
+				
+					collectSortEntries( clazz, filter, byId ? null : orderBy, (entry)->{
+					
+						if ( cursor != null && ExternalSort.ORDER.compare( entry, cursor ) <= 0 ) {
+							return;
+						}
+					
+						heap.add( entry );
+					
+						if ( heap.size() > size ) {
+							heap.poll();
+							truncated.value = true;
+						}
+					} );
+				
+					final List<ExternalSort.Entry> smallest = new ArrayList<>( heap );
+					smallest.sort( ExternalSort.ORDER );
+				
+					// objects deleted or expired since collecting are left out
+					readOrdered( clazz, smallest.iterator(), null, (entry, object)->{
+					
+						if ( !collector.apply( entry ) ) {
+							return false;
+						}
+					
+						items.add( object );
+						return true;
+					} );
+				
+					if ( hasNext.value || !truncated.value ) {
+						break;
+					}
+				
+					// left out objects leave the page or its look-ahead short while further objects were dropped from the heap; collect again after the last candidate
+					from = smallest.get( smallest.size()-1 );
+				}
+			}
+		
+			final ExternalSort.Entry last = entries.isEmpty() ? null : entries.get( entries.size()-1 );
+			final String nextKey = !hasNext.value || last == null ? null : byId ? last.id : last.toKey();
+		
+			return new Page<>( items, entries, nextKey );
+		}
+	}
+	
+	/**
+	 * Traverses the stored objects of a type in ascending order of a field.<br/>
+	 * The sort keys are sorted in memory up to {@link #setMaxSortEntries(int)} objects, beyond that sorted runs are spilled to temporary files and merged.
+	 * Objects are read when their turn comes; objects changed meanwhile are passed as they are then.
+	 * 
+	 * @param filter <code>null</code> accepts all
+	 * @param orderBy dotted path of a scalar field; <code>null</code> orders by id
+	 * @param addItemDecision called for each object in order; returning <code>null</code> stops traversing
+	 */
+	@SuppressWarnings("try")
+	public <T> void listOrdered(Class<T> clazz, Filter filter, String orderBy, Function<T, Boolean> addItemDecision) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
+
+			if ( clazz == null ) {
+				return;
+			}
+		
+			flush();
+		
+			final boolean byId = isOrderedById( clazz, orderBy );
+		
+			try (ExternalSort sort = new ExternalSort( getSortDir(), maxSortEntries )) {
+			
+				// ordered by a field, the filter is evaluated while collecting the keys
+				collectSortEntries( clazz, byId ? null : filter, byId ? null : orderBy, (entry)->addSortEntry( sort, entry.value, entry.id ) );
+			
+				LOG.debug( "listOrdered [type={}, orderBy={}]: {} runs spilled", clazz.getTypeName(), orderBy, sort.getRuns() );
+			
+				readOrdered( clazz, sort.iterator(), byId ? filter : null, (entry, object)->addItemDecision == null || addItemDecision.apply( object ) != null );
+			
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+	
+	/**
+	 * @param maxSortEntries amount of sort keys held in memory by {@link #listOrdered(Class, Filter, String, Function)} before spilling to temporary files
+	 */
+	public void setMaxSortEntries(int maxSortEntries) {
+		
+		if ( maxSortEntries < 1 ) {
+			throw new IllegalArgumentException("maxSortEntries must be positive: "+ maxSortEntries);
+		}
+		
+		this.maxSortEntries = maxSortEntries;
+	}
+	
+	boolean isOrderedById(Class<?> clazz, String orderBy) {
+		return orderBy == null || orderBy.trim().equals( getIdField( clazz ).getName() );
+	}
+	
+	private File getSortDir() {
+		return new File( getMetaDir(), "sort" );
+	}
+	
+	private static void addSortEntry(ExternalSort sort, Object value, String id) {
+		try {
+			sort.add( value, id );
+		} catch (IOException e) {
+			throw new UncheckedIOException( e );
+		}
+	}
+	
+	/**
+	 * Passes the sort entry of each stored object accepted by the filter; ordered by id without a filter, no file is read.
+	 * 
+	 * @param orderBy <code>null</code> for the id
+	 */
+	private void collectSortEntries(Class<?> clazz, Filter filter, String orderBy, Consumer<ExternalSort.Entry> entryConsumer) throws IOException {
+		
+		if ( orderBy == null && filter == null ) {
+			storage.traversIds( clazz, (id)->entryConsumer.accept( new ExternalSort.Entry( null, id ) ) );
+			return;
+		}
+		
+		final Set<String> paths = filter == null ? new HashSet<>() : filter.getPaths();
+		
+		if ( orderBy != null ) {
+			paths.add( orderBy.trim() );
+		}
+		
+		final FieldExtractor extractor = new FieldExtractor( paths );
+		final Wrapper<IOException> exceptionWrapper = new Wrapper<>(null);
+		
+		storage.traversIds( clazz, (id)->{
+			
+			if ( exceptionWrapper.value != null ) {
+				return;
+			}
+			
+			final ReusableBuffer buffer = BUFFERS.get();
+			
+			try {
+				
+				if ( !readJson( clazz, id, buffer, false ) ) {
+					return;
+				}
+				
+				final Map<String,Object> values = extract( extractor, filter, buffer );
+				
+				if ( values != null ) {
+					entryConsumer.accept( new ExternalSort.Entry( orderBy == null ? null : values.get( orderBy.trim() ), id ) );
+				}
+				
+			} catch (IOException e) {
+				exceptionWrapper.value = e;
+			} finally {
+				buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+			}
+		} );
+		
+		if ( exceptionWrapper.value != null ) {
+			throw exceptionWrapper.value;
+		}
+	}
+	
+	/**
+	 * Reads the objects of the entries in their order.
+	 * 
+	 * @param filter evaluated on each file; <code>null</code> accepts all
+	 * @param consumer returning <code>false</code> stops reading
+	 */
+	private <T> void readOrdered(Class<T> clazz, Iterator<ExternalSort.Entry> entries, Filter filter, BiFunction<ExternalSort.Entry, T, Boolean> consumer) throws IOException {
+		
+		final FieldExtractor extractor = filter == null ? null : new FieldExtractor( filter.getPaths() );
+		final ReusableBuffer buffer = BUFFERS.get();
+		
+		try {
+			
+			while ( entries.hasNext() ) {
+				
+				final ExternalSort.Entry entry = entries.next();
+				
+				if ( !readJson( clazz, entry.id, buffer, false ) || (filter != null && !isAccepted( filter, extractor, buffer )) ) {
+					continue;
+				}
+				
+				final T object = fromJson( buffer, clazz );
+				buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+				
+				if ( !consumer.apply( entry, object ) ) {
+					return;
+				}
+			}
+			
+		} finally {
+			buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+		}
+	}
+	
+	/**
+	 * Lets the objects of a type expire the given time after their last write; writing an object renews it.
+	 * Objects of a type having an {@link Expires} field expire at the earlier of both times.
+	 * 
+	 * @param timeToLive milliseconds; 0 for none
+	 */
+	public void setTimeToLive(Class<?> clazz, long timeToLive) {
+		
+		if ( clazz == null ) {
+			throw new IllegalArgumentException("No class specified.");
+		} else if ( timeToLive < 0 ) {
+			throw new IllegalArgumentException("timeToLive must not be negative: "+ timeToLive);
+		}
+		
+		if ( timeToLive == 0 ) {
+			timesToLive.remove( clazz );
+		} else {
+			timesToLive.put( clazz, timeToLive );
+		}
+		
+		expiries.remove( clazz );
+	}
+	
+	/**
+	 * @return expiry of the type's objects if it declares an {@link Expires} field or has a time to live, otherwise <code>null</code>
+	 */
+	private Expiry getExpiry(Class<?> clazz) {
+		return expiries.computeIfAbsent( clazz, (c)->{
+			
+			Field expiresField = null;
+			
+			for (Field f : c.getDeclaredFields()) {
+				
+				if ( f.getDeclaredAnnotation(Expires.class) == null ) {
+					continue;
+				} else if ( f.getType() != long.class && f.getType() != Long.class ) {
+					throw new IllegalArgumentException("@Expires field must be a long");
+				} else if ( Modifier.isStatic(f.getModifiers()) ) {
+					throw new IllegalArgumentException("@Expires field must not be static");
+				} else if ( expiresField != null ) {
+					throw new IllegalArgumentException("Only one @Expires field allowed");
+				}
+				
+				expiresField = f;
+			}
+			
+			final long timeToLive = timesToLive.getOrDefault( c, 0L );
+			
+			if ( expiresField == null && timeToLive == 0 ) {
+				return Optional.empty();
+			}
+			
+			return Optional.of( new Expiry( expiresField == null ? null : expiresField.getName(), timeToLive ) );
+			
+		} ).orElse( null );
+	}
+	
+	/**
+	 * @param buffer the object as stored or decompressed
+	 * @param writtenAt time the buffered object was last written
+	 */
+	private boolean isExpired(Class<?> clazz, ReusableBuffer buffer, long writtenAt) throws IOException {
+		
+		final Expiry expiry = getExpiry( clazz );
+		
+		if ( expiry == null ) {
+			return false;
+		}
+		
+		final Long expiresAt = expiry.getExpiresAt( toDecompressed( clazz, buffer ).asInputStream(), writtenAt );
+		
+		return expiresAt != null && expiresAt <= System.currentTimeMillis();
+	}
+	
+	/**
+	 * @param checksPerSecond upper bound of the objects a sweep checks and deletes, so sweeping does not compete with reads and writes for the disk; the default is 1000
+	 */
+	public void setExpirySweepRate(int checksPerSecond) {
+		
+		if ( checksPerSecond < 1 ) {
+			throw new IllegalArgumentException("checksPerSecond must be positive: "+ checksPerSecond);
+		}
+		
+		this.expirySweepRate = checksPerSecond;
+	}
+	
+	/**
+	 * Sweeps expired objects periodically on a background thread, see {@link #sweepExpired()}.
+	 */
+	public synchronized void startExpirySweeper(long intervalMillis) {
+		
+		if ( intervalMillis < 1 ) {
+			throw new IllegalArgumentException("intervalMillis must be positive: "+ intervalMillis);
+		}
+		
+		stopExpirySweeper();
+		
+		expirySweeper = newMaintenanceExecutor( "json-persister-expiry" );
+		expirySweeper.scheduleWithFixedDelay( ()->{
+			
+			try {
+				sweepExpired();
+			} catch (IOException | RuntimeException e) {
+				LOG.warn("expiry sweep failed: {}", e.toString(), e);
+			}
+			
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS );
+	}
+	
+	public synchronized void stopExpirySweeper() {
+		
+		if ( expirySweeper != null ) {
+			expirySweeper.shutdownNow();
+			expirySweeper = null;
+		}
+	}
+	
+	/**
+	 * Deletes the expired objects listed in the due minutes of the expiry index; objects are not scanned.
+	 * Each object's expiry is checked again under its lock, so objects renewed meanwhile are kept.
+	 * Checks are limited to {@link #setExpirySweepRate(int)} per second.
+	 * 
+	 * @return amount of deleted objects
+	 */
+	@SuppressWarnings("try")
+	public int sweepExpired() throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
+
+			flush();
+		
+			int deleted = 0;
+			// token bucket of the sweep rate holding up to one second's worth of checks
+			double tokens = expirySweepRate;
+			long refillTime = System.currentTimeMillis();
+		
+			for (File indexFile : expiryIndex.claimDue( refillTime )) {
+			
+				final String typeName = ExpiryIndex.getTypeName( indexFile );
+				final Class<?> clazz = getType( typeName );
+			
+				if ( clazz == null ) {
+					LOG.warn("expiry index of unknown type skipped: {}", indexFile);
+					continue;
+				}
+			
+				for (String id : ExpiryIndex.readIds( indexFile )) {
+				
+					final int rate = expirySweepRate;
+				
+					while ( true ) {
+					
+						final long now = System.currentTimeMillis();
+						tokens = Math.min( rate, tokens + (now - refillTime) * rate / 1000d );
+						refillTime = now;
+					
+						if ( tokens >= 1 ) {
+							break;
+						}
+					
+						try {
+							Thread.sleep( (long)Math.ceil( (1 - tokens) * 1000 / rate ) );
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							// the claimed file is swept again by the next sweep
+							return deleted;
+						}
+					}
+				
+					tokens--;
+				
+					if ( deleteIfExpired( clazz, id ) ) {
+						deleted++;
+					}
+				}
+			
+				Utils.delete( indexFile );
+			}
+		
+			if ( deleted > 0 ) {
+				LOG.debug("swept {} expired objects", deleted);
+			}
+		
+			return deleted;
+		}
+	}
+	
+	/**
+	 * @return the type of the given name; <code>null</code> if it cannot be loaded
+	 */
+	private Class<?> getType(String typeName) {
+		
+		for (Class<?> clazz : layouts.keySet()) {
+			if ( clazz.getTypeName().equals( typeName ) ) {
+				return clazz;
+			}
+		}
+		
+		for (Class<?> clazz : expiries.keySet()) {
+			if ( clazz.getTypeName().equals( typeName ) ) {
+				return clazz;
+			}
+		}
+		
+		try {
+			return Class.forName( typeName );
+		} catch (ClassNotFoundException | LinkageError e) {
+			return null;
+		}
+	}
+	
+	private boolean deleteIfExpired(Class<?> clazz, String id) throws IOException {
+		
+		final ReusableBuffer buffer = new ReusableBuffer( 1024 );
+		
+		// a file not read is expired or deleted meanwhile
+		return deleteFile( clazz, id, true, ()->isExistingFile( clazz, id ) && !readJson( clazz, id, buffer, false ) );
+	}
+	
+	private PackStore getPacks(Class<?> clazz) {
+		return packStores.computeIfAbsent( clazz, (c)->new PackStore( getDir( c ), coordinator.isMultiProcess() ) );
+	}
+	
+	/**
+	 * @return paths of the packed objects of the type having no file, see {@link Storage#traversObjects(Class, Consumer)}
+	 */
+	private List<File> getPackedFiles(Class<?> clazz) {
+		
+		final List<File> files = new ArrayList<>();
+		
+		try {
+			
+			for (String id : getPacks( clazz ).getIds()) {
+				if ( !isLooseFile( clazz, id ) ) {
+					files.add( getFile( clazz, id ) );
+				}
+			}
+			
+		} catch (IOException e) {
+			throw new UncheckedIOException( e );
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Moves the objects of a type whose files were not modified for the given time into packs, see {@link PackStore}; each pack takes up to 10000 objects.<br/>
+	 * Packed objects stay readable by their id, by lists and queries, and are part of backups; writing a packed object stores it as file again.
+	 * Types stored in partitions are not packed, their cold data is dropped by partition instead.
+	 * 
+	 * @return amount of packed objects
+	 */
+	public int packColdObjects(Class<?> clazz, long untouchedMillis) throws IOException {
+		return ioScheduler.runMaintenance( getJobName( "pack", clazz ), ()->{
+		
+			if ( clazz == null ) {
+				throw new IllegalArgumentException("No class specified.");
+			} else if ( untouchedMillis < 0 ) {
+				throw new IllegalArgumentException("untouchedMillis must not be negative: "+ untouchedMillis);
+			} else if ( getPartitioning( clazz ) != null ) {
+				throw new IllegalStateException( clazz.getTypeName() +" is stored in partitions and not packed" );
+			} else if ( formerLayouts.containsKey( clazz ) ) {
+				throw new IllegalStateException( clazz.getTypeName() +" is being migrated to a new layout" );
+			}
+		
+			flush();
+		
+			final long untouchedBefore = System.currentTimeMillis() - untouchedMillis;
+			final List<File> files = new ArrayList<>();
+			walk( getDir( clazz ), getDepth( clazz ), (f)->{
+				if ( f.lastModified() < untouchedBefore ) {
+					files.add( f );
+				}
+			} );
+		
+			int packed = 0;
+		
+			synchronized (packLock) {
+				for (int i = 0; i < files.size(); i += 10000) {
+					packed += pack( clazz, files.subList( i, Math.min( files.size(), i+10000 ) ), untouchedBefore );
+				}
+			}
+		
+			if ( packed > 0 ) {
+				LOG.info("packed {} objects of {}", packed, clazz.getTypeName());
+			}
+		
+			return packed;
+		} );
+	}
+	
+	/**
+	 * Writes the files into a new pack and deletes the files not modified meanwhile.
+	 * 
+	 * @return amount of packed objects
+	 */
+	private int pack(Class<?> clazz, List<File> files, long untouchedBefore) throws IOException {
+		
+		final PackStore packs = getPacks( clazz );
+		final List<File> packedFiles = new ArrayList<>();
+		final List<long[]> packedAttributes = new ArrayList<>();
+		final ReusableBuffer buffer = BUFFERS.get();
+		
+		Utils.wait( block, ()->block.get(), ()->concurrentAccesses.incrementAndGet());
+		
+		try {
+			
+			// packs are written within the coordination of writes, so backups and other processes' packing wait for the pack to be complete
+			coordinator.write( clazz, getBucket( new File( packs.getDir(), PackStore.DELETED_FILE_NAME ) ), ()->{
+				
+				try (PackStore.Writer writer = packs.newWriter()) {
+					
+					for (File file : files) {
+						
+						final long length;
+						final long lastModified;
+						
+						// the stored bytes are packed as they are, so dictionary compressed files stay compressed
+						synchronized (getLock(file)) {
+							
+							length = file.length();
+							lastModified = file.lastModified();
+							
+							if ( !file.isFile() || lastModified >= untouchedBefore ) {
+								continue;
+							}
+							
+							buffer.readFile( file );
+						}
+						
+						if ( buffer.length() != length ) {
+							continue;
+						}
+						
+						ioScheduler.maintain( length );
+						
+						final String name = file.getName();
+						writer.add( name.substring( 0, name.length()-".json".length() ), buffer.array(), buffer.length(), lastModified );
+						packedFiles.add( file );
+						packedAttributes.add( new long[] { length, lastModified } );
+					}
+					
+					if ( writer.size() > 0 ) {
+						writer.commit();
+					}
+				}
+				
+				return null;
+			} );
+			
+		} finally {
+			
+			buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+			concurrentAccesses.decrementAndGet();
+			Utils.notify(block);
+		}
+		
+		for (int i = 0; i < packedFiles.size(); i++) {
+			
+			final File file = packedFiles.get( i );
+			final long[] attributes = packedAttributes.get( i );
+			final String id = file.getName().substring( 0, file.getName().length()-".json".length() );
+			
+			writeLocked( clazz, file, ()->{
+				
+				if ( file.length() == attributes[0] && file.lastModified() == attributes[1] ) {
+					
+					Utils.delete( file );
+					fingerprints.remove( getKey( clazz, id ) );
+					
+				} else {
+					// written meanwhile, the file stays
+					packs.remove( id );
+				}
+				
+				return null;
+			} );
+		}
+		
+		return packedFiles.size();
+	}
+	
+	/**
+	 * Packs the cold objects of all types of the storage periodically on a background thread, see {@link #packColdObjects(Class, long)}.
+	 * Types which cannot be loaded, are stored in partitions or are being migrated are left out.
+	 */
+	public synchronized void startPacker(long untouchedMillis, long intervalMillis) {
+		
+		if ( untouchedMillis < 0 ) {
+			throw new IllegalArgumentException("untouchedMillis must not be negative: "+ untouchedMillis);
+		} else if ( intervalMillis < 1 ) {
+			throw new IllegalArgumentException("intervalMillis must be positive: "+ intervalMillis);
+		}
+		
+		stopPacker();
+		
+		packer = newMaintenanceExecutor( "json-persister-packer" );
+		packer.scheduleWithFixedDelay( ()->{
+			
+			for (String typeName : storage.getTypeNames()) {
+				
+				final Class<?> clazz = getType( typeName );
+				
+				try {
+					
+					if ( clazz != null && getPartitioning( clazz ) == null && !formerLayouts.containsKey( clazz ) ) {
+						packColdObjects( clazz, untouchedMillis );
+					}
+					
+				} catch (IOException | RuntimeException e) {
+					LOG.warn("packing {} failed: {}", typeName, e.toString(), e);
+				}
+			}
+			
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS );
+	}
+	
+	public synchronized void stopPacker() {
+		
+		if ( packer != null ) {
+			packer.shutdownNow();
+			packer = null;
+		}
+	}
+	
+	/**
+	 * @return executor of a single low priority daemon thread for background maintenance
+	 */
+	private static ScheduledExecutorService newMaintenanceExecutor(String threadName) {
+		return Executors.newSingleThreadScheduledExecutor( (r)->{
+			final Thread thread = new Thread( r, threadName );
+			thread.setDaemon( true );
+			thread.setPriority( Thread.MIN_PRIORITY );
+			return thread;
+		} );
+	}
+	
+	private BlobStore getBlobs(Class<?> clazz) {
+		
+		if ( clazz == null ) {
+			throw new IllegalArgumentException("No class specified.");
+		}
+		
+		return new BlobStore( getDir( clazz ), new File( getMetaDir(), "tmp" ) );
+	}
+	
+	/**
+	 * Stores binary content of an object of the type, e.g. to be set as {@link Blob} field; content stored already for the type is not stored again.
+	 * 
+	 * @return reference to the content
+	 */
+	public Blob writeBlob(Class<?> clazz, InputStream in) throws IOException {
+		
+		if ( in == null ) {
+			throw new IllegalArgumentException("No InputStream specified.");
+		}
+		
+		final BlobStore blobs = getBlobs( clazz );
+		return storeBlob( clazz, blobs, blobs.writeTemporary( in ) );
+	}
+	
+	/**
+	 * Like {@link #writeBlob(Class, InputStream)}; a {@link java.nio.channels.FileChannel} source is transferred without passing the heap.
+	 */
+	public Blob writeBlob(Class<?> clazz, ReadableByteChannel in) throws IOException {
+		
+		if ( in == null ) {
+			throw new IllegalArgumentException("No channel specified.");
+		}
+		
+		final BlobStore blobs = getBlobs( clazz );
+		return storeBlob( clazz, blobs, blobs.writeTemporary( in ) );
+	}
+	
+	private Blob storeBlob(Class<?> clazz, BlobStore blobs, File tmpFile) throws IOException {
+		
+		final Blob blob;
+		
+		try {
+			blob = BlobStore.hash( tmpFile );
+		} catch (IOException | RuntimeException e) {
+			Utils.delete( tmpFile );
+			throw e;
+		}
+		
+		final File file = blobs.getFile( blob );
+		
+		writeLocked( clazz, file, ()->{
+			blobs.store( tmpFile, blob );
+			return null;
+		} );
+		
+		return blob;
+	}
+	
+	/**
+	 * @return stream of the blob's content; <code>null</code> if it is not stored
+	 */
+	public InputStream openBlob(Class<?> clazz, Blob blob) throws IOException {
+		
+		final File file = getBlobs( clazz ).getFile( blob );
+		
+		return file.isFile() ? new FileInputStream( file ) : null;
+	}
+	
+	/**
+	 * Transfers the blob's content by {@link FileChannel#transferTo(long, long, WritableByteChannel)}, e.g. directly to a socket.
+	 * 
+	 * @return amount of transferred bytes
+	 * @throws FileNotFoundException if the blob is not stored
+	 */
+	public long transferBlob(Class<?> clazz, Blob blob, WritableByteChannel out) throws IOException {
+		
+		if ( out == null ) {
+			throw new IllegalArgumentException("No channel specified.");
+		}
+		
+		final File file = getBlobs( clazz ).getFile( blob );
+		
+		try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+			
+			final long size = channel.size();
+			long position = 0;
+			
+			while ( position < size ) {
+				position += channel.transferTo( position, size - position, out );
+			}
+			
+			return position;
+			
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException( "No blob "+ blob.getHash() +" of "+ clazz.getTypeName() );
+		}
+	}
+	
+	/**
+	 * Deletes the blobs of a type no stored object refers to; blobs are referenced by their hash anywhere in an object's JSON,
+	 * but not by elements of {@link Chunked} fields. Blobs written or stored again within the given time are kept, so blobs of objects not upserted yet survive.
+	 * Blobs referenced by versions retained for open snapshots are kept as well, so a backup of a snapshot finds them.
+	 * 
+	 * @return amount of deleted blobs
+	 */
+	public int collectBlobs(Class<?> clazz, long unusedMillis) throws IOException {
+		return ioScheduler.runMaintenance( getJobName( "collect blobs", clazz ), ()->{
+		
+			if ( unusedMillis < 0 ) {
+				throw new IllegalArgumentException("unusedMillis must not be negative: "+ unusedMillis);
+			}
+		
+			final BlobStore blobs = getBlobs( clazz );
+			final long modifiedBefore = System.currentTimeMillis() - unusedMillis;
+			final Set<String> referenced = new HashSet<>();
+			final ReusableBuffer buffer = BUFFERS.get();
+		
+			flush();
+		
+			try {
+			
+				storage.traversObjects( clazz, (file)->{
+				
+					final String id = file.getName().substring( 0, file.getName().length()-".json".length() );
+				
+					try {
+					
+						if ( readJson( clazz, id, file, buffer, false ) ) {
+						
+							ioScheduler.maintain( buffer.length() );
+						
+							try (JsonReader reader = new JsonReader( new InputStreamReader( buffer.asInputStream(), Utils.CHARSET_UTF8 ) )) {
+								BlobStore.addReferences( reader, referenced );
+							}
+						}
+					
+					} catch (IOException e) {
+						throw new UncheckedIOException( e );
+					}
+				} );
+			
+				
+				// versions retained for open snapshots, e.g. of objects deleted meanwhile; retained before they are replaced, so after traversing
+				for (File file : snapshots.getFiles( getKey( clazz, "" ) )) {
+					
+					try {
+						buffer.readFile( file );
+					} catch (FileNotFoundException e) {
+						// snapshot closed meanwhile
+						continue;
+					}
+					
+					try (JsonReader reader = new JsonReader( new InputStreamReader( toDecompressed( clazz, buffer ).asInputStream(), Utils.CHARSET_UTF8 ) )) {
+						BlobStore.addReferences( reader, referenced );
+					}
+				}
+			
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+			}
+		
+			int deleted = 0;
+		
+			// under the lock of storing a blob, so a blob stored again meanwhile is kept
+			for (File file : blobs.getUnreferenced( referenced, modifiedBefore )) {
+				if ( writeLocked( clazz, file, ()->file.lastModified() < modifiedBefore && file.delete() ) ) {
+					deleted++;
+				}
+			}
+		
+			if ( deleted > 0 ) {
+				LOG.info("deleted {} unreferenced blobs of {}", deleted, clazz.getTypeName());
+			}
+		
+			return deleted;
+		} );
+	}
+	
+	/**
+	 * Amount of stored objects of a type. The amount is counted from the file names on the first call and maintained by writes and deletes afterwards;
+	 * counting blocks writes and deletes for its duration.<br/>
+	 * In multi process mode objects of other processes are not tracked, so the file names are counted on each call.<br/>
+	 * Expired objects are counted until they are swept, see {@link #sweepExpired()}.
+	 */
+	@SuppressWarnings("try")
+	public long count(Class<?> clazz) throws IOException {
+		
+		if ( clazz == null ) {
+			throw new IllegalArgumentException("No class specified.");
+		}
+		
+		flush();
+		
+		final AtomicLong count = coordinator.isMultiProcess() ? null : counts.get( clazz );
+		
+		if ( count != null ) {
+			return count.get();
+		}
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
+			
+			countLock.writeLock().lock();
+			
+			final AtomicLong counted = new AtomicLong();
+			
+			try {
+				
+				storage.traversIds( clazz, (id)->counted.incrementAndGet() );
+			
+				if ( !coordinator.isMultiProcess() ) {
+					counts.put( clazz, counted );
+				}
+				
+			} finally {
+				countLock.writeLock().unlock();
+			}
+			
+			return counted.get();
+		}
+	}
+	
+	/**
+	 * Aggregates the stored objects of a type without building any object.<br/>
+	 * The buckets of the type are scanned in parallel by a fork join pool of {@link #setIoThreads(int)} threads;
+	 * each worker picks the aggregated fields from the token stream of its files into its own partial results, which are merged at the end.
+	 * 
+	 * @param filter <code>null</code> accepts all
+	 * @return the results in the order of the aggregates
+	 */
+	@SuppressWarnings("try")
+	public List<Object> aggregate(Class<?> clazz, Filter filter, Aggregate... aggregates) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
 
-		return !file.exists();
+			final Map<Object, List<Object>> groups = groupBy( clazz, filter, null, 1, aggregates );
+		
+			if ( !groups.isEmpty() ) {
+				return groups.values().iterator().next();
+			}
+		
+			final List<Object> results = new ArrayList<>( aggregates.length );
+		
+			for (Aggregate aggregate : aggregates) {
+				results.add( aggregate.newAccumulator().getResult() );
+			}
+		
+			return results;
+		}
 	}
+	
+	/**
+	 * Aggregates the stored objects of a type by the values of a field; documents missing the field form the <code>null</code> group.
+	 * 
+	 * @param filter <code>null</code> accepts all
+	 * @param groupBy dotted path of a scalar field; <code>null</code> aggregates all documents into one group
+	 * @param maxGroups the scan is aborted by an {@link IllegalStateException} when more groups show up
+	 * @return results in the order of the aggregates by the group's value, ordered as of {@link de.greyshine.jsonpersister.query.Values#compareOrdered(Object, Object)}
+	 */
+	@SuppressWarnings("try")
+	public Map<Object, List<Object>> groupBy(Class<?> clazz, Filter filter, String groupBy, int maxGroups, Aggregate... aggregates) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
 
-	public Storage getStorage() {
-		return storage;
+			if ( clazz == null ) {
+				throw new IllegalArgumentException("No class specified.");
+			} else if ( aggregates == null || aggregates.length == 0 ) {
+				throw new IllegalArgumentException("No aggregates specified.");
+			} else if ( maxGroups < 1 ) {
+				throw new IllegalArgumentException("maxGroups must be positive: "+ maxGroups);
+			}
+		
+			flush();
+		
+			final String groupPath = groupBy == null ? null : groupBy.trim();
+			final Set<String> paths = filter == null ? new HashSet<>() : filter.getPaths();
+		
+			if ( groupPath != null ) {
+				paths.add( groupPath );
+			}
+		
+			for (Aggregate aggregate : aggregates) {
+				if ( aggregate.getPath() != null ) {
+					paths.add( aggregate.getPath() );
+				}
+			}
+		
+			// counting documents does not need to read them, unless they may have expired
+			final FieldExtractor extractor = paths.isEmpty() ? null : new FieldExtractor( paths );
+			final boolean isExpiring = getExpiry( clazz ) != null;
+		
+			final Function<List<File>, Map<Object, Aggregate.Accumulator[]>> bucketFunction = (files)->{
+			
+				final Map<Object, Aggregate.Accumulator[]> partials = new TreeMap<>( Values::compareOrdered );
+				final ReusableBuffer buffer = BUFFERS.get();
+			
+				try {
+				
+					for (File file : files) {
+					
+						final String id = file.getName().substring( 0, file.getName().length()-".json".length() );
+						final Map<String,Object> values;
+					
+						if ( extractor == null && !isExpiring ) {
+							values = Collections.emptyMap();
+						} else if ( !readJson( clazz, id, file, buffer, false ) ) {
+							continue;
+						} else if ( extractor == null ) {
+							values = Collections.emptyMap();
+						} else if ( (values = extract( extractor, filter, buffer )) == null ) {
+							continue;
+						}
+					
+						final Aggregate.Accumulator[] accumulators = partials.computeIfAbsent( groupPath == null ? null : values.get( groupPath ), (g)->newAccumulators( aggregates ) );
+					
+						if ( partials.size() > maxGroups ) {
+							throw new IllegalStateException( "More than "+ maxGroups +" groups of "+ groupPath +" in "+ clazz.getTypeName() );
+						}
+					
+						for (int i = 0; i < aggregates.length; i++) {
+							accumulators[i].add( aggregates[i].getPath() == null ? null : values.get( aggregates[i].getPath() ) );
+						}
+					
+						buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+					}
+				
+				} catch (IOException e) {
+					throw new UncheckedIOException( e );
+				} finally {
+					buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+				}
+			
+				return partials;
+			};
+		
+			final BinaryOperator<Map<Object, Aggregate.Accumulator[]>> merger = (partials1, partials2)->{
+			
+				partials2.forEach( (group, accumulators)->{
+				
+					final Aggregate.Accumulator[] merged = partials1.putIfAbsent( group, accumulators );
+				
+					if ( merged != null ) {
+						for (int i = 0; i < merged.length; i++) {
+							merged[i].merge( accumulators[i] );
+						}
+					}
+				} );
+			
+				if ( partials1.size() > maxGroups ) {
+					throw new IllegalStateException( "More than "+ maxGroups +" groups of "+ groupPath +" in "+ clazz.getTypeName() );
+				}
+			
+				return partials1;
+			};
+		
+			final Map<Object, Aggregate.Accumulator[]> partials;
+		
+			try {
+			
+				if ( formerLayouts.containsKey( clazz ) ) {
+				
+					// while migrating, a file may move between the layouts' buckets; the sequential traversal reports each file once
+					final List<File> files = new ArrayList<>();
+					storage.traversObjects( clazz, files::add );
+					partials = bucketFunction.apply( files );
+				
+				} else {
+					partials = merger.apply( getScanPool().invoke( new BucketScan<>( getDir( clazz ), getDepth( clazz ), bucketFunction, merger ) ), bucketFunction.apply( getPackedFiles( clazz ) ) );
+				}
+			
+			} catch (RuntimeException e) {
+			
+				// a fork join pool rethrows a copy of a worker's exception having the original as cause
+				Throwable cause = e;
+			
+				while ( cause.getCause() != null && cause.getClass() == cause.getCause().getClass() ) {
+					cause = cause.getCause();
+				}
+			
+				if ( cause instanceof UncheckedIOException ) {
+					throw ((UncheckedIOException)cause).getCause();
+				}
+			
+				throw (RuntimeException)cause;
+			}
+		
+			final Map<Object, List<Object>> groups = new TreeMap<>( Values::compareOrdered );
+		
+			partials.forEach( (group, accumulators)->{
+			
+				final List<Object> results = new ArrayList<>( accumulators.length );
+			
+				for (Aggregate.Accumulator accumulator : accumulators) {
+					results.add( accumulator.getResult() );
+				}
+			
+				groups.put( group, results );
+			} );
+		
+			LOG.debug( "groupBy [type={}, groupBy={}]: {} groups", clazz.getTypeName(), groupPath, groups.size() );
+		
+			return groups;
+		}
+	}
+	
+	private static Aggregate.Accumulator[] newAccumulators(Aggregate[] aggregates) {
+		
+		final Aggregate.Accumulator[] accumulators = new Aggregate.Accumulator[ aggregates.length ];
+		
+		for (int i = 0; i < aggregates.length; i++) {
+			accumulators[i] = aggregates[i].newAccumulator();
+		}
+		
+		return accumulators;
+	}
+	
+	/**
+	 * Assigns ids to new objects; called concurrently by writing threads.
+	 */
+	public interface IIdProvider {
+		
+		/**
+		 * @return a new id unique among the objects of the object's type; it is used as file name
+		 */
+		String getId(Object inObject);
+	}
+
+	public void writeBackup(OutputStream out) throws IOException {
+		writeBackup(out, Long.MIN_VALUE);
+	}
+	
+	/**
+	 * Writes a backup leaving out the partitions not changed since the given time, e.g. the time of the former backup.
+	 * Such a backup is meant to be restored additively on top of the former backup; objects of types without partitions are always included.
+	 * <p>
+	 * The backup runs as maintenance job, see {@link #setMaintenanceRate(long)}, and writes the objects as seen by a snapshot, so writers are not blocked;
+	 * objects are written as stored, i.e. compressed if they are, packs as they are and objects removed from packs after the snapshot was opened as files.
+	 * Snapshots do not version the elements of {@link Chunked} fields, the files of an object's elements are read together under the object's lock,
+	 * so they are written as they are when the backup reaches the object. Blobs an open snapshot refers to are not collected.
+	 * In multi process mode writers are blocked instead and the backup is not throttled.
+	 * </p>
+	 * 
+	 * @param modifiedSince milliseconds since the epoch
+	 * @see Partition
+	 */
+	@SuppressWarnings("try")
+	public void writeBackup(OutputStream out, long modifiedSince) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
+
+			flush();
+		
+			if ( !coordinator.isMultiProcess() ) {
+			
+				ioScheduler.runMaintenance( "backup", ()->{
+				
+					try (Snapshot snapshot = openSnapshot()) {
+						backupHandler.writeBackup(out, modifiedSince, snapshot);
+					}
+				
+					return null;
+				} );
+			
+				return;
+			}
+		
+			// writes of other processes are not retained for snapshots; throttling would prolong blocking them
+			Utils.wait( block, ()->block.get(), ()->block.set(true) );
+		
+			try {
+				coordinator.exclusive( ()->{
+					backupHandler.writeBackup(out, modifiedSince, null);
+					return null;
+				} );
+			} finally {
+				Utils.notify( block, ()->block.set(false) );
+			}
+		}
+	}
+	
+	/**
+	 * Reads the files of the {@link Chunked} fields of an object found by a backup under the object's lock, so the elements' states match their chunks.
+	 * 
+	 * @param fileConsumer called with each file and its content once the lock is released
+	 */
+	void readChunkFiles(String typeName, String id, BackupHandler.ObjectConsumer fileConsumer) throws IOException {
+		
+		final Class<?> clazz = getType( typeName );
+		final File chunksDir = Chunks.getDir( new File( baseDir, typeName ), id );
+		final Map<File, byte[]> contents = new LinkedHashMap<>();
+		
+		final Coordinator.IoAction<Void> read = ()->{
+			
+			for (File fieldDir : Utils.list( chunksDir, File::isDirectory )) {
+				for (File file : Utils.list( fieldDir, File::isFile )) {
+					contents.put( file, Files.readAllBytes( file.toPath() ) );
+				}
+			}
+			
+			return null;
+		};
+		
+		if ( clazz == null ) {
+			// not written by this instance
+			read.run();
+		} else {
+			writeLocked( clazz, getFile( clazz, id ), read );
+		}
+		
+		final ReusableBuffer buffer = new ReusableBuffer( 8 * 1024 );
+		
+		for (Map.Entry<File, byte[]> content : contents.entrySet()) {
+			buffer.reset().write( content.getValue(), 0, content.getValue().length );
+			fileConsumer.accept( content.getKey(), buffer );
+		}
+	}
+	
+	/**
+	 * Reads an object found by a backup as seen by the snapshot, as stored, i.e. compressed if it is.
+	 * 
+	 * @return <code>false</code> if the object did not exist for the snapshot
+	 */
+	boolean readSnapshotObject(Snapshot snapshot, String typeName, String id, File file, ReusableBuffer buffer) throws IOException {
+		
+		final Class<?> clazz = getType( typeName );
+		
+		if ( clazz == null ) {
+			// not written by this instance, so not retained either
+			buffer.readFile( file );
+			return true;
+		}
+		
+		return snapshot.readJson( clazz, id, file, buffer, false );
+	}
+	
+	/**
+	 * Reads the objects of a snapshot a backup does not find as files: objects packed into packs the backup does not contain and objects deleted or moved since the snapshot was opened.
+	 * 
+	 * @param keys type names and ids of the objects found as files, see {@link #getKey(Class, String)}
+	 * @param packFiles absolute pack files contained in the backup
+	 * @param objectConsumer called with the file each object would have and the object as stored
+	 */
+	void readSnapshotRemainder(Snapshot snapshot, Set<String> keys, Set<File> packFiles, BackupHandler.ObjectConsumer objectConsumer) throws IOException {
+		
+		final ReusableBuffer buffer = new ReusableBuffer( 8 * 1024 );
+		
+		for (String typeName : storage.getTypeNames()) {
+			
+			final Class<?> clazz = getType( typeName );
+			
+			if ( clazz != null ) {
+				
+				final PackStore packs = getPacks( clazz );
+				
+				for (String id : new ArrayList<>( packs.getIds() )) {
+					
+					final PackStore.Entry entry = packs.get( id );
+					
+					// unchanged since it was packed, so the packed version is the snapshot's
+					if ( entry != null && packFiles.contains( entry.packFile.getAbsoluteFile() ) ) {
+						keys.add( getKey( clazz, id ) );
+					} else if ( keys.add( getKey( clazz, id ) ) && snapshot.readJson( clazz, id, null, buffer, false ) ) {
+						objectConsumer.accept( new File( getDir( clazz, id ), id +".json" ), buffer );
+					}
+				}
+			}
+		}
+		
+		for (String key : snapshots.getKeys( "" )) {
+			
+			final int separator = key.indexOf( '/' );
+			final Class<?> clazz = getType( key.substring( 0, separator ) );
+			final String id = key.substring( separator+1 );
+			
+			if ( clazz == null || !keys.add( key ) || !snapshot.readJson( clazz, id, null, buffer, false ) ) {
+				continue;
+			}
+			
+			final Partitioning partitioning = getPartitioning( clazz );
+			final ReusableBuffer json = partitioning == null ? null : toDecompressed( clazz, buffer );
+			objectConsumer.accept( partitioning == null ? new File( getDir( clazz, id ), id +".json" ) : getPartitionedFile( partitioning, clazz, id, json.array(), json.length() ), buffer );
+		}
 	}
+	
+	/**
+	 * Writes an object extracted from a backup like an upsert of it.
+	 * 
+	 * @param json stored bytes of the object, which are decompressed in place; dictionaries they were compressed with must exist
+	 */
+	@SuppressWarnings("try")
+	void restoreObject(Class<?> clazz, String id, ReusableBuffer json) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.WRITE )) {
 
-	private File getDir(Class<?> inClass) {
-		return new File(baseDir, inClass.getTypeName());
+			decompress( clazz, json );
+			writeJson( clazz, id, json.array(), json.length(), null, true );
+		}
 	}
+	
+	/**
+	 * Writes a file of the {@link Chunked} fields of an object extracted from a backup under the object's lock.
+	 * 
+	 * @param path relative to the type directory
+	 */
+	@SuppressWarnings("try")
+	void restoreChunkFile(Class<?> clazz, String id, String path, ReusableBuffer content) throws IOException {
+		
+		try (AdmissionController.Permit permit = admission.admit( Operation.WRITE )) {
 
-	private File getDir(Class<?> inClass, String id) {
-
-		if (inClass == null || Utils.isBlank(id)) {
-			return null;
+			final File file = new File( getDir( clazz ), path );
+		
+			writeLocked( clazz, getFile( clazz, id ), ()->Utils.writeFileAtomically( file, content.array(), 0, content.length() ) );
 		}
-
-		final String pathExtension = Utils.getHash(id.trim(), 5, "0123456789abcdefghijklmnopqrstuvwxyz");
-
-		return new File(getDir(inClass), pathExtension);
 	}
-
-	private File getFile(Class<?> clazz, String id) {
-
-		if (clazz == null || id == null) {
-			return null;
+	
+	/**
+	 * Copies the files of the {@link Chunked} fields of an object to another persister, e.g. one the object moves to, under the object's lock of both;
+	 * the states are copied after the chunks, so the elements are complete once they are visible.
+	 * Elements of the object the other persister has already are left alone.
+	 */
+	void copyChunks(Class<?> clazz, String id, JsonPersister target) throws IOException {
+		
+		final File typeDir = getDir( clazz );
+		final File chunksDir = Chunks.getDir( typeDir, id );
+		
+		if ( Chunks.getDir( target.getDir( clazz ), id ).exists() ) {
+			return;
 		}
 		
-		return new File(getDir(clazz, id), id + ".json");
+		writeLocked( clazz, getFile( clazz, id ), ()->{
+			
+			final ReusableBuffer content = new ReusableBuffer( 8 * 1024 );
+			final String typePath = typeDir.getAbsolutePath();
+			
+			for (File fieldDir : Utils.list( chunksDir, File::isDirectory )) {
+				
+				final List<File> files = Utils.list( fieldDir, File::isFile );
+				files.sort( Comparator.comparing( (f)->Chunks.STATE_FILE_NAME.equals( f.getName() ) ) );
+				
+				for (File file : files) {
+					target.restoreChunkFile( clazz, id, file.getAbsolutePath().substring( typePath.length()+1 ), content.readFile( file ) );
+				}
+			}
+			
+			return null;
+		} );
 	}
-
-	public boolean isExisting(Class<?> clazz, String id) {
-
-		if (clazz == null) {
-			throw new IllegalArgumentException("No class specified.");
-		} else if (Utils.isBlank(id)) {
-			return false;
+	
+	/**
+	 * Copies the blobs an object refers to to another persister, e.g. one the object moves to; contents the other persister has already are not stored again.
+	 */
+	void copyBlobs(Class<?> clazz, String id, JsonPersister target) throws IOException {
+		
+		final ReusableBuffer buffer = new ReusableBuffer( 8 * 1024 );
+		
+		if ( !readJson( clazz, id, buffer, false ) ) {
+			return;
 		}
-
-		return getFile(clazz, id).exists();
-	}
-
-	private <T> Field getIdField(Class<?> clazz) {
-
-		final Field idField = idFields.get(clazz);
-
-		if (idField != null) {
-			return idField;
+		
+		final Set<String> hashes = new HashSet<>();
+		
+		try (JsonReader reader = new JsonReader( new InputStreamReader( buffer.asInputStream(), Utils.CHARSET_UTF8 ) )) {
+			BlobStore.addReferences( reader, hashes );
 		}
-
-		final Utils.Wrapper<Field> fieldWrapper = new Utils.Wrapper<>(null);
-
-		Stream.of(clazz.getDeclaredFields()).filter((f) -> f.getDeclaredAnnotation(Id.class) != null).filter((f) -> {
-			if (f.getType() != String.class) {
-				throw new IllegalArgumentException("@Id field must be a String");
-			}
-			if (Modifier.isStatic(f.getModifiers())) {
-				throw new IllegalArgumentException("@Id field must not be static");
-			}
-			if (Modifier.isFinal(f.getModifiers())) {
-				throw new IllegalArgumentException("@Id field must not be final");
+		
+		final BlobStore blobs = getBlobs( clazz );
+		
+		for (String hash : hashes) {
+			
+			final File file = blobs.getFile( new Blob( hash, 0 ) );
+			
+			// hashes of other contents than blobs are referenced as well
+			if ( !file.isFile() ) {
+				continue;
 			}
-			return true;
-		}).forEach((f) -> {
-			if (fieldWrapper.value != null) {
-				throw new IllegalArgumentException("Only one @Id field allowed");
+			
+			try (FileChannel in = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+				target.writeBlob( clazz, in );
+			} catch (NoSuchFileException e) {
+				LOG.debug( "blob collected meanwhile: {}", file );
 			}
-			fieldWrapper.value = f;
-		});
-
-		if (fieldWrapper.isNull()) {
-			throw new IllegalArgumentException(clazz.getTypeName() + " does not declare an @Id-String field");
 		}
-
-		idFields.put(clazz, fieldWrapper.value);
-		return fieldWrapper.value;
 	}
-
-	public <T> List<T> getList(Class<T> clazz, Function<T, Boolean> addDecision) {
-
-		if (clazz == null) {
-			return null;
-		}
+	
+	public void readBackup(InputStream in, boolean additive) throws IOException {
+		restoring( ()->backupHandler.readBackup(in, additive) );
+	}
+	
+	/**
+	 * Runs a restore while writers are blocked; afterwards the state kept of the stored files is dropped.
+	 * 
+	 * @param restore returns the names of the restored types
+	 */
+	@SuppressWarnings("try")
+	void restoring(Coordinator.IoAction<Set<String>> restore) throws IOException {
 		
-		final List<T> list = new ArrayList<>();
-
-		list(clazz, (T) -> {
-
-			final Boolean r;
+		try (AdmissionController.Permit permit = admission.admit( Operation.WRITE )) {
 
+			flush();
+		
+			Utils.wait( block, ()->block.get(), ()->block.set(true) );
+		
 			try {
-				r = addDecision == null || addDecision.apply(T);
-			} catch (Exception e) {
-				throw Utils.toRuntimeException(e);
-			}
-
-			if (Boolean.TRUE.equals(r)) {
-				list.add(T);
+				coordinator.exclusive( ()->{
+					try {
+						coordinator.incrementGenerations( restore.run() );
+					} finally {
+						fingerprints.clear();
+						counts.clear();
+						partitionings.clear();
+						packStores.clear();
+						// restored objects are not versioned
+						snapshots.clear();
+					
+						final OffHeapCache cache = this.cache;
+					
+						if ( cache != null ) {
+							cache.clear();
+						}
+					
+						// restored types may come with their own layout
+						layouts.clear();
+						formerLayouts.clear();
+						storedLayouts.clear();
+						compressions.clear();
+					}
+					return null;
+				} );
+			} finally {
+				Utils.notify( block, ()->block.set(false) );
 			}
-
-			return r;
-		});
-
-		return list;
+		}
 	}
 
-	public <T> void list(Class<T> clazz, Function<T, Boolean> addItemDecision) {
+	private static class Fingerprint {
+		
+		private final long hash;
+		/**
+		 * length of the JSON, which differs from the file's length if it is compressed
+		 */
+		private final long length;
+		private final long fileLength;
+		private final long lastModified;
+		
+		private Fingerprint(long hash, long length, long fileLength, long lastModified) {
+			this.hash = hash;
+			this.length = length;
+			this.fileLength = fileLength;
+			this.lastModified = lastModified;
+		}
+	}
 
-		if (clazz == null) {
-			return;
+	/**
+	 * Read only view of the stored objects at the time it was opened by {@link JsonPersister#openSnapshot()}.<br/>
+	 * Objects not written since are read from their files, otherwise from the version copied by the first write after the snapshot was opened.
+	 */
+	public class Snapshot implements Closeable {
+		
+		private final long sequence;
+		private final long epoch;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		
+		private Snapshot(long sequence, long epoch) {
+			this.sequence = sequence;
+			this.epoch = epoch;
 		}
 		
-		final List<T> results = new ArrayList<>();
-		final Wrapper<Boolean> quitFlag = new Wrapper<>(null);
-		final Wrapper<Exception> exceptionWrapper = new Wrapper<>(null);
+		/**
+		 * @return number of the last write seen by the snapshot
+		 */
+		public long getSequence() {
+			return sequence;
+		}
 		
-		this.storage.traversObjects(clazz, (file) -> {
-
-			if (Boolean.TRUE.equals(quitFlag.value) || exceptionWrapper.value != null) {
-				return;
-			}
+		/**
+		 * @return <code>null</code> if the object did not exist when the snapshot was opened
+		 */
+		@SuppressWarnings("try")
+		public <T> T read(Class<T> clazz, String id) throws IOException {
+		
+			try (AdmissionController.Permit permit = admission.admit( Operation.READ )) {
 
-			final int indexFileEnding = file.getName().lastIndexOf(".json");
-			if (indexFileEnding < 1) {
-				return;
+				if ( clazz == null || id == null ) {
+					throw new IllegalArgumentException("No class or id specified.");
+				}
+			
+				final ReusableBuffer buffer = BUFFERS.get();
+			
+				try {
+					return readJson( clazz, id, null, buffer ) ? fromJson( buffer, clazz ) : null;
+				} finally {
+					buffer.reset( MAX_RETAINED_BUFFER_SIZE );
+				}
 			}
-			final String id = file.getName().substring(0, indexFileEnding);
-
-			try {
+		}
+		
+		public <T> List<T> getList(Class<T> clazz, Filter filter) {
+			
+			final List<T> list = new ArrayList<>();
+			
+			list( clazz, filter, list::add );
+			
+			return list;
+		}
+		
+		/**
+		 * Traverses the objects of a type as they were when the snapshot was opened.
+		 * The ids of the traversed objects are kept while traversing, so objects deleted meanwhile are reported once.
+		 * 
+		 * @param filter <code>null</code> accepts all
+		 * @param addItemDecision called for each object passing the filter; returning <code>null</code> stops traversing
+		 */
+		@SuppressWarnings("try")
+		public <T> void list(Class<T> clazz, Filter filter, Function<T, Boolean> addItemDecision) {
+		
+			try (AdmissionController.Permit permit = admission.admit( Operation.SCAN )) {
 
-				final T object = read(clazz, id);
+				if (clazz == null) {
+					return;
+				}
+			
+				checkOpen();
+			
+				final Set<String> ids = new HashSet<>();
+				final String keyPrefix = getKey( clazz, "" );
+			
+				JsonPersister.this.list( clazz, filter, addItemDecision, (fileConsumer)->{
 				
-				Boolean r = true;
+					storage.traversObjects( clazz, (file)->{
+						final String name = file.getName();
+						if ( ids.add( name.substring( 0, name.length()-".json".length() ) ) ) {
+							fileConsumer.accept( file );
+						}
+					} );
 				
-				if ( addItemDecision != null ) {
+					// objects deleted or moved since the snapshot was opened are left with their copied version only
+					for (String key : snapshots.getKeys( keyPrefix )) {
 					
-					r = addItemDecision.apply(object); 
+						final String id = key.substring( keyPrefix.length() );
 					
-					if (r == null) {
-						quitFlag.value = true;
-						return;
+						if ( ids.add( id ) ) {
+							fileConsumer.accept( new File( getDir( clazz, id ), id +".json" ) );
+						}
 					}
-				}
 				
-				if (Boolean.TRUE.equals(r)) {
-					results.add(object);
-				}
-
-			} catch (Exception e) {
-				exceptionWrapper.value = e;
-				return;
+				}, this );
 			}
-
-		});
-
-		if (exceptionWrapper.value != null) {
-			throw Utils.toRuntimeException(exceptionWrapper.value);
 		}
-	}
-
-	private interface IIdProvider {
-		String getId(Object inObject);
-	}
-
-	public void writeBackup(OutputStream out) throws IOException {
 		
-		Utils.wait( block, ()->block.get(), ()->block.set(true) );
-		backupHandler.writeBackup(out);
-		Utils.notify( block, ()->block.set(false) );
-	}
-	
-	public void readBackup(InputStream in, boolean additive) throws IOException {
+		private boolean readJson(Class<?> clazz, String id, File knownFile, ReusableBuffer buffer) throws IOException {
+			return readJson( clazz, id, knownFile, buffer, true );
+		}
 		
-		Utils.wait( block, ()->block.get(), ()->block.set(true) );
-		backupHandler.readBackup(in, additive);
-		Utils.notify( block, ()->block.set(false) );
+		/**
+		 * @param decompress <code>false</code> to read the object as stored, e.g. for backups
+		 */
+		private boolean readJson(Class<?> clazz, String id, File knownFile, ReusableBuffer buffer, boolean decompress) throws IOException {
+			
+			checkOpen();
+			
+			// versions are retained as stored
+			if ( !snapshots.read( getKey( clazz, id ), sequence, buffer, (b)->readStoredJson( clazz, id, knownFile != null && knownFile.isFile() ? knownFile : null, b, false, decompress ) ) ) {
+				return false;
+			}
+			
+			if ( decompress ) {
+				JsonPersister.this.decompress( clazz, buffer );
+			}
+			
+			return true;
+		}
+		
+		private void checkOpen() {
+			
+			if ( closed.get() ) {
+				throw new IllegalStateException("Snapshot is closed");
+			} else if ( snapshots.getEpoch() != epoch ) {
+				throw new IllegalStateException("Snapshot is invalidated by a restored backup");
+			}
+		}
+		
+		/**
+		 * Releases the copied versions no other snapshot reads.
+		 */
+		@Override
+		public void close() {
+			
+			if ( closed.compareAndSet( false, true ) ) {
+				snapshots.close( sequence );
+			}
+		}
 	}
 
 	public class Storage {
 		
-		public static final String VERSION = "1.0";
+		public static final String VERSION = "1.1";
 		
 		public File getBaseDir() {
 			return baseDir;
 		}
+		
+		/**
+		 * @return names of the types having a directory in the storage
+		 */
+		public List<String> getTypeNames() {
+			
+			final List<String> typeNames = new ArrayList<>();
+			
+			Utils.list( baseDir, (f)->f.isDirectory() && !f.getName().startsWith(".") ).forEach( (f)->typeNames.add( f.getName() ) );
+			
+			return typeNames;
+		}
+		
+		/**
+		 * Traverses the ids of the stored objects of a type without reading them.
+		 */
+		public void traversIds(Class<?> clazz, Consumer<String> idConsumer) {
+			
+			traversObjects( clazz, (file)->{
+				final String name = file.getName();
+				idConsumer.accept( name.substring( 0, name.length()-".json".length() ) );
+			} );
+		}
 
 		/**
+		 * Packed objects are handed over with the path their file would have; the file does not exist.
+		 * 
 		 * @param inType
 		 * @param inHandler
 		 *            return value determines whether to keep on traversing
@@ -433,12 +4086,28 @@ public class JsonPersister {
 				return;
 			}
 
-			Stream.of( getDir(clazz).listFiles() )
-				.filter(  (file) -> file.isDirectory() )
-				.forEach( (file) -> Stream.of( file.listFiles())
-								  	.filter(  (f) -> f.isFile() && f.getName().toLowerCase().endsWith(".json") )
-									.forEach( (f) -> fileConsumer.accept(f) )
-				);
+			final DirectoryLayout layout = getLayout( clazz );
+			final DirectoryLayout formerLayout = formerLayouts.get( clazz );
+			
+			if ( formerLayout == null ) {
+				
+				walk( getDir(clazz), getDepth( clazz ), fileConsumer );
+				
+			} else {
+				
+				// while migrating, files are moved from the former to the current layout; walking in this order and skipping seen names reports each file once
+				final Set<String> names = new HashSet<>();
+				final Consumer<File> distinctConsumer = (f)->{
+					if ( names.add( f.getName() ) ) {
+						fileConsumer.accept( f );
+					}
+				};
+				
+				walk( getDir(clazz), formerLayout.getDepth(), distinctConsumer );
+				walk( getDir(clazz), layout.getDepth(), distinctConsumer );
+			}
+			
+			getPackedFiles( clazz ).forEach( fileConsumer );
 		}
 	}
 
@@ -0,0 +1,192 @@
+package de.greyshine.jsonpersister;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Applies a JSON merge patch (RFC 7386) while streaming a document from a {@link JsonReader} to a {@link JsonWriter}:
+ * <ul>
+ * <li>a <code>null</code> value removes the member</li>
+ * <li>a {@link Map} value is merged into the member if that is an object, otherwise it replaces the member</li>
+ * <li>any other value replaces the member</li>
+ * </ul>
+ * Members not addressed by the patch are copied token by token, no object tree is built.
+ */
+class MergePatch {
+
+	private final Gson gson;
+	private final Map<String,Object> patch;
+	private final String versionName;
+
+	private Long version;
+
+	/**
+	 * @param versionName name of a top level member to be incremented, may be <code>null</code>
+	 */
+	MergePatch(Gson gson, Map<String,Object> patch, String versionName) {
+		this.gson = gson;
+		this.patch = patch;
+		this.versionName = versionName;
+	}
+
+	/**
+	 * @return the incremented version or <code>null</code> if there is no version member
+	 */
+	Long apply(JsonReader in, JsonWriter out) throws IOException {
+
+		if ( in.peek() != JsonToken.BEGIN_OBJECT ) {
+			throw new IOException("JSON document is not an object: "+ in.peek());
+		}
+
+		version = null;
+		merge( in, out, patch, true );
+		return version;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void merge(JsonReader in, JsonWriter out, Map<String,Object> patch, boolean topLevel) throws IOException {
+
+		final Set<String> merged = new HashSet<>();
+
+		in.beginObject();
+		out.beginObject();
+
+		while( in.hasNext() ) {
+
+			final String name = in.nextName();
+
+			if ( topLevel && name.equals( versionName ) ) {
+
+				merged.add( name );
+				version = ( in.peek() == JsonToken.NULL ? 0L : in.nextLong() ) + 1;
+
+				if ( in.peek() == JsonToken.NULL ) {
+					in.nextNull();
+				}
+
+				out.name( name ).value( version );
+				continue;
+
+			} else if ( !patch.containsKey( name ) ) {
+
+				out.name( name );
+				copy( in, out );
+				continue;
+			}
+
+			merged.add( name );
+			final Object value = patch.get( name );
+
+			if ( value == null ) {
+
+				in.skipValue();
+
+			} else if ( value instanceof Map && in.peek() == JsonToken.BEGIN_OBJECT ) {
+
+				out.name( name );
+				merge( in, out, (Map<String,Object>) value, false );
+
+			} else {
+
+				in.skipValue();
+				out.name( name );
+				write( out, value );
+			}
+		}
+
+		for (Map.Entry<String,Object> entry : patch.entrySet()) {
+
+			if ( entry.getValue() != null && !merged.contains( entry.getKey() ) ) {
+				out.name( entry.getKey() );
+				write( out, entry.getValue() );
+			}
+		}
+
+		if ( topLevel && versionName != null && !merged.contains( versionName ) ) {
+			version = 1L;
+			out.name( versionName ).value( version );
+		}
+
+		in.endObject();
+		out.endObject();
+	}
+
+	/**
+	 * Writes a new value; <code>null</code> members of maps are left out as for a merge into an empty object.
+	 */
+	@SuppressWarnings("unchecked")
+	private void write(JsonWriter out, Object value) throws IOException {
+
+		if ( !(value instanceof Map) ) {
+			gson.toJson( gson.toJsonTree( value ), out );
+			return;
+		}
+
+		out.beginObject();
+
+		for (Map.Entry<String,Object> entry : ((Map<String,Object>) value).entrySet()) {
+
+			if ( entry.getValue() != null ) {
+				out.name( String.valueOf( entry.getKey() ) );
+				write( out, entry.getValue() );
+			}
+		}
+
+		out.endObject();
+	}
+
+	private static void copy(JsonReader in, JsonWriter out) throws IOException {
+
+		switch ( in.peek() ) {
+
+		case BEGIN_OBJECT:
+			in.beginObject();
+			out.beginObject();
+			while( in.hasNext() ) {
+				out.name( in.nextName() );
+				copy( in, out );
+			}
+			in.endObject();
+			out.endObject();
+			break;
+
+		case BEGIN_ARRAY:
+			in.beginArray();
+			out.beginArray();
+			while( in.hasNext() ) {
+				copy( in, out );
+			}
+			in.endArray();
+			out.endArray();
+			break;
+
+		case STRING:
+			out.value( in.nextString() );
+			break;
+
+		case NUMBER:
+			// keeps the number's literal as it is
+			out.jsonValue( in.nextString() );
+			break;
+
+		case BOOLEAN:
+			out.value( in.nextBoolean() );
+			break;
+
+		case NULL:
+			in.nextNull();
+			out.nullValue();
+			break;
+
+		default:
+			throw new IOException("Unexpected JSON token: "+ in.peek());
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package de.greyshine.jsonpersister;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the operations of a {@link JsonPersister}.
+ */
+public class Metrics {
+	
+	final AtomicLong reads = new AtomicLong();
+	final AtomicLong writes = new AtomicLong();
+	final AtomicLong deletes = new AtomicLong();
+	final AtomicLong skippedWrites = new AtomicLong();
+	final AtomicLong cacheHits = new AtomicLong();
+	final AtomicLong cacheMisses = new AtomicLong();
+	final AtomicLong overloads = new AtomicLong();
+	final AtomicLong maintenanceBytes = new AtomicLong();
+	final AtomicLong maintenanceThrottledMillis = new AtomicLong();
+	final AtomicLong maintenanceYieldedMillis = new AtomicLong();
+	/**
+	 * bytes done so far by the running maintenance jobs by their name
+	 */
+	final Map<String, AtomicLong> maintenanceProgress = new ConcurrentHashMap<>();
+	
+	Metrics() {}
+	
+	/**
+	 * @return amount of objects read from disk
+	 */
+	public long getReads() {
+		return reads.get();
+	}
+	
+	/**
+	 * @return amount of object files written
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+	
+	/**
+	 * @return amount of object files deleted
+	 */
+	public long getDeletes() {
+		return deletes.get();
+	}
+	
+	/**
+	 * @return amount of upserts not written since the stored content was identical
+	 */
+	public long getSkippedWrites() {
+		return skippedWrites.get();
+	}
+	
+	/**
+	 * @return amount of reads served by the off heap cache
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+	
+	/**
+	 * @return amount of reads not found in the off heap cache
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+	
+	/**
+	 * @return amount of operations rejected by the {@link AdmissionController}
+	 */
+	public long getOverloads() {
+		return overloads.get();
+	}
+	
+	/**
+	 * @return amount of bytes read or written by maintenance jobs like backups, packing and migrations
+	 */
+	public long getMaintenanceBytes() {
+		return maintenanceBytes.get();
+	}
+	
+	/**
+	 * @return milliseconds maintenance jobs waited for their rate limit
+	 */
+	public long getMaintenanceThrottledMillis() {
+		return maintenanceThrottledMillis.get();
+	}
+	
+	/**
+	 * @return milliseconds maintenance jobs waited for foreground reads and writes to finish
+	 */
+	public long getMaintenanceYieldedMillis() {
+		return maintenanceYieldedMillis.get();
+	}
+	
+	/**
+	 * @return bytes done so far by the running maintenance jobs by their name
+	 */
+	public Map<String, Long> getMaintenanceProgress() {
+		
+		final Map<String, Long> progress = new TreeMap<>();
+		maintenanceProgress.forEach( (name, bytes)->progress.put( name, bytes.get() ) );
+		
+		return Collections.unmodifiableMap( progress );
+	}
+	
+	@Override
+	public String toString() {
+		return "Metrics [reads=" + reads + ", writes=" + writes + ", deletes=" + deletes + ", skippedWrites=" + skippedWrites + ", cacheHits=" + cacheHits + ", cacheMisses=" + cacheMisses
+				+ ", overloads=" + overloads + ", maintenanceBytes=" + maintenanceBytes + ", maintenanceThrottledMillis=" + maintenanceThrottledMillis + ", maintenanceYieldedMillis=" + maintenanceYieldedMillis + "]";
+	}
+
+}
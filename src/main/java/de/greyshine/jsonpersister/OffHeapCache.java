@@ -0,0 +1,188 @@
+package de.greyshine.jsonpersister;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.greyshine.jsonpersister.util.ReusableBuffer;
+
+/**
+ * Cache of serialized objects held in direct {@link ByteBuffer}s outside of the heap, so a large working set neither costs heap nor adds to GC pauses.<br/>
+ * The memory is split into segments which are filled one after the other like a log; when all are full the oldest segment is dropped as a whole and refilled.
+ * A newer version of an object is appended, the former one is left as garbage until its segment is dropped.
+ * <p>
+ * Lookups are lock free apart from a read lock of the segment, which is only contended while that segment is being dropped.
+ * Only the index entries live on the heap.
+ * </p>
+ */
+class OffHeapCache {
+
+	private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int MIN_SEGMENTS = 4;
+
+	private final Segment[] segments;
+	private final Map<String, Entry> index = new ConcurrentHashMap<>();
+
+	/**
+	 * segment appended to; guarded by this
+	 */
+	private int current = 0;
+
+	OffHeapCache(long capacity) {
+
+		if ( capacity < MIN_SEGMENTS * 1024 ) {
+			throw new IllegalArgumentException("Capacity too small: "+ capacity);
+		}
+
+		final int segmentSize = (int) Math.min( MAX_SEGMENT_SIZE, capacity / MIN_SEGMENTS );
+		segments = new Segment[ (int) (capacity / segmentSize) ];
+
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment( segmentSize );
+		}
+	}
+
+	long getCapacity() {
+		return (long) segments.length * segments[0].buffer.capacity();
+	}
+
+	int size() {
+		return index.size();
+	}
+
+	/**
+	 * @param buffer receives the cached bytes
+	 * @return the cached entry or <code>null</code>
+	 */
+	Entry get(String key, ReusableBuffer buffer) {
+
+		final Entry entry = index.get( key );
+
+		if ( entry == null ) {
+			return null;
+		}
+
+		final Segment segment = segments[ entry.segment ];
+
+		segment.lock.readLock().lock();
+
+		try {
+
+			if ( segment.epoch != entry.epoch ) {
+				return null;
+			}
+
+			final ByteBuffer bb = segment.buffer.duplicate();
+			bb.limit( entry.offset + entry.length ).position( entry.offset );
+
+			buffer.reset().write( bb );
+
+			return entry;
+
+		} finally {
+			segment.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Objects larger than a segment are not cached.
+	 * 
+	 * @param fileLength length of the object's file the bytes were read from or written to
+	 * @param lastModified modification time of that file
+	 */
+	synchronized void put(String key, byte[] bytes, int length, long fileLength, long lastModified) {
+
+		if ( length > segments[0].buffer.capacity() ) {
+			index.remove( key );
+			return;
+		}
+
+		Segment segment = segments[ current ];
+
+		if ( segment.buffer.remaining() < length ) {
+			current = (current+1) % segments.length;
+			segment = segments[ current ];
+			drop( segment );
+		}
+
+		final int offset = segment.buffer.position();
+		segment.buffer.put( bytes, 0, length );
+		segment.keys.add( key );
+
+		index.put( key, new Entry( current, segment.epoch, offset, length, fileLength, lastModified ) );
+	}
+
+	void remove(String key) {
+		index.remove( key );
+	}
+
+	synchronized void clear() {
+
+		index.clear();
+
+		for (Segment segment : segments) {
+			drop( segment );
+		}
+
+		current = 0;
+	}
+
+	/**
+	 * Removes the entries of the segment and makes it empty; guarded by this.
+	 */
+	private void drop(Segment segment) {
+
+		segment.lock.writeLock().lock();
+
+		try {
+
+			for (String key : segment.keys) {
+				final Entry entry = index.get( key );
+				if ( entry != null && segments[entry.segment] == segment && entry.epoch == segment.epoch ) {
+					index.remove( key, entry );
+				}
+			}
+
+			segment.keys.clear();
+			segment.epoch++;
+			segment.buffer.clear();
+
+		} finally {
+			segment.lock.writeLock().unlock();
+		}
+	}
+
+	static class Entry {
+
+		private final int segment;
+		private final long epoch;
+		private final int offset;
+		private final int length;
+		final long fileLength;
+		final long lastModified;
+
+		private Entry(int segment, long epoch, int offset, int length, long fileLength, long lastModified) {
+			this.segment = segment;
+			this.epoch = epoch;
+			this.offset = offset;
+			this.length = length;
+			this.fileLength = fileLength;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private static class Segment {
+
+		private final ByteBuffer buffer;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private final List<String> keys = new ArrayList<>();
+		private volatile long epoch;
+
+		private Segment(int size) {
+			this.buffer = ByteBuffer.allocateDirect( size );
+		}
+	}
+}
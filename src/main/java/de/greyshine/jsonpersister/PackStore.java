@@ -0,0 +1,390 @@
+package de.greyshine.jsonpersister;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import de.greyshine.jsonpersister.util.ReusableBuffer;
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Pack files of a type in its directory {@value #DIR_NAME}, holding the stored bytes of cold objects deflated one after another, similar to git packs.<br/>
+ * Each <code>pack-&lt;time&gt;.pack</code> has an index <code>pack-&lt;time&gt;.idx</code> of the id, position, sizes, CRC32 and modification time of its entries;
+ * a pack counts once its index exists, so an interrupted packing leaves no visible entries.
+ * Packs are never rewritten: a removed entry is recorded as <code>&lt;pack&gt; &lt;id&gt;</code> line in the file {@value #DELETED_FILE_NAME}.
+ * <p>
+ * The indexes are kept in memory; in multi process mode they are reloaded when the directory or the deleted entries changed.
+ * </p>
+ */
+class PackStore {
+
+	static final String DIR_NAME = ".packs";
+	static final String DELETED_FILE_NAME = "deleted";
+
+	private static final int INDEX_MAGIC = 0x4a504b31;
+	private static final String PACK_SUFFIX = ".pack";
+	private static final String INDEX_SUFFIX = ".idx";
+
+	private final File dir;
+	private final File deletedFile;
+	private final boolean validate;
+
+	/**
+	 * entries by id; <code>null</code> until loaded
+	 */
+	private volatile Map<String, Entry> entries;
+	private long loadedDirModified;
+	private long loadedDeletedLength;
+
+	/**
+	 * @param validate whether other processes may change the packs
+	 */
+	PackStore(File typeDir, boolean validate) {
+		this.dir = new File( typeDir, DIR_NAME );
+		this.deletedFile = new File( dir, DELETED_FILE_NAME );
+		this.validate = validate;
+	}
+
+	File getDir() {
+		return dir;
+	}
+
+	static boolean isIndex(File file) {
+		return file.getName().endsWith( INDEX_SUFFIX );
+	}
+
+	/**
+	 * @return the pack file of an index file
+	 */
+	static File getPackFile(File indexFile) {
+		final String name = indexFile.getName();
+		return new File( indexFile.getParentFile(), name.substring( 0, name.length()-INDEX_SUFFIX.length() ) + PACK_SUFFIX );
+	}
+
+	/**
+	 * @return the packed entry of the object; <code>null</code> if it is not packed
+	 */
+	Entry get(String id) throws IOException {
+		return getEntries().get( id );
+	}
+
+	Collection<String> getIds() throws IOException {
+		return Collections.unmodifiableCollection( getEntries().keySet() );
+	}
+
+	private Map<String, Entry> getEntries() throws IOException {
+
+		Map<String, Entry> entries = this.entries;
+
+		if ( entries != null && ( !validate || isLoaded() ) ) {
+			return entries;
+		}
+
+		synchronized (this) {
+
+			if ( this.entries != null && ( !validate || isLoaded() ) ) {
+				return this.entries;
+			}
+
+			final long dirModified = dir.lastModified();
+			final long deletedLength = deletedFile.length();
+
+			entries = new ConcurrentHashMap<>();
+
+			// names are time ordered; a later pack supersedes an earlier one
+			for (File indexFile : Utils.list( dir, (f)->f.isFile() && f.getName().endsWith( INDEX_SUFFIX ) )) {
+				readIndex( indexFile, entries );
+			}
+
+			if ( deletedFile.isFile() ) {
+
+				for (String line : Utils.readToString( deletedFile, Utils.CHARSET_UTF8 ).split( "\n" )) {
+
+					final int separator = line.indexOf( ' ' );
+
+					if ( separator > 0 ) {
+						final String pack = line.substring( 0, separator );
+						entries.computeIfPresent( line.substring( separator+1 ).trim(), (id, entry)->entry.getPack().equals( pack ) ? null : entry );
+					}
+				}
+			}
+
+			this.loadedDirModified = dirModified;
+			this.loadedDeletedLength = deletedLength;
+			this.entries = entries;
+
+			return entries;
+		}
+	}
+
+	private boolean isLoaded() {
+		return dir.lastModified() == loadedDirModified && deletedFile.length() == loadedDeletedLength;
+	}
+
+	private void readIndex(File indexFile, Map<String, Entry> entries) throws IOException {
+
+		final File packFile = getPackFile( indexFile );
+
+		try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ) ) )) {
+
+			if ( in.readInt() != INDEX_MAGIC ) {
+				throw new IOException("Bad pack index: "+ indexFile);
+			}
+
+			for (int i = in.readInt(); i > 0; i--) {
+				final String id = in.readUTF();
+				entries.put( id, new Entry( packFile, in.readLong(), in.readInt(), in.readInt(), in.readInt(), in.readLong() ) );
+			}
+		}
+	}
+
+	/**
+	 * Inflates the stored bytes of an entry into the buffer, which is reset before.
+	 */
+	void read(Entry entry, ReusableBuffer buffer) throws IOException {
+
+		final byte[] deflated = new byte[ entry.length ];
+
+		try (RandomAccessFile raf = new RandomAccessFile( entry.packFile, "r" )) {
+			raf.seek( entry.position );
+			raf.readFully( deflated );
+		}
+
+		buffer.reset();
+		// one more byte than expected, so the stream's end is read without growing the buffer
+		buffer.ensureCapacity( entry.rawLength+1 );
+
+		final Inflater inflater = new Inflater();
+
+		try (InflaterInputStream in = new InflaterInputStream( new ByteArrayInputStream( deflated ), inflater )) {
+			buffer.readFully( in );
+		} catch (ZipException e) {
+			throw new IOException("Bad pack entry in "+ entry.packFile, e);
+		} finally {
+			inflater.end();
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update( buffer.array(), 0, buffer.length() );
+
+		if ( buffer.length() != entry.rawLength || (int)crc.getValue() != entry.crc ) {
+			throw new IOException("Corrupt pack entry in "+ entry.packFile);
+		}
+	}
+
+	/**
+	 * Records the removal of an object's entry, e.g. because the object was deleted or written as loose file again.
+	 *
+	 * @return <code>false</code> if the object is not packed
+	 */
+	synchronized boolean remove(String id) throws IOException {
+
+		final Entry entry = getEntries().get( id );
+
+		if ( entry == null ) {
+			return false;
+		}
+
+		final boolean isCurrent = deletedFile.length() == loadedDeletedLength;
+
+		try (OutputStream out = new FileOutputStream( deletedFile, true )) {
+			out.write( (entry.getPack() +" "+ id +"\n").getBytes( Utils.CHARSET_UTF8 ) );
+		}
+
+		entries.remove( id, entry );
+
+		// removals of other processes meanwhile are picked up by reloading
+		if ( isCurrent ) {
+			loadedDeletedLength = deletedFile.length();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Starts a new pack; the caller serializes the packing of a type.
+	 */
+	Writer newWriter() throws IOException {
+
+		dir.mkdirs();
+
+		long time = System.currentTimeMillis();
+
+		while ( new File( dir, getPackName( time ) + PACK_SUFFIX ).exists() ) {
+			time++;
+		}
+
+		return new Writer( getPackName( time ) );
+	}
+
+	private static String getPackName(long time) {
+		return String.format( "pack-%013d", time );
+	}
+
+	/**
+	 * Appends entries to a new pack; its entries become visible by {@link #commit()}.
+	 */
+	class Writer implements AutoCloseable {
+
+		private final File packFile;
+		private final File indexFile;
+		private final DataOutputStream out;
+		private final Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+		private final byte[] chunk = new byte[ 8 * 1024 ];
+		private final List<String> ids = new ArrayList<>();
+		private final List<Entry> written = new ArrayList<>();
+		private long position;
+		private boolean committed;
+
+		private Writer(String name) throws IOException {
+			this.packFile = new File( dir, name + PACK_SUFFIX );
+			this.indexFile = new File( dir, name + INDEX_SUFFIX );
+			this.out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( packFile ), 64 * 1024 ) );
+		}
+
+		int size() {
+			return ids.size();
+		}
+
+		long getSize() {
+			return position;
+		}
+
+		/**
+		 * @param lastModified modification time of the object's file
+		 */
+		void add(String id, byte[] bytes, int length, long lastModified) throws IOException {
+
+			final CRC32 crc = new CRC32();
+			crc.update( bytes, 0, length );
+
+			deflater.reset();
+			deflater.setInput( bytes, 0, length );
+			deflater.finish();
+
+			int deflatedLength = 0;
+
+			while ( !deflater.finished() ) {
+				final int n = deflater.deflate( chunk );
+				out.write( chunk, 0, n );
+				deflatedLength += n;
+			}
+
+			ids.add( id );
+			written.add( new Entry( packFile, position, deflatedLength, length, (int)crc.getValue(), lastModified ) );
+			position += deflatedLength;
+		}
+
+		/**
+		 * Writes the index, which makes the entries visible.
+		 */
+		void commit() throws IOException {
+
+			out.close();
+
+			final File tmpFile = new File( dir, indexFile.getName() +".tmp" );
+
+			try (DataOutputStream indexOut = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) )) {
+
+				indexOut.writeInt( INDEX_MAGIC );
+				indexOut.writeInt( ids.size() );
+
+				for (int i = 0; i < ids.size(); i++) {
+
+					final Entry entry = written.get( i );
+
+					indexOut.writeUTF( ids.get( i ) );
+					indexOut.writeLong( entry.position );
+					indexOut.writeInt( entry.length );
+					indexOut.writeInt( entry.rawLength );
+					indexOut.writeInt( entry.crc );
+					indexOut.writeLong( entry.lastModified );
+				}
+			}
+
+			Files.move( tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE );
+			committed = true;
+
+			synchronized (PackStore.this) {
+
+				final Map<String, Entry> entries = getEntries();
+
+				for (int i = 0; i < ids.size(); i++) {
+					entries.put( ids.get( i ), written.get( i ) );
+				}
+
+				loadedDirModified = dir.lastModified();
+			}
+		}
+
+		/**
+		 * Deletes the pack unless committed.
+		 */
+		@Override
+		public void close() {
+
+			deflater.end();
+			Utils.closeSafe( out );
+
+			if ( !committed ) {
+				Utils.delete( packFile );
+			}
+		}
+	}
+
+	/**
+	 * Location of a packed object.
+	 */
+	static class Entry {
+
+		final File packFile;
+		final long position;
+		final int length;
+		final int rawLength;
+		final int crc;
+		/**
+		 * modification time of the object's file when packed
+		 */
+		final long lastModified;
+
+		Entry(File packFile, long position, int length, int rawLength, int crc, long lastModified) {
+			this.packFile = packFile;
+			this.position = position;
+			this.length = length;
+			this.rawLength = rawLength;
+			this.crc = crc;
+			this.lastModified = lastModified;
+		}
+
+		String getPack() {
+			final String name = packFile.getName();
+			return name.substring( 0, name.length()-PACK_SUFFIX.length() );
+		}
+
+		@Override
+		public String toString() {
+			return "Entry [pack=" + getPack() + ", position=" + position + ", length=" + length + "]";
+		}
+	}
+}
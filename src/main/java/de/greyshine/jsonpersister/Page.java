@@ -0,0 +1,44 @@
+package de.greyshine.jsonpersister;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of objects in the order of a field, as returned by {@link JsonPersister#page(Class, de.greyshine.jsonpersister.query.Filter, String, String, int)}.<br/>
+ * The next page starts after the key of this page's last object, so pages stay consistent while objects are added or removed in between.
+ */
+public class Page<T> {
+
+	private final List<T> items;
+	/**
+	 * sort entries of the items
+	 */
+	final List<ExternalSort.Entry> entries;
+	private final String nextKey;
+
+	Page(List<T> items, List<ExternalSort.Entry> entries, String nextKey) {
+		this.items = Collections.unmodifiableList( items );
+		this.entries = entries;
+		this.nextKey = nextKey;
+	}
+
+	public List<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * @return key to pass as <code>afterKey</code> for the next page; <code>null</code> on the last page
+	 */
+	public String getNextKey() {
+		return nextKey;
+	}
+
+	public boolean hasNext() {
+		return nextKey != null;
+	}
+
+	@Override
+	public String toString() {
+		return "Page [items=" + items.size() + ", nextKey=" + nextKey + "]";
+	}
+}
@@ -0,0 +1,283 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.stream.JsonReader;
+
+import de.greyshine.jsonpersister.annotations.Partition;
+import de.greyshine.jsonpersister.query.FieldExtractor;
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Time partitions of a type whose objects are stored by their {@link Partition} timestamp: <code>&lt;type&gt;/&lt;partition&gt;/&lt;bucket&gt;/&lt;id&gt;.json</code>.<br/>
+ * Partitions are named by their UTC start, e.g. <code>2024-05-01</code> for a day, so their names sort in time order.
+ * The unit of a type's partitions is persisted in the file {@value #FILE_NAME} of the type's directory.
+ * <p>
+ * As the partition of an object is not known from its id, lookups probe the partitions:
+ * first the partition of the id's timestamp if it is a {@link TimeOrderedIdProvider} id, then all partitions from the newest.
+ * </p>
+ */
+class Partitioning {
+
+	static final String FILE_NAME = ".partitioned";
+	/**
+	 * prefix of the names partitions are renamed to when dropped, until their files are deleted
+	 */
+	static final String DROPPED_PREFIX = ".dropped-";
+
+	private final File typeDir;
+	private final String path;
+	private final Partition.Unit unit;
+	private final FieldExtractor extractor;
+
+	/**
+	 * names in ascending order; <code>null</code> until listed
+	 */
+	private volatile List<String> partitions;
+
+	Partitioning(File typeDir, String path, Partition.Unit unit) {
+		this.typeDir = typeDir;
+		this.path = path;
+		this.unit = unit;
+		this.extractor = new FieldExtractor( Collections.singleton( path ) );
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	Partition.Unit getUnit() {
+		return unit;
+	}
+
+	String getPartition(long millis) {
+
+		final ZonedDateTime time = Instant.ofEpochMilli( millis ).atZone( ZoneOffset.UTC );
+
+		switch ( unit ) {
+		case HOUR:
+			return String.format( "%04d-%02d-%02d-%02d", time.getYear(), time.getMonthValue(), time.getDayOfMonth(), time.getHour() );
+		case DAY:
+			return String.format( "%04d-%02d-%02d", time.getYear(), time.getMonthValue(), time.getDayOfMonth() );
+		case MONTH:
+			return String.format( "%04d-%02d", time.getYear(), time.getMonthValue() );
+		default:
+			return String.format( "%04d", time.getYear() );
+		}
+	}
+
+	/**
+	 * @return start of the partition in milliseconds since the epoch; <code>null</code> if the name is not a partition of this unit
+	 */
+	Long getStart(String partition) {
+
+		final String[] parts = partition.split( "-" );
+		final int expectedParts = unit == Partition.Unit.HOUR ? 4 : unit == Partition.Unit.DAY ? 3 : unit == Partition.Unit.MONTH ? 2 : 1;
+
+		if ( parts.length != expectedParts ) {
+			return null;
+		}
+
+		try {
+
+			final int year = Integer.parseInt( parts[0] );
+			final int month = parts.length > 1 ? Integer.parseInt( parts[1] ) : 1;
+			final int day = parts.length > 2 ? Integer.parseInt( parts[2] ) : 1;
+			final int hour = parts.length > 3 ? Integer.parseInt( parts[3] ) : 0;
+
+			return ZonedDateTime.of( year, month, day, hour, 0, 0, 0, ZoneOffset.UTC ).toInstant().toEpochMilli();
+
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return end of the partition, exclusive
+	 */
+	long getEnd(String partition) {
+
+		final ZonedDateTime start = Instant.ofEpochMilli( getStart( partition ) ).atZone( ZoneOffset.UTC );
+
+		switch ( unit ) {
+		case HOUR:
+			return start.plusHours( 1 ).toInstant().toEpochMilli();
+		case DAY:
+			return start.plusDays( 1 ).toInstant().toEpochMilli();
+		case MONTH:
+			return start.plusMonths( 1 ).toInstant().toEpochMilli();
+		default:
+			return start.plusYears( 1 ).toInstant().toEpochMilli();
+		}
+	}
+
+	File getDir(String partition) {
+		return new File( typeDir, partition );
+	}
+
+	File getFile(String partition, String bucket, String id) {
+		return new File( new File( getDir( partition ), bucket ), id +".json" );
+	}
+
+	/**
+	 * @return names of the partitions in ascending order
+	 */
+	List<String> getPartitions() {
+
+		List<String> partitions = this.partitions;
+
+		if ( partitions != null ) {
+			return partitions;
+		}
+
+		// a refresh waits for the listing, so a partition created meanwhile is not lost
+		synchronized (this) {
+
+			if ( this.partitions != null ) {
+				return this.partitions;
+			}
+
+			partitions = new ArrayList<>();
+
+			for (File f : Utils.list( typeDir, (f)->f.isDirectory() && !f.getName().startsWith(".") )) {
+				if ( getStart( f.getName() ) != null ) {
+					partitions.add( f.getName() );
+				}
+			}
+
+			Collections.sort( partitions );
+			partitions = Collections.unmodifiableList( partitions );
+			this.partitions = partitions;
+
+			return partitions;
+		}
+	}
+
+	/**
+	 * @param to exclusive
+	 * @return names of the partitions overlapping the time range in ascending order
+	 */
+	List<String> getPartitions(long from, long to) {
+
+		final List<String> partitions = new ArrayList<>();
+
+		for (String partition : getPartitions()) {
+			if ( getStart( partition ) < to && getEnd( partition ) > from ) {
+				partitions.add( partition );
+			}
+		}
+
+		return partitions;
+	}
+
+	/**
+	 * Lets the partitions be listed again on next use, e.g. after a partition was created or dropped.
+	 */
+	synchronized void refresh() {
+		partitions = null;
+	}
+
+	/**
+	 * Lets the partitions be listed again if the partition an object was written to is not known yet.
+	 */
+	void written(String partition) {
+
+		final List<String> partitions = this.partitions;
+
+		if ( partitions != null && Collections.binarySearch( partitions, partition ) < 0 ) {
+			refresh();
+		}
+	}
+
+	/**
+	 * @param bucket bucket of the id in the type's layout
+	 * @param refresh whether to list the partitions first, e.g. because other processes may have created partitions
+	 * @return the existing file of the object, otherwise its file in the partition of the id's timestamp or the current partition
+	 */
+	File locate(String id, String bucket, boolean refresh) {
+
+		String hint;
+
+		try {
+			hint = getPartition( TimeOrderedIdProvider.getTimestamp( id ) );
+		} catch (IllegalArgumentException e) {
+			hint = null;
+		}
+
+		if ( hint != null ) {
+
+			final File file = getFile( hint, bucket, id );
+
+			if ( file.isFile() ) {
+				return file;
+			}
+		}
+
+		if ( refresh ) {
+			refresh();
+		}
+
+		final List<String> partitions = getPartitions();
+
+		for (int i = partitions.size()-1; i >= 0; i--) {
+
+			if ( partitions.get( i ).equals( hint ) ) {
+				continue;
+			}
+
+			final File file = getFile( partitions.get( i ), bucket, id );
+
+			if ( file.isFile() ) {
+				return file;
+			}
+		}
+
+		return getFile( hint != null ? hint : getPartition( System.currentTimeMillis() ), bucket, id );
+	}
+
+	/**
+	 * @return the timestamp picked from the JSON of an object; <code>null</code> if it is missing or not a number
+	 */
+	Long getTimestamp(byte[] json, int length) throws IOException {
+
+		try (JsonReader reader = new JsonReader( new InputStreamReader( new ByteArrayInputStream( json, 0, length ), Utils.CHARSET_UTF8 ) )) {
+
+			final Map<String,Object> values = extractor.extract( reader );
+			final Object value = values.get( path );
+
+			return value instanceof BigDecimal ? ((BigDecimal)value).longValue() : null;
+		}
+	}
+
+	/**
+	 * @return name of the partition a file of the type is stored in
+	 */
+	String getPartition(File file) {
+
+		File f = file;
+
+		while ( f.getParentFile() != null && !f.getParentFile().equals( typeDir ) ) {
+			f = f.getParentFile();
+		}
+
+		return f.getName();
+	}
+
+	/**
+	 * Sets the modification time of the partition's directory, which tells backups whether the partition changed.
+	 */
+	void touch(String partition) {
+		getDir( partition ).setLastModified( System.currentTimeMillis() );
+	}
+}
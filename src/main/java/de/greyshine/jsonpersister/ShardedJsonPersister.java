@@ -0,0 +1,719 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.greyshine.jsonpersister.query.Filter;
+import de.greyshine.jsonpersister.util.Utils;
+import de.greyshine.jsonpersister.util.Utils.Wrapper;
+
+/**
+ * Spreads objects over several base directories, e.g. one per disk.<br/>
+ * The shard of an object is determined by consistent hashing of its id, so adding a shard only moves the objects the new shard takes over.
+ * Scans run on all shards in parallel.
+ */
+public class ShardedJsonPersister {
+	
+	private static final Logger LOG = LoggerFactory.getLogger( ShardedJsonPersister.class );
+	
+	private static final String BACKUP_HEADER = "sharded:";
+	/**
+	 * length of a shard's backup written in chunks, each preceded by its length and ended by an empty one
+	 */
+	private static final long CHUNKED = -1;
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	/**
+	 * amount of positions each shard takes on the hash ring; smooths the distribution
+	 */
+	private static final int VIRTUAL_NODES = 128;
+	
+	private static final int LOCK_STRIPES = 256;
+	
+	/**
+	 * the first shard assigns the ids of new objects
+	 */
+	private final List<JsonPersister> shards = new ArrayList<>();
+	
+	private volatile Ring ring;
+	/**
+	 * ring before the last shard was added; set while objects are moved to their new shards
+	 */
+	private volatile Ring previousRing;
+	/**
+	 * routed writes hold the read lock, so the rings are not switched while a write is on its way to the shard it looked up
+	 */
+	private final ReentrantReadWriteLock ringLock = new ReentrantReadWriteLock();
+	/**
+	 * monitors serializing the writes and the move of an object, by the hash of its type and id
+	 */
+	private final Object[] locks = new Object[ LOCK_STRIPES ];
+	
+	public ShardedJsonPersister(File... baseDirs) {
+		
+		if ( baseDirs == null || baseDirs.length == 0 ) {
+			throw new IllegalArgumentException("No base directories specified.");
+		}
+		
+		for (File baseDir : baseDirs) {
+			shards.add( new JsonPersister( baseDir ) );
+		}
+		
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		
+		ring = new Ring( shards );
+	}
+	
+	/**
+	 * @see JsonPersister#setIdProvider(JsonPersister.IIdProvider)
+	 */
+	public synchronized void setIdProvider(JsonPersister.IIdProvider idProvider) {
+		// the first shard assigns the ids, the others get it as well in case they are used on their own
+		shards.forEach( (shard)->shard.setIdProvider( idProvider ) );
+	}
+	
+	public synchronized List<JsonPersister> getShards() {
+		return Collections.unmodifiableList( new ArrayList<>( shards ) );
+	}
+	
+	/**
+	 * Adds a shard and moves the objects now belonging to it.
+	 * Reads and writes may go on meanwhile: lookups fall back to the former shard until an object has been moved.
+	 * Objects take the elements of their {@link de.greyshine.jsonpersister.annotations.Chunked} fields and the blobs they refer to along;
+	 * blobs left unreferenced on the former shard are deleted by {@link JsonPersister#collectBlobs(Class, long)}.
+	 * 
+	 * @return amount of moved objects
+	 */
+	public synchronized int addShard(File baseDir) throws IOException {
+		
+		final JsonPersister shard = new JsonPersister( baseDir );
+		
+		for (JsonPersister existing : shards) {
+			if ( existing.getBaseDir().equals( shard.getBaseDir() ) ) {
+				throw new IllegalArgumentException("Shard already added: "+ baseDir);
+			}
+		}
+		
+		final List<JsonPersister> newShards = new ArrayList<>( shards );
+		newShards.add( shard );
+		
+		ringLock.writeLock().lock();
+		
+		try {
+			previousRing = ring;
+			ring = new Ring( newShards );
+			shards.add( shard );
+		} finally {
+			ringLock.writeLock().unlock();
+		}
+		
+		try {
+			return rebalance();
+		} finally {
+			
+			ringLock.writeLock().lock();
+			
+			try {
+				previousRing = null;
+			} finally {
+				ringLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Moves all objects not stored on the shard they belong to.
+	 * 
+	 * @return amount of moved objects
+	 */
+	public synchronized int rebalance() throws IOException {
+		
+		int moved = 0;
+		
+		for (JsonPersister shard : shards) {
+			
+			for (String typeName : shard.getStorage().getTypeNames()) {
+				
+				final Class<?> clazz = getClass( typeName );
+				final List<String> ids = new ArrayList<>();
+				
+				shard.getStorage().traversIds( clazz, (id)->{
+					if ( ring.get( id ) != shard ) {
+						ids.add( id );
+					}
+				} );
+				
+				for (String id : ids) {
+					if ( move( clazz, id, shard ) ) {
+						moved++;
+					}
+				}
+			}
+		}
+		
+		LOG.info( "rebalanced {} objects over {} shards", moved, shards.size() );
+		
+		return moved;
+	}
+	
+	private boolean move(Class<?> clazz, String id, JsonPersister source) throws IOException {
+		
+		final JsonPersister target = ring.get( id );
+		
+		synchronized ( getLock( clazz, id ) ) {
+			
+			final Object object = source.read( clazz, id );
+			
+			if ( object == null ) {
+				return false;
+			}
+			
+			// neither the elements of chunked fields nor blobs are part of the object; copied first, they are complete once the object is found on the target
+			source.copyChunks( clazz, id, target );
+			source.copyBlobs( clazz, id, target );
+			
+			// a concurrent upsert may already have written a newer version to the target
+			if ( !target.isExisting( clazz, id ) ) {
+				target.upsert( object );
+			}
+			
+			source.delete( clazz, id );
+			return true;
+		}
+	}
+	
+	private Object getLock(Class<?> clazz, String id) {
+		return locks[ ( ( clazz.getTypeName().hashCode() * 31 + id.hashCode() ) & 0x7fffffff ) % locks.length ];
+	}
+	
+	private static Class<?> getClass(String typeName) throws IOException {
+		try {
+			return Class.forName( typeName );
+		} catch (ClassNotFoundException e) {
+			throw new IOException( "Unknown type: "+ typeName, e );
+		}
+	}
+	
+	public JsonPersister getShard(String id) {
+		return ring.get( id );
+	}
+	
+	public <T> T read(Class<T> clazz, String id) throws IOException {
+		
+		if (clazz == null || id == null) {
+			return null;
+		}
+		
+		final T object = ring.get( id ).read( clazz, id );
+		final Ring previous = previousRing;
+		
+		return object != null || previous == null ? object : previous.get( id ).read( clazz, id );
+	}
+	
+	public boolean isExisting(Class<?> clazz, String id) {
+		
+		final Ring previous = previousRing;
+		
+		return ring.get( id ).isExisting( clazz, id ) || ( previous != null && previous.get( id ).isExisting( clazz, id ) );
+	}
+	
+	public <T> String upsert(T object) throws IOException {
+		
+		if (object == null) {
+			throw new IllegalArgumentException("No object specified.");
+		}
+		
+		final String id = shards.get( 0 ).getOrCreateId( object );
+		
+		ringLock.readLock().lock();
+		
+		try {
+			
+			final Ring previous = previousRing;
+			
+			if ( previous == null ) {
+				return ring.get( id ).upsert( object );
+			}
+			
+			synchronized ( getLock( object.getClass(), id ) ) {
+				
+				ring.get( id ).upsert( object );
+				
+				if ( previous.get( id ) != ring.get( id ) ) {
+					previous.get( id ).delete( object.getClass(), id );
+				}
+			}
+			
+			return id;
+			
+		} finally {
+			ringLock.readLock().unlock();
+		}
+	}
+	
+	public boolean delete(Object object) throws IOException {
+		
+		if (object == null) {
+			return false;
+		}
+		
+		final String id = shards.get( 0 ).getId( object );
+		
+		return id != null && delete( object.getClass(), id );
+	}
+	
+	public boolean delete(Class<?> clazz, String id) throws IOException {
+		
+		if (clazz == null || id == null) {
+			return true;
+		}
+		
+		ringLock.readLock().lock();
+		
+		// a concurrent move would write the object to its new shard again
+		try {
+			synchronized ( getLock( clazz, id ) ) {
+				
+				final JsonPersister shard = ring.get( id );
+				final Ring previous = previousRing;
+				boolean deleted = shard.delete( clazz, id );
+				
+				if ( previous != null && previous.get( id ) != shard ) {
+					deleted |= previous.get( id ).delete( clazz, id );
+				}
+				
+				return deleted;
+			}
+		} finally {
+			ringLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Scans all shards in parallel.
+	 * 
+	 * @param filter <code>null</code> accepts all
+	 * @param addDecision <code>null</code> accepts all; calls are serialized
+	 */
+	public <T> List<T> getList(Class<T> clazz, Filter filter, Function<T, Boolean> addDecision) {
+		
+		if (clazz == null) {
+			return null;
+		}
+		
+		final List<T> list = new ArrayList<>();
+		
+		list( clazz, filter, (object)->{
+			
+			final Boolean r = addDecision == null || addDecision.apply( object );
+			
+			if ( Boolean.TRUE.equals( r ) ) {
+				list.add( object );
+			}
+			
+			return r;
+		} );
+		
+		return list;
+	}
+	
+	/**
+	 * Traverses all shards in parallel; calls of the addItemDecision are serialized.
+	 * 
+	 * @param addItemDecision returning <code>null</code> stops traversing
+	 */
+	public <T> void list(Class<T> clazz, Filter filter, Function<T, Boolean> addItemDecision) {
+		
+		if (clazz == null) {
+			return;
+		}
+		
+		final Wrapper<Boolean> quitFlag = new Wrapper<>( false );
+		
+		getShards().parallelStream().forEach( (shard)->shard.list( clazz, filter, (object)->{
+			
+			synchronized ( quitFlag ) {
+				
+				if ( quitFlag.value ) {
+					return null;
+				}
+				
+				final Boolean r = addItemDecision == null ? Boolean.TRUE : addItemDecision.apply( object );
+				quitFlag.value = r == null;
+				return r;
+			}
+		}) );
+	}
+	
+	/**
+	 * @see JsonPersister#count(Class)
+	 */
+	public long count(Class<?> clazz) throws IOException {
+		
+		long count = 0;
+		
+		for (JsonPersister shard : getShards()) {
+			count += shard.count( clazz );
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Reads the page of each shard and merges them.
+	 * 
+	 * @see JsonPersister#page(Class, Filter, String, String, int)
+	 */
+	public <T> Page<T> page(Class<T> clazz, Filter filter, String orderBy, String afterKey, int limit) throws IOException {
+		
+		final List<JsonPersister> shards = getShards();
+		final List<Page<T>> pages = new ArrayList<>( shards.size() );
+		
+		for (JsonPersister shard : shards) {
+			pages.add( shard.page( clazz, filter, orderBy, afterKey, limit ) );
+		}
+		
+		final int[] positions = new int[ pages.size() ];
+		final List<T> items = new ArrayList<>( limit );
+		final List<ExternalSort.Entry> entries = new ArrayList<>( limit );
+		ExternalSort.Entry last = null;
+		
+		while ( true ) {
+			
+			int next = -1;
+			
+			for (int i = 0; i < pages.size(); i++) {
+				if ( positions[i] < pages.get( i ).entries.size() && ( next < 0 || ExternalSort.ORDER.compare( pages.get( i ).entries.get( positions[i] ), pages.get( next ).entries.get( positions[next] ) ) < 0 ) ) {
+					next = i;
+				}
+			}
+			
+			if ( next < 0 || entries.size() == limit ) {
+				break;
+			}
+			
+			final ExternalSort.Entry entry = pages.get( next ).entries.get( positions[next] );
+			
+			// while rebalancing, an object may be found on two shards
+			if ( last == null || ExternalSort.ORDER.compare( last, entry ) != 0 ) {
+				entries.add( entry );
+				items.add( pages.get( next ).getItems().get( positions[next] ) );
+				last = entry;
+			}
+			
+			positions[next]++;
+		}
+		
+		boolean hasNext = false;
+		
+		for (int i = 0; i < pages.size(); i++) {
+			hasNext |= positions[i] < pages.get( i ).entries.size() || pages.get( i ).hasNext();
+		}
+		
+		final String nextKey = !hasNext || last == null ? null : shards.get( 0 ).isOrderedById( clazz, orderBy ) ? last.id : last.toKey();
+		
+		return new Page<>( items, entries, nextKey );
+	}
+	
+	/**
+	 * Writes the backups of all shards into one stream, one after another in chunks.
+	 */
+	public synchronized void writeBackup(OutputStream out) throws IOException {
+		
+		if ( out == null ) { throw new IllegalArgumentException( "OutputStream is null" ); }
+		
+		final DataOutputStream dos = new DataOutputStream( out );
+		dos.writeUTF( BACKUP_HEADER + shards.size() );
+		
+		for (JsonPersister shard : shards) {
+			
+			// the length is not known before the backup is written
+			dos.writeLong( CHUNKED );
+			
+			final ChunkedOutputStream chunked = new ChunkedOutputStream( dos );
+			shard.writeBackup( chunked );
+			chunked.finish();
+		}
+		
+		dos.flush();
+	}
+	
+	/**
+	 * Restores a backup written by {@link #writeBackup(OutputStream)}.
+	 * The shards may differ from the ones at backup time: the files of an object go to the shard it belongs to, files of its type like packs, blobs and dictionaries to all shards.
+	 * Packed objects are moved to the shards they belong to afterwards.
+	 * 
+	 * @param additive <code>false</code> deletes the stored objects of all shards before
+	 */
+	public synchronized void readBackup(InputStream in, boolean additive) throws IOException {
+		
+		if ( in == null ) { return; }
+		
+		final DataInputStream dis = new DataInputStream( in );
+		final String header = dis.readUTF();
+		
+		if ( !header.startsWith( BACKUP_HEADER ) ) {
+			throw new IOException("Expected header '"+ BACKUP_HEADER +"<shards>'");
+		}
+		
+		final int backupShards = Integer.parseInt( header.substring( BACKUP_HEADER.length() ) );
+		final List<File> baseDirs = new ArrayList<>();
+		
+		shards.forEach( (shard)->baseDirs.add( shard.getBaseDir() ) );
+		
+		restoring( 0, ()->{
+			
+			final Set<String> typeNames = new HashSet<>();
+			
+			if ( !additive ) {
+				shards.forEach( (shard)->typeNames.addAll( shard.getBackupHandler().clear() ) );
+			}
+			
+			for (int i = 0; i < backupShards; i++) {
+				
+				final long length = dis.readLong();
+				// backups written before chunks were introduced are preceded by their length
+				final InputStream shardIn = length == CHUNKED ? new ChunkedInputStream( dis ) : new BoundedInputStream( dis, length );
+				
+				typeNames.addAll( shards.get( 0 ).getBackupHandler().readBackup( shardIn, (path)->{
+					final String id = BackupHandler.getObjectId( path );
+					return id == null ? baseDirs : Collections.singletonList( ring.get( id ).getBaseDir() );
+				} ) );
+				
+				// the backup handler reads up to the checksum
+				if ( Utils.copy( shardIn, new ByteArrayOutputStream() ) > 0 ) {
+					throw new IOException("read error; unexpected data after shard "+ i);
+				}
+			}
+			
+			return typeNames;
+		} );
+		
+		rebalance();
+	}
+	
+	/**
+	 * Runs a restore while writers of all shards are blocked.
+	 */
+	private Set<String> restoring(int index, Coordinator.IoAction<Set<String>> restore) throws IOException {
+		
+		if ( index == shards.size() ) {
+			return restore.run();
+		}
+		
+		final Wrapper<Set<String>> typeNames = new Wrapper<>( null );
+		
+		shards.get( index ).restoring( ()->typeNames.value = restoring( index+1, restore ) );
+		
+		return typeNames.value;
+	}
+	
+	/**
+	 * Writes chunks, each preceded by its length; {@link #finish()} writes the empty chunk ending them.
+	 */
+	private static class ChunkedOutputStream extends OutputStream {
+		
+		private final DataOutputStream out;
+		private final byte[] chunk = new byte[ CHUNK_SIZE ];
+		private int length;
+		private boolean finished;
+		
+		private ChunkedOutputStream(DataOutputStream out) {
+			this.out = out;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			
+			if ( length == chunk.length ) {
+				flush();
+			}
+			
+			chunk[ length++ ] = (byte)b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			
+			while ( len > 0 ) {
+				
+				if ( length == chunk.length ) {
+					flush();
+				}
+				
+				final int n = Math.min( len, chunk.length-length );
+				System.arraycopy( b, off, chunk, length, n );
+				length += n;
+				off += n;
+				len -= n;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			
+			if ( finished ) {
+				throw new IOException("Chunks already finished");
+			} else if ( length > 0 ) {
+				out.writeInt( length );
+				out.write( chunk, 0, length );
+				length = 0;
+			}
+		}
+		
+		private void finish() throws IOException {
+			
+			if ( !finished ) {
+				flush();
+				out.writeInt( 0 );
+				finished = true;
+			}
+		}
+		
+		/**
+		 * Finishes the chunks; the underlying stream stays open.
+		 */
+		@Override
+		public void close() throws IOException {
+			finish();
+		}
+	}
+	
+	/**
+	 * Reads the chunks written by {@link ChunkedOutputStream} up to the empty one.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		
+		private final DataInputStream in;
+		private int remaining;
+		private boolean ended;
+		
+		private ChunkedInputStream(DataInputStream in) {
+			this.in = in;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			
+			final byte[] b = new byte[1];
+			
+			return read( b, 0, 1 ) == Utils.EOF ? Utils.EOF : b[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			
+			if ( len == 0 ) {
+				return 0;
+			}
+			
+			while ( remaining == 0 ) {
+				
+				if ( ended ) {
+					return Utils.EOF;
+				}
+				
+				remaining = in.readInt();
+				ended = remaining == 0;
+				
+				if ( remaining < 0 ) {
+					throw new IOException("Bad chunk length: "+ remaining);
+				}
+			}
+			
+			final int n = in.read( b, off, Math.min( len, remaining ) );
+			
+			if ( n == Utils.EOF ) {
+				throw new EOFException("Truncated chunk");
+			}
+			
+			remaining -= n;
+			return n;
+		}
+	}
+	
+	/**
+	 * Reads up to a given length of the underlying stream.
+	 */
+	private static class BoundedInputStream extends InputStream {
+		
+		private final InputStream in;
+		private long remaining;
+		
+		private BoundedInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			
+			final byte[] b = new byte[1];
+			
+			return read( b, 0, 1 ) == Utils.EOF ? Utils.EOF : b[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			
+			if ( remaining == 0 ) {
+				return Utils.EOF;
+			}
+			
+			final int n = in.read( b, off, (int)Math.min( len, remaining ) );
+			
+			if ( n == Utils.EOF ) {
+				throw new EOFException("Truncated shard backup");
+			}
+			
+			remaining -= n;
+			return n;
+		}
+	}
+	
+	/**
+	 * Consistent hash ring: each shard takes {@link ShardedJsonPersister#VIRTUAL_NODES} positions derived from its directory.
+	 */
+	private static class Ring {
+		
+		private final TreeMap<Integer,JsonPersister> nodes = new TreeMap<>();
+		
+		private Ring(List<JsonPersister> shards) {
+			
+			for (JsonPersister shard : shards) {
+				
+				final String path = shard.getBaseDir().getAbsolutePath();
+				
+				for (int i = 0; i < VIRTUAL_NODES; i++) {
+					nodes.put( Utils.murmur3( path +"#"+ i, 0 ), shard );
+				}
+			}
+		}
+		
+		private JsonPersister get(String id) {
+			final Map.Entry<Integer,JsonPersister> entry = nodes.ceilingEntry( Utils.murmur3( id, 0 ) );
+			return entry != null ? entry.getValue() : nodes.firstEntry().getValue();
+		}
+	}
+
+}
@@ -0,0 +1,301 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.greyshine.jsonpersister.util.ReusableBuffer;
+import de.greyshine.jsonpersister.util.Utils;
+
+/**
+ * Previous versions of objects retained for open snapshots, copy on write: a write replacing or deleting an object first copies the stored version
+ * to a file, but only while a snapshot which may still read it is open.<br/>
+ * Each write is numbered by a sequence; a snapshot is pinned to the sequence of the last write when it was opened and reads an object
+ * from the first version retained by a later write, otherwise from the stored object.
+ * Versions no open snapshot reads anymore are deleted when a snapshot is closed.
+ * <p>
+ * Writes hold the read lock of {@link #getLock()} while numbering, retaining and writing; opening a snapshot takes the write lock for a moment,
+ * so a snapshot never sees half of a write.
+ * </p>
+ */
+class Snapshots {
+
+	private final File dir;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * amount of open snapshots by their sequence; guarded by <code>this</code>
+	 */
+	private final TreeMap<Long, Integer> open = new TreeMap<>();
+	private volatile boolean isOpen;
+	/**
+	 * incremented when the retained versions are cleared, which invalidates the open snapshots
+	 */
+	private volatile long epoch;
+	/**
+	 * retained versions by the key of their object, in the order of their sequence; lists are guarded by <code>this</code>
+	 */
+	private final Map<String, List<Version>> versions = new ConcurrentHashMap<>();
+
+	/**
+	 * @param dir directory of the retained versions of this instance
+	 */
+	Snapshots(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Deletes all retained versions; open snapshots must not be read anymore.
+	 */
+	synchronized void clear() {
+		epoch++;
+		open.clear();
+		isOpen = false;
+		versions.clear();
+		Utils.delete( dir );
+	}
+
+	long getEpoch() {
+		return epoch;
+	}
+
+	ReentrantReadWriteLock getLock() {
+		return lock;
+	}
+
+	/**
+	 * @return the sequence the snapshot is pinned to
+	 */
+	long open() {
+
+		lock.writeLock().lock();
+
+		try {
+
+			final long pinned = sequence.get();
+
+			synchronized (this) {
+				open.merge( pinned, 1, Integer::sum );
+				isOpen = true;
+			}
+
+			return pinned;
+
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Closes a snapshot and deletes the versions no other open snapshot reads.
+	 */
+	void close(long pinned) {
+
+		final List<File> files = new ArrayList<>();
+
+		synchronized (this) {
+
+			final Integer n = open.get( pinned );
+
+			if ( n == null ) {
+				return;
+			} else if ( n > 1 ) {
+				open.put( pinned, n-1 );
+			} else {
+				open.remove( pinned );
+			}
+
+			isOpen = !open.isEmpty();
+
+			final Iterator<List<Version>> keyVersions = versions.values().iterator();
+
+			while ( keyVersions.hasNext() ) {
+
+				final List<Version> list = keyVersions.next();
+				long previous = Long.MIN_VALUE;
+
+				for (Iterator<Version> i = list.iterator(); i.hasNext();) {
+
+					final Version version = i.next();
+
+					// read by the snapshots pinned between the former version and this one
+					final Long reader = open.ceilingKey( previous );
+
+					if ( reader == null || reader >= version.sequence ) {
+						i.remove();
+						if ( version.file != null ) {
+							files.add( version.file );
+						}
+					} else {
+						previous = version.sequence;
+					}
+				}
+
+				if ( list.isEmpty() ) {
+					keyVersions.remove();
+				}
+			}
+		}
+
+		files.forEach( Utils::delete );
+	}
+
+	/**
+	 * Numbers a write of an object, retaining its stored version if an open snapshot may read it; the caller holds the read lock of {@link #getLock()}
+	 * and the object's lock.
+	 *
+	 * @param key type and id of the object
+	 * @param stored reads the stored version of the object, returning <code>false</code> if there is none
+	 */
+	void write(String key, StoredReader stored) throws IOException {
+
+		final long written = sequence.incrementAndGet();
+
+		if ( !isOpen || !isRetaining( key ) ) {
+			return;
+		}
+
+		final ReusableBuffer buffer = new ReusableBuffer( 8 * 1024 );
+		File file = null;
+
+		if ( stored.read( buffer ) ) {
+			file = new File( dir, written +".json" );
+			Utils.writeFile( file, buffer.array(), 0, buffer.length() );
+		}
+
+		synchronized (this) {
+
+			// all snapshots may have been closed meanwhile
+			if ( isRetaining( key ) ) {
+				versions.computeIfAbsent( key, (k)->new ArrayList<>( 2 ) ).add( new Version( written, file ) );
+				return;
+			}
+		}
+
+		if ( file != null ) {
+			Utils.delete( file );
+		}
+	}
+
+	/**
+	 * @return whether an open snapshot is pinned at or after the last retained version of the object, so it reads the stored version
+	 */
+	private synchronized boolean isRetaining(String key) {
+
+		final List<Version> list = versions.get( key );
+		return open.ceilingKey( list == null ? Long.MIN_VALUE : list.get( list.size()-1 ).sequence ) != null;
+	}
+
+	/**
+	 * Reads the version of an object a snapshot sees.
+	 *
+	 * @param pinned sequence of the snapshot
+	 * @param stored reads the stored version of the object
+	 * @return <code>false</code> if the object did not exist for the snapshot
+	 */
+	boolean read(String key, long pinned, ReusableBuffer buffer, StoredReader stored) throws IOException {
+
+		Version version = get( key, pinned );
+
+		if ( version == null ) {
+
+			final boolean isStored = stored.read( buffer );
+
+			// a write retains the stored version before replacing it, so a version retained now may have been replaced while reading
+			version = get( key, pinned );
+
+			if ( version == null ) {
+				return isStored;
+			}
+		}
+
+		if ( version.file == null ) {
+			return false;
+		}
+
+		buffer.readFile( version.file );
+		return true;
+	}
+
+	private synchronized Version get(String key, long pinned) {
+
+		final List<Version> list = versions.get( key );
+
+		if ( list != null ) {
+			for (Version version : list) {
+				if ( version.sequence > pinned ) {
+					return version;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return keys of the objects having retained versions whose key starts with the prefix
+	 */
+	Collection<String> getKeys(String prefix) {
+
+		final List<String> keys = new ArrayList<>();
+
+		for (String key : versions.keySet()) {
+			if ( key.startsWith( prefix ) ) {
+				keys.add( key );
+			}
+		}
+
+		return keys;
+	}
+
+	/**
+	 * @return files of the retained versions of the objects whose key starts with the prefix; a file is deleted once no open snapshot reads it
+	 */
+	synchronized List<File> getFiles(String prefix) {
+
+		final List<File> files = new ArrayList<>();
+
+		versions.forEach( (key, list)->{
+			if ( key.startsWith( prefix ) ) {
+				for (Version version : list) {
+					if ( version.file != null ) {
+						files.add( version.file );
+					}
+				}
+			}
+		} );
+
+		return files;
+	}
+
+	@FunctionalInterface
+	interface StoredReader {
+		boolean read(ReusableBuffer buffer) throws IOException;
+	}
+
+	private static class Version {
+
+		/**
+		 * sequence of the write which replaced this version
+		 */
+		final long sequence;
+		/**
+		 * <code>null</code> if the object did not exist
+		 */
+		final File file;
+
+		Version(long sequence, File file) {
+			this.sequence = sequence;
+			this.file = file;
+		}
+	}
+}
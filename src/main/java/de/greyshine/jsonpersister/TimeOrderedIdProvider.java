@@ -0,0 +1,122 @@
+package de.greyshine.jsonpersister;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Creates ULIDs: 26 characters of Crockford's base32, the first 10 encode the creation time in milliseconds, the other 16 are 80 random bits.<br/>
+ * Ids sort lexicographically in the order of their creation time. Ids created by one thread within the same millisecond are monotonic, as the random part is counted up.
+ * <p>
+ * Unlike {@link java.util.UUID#randomUUID()}, which draws from a {@link java.security.SecureRandom} shared by all threads, the random bits come from {@link ThreadLocalRandom}, so concurrent writers do not contend.
+ * The ids are unique but not unpredictable, do not use them as secrets.
+ * </p>
+ */
+public class TimeOrderedIdProvider implements JsonPersister.IIdProvider {
+
+	public static final int LENGTH = 26;
+
+	private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+	private static final int TIME_LENGTH = 10;
+
+	private static final ThreadLocal<State> STATES = ThreadLocal.withInitial( State::new );
+
+	@Override
+	public String getId(Object object) {
+		return nextId();
+	}
+
+	public static String nextId() {
+
+		final State state = STATES.get();
+		final long now = System.currentTimeMillis();
+
+		if ( now > state.time ) {
+
+			state.time = now;
+			state.random();
+
+		} else if ( ++state.lo == 0 && ++state.hi > 0xffff ) {
+
+			// 2^80 ids within one millisecond; borrow the next one
+			state.time++;
+			state.random();
+		}
+		// otherwise the same millisecond or the clock went back: the former time is kept and the random part counted up
+
+		final char[] chars = new char[LENGTH];
+
+		for (int i = 0; i < TIME_LENGTH; i++) {
+			chars[i] = ALPHABET[ (int)(state.time >>> ( 5 * (TIME_LENGTH-1-i) )) & 31 ];
+		}
+
+		for (int i = TIME_LENGTH; i < LENGTH; i++) {
+
+			final int shift = 5 * (LENGTH-1-i);
+			final long bits;
+
+			if ( shift >= 64 ) {
+				bits = state.hi >>> (shift-64);
+			} else if ( shift > 59 ) {
+				bits = (state.lo >>> shift) | (state.hi << (64-shift));
+			} else {
+				bits = state.lo >>> shift;
+			}
+
+			chars[i] = ALPHABET[ (int)bits & 31 ];
+		}
+
+		return new String( chars );
+	}
+
+	/**
+	 * @return the creation time of an id created by this provider
+	 */
+	public static long getTimestamp(String id) {
+
+		if ( id == null || id.length() != LENGTH ) {
+			throw new IllegalArgumentException("Not a time ordered id: "+ id);
+		}
+
+		long time = 0;
+
+		for (int i = 0; i < TIME_LENGTH; i++) {
+
+			final int value = decode( id.charAt( i ) );
+
+			if ( value < 0 ) {
+				throw new IllegalArgumentException("Not a time ordered id: "+ id);
+			}
+
+			time = (time << 5) | value;
+		}
+
+		return time;
+	}
+
+	private static int decode(char c) {
+
+		final char upper = Character.toUpperCase( c );
+
+		for (int i = 0; i < ALPHABET.length; i++) {
+			if ( ALPHABET[i] == upper ) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static class State {
+
+		private long time = -1;
+		/**
+		 * upper 16 of the 80 random bits
+		 */
+		private long hi;
+		private long lo;
+
+		private void random() {
+			hi = ThreadLocalRandom.current().nextInt() & 0xffff;
+			lo = ThreadLocalRandom.current().nextLong();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package de.greyshine.jsonpersister;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers upserts and deletes in memory and writes them in the background.<br/>
+ * Repeated writes of the same object are coalesced, so only the latest state is written.
+ * Pending writes are visible to reads of the {@link JsonPersister} before they reach the disk.
+ * <p>
+ * Once closed, writes are rejected: a writer which got hold of a closed instance waits by {@link #awaitDrained(Class, String)} until the pending writes are written
+ * and then writes to the disk itself, so it neither gets lost nor is overwritten by an older pending write.
+ * </p>
+ */
+class WriteBehind {
+	
+	private static final Logger LOG = LoggerFactory.getLogger( WriteBehind.class );
+	
+	private final JsonPersister jp;
+	private final int maxPending;
+	
+	private final Map<String,Pending> pendings = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final Thread shutdownHook;
+	/**
+	 * read lock held while storing a pending write, write lock while closing, so no write is stored after the final flush started
+	 */
+	private final ReentrantReadWriteLock fence = new ReentrantReadWriteLock();
+	private volatile boolean closed;
+	private final CountDownLatch drained = new CountDownLatch( 1 );
+	
+	/**
+	 * @param maxPending amount of pending objects triggering a flush
+	 * @param maxDelayMillis maximum time a write stays pending
+	 */
+	WriteBehind(JsonPersister jp, int maxPending, long maxDelayMillis) {
+		
+		if ( maxPending < 1 || maxDelayMillis < 1 ) {
+			throw new IllegalArgumentException( "maxPending and maxDelayMillis must be positive [maxPending="+ maxPending +", maxDelayMillis="+ maxDelayMillis +"]" );
+		}
+		
+		this.jp = jp;
+		this.maxPending = maxPending;
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor( (r)->{
+			final Thread thread = new Thread( r, "json-persister-writebehind" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		
+		scheduler.scheduleWithFixedDelay( this::flushSafe, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS );
+		
+		shutdownHook = new Thread( this::flushSafe, "json-persister-writebehind-shutdown" );
+		Runtime.getRuntime().addShutdownHook( shutdownHook );
+	}
+	
+	private static String getKey(Class<?> clazz, String id) {
+		return clazz.getTypeName() +"/"+ id;
+	}
+	
+	/**
+	 * @param json <code>null</code> marks a delete
+	 * @return <code>false</code> if closed; the write is to be done directly after {@link #awaitDrained(Class, String)}
+	 */
+	boolean put(Class<?> clazz, String id, byte[] json) throws IOException {
+		
+		if ( !store( clazz, id, json ) ) {
+			return false;
+		}
+		
+		afterStore();
+		return true;
+	}
+	
+	/**
+	 * Stores a pending write without flushing, so it is safe to be called while holding an object's lock.
+	 * {@link #afterStore()} is to be called after the lock is released.
+	 * 
+	 * @return <code>false</code> if closed; the write is to be done directly after {@link #awaitDrained(Class, String)}
+	 */
+	boolean store(Class<?> clazz, String id, byte[] json) {
+		
+		fence.readLock().lock();
+		
+		try {
+			
+			if ( closed ) {
+				return false;
+			}
+			
+			pendings.put( getKey( clazz, id ), new Pending( clazz, id, json ) );
+			return true;
+			
+		} finally {
+			fence.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Flushes if too many writes are pending.
+	 */
+	void afterStore() throws IOException {
+		
+		if ( closed ) {
+			// flushed by close
+			return;
+		}
+		
+		if ( pendings.size() >= 2 * maxPending ) {
+			// writers outpace the background thread
+			flush();
+		} else if ( pendings.size() >= maxPending && flushScheduled.compareAndSet( false, true ) ) {
+			try {
+				scheduler.execute( this::flushSafe );
+			} catch (RejectedExecutionException e) {
+				// closed meanwhile
+			}
+		}
+	}
+	
+	/**
+	 * @return <code>null</code> if nothing is pending for the object, otherwise the pending write; its json is <code>null</code> for a pending delete
+	 */
+	Pending get(Class<?> clazz, String id) {
+		return pendings.get( getKey( clazz, id ) );
+	}
+	
+	boolean isEmpty() {
+		return pendings.isEmpty();
+	}
+	
+	/**
+	 * Writes all pending objects. A failed write stays pending and does not stop the others.
+	 * 
+	 * @throws IOException if writes failed, with the failures as suppressed exceptions
+	 */
+	synchronized void flush() throws IOException {
+		
+		flushScheduled.set( false );
+		
+		if ( pendings.isEmpty() ) {
+			return;
+		}
+		
+		final List<Map.Entry<String,Pending>> entries = new ArrayList<>( pendings.entrySet() );
+		final List<Exception> failures = new ArrayList<>( 0 );
+		
+		for (Map.Entry<String,Pending> entry : entries) {
+			
+			final Pending pending = entry.getValue();
+			
+			try {
+				
+				if ( pending.json == null ) {
+					jp.deleteFile( pending.clazz, pending.id, false );
+				} else {
+					jp.writeJson( pending.clazz, pending.id, pending.json, pending.json.length, null, false );
+				}
+				
+			} catch (IOException | RuntimeException e) {
+				
+				failures.add( e );
+				continue;
+			}
+			
+			// a newer write stays pending
+			pendings.remove( entry.getKey(), pending );
+		}
+		
+		LOG.debug( "flushed {} pending writes, {} failed", entries.size()-failures.size(), failures.size() );
+		
+		if ( !failures.isEmpty() ) {
+			
+			final IOException e = new IOException( "Failed to flush "+ failures.size() +" of "+ entries.size() +" pending writes; they stay pending" );
+			failures.forEach( e::addSuppressed );
+			throw e;
+		}
+	}
+	
+	private void flushSafe() {
+		try {
+			flush();
+		} catch (Exception e) {
+			LOG.error( "failed to flush pending writes: {}", e );
+		}
+	}
+	
+	/**
+	 * Rejects further writes, flushes and stops the background thread.
+	 * 
+	 * @throws IOException if pending writes failed; they stay pending and are retried by the next {@link #flush()} or close
+	 */
+	void close() throws IOException {
+		
+		fence.writeLock().lock();
+		
+		try {
+			closed = true;
+		} finally {
+			fence.writeLock().unlock();
+		}
+		
+		scheduler.shutdown();
+		
+		try {
+			Runtime.getRuntime().removeShutdownHook( shutdownHook );
+		} catch (IllegalStateException e) {
+			// shutting down already
+		}
+		
+		try {
+			flush();
+		} finally {
+			drained.countDown();
+		}
+	}
+	
+	/**
+	 * Waits until a closed instance flushed its pending writes, before a rejected write of the object is done directly.
+	 * A write of the object which failed to flush is dropped, as the direct write supersedes it.
+	 */
+	void awaitDrained(Class<?> clazz, String id) throws InterruptedIOException {
+		
+		try {
+			drained.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for pending writes");
+		}
+		
+		pendings.remove( getKey( clazz, id ) );
+	}
+	
+	static class Pending {
+		
+		final Class<?> clazz;
+		final String id;
+		/**
+		 * UTF-8 encoded JSON
+		 */
+		final byte[] json;
+		
+		private Pending(Class<?> clazz, String id, byte[] json) {
+			this.clazz = clazz;
+			this.id = id;
+			this.json = json;
+		}
+	}
+
+}
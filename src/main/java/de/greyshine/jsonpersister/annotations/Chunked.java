@@ -0,0 +1,24 @@
+package de.greyshine.jsonpersister.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 
+ * Stores the elements of a collection field of an Entity in chunks apart from the Entity's file, so elements can be appended without rewriting the Entity.
+ * 
+ * The field is neither written by an upsert nor set by a read; elements set on it are ignored by an upsert, so an object read, changed and upserted keeps its stored elements.
+ * Its elements are appended, listed and paged by the element methods of the persister. Snapshots do not version the elements.
+ *
+ */
+@Retention( RetentionPolicy.RUNTIME )
+@Target( ElementType.FIELD )
+public @interface Chunked {
+	
+	/**
+	 * @return elements per chunk
+	 */
+	int value() default 1000;
+}
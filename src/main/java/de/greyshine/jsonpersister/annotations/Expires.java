@@ -0,0 +1,17 @@
+package de.greyshine.jsonpersister.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 
+ * Gives an expiry time to an Entity; an expired object is not read anymore and removed in the background.
+ * 
+ * The field must be a long holding milliseconds since the epoch; 0 never expires.
+ *
+ */
+@Retention( RetentionPolicy.RUNTIME )
+@Target( ElementType.FIELD )
+public @interface Expires {}
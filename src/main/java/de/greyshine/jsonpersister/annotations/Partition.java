@@ -0,0 +1,24 @@
+package de.greyshine.jsonpersister.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 
+ * Stores the objects of an Entity in time partitions by the annotated timestamp.
+ * 
+ * The field must be a long holding milliseconds since the epoch; partitions are cut in UTC.
+ *
+ */
+@Retention( RetentionPolicy.RUNTIME )
+@Target( ElementType.FIELD )
+public @interface Partition {
+	
+	Unit value() default Unit.DAY;
+	
+	enum Unit {
+		HOUR, DAY, MONTH, YEAR
+	}
+}
@@ -1,5 +1,10 @@
 package de.greyshine.jsonpersister.annotations;
 
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
 /**
  * 
  * Gives a version to an Entity.
@@ -7,4 +12,6 @@ package de.greyshine.jsonpersister.annotations;
  * The field must be a private long. 
  *
  */
+@Retention( RetentionPolicy.RUNTIME )
+@Target( ElementType.FIELD )
 public @interface Version {}
@@ -0,0 +1,338 @@
+package de.greyshine.jsonpersister.codegen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates a {@link JsonCodec} named <code>&lt;Entity&gt;_JsonCodec</code> for each class declaring an {@link de.greyshine.jsonpersister.annotations.Id} field
+ * and registers the codecs as services.<br/>
+ * The codecs access fields directly, so a codec is only generated for top level classes
+ * <ul>
+ * <li>without type parameters and without a super class</li>
+ * <li>with a non private no argument constructor</li>
+ * <li>whose serialized fields are neither private nor final and not annotated with Gson annotations</li>
+ * </ul>
+ * Other classes are left to reflection, which is reported as note.<br/>
+ * The processor is not registered as service, so compiling against the library does not run it; it runs when named,
+ * e.g. by <code>-processor de.greyshine.jsonpersister.codegen.CodecProcessor</code> or the <code>annotationProcessors</code> of the maven-compiler-plugin.
+ * Generation is switched off by the compiler option <code>-A{@value #OPTION_ENABLED}=false</code>.
+ */
+@SupportedAnnotationTypes( CodecProcessor.ID_ANNOTATION )
+@SupportedOptions( CodecProcessor.OPTION_ENABLED )
+public class CodecProcessor extends AbstractProcessor {
+
+	static final String ID_ANNOTATION = "de.greyshine.jsonpersister.annotations.Id";
+	static final String VERSION_ANNOTATION = "de.greyshine.jsonpersister.annotations.Version";
+	static final String CHUNKED_ANNOTATION = "de.greyshine.jsonpersister.annotations.Chunked";
+	static final String OPTION_ENABLED = "jsonpersister.codecs";
+	static final String SUFFIX = "_JsonCodec";
+
+	private final Set<String> codecNames = new LinkedHashSet<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+		if ( "false".equalsIgnoreCase( processingEnv.getOptions().get( OPTION_ENABLED ) ) ) {
+			return false;
+		}
+
+		if ( roundEnv.processingOver() ) {
+			writeServiceFile();
+			return false;
+		}
+
+		final TypeElement idAnnotation = processingEnv.getElementUtils().getTypeElement( ID_ANNOTATION );
+
+		if ( idAnnotation == null ) {
+			return false;
+		}
+
+		final Set<TypeElement> entities = new LinkedHashSet<>();
+
+		for (Element element : roundEnv.getElementsAnnotatedWith( idAnnotation )) {
+			if ( element.getKind() == ElementKind.FIELD && element.getEnclosingElement() instanceof TypeElement ) {
+				entities.add( (TypeElement) element.getEnclosingElement() );
+			}
+		}
+
+		for (TypeElement entity : entities) {
+
+			final List<VariableElement> fields = new ArrayList<>();
+			final String rejection = inspect( entity, fields );
+
+			if ( rejection != null ) {
+				processingEnv.getMessager().printMessage( Kind.NOTE, "no codec generated, "+ rejection, entity );
+				continue;
+			}
+
+			try {
+				generate( entity, fields );
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage( Kind.ERROR, "codec generation failed: "+ e, entity );
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param fields receives the serialized fields
+	 * @return why no codec can be generated or <code>null</code>
+	 */
+	private String inspect(TypeElement entity, List<VariableElement> fields) {
+
+		if ( entity.getKind() != ElementKind.CLASS || entity.getModifiers().contains( Modifier.ABSTRACT ) ) {
+			return "not a concrete class";
+		} else if ( !(entity.getEnclosingElement() instanceof PackageElement) ) {
+			return "not a top level class";
+		} else if ( entity.getModifiers().contains( Modifier.PRIVATE ) ) {
+			return "private class";
+		} else if ( !entity.getTypeParameters().isEmpty() ) {
+			return "class has type parameters";
+		} else if ( !Object.class.getName().equals( entity.getSuperclass().toString() ) ) {
+			return "class has a super class";
+		}
+
+		final List<ExecutableElement> constructors = ElementFilter.constructorsIn( entity.getEnclosedElements() );
+
+		if ( constructors.stream().noneMatch( (c)->c.getParameters().isEmpty() && !c.getModifiers().contains( Modifier.PRIVATE ) ) ) {
+			return "no accessible no argument constructor";
+		}
+
+		int ids = 0;
+		int versions = 0;
+
+		for (VariableElement field : ElementFilter.fieldsIn( entity.getEnclosedElements() )) {
+
+			final Set<Modifier> modifiers = field.getModifiers();
+
+			if ( modifiers.contains( Modifier.STATIC ) || modifiers.contains( Modifier.TRANSIENT ) ) {
+				continue;
+			} else if ( modifiers.contains( Modifier.PRIVATE ) ) {
+				return "private field "+ field.getSimpleName();
+			} else if ( modifiers.contains( Modifier.FINAL ) ) {
+				return "final field "+ field.getSimpleName();
+			} else if ( hasGsonAnnotation( field ) ) {
+				return "Gson annotation on field "+ field.getSimpleName();
+			} else if ( hasAnnotation( field, CHUNKED_ANNOTATION ) ) {
+				return "@Chunked field "+ field.getSimpleName();
+			}
+
+			if ( hasAnnotation( field, ID_ANNOTATION ) ) {
+
+				ids++;
+
+				if ( !String.class.getName().equals( field.asType().toString() ) ) {
+					return "@Id field is not a String";
+				}
+			}
+
+			if ( hasAnnotation( field, VERSION_ANNOTATION ) ) {
+
+				versions++;
+
+				if ( field.asType().getKind() != TypeKind.LONG && !Long.class.getName().equals( field.asType().toString() ) ) {
+					return "@Version field is not a long";
+				}
+			}
+
+			fields.add( field );
+		}
+
+		return ids != 1 ? "not exactly one @Id field" : versions > 1 ? "several @Version fields" : null;
+	}
+
+	private static boolean hasGsonAnnotation(Element element) {
+
+		for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+			if ( annotation.getAnnotationType().toString().startsWith( "com.google.gson.annotations." ) ) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean hasAnnotation(Element element, String annotationName) {
+
+		for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+			if ( annotation.getAnnotationType().toString().equals( annotationName ) ) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void generate(TypeElement entity, List<VariableElement> fields) throws IOException {
+
+		final String packageName = ((PackageElement) entity.getEnclosingElement()).getQualifiedName().toString();
+		final String entityName = entity.getQualifiedName().toString();
+		final String codecSimpleName = entity.getSimpleName() + SUFFIX;
+		final String codecName = packageName.isEmpty() ? codecSimpleName : packageName +"."+ codecSimpleName;
+
+		VariableElement idField = null;
+		VariableElement versionField = null;
+
+		for (VariableElement field : fields) {
+			idField = hasAnnotation( field, ID_ANNOTATION ) ? field : idField;
+			versionField = hasAnnotation( field, VERSION_ANNOTATION ) ? field : versionField;
+		}
+
+		final StringBuilder sb = new StringBuilder();
+
+		if ( !packageName.isEmpty() ) {
+			sb.append( "package " ).append( packageName ).append( ";\n\n" );
+		}
+
+		sb.append( "/**\n * Generated by " ).append( CodecProcessor.class.getName() ).append( " from {@link " ).append( entityName ).append( "}, do not edit.\n */\n" );
+		sb.append( "public final class " ).append( codecSimpleName ).append( " implements de.greyshine.jsonpersister.codegen.JsonCodec<" ).append( entityName ).append( "> {\n\n" );
+
+		sb.append( "\t@Override\n\tpublic Class<" ).append( entityName ).append( "> getType() {\n\t\treturn " ).append( entityName ).append( ".class;\n\t}\n\n" );
+		sb.append( "\t@Override\n\tpublic String getIdName() {\n\t\treturn \"" ).append( idField.getSimpleName() ).append( "\";\n\t}\n\n" );
+		sb.append( "\t@Override\n\tpublic String getId(" ).append( entityName ).append( " object) {\n\t\treturn object." ).append( idField.getSimpleName() ).append( ";\n\t}\n\n" );
+		sb.append( "\t@Override\n\tpublic void setId(" ).append( entityName ).append( " object, String id) {\n\t\tobject." ).append( idField.getSimpleName() ).append( " = id;\n\t}\n\n" );
+
+		if ( versionField == null ) {
+			sb.append( "\t@Override\n\tpublic String getVersionName() {\n\t\treturn null;\n\t}\n\n" );
+			sb.append( "\t@Override\n\tpublic Long getVersion(" ).append( entityName ).append( " object) {\n\t\treturn null;\n\t}\n\n" );
+		} else {
+			sb.append( "\t@Override\n\tpublic String getVersionName() {\n\t\treturn \"" ).append( versionField.getSimpleName() ).append( "\";\n\t}\n\n" );
+			sb.append( "\t@Override\n\tpublic Long getVersion(" ).append( entityName ).append( " object) {\n\t\treturn object." ).append( versionField.getSimpleName() ).append( ";\n\t}\n\n" );
+		}
+
+		sb.append( "\t@Override\n\tpublic com.google.gson.TypeAdapter<" ).append( entityName ).append( "> createAdapter(com.google.gson.Gson gson) {\n\t\treturn new Adapter( gson );\n\t}\n\n" );
+
+		generateAdapter( sb, entityName, fields );
+
+		sb.append( "}\n" );
+
+		try (Writer writer = processingEnv.getFiler().createSourceFile( codecName, entity ).openWriter()) {
+			writer.write( sb.toString() );
+		}
+
+		codecNames.add( codecName );
+	}
+
+	private void generateAdapter(StringBuilder sb, String entityName, List<VariableElement> fields) {
+
+		final StringBuilder declarations = new StringBuilder();
+		final StringBuilder initializations = new StringBuilder();
+		final StringBuilder writes = new StringBuilder();
+		final StringBuilder reads = new StringBuilder();
+
+		for (VariableElement field : fields) {
+
+			final String name = field.getSimpleName().toString();
+			final TypeMirror type = field.asType();
+			final TypeKind kind = type.getKind();
+
+			writes.append( "\t\t\tout.name( \"" ).append( name ).append( "\" );\n" );
+			reads.append( "\t\t\t\tcase \"" ).append( name ).append( "\":\n" );
+
+			if ( String.class.getName().equals( type.toString() ) ) {
+
+				writes.append( "\t\t\tout.value( value." ).append( name ).append( " );\n" );
+				reads.append( "\t\t\t\t\tobject." ).append( name ).append( " = de.greyshine.jsonpersister.codegen.CodecSupport.readString( in );\n" );
+
+			} else if ( kind == TypeKind.INT || kind == TypeKind.LONG ) {
+
+				writes.append( "\t\t\tout.value( value." ).append( name ).append( " );\n" );
+				reads.append( "\t\t\t\t\tif ( !de.greyshine.jsonpersister.codegen.CodecSupport.isNull( in ) ) {\n" );
+				reads.append( "\t\t\t\t\t\tobject." ).append( name ).append( kind == TypeKind.INT ? " = in.nextInt();\n" : " = in.nextLong();\n" );
+				reads.append( "\t\t\t\t\t}\n" );
+
+			} else if ( kind.isPrimitive() ) {
+
+				final String boxed = processingEnv.getTypeUtils().boxedClass( processingEnv.getTypeUtils().getPrimitiveType( kind ) ).getQualifiedName().toString();
+
+				declarations.append( "\t\tprivate final com.google.gson.TypeAdapter<" ).append( boxed ).append( "> " ).append( name ).append( "Adapter;\n" );
+				initializations.append( "\t\t\tthis." ).append( name ).append( "Adapter = gson.getAdapter( " ).append( type ).append( ".class );\n" );
+				writes.append( "\t\t\tthis." ).append( name ).append( "Adapter.write( out, value." ).append( name ).append( " );\n" );
+				reads.append( "\t\t\t\t\tfinal " ).append( boxed ).append( " " ).append( name ).append( "Value = this." ).append( name ).append( "Adapter.read( in );\n" );
+				reads.append( "\t\t\t\t\tif ( " ).append( name ).append( "Value != null ) {\n" );
+				reads.append( "\t\t\t\t\t\tobject." ).append( name ).append( " = " ).append( name ).append( "Value;\n" );
+				reads.append( "\t\t\t\t\t}\n" );
+
+			} else {
+
+				final boolean isParameterized = kind == TypeKind.DECLARED && !((DeclaredType) type).getTypeArguments().isEmpty();
+				final String typeExpression = isParameterized ? "new com.google.gson.reflect.TypeToken<"+ type +">(){}.getType()" : processingEnv.getTypeUtils().erasure( type ) +".class";
+
+				declarations.append( "\t\tprivate static final java.lang.reflect.Type " ).append( name ).append( "Type = " ).append( typeExpression ).append( ";\n" );
+				declarations.append( "\t\tprivate final com.google.gson.TypeAdapter<" ).append( type ).append( "> " ).append( name ).append( "Adapter;\n" );
+				initializations.append( "\t\t\tthis." ).append( name ).append( "Adapter = (com.google.gson.TypeAdapter<" ).append( type ).append( ">) gson.getAdapter( com.google.gson.reflect.TypeToken.get( " ).append( name ).append( "Type ) );\n" );
+				writes.append( "\t\t\tde.greyshine.jsonpersister.codegen.CodecSupport.write( gson, this." ).append( name ).append( "Adapter, " ).append( name ).append( "Type, out, value." ).append( name ).append( " );\n" );
+				reads.append( "\t\t\t\t\tobject." ).append( name ).append( " = this." ).append( name ).append( "Adapter.read( in );\n" );
+			}
+
+			reads.append( "\t\t\t\t\tbreak;\n" );
+		}
+
+		sb.append( "\tprivate static final class Adapter extends com.google.gson.TypeAdapter<" ).append( entityName ).append( "> {\n\n" );
+		sb.append( "\t\tprivate final com.google.gson.Gson gson;\n" ).append( declarations ).append( "\n" );
+
+		sb.append( "\t\t@SuppressWarnings(\"unchecked\")\n" );
+		sb.append( "\t\tprivate Adapter(com.google.gson.Gson gson) {\n\t\t\tthis.gson = gson;\n" ).append( initializations ).append( "\t\t}\n\n" );
+
+		sb.append( "\t\t@Override\n\t\tpublic void write(com.google.gson.stream.JsonWriter out, " ).append( entityName ).append( " value) throws java.io.IOException {\n\n" );
+		sb.append( "\t\t\tif ( value == null ) {\n\t\t\t\tout.nullValue();\n\t\t\t\treturn;\n\t\t\t}\n\n" );
+		sb.append( "\t\t\tout.beginObject();\n" ).append( writes ).append( "\t\t\tout.endObject();\n\t\t}\n\n" );
+
+		sb.append( "\t\t@Override\n\t\tpublic " ).append( entityName ).append( " read(com.google.gson.stream.JsonReader in) throws java.io.IOException {\n\n" );
+		sb.append( "\t\t\tif ( de.greyshine.jsonpersister.codegen.CodecSupport.isNull( in ) ) {\n\t\t\t\treturn null;\n\t\t\t}\n\n" );
+		sb.append( "\t\t\tfinal " ).append( entityName ).append( " object = new " ).append( entityName ).append( "();\n\n" );
+		sb.append( "\t\t\tin.beginObject();\n\n\t\t\twhile( in.hasNext() ) {\n\n\t\t\t\tswitch ( in.nextName() ) {\n\n" ).append( reads );
+		sb.append( "\t\t\t\tdefault:\n\t\t\t\t\tin.skipValue();\n\t\t\t\t}\n\t\t\t}\n\n" );
+		sb.append( "\t\t\tin.endObject();\n\t\t\treturn object;\n\t\t}\n\t}\n" );
+	}
+
+	private void writeServiceFile() {
+
+		if ( codecNames.isEmpty() ) {
+			return;
+		}
+
+		try (Writer writer = processingEnv.getFiler().createResource( StandardLocation.CLASS_OUTPUT, "", "META-INF/services/"+ JsonCodec.class.getName() ).openWriter()) {
+
+			for (String codecName : codecNames) {
+				writer.write( codecName );
+				writer.write( "\n" );
+			}
+
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage( Kind.ERROR, "writing the codec service file failed: "+ e );
+		}
+
+		codecNames.clear();
+	}
+}
@@ -0,0 +1,71 @@
+package de.greyshine.jsonpersister.codegen;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Helpers called by generated codecs; they behave as Gson's reflective adapters do, so generated and reflective serialization produce the same JSON.
+ */
+public final class CodecSupport {
+
+	private static final String REFLECTIVE_ADAPTER_PREFIX = "com.google.gson.internal.bind.ReflectiveTypeAdapterFactory";
+
+	private CodecSupport() {}
+
+	public static String readString(JsonReader in) throws IOException {
+
+		final JsonToken token = in.peek();
+
+		if ( token == JsonToken.NULL ) {
+			in.nextNull();
+			return null;
+		} else if ( token == JsonToken.BOOLEAN ) {
+			return Boolean.toString( in.nextBoolean() );
+		}
+
+		return in.nextString();
+	}
+
+	/**
+	 * @return <code>true</code> if the next value is <code>null</code>, which is consumed then
+	 */
+	public static boolean isNull(JsonReader in) throws IOException {
+
+		if ( in.peek() != JsonToken.NULL ) {
+			return false;
+		}
+
+		in.nextNull();
+		return true;
+	}
+
+	/**
+	 * Writes a field's value with the adapter of its runtime type if that is more specific than the declared type, as Gson does for fields.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T> void write(Gson gson, TypeAdapter<T> declaredAdapter, Type declaredType, JsonWriter out, T value) throws IOException {
+
+		TypeAdapter adapter = declaredAdapter;
+
+		if ( value != null && declaredType instanceof Class && value.getClass() != declaredType ) {
+
+			final TypeAdapter<?> runtimeAdapter = gson.getAdapter( value.getClass() );
+
+			if ( !isReflective( runtimeAdapter ) || isReflective( declaredAdapter ) ) {
+				adapter = runtimeAdapter;
+			}
+		}
+
+		adapter.write( out, value );
+	}
+
+	private static boolean isReflective(TypeAdapter<?> adapter) {
+		return adapter.getClass().getName().startsWith( REFLECTIVE_ADAPTER_PREFIX );
+	}
+}
@@ -0,0 +1,34 @@
+package de.greyshine.jsonpersister.codegen;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+
+/**
+ * Reflection free serialization and id access of an entity, generated at build time by {@link CodecProcessor} as <code>&lt;Entity&gt;_JsonCodec</code>.<br/>
+ * Generated codecs are registered as service and picked up by {@link JsonCodecs}.
+ */
+public interface JsonCodec<T> {
+
+	Class<T> getType();
+
+	/**
+	 * @param gson used for fields of types the codec does not handle itself
+	 */
+	TypeAdapter<T> createAdapter(Gson gson);
+
+	String getIdName();
+
+	String getId(T object);
+
+	void setId(T object, String id);
+
+	/**
+	 * @return <code>null</code> if the type has no version field
+	 */
+	String getVersionName();
+
+	/**
+	 * @return <code>null</code> if the type has no version field
+	 */
+	Long getVersion(T object);
+}
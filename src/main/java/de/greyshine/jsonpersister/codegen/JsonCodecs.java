@@ -0,0 +1,85 @@
+package de.greyshine.jsonpersister.codegen;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Registry of the generated {@link JsonCodec}s found on the class path.
+ */
+public final class JsonCodecs {
+
+	private static final Logger LOG = LoggerFactory.getLogger( JsonCodecs.class );
+
+	private static volatile Map<Class<?>, JsonCodec<?>> codecs;
+
+	private JsonCodecs() {}
+
+	/**
+	 * @return <code>null</code> if no codec was generated for the type
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> JsonCodec<T> get(Class<T> clazz) {
+		return (JsonCodec<T>) getCodecs().get( clazz );
+	}
+
+	/**
+	 * @return factory creating the type adapters of the generated codecs; other types are left to the next factory
+	 */
+	public static TypeAdapterFactory getTypeAdapterFactory() {
+
+		return new TypeAdapterFactory() {
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+				final JsonCodec<T> codec = (JsonCodec<T>) getCodecs().get( type.getRawType() );
+				return codec == null || type.getType() != type.getRawType() ? null : codec.createAdapter( gson );
+			}
+		};
+	}
+
+	private static Map<Class<?>, JsonCodec<?>> getCodecs() {
+
+		Map<Class<?>, JsonCodec<?>> codecs = JsonCodecs.codecs;
+
+		if ( codecs != null ) {
+			return codecs;
+		}
+
+		synchronized (JsonCodecs.class) {
+
+			if ( JsonCodecs.codecs != null ) {
+				return JsonCodecs.codecs;
+			}
+
+			codecs = new HashMap<>();
+
+			try {
+
+				for (JsonCodec<?> codec : ServiceLoader.load( JsonCodec.class )) {
+					codecs.put( codec.getType(), codec );
+				}
+
+			} catch (ServiceConfigurationError e) {
+				// e.g. a codec compiled against an entity that changed since
+				LOG.warn( "loading generated codecs failed, falling back to reflection: {}", e.getMessage() );
+				codecs.clear();
+			}
+
+			LOG.debug( "generated codecs: {}", codecs.keySet() );
+
+			JsonCodecs.codecs = codecs;
+			return codecs;
+		}
+	}
+}
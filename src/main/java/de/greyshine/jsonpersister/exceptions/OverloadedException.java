@@ -0,0 +1,20 @@
+package de.greyshine.jsonpersister.exceptions;
+
+/**
+ * Thrown instead of running an operation when its concurrency limit is reached and it could not be queued or waited too long;
+ * the caller may retry later or report the overload.
+ */
+public class OverloadedException extends RuntimeException {
+
+	private static final long serialVersionUID = -6227961531204655012L;
+
+	public final String operation;
+	public final int limit;
+	
+	public OverloadedException(String operation, int limit, String reason) {
+		super( operation +" overloaded (limit="+ limit +"): "+ reason );
+		this.operation = operation;
+		this.limit = limit;
+	}
+	
+}
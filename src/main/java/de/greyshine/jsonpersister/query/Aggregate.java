@@ -0,0 +1,217 @@
+package de.greyshine.jsonpersister.query;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Aggregate function over a field of stored JSON documents, e.g. for {@link de.greyshine.jsonpersister.JsonPersister#aggregate(Class, Filter, Aggregate...)}.<br/>
+ * Values are taken as read from the token stream (see {@link Values}); values of other types than the function needs are ignored.
+ */
+public abstract class Aggregate {
+
+	private final String path;
+
+	Aggregate(String path) {
+		this.path = path == null ? null : path.trim();
+	}
+
+	/**
+	 * @return amount of documents as {@link Long}
+	 */
+	public static Aggregate count() {
+		return new Aggregate( null ) {
+			@Override
+			public Accumulator newAccumulator() {
+				return new Count( false );
+			}
+		};
+	}
+
+	/**
+	 * @return amount of documents having a non <code>null</code> value at the path as {@link Long}
+	 */
+	public static Aggregate count(String path) {
+		return new Aggregate( requirePath( path ) ) {
+			@Override
+			public Accumulator newAccumulator() {
+				return new Count( true );
+			}
+		};
+	}
+
+	/**
+	 * @return sum of the numbers at the path as {@link BigDecimal}; zero if there are none
+	 */
+	public static Aggregate sum(String path) {
+		return new Aggregate( requirePath( path ) ) {
+			@Override
+			public Accumulator newAccumulator() {
+				return new Sum( false );
+			}
+		};
+	}
+
+	/**
+	 * @return average of the numbers at the path as {@link BigDecimal} of {@link MathContext#DECIMAL64} precision; <code>null</code> if there are none
+	 */
+	public static Aggregate avg(String path) {
+		return new Aggregate( requirePath( path ) ) {
+			@Override
+			public Accumulator newAccumulator() {
+				return new Sum( true );
+			}
+		};
+	}
+
+	/**
+	 * @return smallest non <code>null</code> value at the path as of {@link Values#compareOrdered(Object, Object)}
+	 */
+	public static Aggregate min(String path) {
+		return new Aggregate( requirePath( path ) ) {
+			@Override
+			public Accumulator newAccumulator() {
+				return new Extreme( -1 );
+			}
+		};
+	}
+
+	/**
+	 * @return greatest non <code>null</code> value at the path as of {@link Values#compareOrdered(Object, Object)}
+	 */
+	public static Aggregate max(String path) {
+		return new Aggregate( requirePath( path ) ) {
+			@Override
+			public Accumulator newAccumulator() {
+				return new Extreme( 1 );
+			}
+		};
+	}
+
+	private static String requirePath(String path) {
+
+		if ( path == null || path.trim().isEmpty() ) {
+			throw new IllegalArgumentException("No path specified.");
+		}
+
+		return path;
+	}
+
+	/**
+	 * @return dotted path of the aggregated field; <code>null</code> if the aggregate takes whole documents
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return new partial result; each scanning thread uses its own
+	 */
+	public abstract Accumulator newAccumulator();
+
+	/**
+	 * Partial result of an aggregate; not thread safe.
+	 */
+	public interface Accumulator {
+
+		/**
+		 * @param value value of a document at the aggregate's path, <code>null</code> if missing
+		 */
+		void add(Object value);
+
+		/**
+		 * Adds the partial result of another accumulator of the same aggregate.
+		 */
+		void merge(Accumulator other);
+
+		Object getResult();
+	}
+
+	private static class Count implements Accumulator {
+
+		private final boolean nonNull;
+		private long count;
+
+		private Count(boolean nonNull) {
+			this.nonNull = nonNull;
+		}
+
+		@Override
+		public void add(Object value) {
+			if ( !nonNull || value != null ) {
+				count++;
+			}
+		}
+
+		@Override
+		public void merge(Accumulator other) {
+			count += ((Count)other).count;
+		}
+
+		@Override
+		public Object getResult() {
+			return count;
+		}
+	}
+
+	private static class Sum implements Accumulator {
+
+		private final boolean average;
+		private BigDecimal sum = BigDecimal.ZERO;
+		private long count;
+
+		private Sum(boolean average) {
+			this.average = average;
+		}
+
+		@Override
+		public void add(Object value) {
+			if ( value instanceof BigDecimal ) {
+				sum = sum.add( (BigDecimal)value );
+				count++;
+			}
+		}
+
+		@Override
+		public void merge(Accumulator other) {
+			sum = sum.add( ((Sum)other).sum );
+			count += ((Sum)other).count;
+		}
+
+		@Override
+		public Object getResult() {
+
+			if ( !average ) {
+				return sum;
+			}
+
+			return count == 0 ? null : sum.divide( BigDecimal.valueOf( count ), MathContext.DECIMAL64 );
+		}
+	}
+
+	private static class Extreme implements Accumulator {
+
+		private final int sign;
+		private Object value;
+
+		private Extreme(int sign) {
+			this.sign = sign;
+		}
+
+		@Override
+		public void add(Object value) {
+			if ( value != null && ( this.value == null || Values.compareOrdered( value, this.value ) * sign > 0 ) ) {
+				this.value = value;
+			}
+		}
+
+		@Override
+		public void merge(Accumulator other) {
+			add( ((Extreme)other).value );
+		}
+
+		@Override
+		public Object getResult() {
+			return value;
+		}
+	}
+}
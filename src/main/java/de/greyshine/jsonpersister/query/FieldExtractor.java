@@ -0,0 +1,130 @@
+package de.greyshine.jsonpersister.query;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Picks the values of dotted field paths (e.g. <code>address.city</code>) from a JSON token stream without building any object.<br/>
+ * Sub trees not leading to a requested path are skipped; only scalar values are addressable, arrays are not traversed.
+ * An object or array at a requested path is recorded as {@link Values#NON_SCALAR}, so it is told apart from a missing field or a JSON null.
+ */
+public class FieldExtractor {
+	
+	private final Set<String> paths;
+	private final Set<String> prefixes = new HashSet<>();
+	
+	public FieldExtractor(Collection<String> paths) {
+		
+		if ( paths == null || paths.isEmpty() ) {
+			throw new IllegalArgumentException("No paths specified.");
+		}
+		
+		this.paths = new HashSet<>( paths );
+		
+		for (String path : this.paths) {
+			int idx = path.indexOf( '.' );
+			while( idx > 0 ) {
+				prefixes.add( path.substring(0, idx) );
+				idx = path.indexOf( '.', idx+1 );
+			}
+		}
+	}
+	
+	public Set<String> getPaths() {
+		return paths;
+	}
+	
+	public Map<String,Object> extract(JsonReader reader) throws IOException {
+		final Map<String,Object> values = new HashMap<>();
+		extract( reader, values, null );
+		return values;
+	}
+	
+	/**
+	 * @param values receives the found values
+	 * @param continueDecision called after each found value; returning <code>false</code> stops reading the stream
+	 * @return <code>false</code> if reading was stopped by the continueDecision, otherwise <code>true</code>
+	 */
+	public boolean extract(JsonReader reader, Map<String,Object> values, Predicate<Map<String,Object>> continueDecision) throws IOException {
+		
+		if ( reader.peek() != JsonToken.BEGIN_OBJECT ) {
+			reader.skipValue();
+			return true;
+		}
+		
+		final Deque<String> parents = new ArrayDeque<>();
+		String parent = null;
+		reader.beginObject();
+		
+		while( true ) {
+			
+			if ( !reader.hasNext() ) {
+				
+				reader.endObject();
+				
+				if ( parents.isEmpty() ) {
+					return true;
+				}
+				
+				parent = parents.pop();
+				parent = parent.isEmpty() ? null : parent;
+				continue;
+			}
+			
+			final String name = reader.nextName();
+			final String path = parent == null ? name : parent +"."+ name;
+			final JsonToken token = reader.peek();
+			
+			if ( token == JsonToken.BEGIN_OBJECT && prefixes.contains( path ) ) {
+				
+				reader.beginObject();
+				parents.push( parent == null ? "" : parent );
+				parent = path;
+				
+			} else if ( !paths.contains( path ) ) {
+				
+				reader.skipValue();
+				
+			} else {
+				
+				if ( token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY ) {
+					reader.skipValue();
+					values.put( path, Values.NON_SCALAR );
+				} else {
+					values.put( path, readScalar( reader, token ) );
+				}
+				
+				if ( continueDecision != null && !continueDecision.test( values ) ) {
+					return false;
+				}
+			}
+		}
+	}
+
+	private static Object readScalar(JsonReader reader, JsonToken token) throws IOException {
+		
+		switch ( token ) {
+		case NULL:
+			reader.nextNull();
+			return null;
+		case BOOLEAN:
+			return reader.nextBoolean();
+		case NUMBER:
+			return new BigDecimal( reader.nextString() );
+		default:
+			return reader.nextString();
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+package de.greyshine.jsonpersister.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Declarative filter on the fields of stored JSON documents.<br/>
+ * Fields are addressed by their dotted path (e.g. <code>address.city</code>).
+ * A filter is evaluated on the token stream of a file, so a document can be rejected before an object is built from it.
+ * A missing field is treated like a JSON <code>null</code>; a field holding an object or array is not <code>null</code>, but equals no value.
+ */
+public abstract class Filter {
+	
+	Filter() {}
+	
+	public static Filter eq(String path, Object value) {
+		final Object operand = Values.normalize( value );
+		return new Comparison( path, (v)->Values.isEqual( v, operand ) );
+	}
+	
+	public static Filter ne(String path, Object value) {
+		final Object operand = Values.normalize( value );
+		return new Comparison( path, (v)->!Values.isEqual( v, operand ) );
+	}
+	
+	public static Filter lt(String path, Object value) {
+		final Object operand = Values.normalize( value );
+		return new Comparison( path, (v)->{
+			final Integer c = Values.compare( v, operand );
+			return c != null && c < 0;
+		} );
+	}
+	
+	public static Filter gt(String path, Object value) {
+		final Object operand = Values.normalize( value );
+		return new Comparison( path, (v)->{
+			final Integer c = Values.compare( v, operand );
+			return c != null && c > 0;
+		} );
+	}
+	
+	public static Filter ge(String path, Object value) {
+		final Object operand = Values.normalize( value );
+		return new Comparison( path, (v)->{
+			final Integer c = Values.compare( v, operand );
+			return c != null && c >= 0;
+		} );
+	}
+	
+	public static Filter le(String path, Object value) {
+		final Object operand = Values.normalize( value );
+		return new Comparison( path, (v)->{
+			final Integer c = Values.compare( v, operand );
+			return c != null && c <= 0;
+		} );
+	}
+	
+	public static Filter in(String path, Object... values) {
+		return in( path, values == null ? Collections.singletonList( null ) : Arrays.asList( values ) );
+	}
+	
+	public static Filter in(String path, Collection<?> values) {
+		
+		if ( values == null ) {
+			throw new IllegalArgumentException("No values specified.");
+		}
+		
+		final List<Object> normalized = new ArrayList<>( values.size() );
+		values.forEach( (v)->normalized.add( Values.normalize( v ) ) );
+		
+		return new Comparison( path, (v)->normalized.stream().anyMatch( (n)->Values.isEqual( v, n ) ) );
+	}
+	
+	public static Filter prefix(String path, String prefix) {
+		
+		if ( prefix == null ) {
+			throw new IllegalArgumentException("No prefix specified.");
+		}
+		
+		return new Comparison( path, (v)->v instanceof String && ((String)v).startsWith( prefix ) );
+	}
+	
+	public static Filter and(Filter... filters) {
+		return new Junction( true, filters );
+	}
+	
+	public static Filter or(Filter... filters) {
+		return new Junction( false, filters );
+	}
+	
+	/**
+	 * @return all field paths this filter needs to be decided
+	 */
+	public Set<String> getPaths() {
+		final Set<String> paths = new HashSet<>();
+		collectPaths( paths );
+		return paths;
+	}
+	
+	abstract void collectPaths(Set<String> paths);
+	
+	/**
+	 * @param values field values found so far, keyed by their path
+	 * @param complete <code>true</code> if the document has been read completely, so missing values will not show up anymore
+	 * @return the decision or <code>null</code> if the values are not sufficient yet
+	 */
+	public abstract Boolean evaluate(Map<String,Object> values, boolean complete);
+	
+	private static class Comparison extends Filter {
+		
+		private final String path;
+		private final Predicate<Object> test;
+		
+		private Comparison(String path, Predicate<Object> test) {
+			
+			if ( path == null || path.trim().isEmpty() ) {
+				throw new IllegalArgumentException("No path specified.");
+			}
+			
+			this.path = path.trim();
+			this.test = test;
+		}
+		
+		@Override
+		void collectPaths(Set<String> paths) {
+			paths.add( path );
+		}
+		
+		@Override
+		public Boolean evaluate(Map<String, Object> values, boolean complete) {
+			
+			if ( values.containsKey( path ) ) {
+				return test.test( values.get( path ) );
+			}
+			
+			return complete ? test.test( null ) : null;
+		}
+		
+		@Override
+		public String toString() {
+			return "Filter [path="+ path +"]";
+		}
+	}
+	
+	private static class Junction extends Filter {
+		
+		private final boolean and;
+		private final List<Filter> filters;
+		
+		private Junction(boolean and, Filter... filters) {
+			
+			if ( filters == null || filters.length == 0 ) {
+				throw new IllegalArgumentException("No filters specified.");
+			}
+			
+			this.and = and;
+			this.filters = Arrays.asList( filters );
+			
+			if ( this.filters.contains( null ) ) {
+				throw new IllegalArgumentException("Filter must not be null.");
+			}
+		}
+		
+		@Override
+		void collectPaths(Set<String> paths) {
+			filters.forEach( (f)->f.collectPaths( paths ) );
+		}
+		
+		@Override
+		public Boolean evaluate(Map<String, Object> values, boolean complete) {
+			
+			boolean undecided = false;
+			
+			for (Filter filter : filters) {
+				
+				final Boolean r = filter.evaluate( values, complete );
+				
+				if ( r == null ) {
+					undecided = true;
+				} else if ( r.booleanValue() != and ) {
+					return r;
+				}
+			}
+			
+			return undecided ? null : and;
+		}
+		
+		@Override
+		public String toString() {
+			return "Filter [" + (and ? "and" : "or") +"="+ filters +"]";
+		}
+	}
+	
+}
@@ -0,0 +1,91 @@
+package de.greyshine.jsonpersister.query;
+
+import java.math.BigDecimal;
+
+/**
+ * Normalization and comparison of the scalar values a JSON document can hold.<br/>
+ * Numbers are held as {@link BigDecimal}, strings as {@link String}, booleans as {@link Boolean}; a JSON null is <code>null</code>.
+ */
+public class Values {
+
+	/**
+	 * Value of a field holding an object or an array: it is present, but neither <code>null</code> nor equal or comparable to any scalar.
+	 */
+	public static final Object NON_SCALAR = new Object() {
+		@Override
+		public String toString() {
+			return "<non-scalar>";
+		}
+	};
+
+	private Values() {}
+	
+	/**
+	 * Converts a Java value into the representation used when reading JSON tokens.
+	 * Enums are taken by name, as Gson writes them.
+	 */
+	public static Object normalize(Object value) {
+		
+		if ( value == null || value instanceof String || value instanceof Boolean || value instanceof BigDecimal ) {
+			return value;
+		} else if ( value instanceof Number ) {
+			return new BigDecimal( value.toString() );
+		} else if ( value instanceof Character ) {
+			return value.toString();
+		} else if ( value instanceof Enum ) {
+			return ((Enum<?>)value).name();
+		}
+		
+		throw new IllegalArgumentException( "Unsupported value type: "+ value.getClass().getTypeName() );
+	}
+	
+	public static boolean isEqual(Object v1, Object v2) {
+		
+		if ( v1 == null || v2 == null ) {
+			return v1 == v2;
+		} else if ( v1 instanceof BigDecimal && v2 instanceof BigDecimal ) {
+			return ((BigDecimal)v1).compareTo( (BigDecimal)v2 ) == 0;
+		}
+		
+		return v1.equals( v2 );
+	}
+	
+	/**
+	 * @return <code>null</code> in case the values are not comparable to each other
+	 */
+	public static Integer compare(Object v1, Object v2) {
+		
+		if ( v1 == null || v2 == null ) {
+			return null;
+		} else if ( v1 instanceof BigDecimal && v2 instanceof BigDecimal ) {
+			return ((BigDecimal)v1).compareTo( (BigDecimal)v2 );
+		} else if ( v1 instanceof String && v2 instanceof String ) {
+			return ((String)v1).compareTo( (String)v2 );
+		} else if ( v1 instanceof Boolean && v2 instanceof Boolean ) {
+			return ((Boolean)v1).compareTo( (Boolean)v2 );
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Total order over all values, e.g. for sorting documents by a field: <code>null</code> sorts before booleans, booleans before numbers and numbers before strings.
+	 */
+	public static int compareOrdered(Object v1, Object v2) {
+		
+		final int rank1 = getRank( v1 );
+		final int rank2 = getRank( v2 );
+		
+		if ( rank1 != rank2 ) {
+			return Integer.compare( rank1, rank2 );
+		}
+		
+		final Integer c = compare( v1, v2 );
+		return c == null ? 0 : c;
+	}
+	
+	private static int getRank(Object value) {
+		return value == null ? 0 : value instanceof Boolean ? 1 : value instanceof BigDecimal ? 2 : 3;
+	}
+	
+}
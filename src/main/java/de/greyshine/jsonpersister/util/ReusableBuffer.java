@@ -0,0 +1,149 @@
+package de.greyshine.jsonpersister.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable byte array meant to be reused, e.g. held per thread, so that reading files does not allocate a new array for each file.
+ * The buffer is not thread safe.
+ */
+public class ReusableBuffer extends OutputStream {
+	
+	private byte[] bytes;
+	private int length = 0;
+	
+	public ReusableBuffer(int initialCapacity) {
+		bytes = new byte[ Math.max( 16, initialCapacity ) ];
+	}
+	
+	public byte[] array() {
+		return bytes;
+	}
+	
+	public int length() {
+		return length;
+	}
+	
+	public ReusableBuffer reset() {
+		length = 0;
+		return this;
+	}
+	
+	/**
+	 * Resets the buffer and releases the backing array in case it grew larger than the given capacity.
+	 */
+	public ReusableBuffer reset(int maxRetainedCapacity) {
+		length = 0;
+		if ( bytes.length > maxRetainedCapacity ) {
+			bytes = new byte[ Math.max( 16, maxRetainedCapacity ) ];
+		}
+		return this;
+	}
+	
+	public void ensureCapacity(int capacity) {
+		if ( capacity > bytes.length ) {
+			bytes = Arrays.copyOf( bytes, Math.max( capacity, bytes.length * 2 ) );
+		}
+	}
+	
+	@Override
+	public void write(int b) {
+		ensureCapacity( length+1 );
+		bytes[length++] = (byte)b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity( length+len );
+		System.arraycopy(b, off, bytes, length, len);
+		length += len;
+	}
+	
+	/**
+	 * Appends the remaining bytes of the buffer.
+	 */
+	public void write(ByteBuffer bb) {
+		final int len = bb.remaining();
+		ensureCapacity( length+len );
+		bb.get( bytes, length, len );
+		length += len;
+	}
+	
+	/**
+	 * Replaces the content of the buffer with the content of the given file.
+	 */
+	public ReusableBuffer readFile(File file) throws IOException {
+		
+		reset();
+		
+		try (FileInputStream fis = new FileInputStream( file )) {
+			ensureCapacity( (int)Math.min( Integer.MAX_VALUE-8, file.length()+1 ) );
+			return readFully( fis );
+		}
+	}
+	
+	/**
+	 * Appends all remaining bytes of the stream.
+	 */
+	public ReusableBuffer readFully(InputStream in) throws IOException {
+		
+		int n;
+		
+		while( true ) {
+			
+			if ( length == bytes.length ) {
+				ensureCapacity( length+1 );
+			}
+			
+			n = in.read( bytes, length, bytes.length-length );
+			
+			if ( n == Utils.EOF ) {
+				return this;
+			}
+			
+			length += n;
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the buffer holds exactly the given bytes
+	 */
+	public boolean contentEquals(byte[] b, int off, int len) {
+		
+		if ( len != length ) {
+			return false;
+		}
+		
+		for (int i = 0; i < len; i++) {
+			if ( bytes[i] != b[off+i] ) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	public InputStream asInputStream() {
+		return new ByteArrayInputStream( bytes, 0, length );
+	}
+	
+	public byte[] toByteArray() {
+		return Arrays.copyOf( bytes, length );
+	}
+	
+	public String toString(Charset charset) {
+		return new String( bytes, 0, length, charset == null ? Utils.CHARSET_UTF8 : charset );
+	}
+	
+	@Override
+	public String toString() {
+		return toString( Utils.CHARSET_UTF8 );
+	}
+}
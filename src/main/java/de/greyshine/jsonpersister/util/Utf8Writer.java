@@ -0,0 +1,127 @@
+package de.greyshine.jsonpersister.util;
+
+import java.io.Writer;
+
+/**
+ * Encodes characters as UTF-8 straight into a {@link ReusableBuffer}.<br/>
+ * Unlike an {@link java.io.OutputStreamWriter} it has no intermediate buffers and no encoder state beyond a pending high surrogate, so one instance can be held per thread and reused for any amount of text.
+ * Unpaired surrogates are encoded as <code>?</code>, as {@link String#getBytes(java.nio.charset.Charset)} does.
+ * The writer is not thread safe.
+ */
+public class Utf8Writer extends Writer {
+
+	private ReusableBuffer buffer;
+	private char highSurrogate;
+
+	/**
+	 * @return this writer appending to the given buffer
+	 */
+	public Utf8Writer reset(ReusableBuffer buffer) {
+		this.buffer = buffer;
+		this.highSurrogate = 0;
+		return this;
+	}
+
+	@Override
+	public void write(int c) {
+		encode( (char) c );
+	}
+
+	@Override
+	public void write(char[] chars, int off, int len) {
+
+		buffer.ensureCapacity( buffer.length() + len );
+
+		for (int i = off, end = off+len; i < end; i++) {
+			encode( chars[i] );
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+
+		buffer.ensureCapacity( buffer.length() + len );
+
+		for (int i = off, end = off+len; i < end; i++) {
+			encode( str.charAt( i ) );
+		}
+	}
+
+	@Override
+	public Writer append(CharSequence csq) {
+
+		final CharSequence chars = csq == null ? "null" : csq;
+
+		for (int i = 0; i < chars.length(); i++) {
+			encode( chars.charAt( i ) );
+		}
+
+		return this;
+	}
+
+	private void encode(char c) {
+
+		if ( highSurrogate != 0 ) {
+
+			final char high = highSurrogate;
+			highSurrogate = 0;
+
+			if ( Character.isLowSurrogate( c ) ) {
+
+				final int codePoint = Character.toCodePoint( high, c );
+
+				buffer.write( 0xf0 | (codePoint >> 18) );
+				buffer.write( 0x80 | ((codePoint >> 12) & 0x3f) );
+				buffer.write( 0x80 | ((codePoint >> 6) & 0x3f) );
+				buffer.write( 0x80 | (codePoint & 0x3f) );
+				return;
+			}
+
+			buffer.write( '?' );
+		}
+
+		if ( c < 0x80 ) {
+
+			buffer.write( c );
+
+		} else if ( c < 0x800 ) {
+
+			buffer.write( 0xc0 | (c >> 6) );
+			buffer.write( 0x80 | (c & 0x3f) );
+
+		} else if ( Character.isHighSurrogate( c ) ) {
+
+			highSurrogate = c;
+
+		} else if ( Character.isLowSurrogate( c ) ) {
+
+			buffer.write( '?' );
+
+		} else {
+
+			buffer.write( 0xe0 | (c >> 12) );
+			buffer.write( 0x80 | ((c >> 6) & 0x3f) );
+			buffer.write( 0x80 | (c & 0x3f) );
+		}
+	}
+
+	/**
+	 * A pending high surrogate without its low surrogate is written as <code>?</code>.
+	 */
+	@Override
+	public void flush() {
+
+		if ( highSurrogate != 0 ) {
+			highSurrogate = 0;
+			buffer.write( '?' );
+		}
+	}
+
+	/**
+	 * Flushes; the writer stays usable after {@link #reset(ReusableBuffer)}.
+	 */
+	@Override
+	public void close() {
+		flush();
+	}
+}
@@ -4,7 +4,6 @@ import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,7 +12,12 @@ import java.io.OutputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -258,15 +262,58 @@ public class Utils {
 		inValue = inValue == null ? "" : inValue;
 		inCharset = inCharset == null ? CHARSET_UTF8 : inCharset;
 
-		final byte[] bytes = inValue.getBytes(inCharset);
+		return writeFile(inFile, inValue.getBytes(inCharset));
+	}
+
+	public static int writeFile(File inFile, byte[] inBytes) throws IOException {
+		return writeFile(inFile, inBytes, 0, inBytes.length);
+	}
+
+	/**
+	 * Writes a range of the bytes through a {@link FileChannel}, which copies them without an intermediate stream buffer.
+	 */
+	public static int writeFile(File inFile, byte[] inBytes, int inOffset, int inLength) throws IOException {
+
+		mkParentDirs(inFile);
 
-		try (FileOutputStream fos = new FileOutputStream(inFile)) {
+		try (FileChannel channel = FileChannel.open(inFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
 
-			fos.write(bytes);
-			fos.flush();
+			final ByteBuffer bb = ByteBuffer.wrap(inBytes, inOffset, inLength);
+
+			while (bb.hasRemaining()) {
+				channel.write(bb);
+			}
 		}
 
-		return bytes.length;
+		return inLength;
+	}
+
+	/**
+	 * Writes to a temporary file next to the target and moves it onto the target, so readers either see the former or the new content.
+	 */
+	public static int writeFileAtomically(File inFile, String inValue, Charset inCharset) throws IOException {
+		return writeFileAtomically(inFile, (inValue == null ? "" : inValue).getBytes(inCharset == null ? CHARSET_UTF8 : inCharset));
+	}
+	
+	public static int writeFileAtomically(File inFile, byte[] inBytes) throws IOException {
+		return writeFileAtomically(inFile, inBytes, 0, inBytes.length);
+	}
+	
+	public static int writeFileAtomically(File inFile, byte[] inBytes, int inOffset, int inLength) throws IOException {
+		
+		mkParentDirs(inFile);
+		
+		final File tempFile = File.createTempFile( inFile.getName()+".", ".tmp", inFile.getParentFile() );
+		
+		try {
+			
+			final int length = writeFile( tempFile, inBytes, inOffset, inLength );
+			Files.move( tempFile.toPath(), inFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+			return length;
+			
+		} finally {
+			tempFile.delete();
+		}
 	}
 
 	public static String readFileToString(File inFile, Charset inCharset) throws IOException {
@@ -352,6 +399,79 @@ public class Utils {
 		return new String(theChars);
 	}
 
+	/**
+	 * 64 bit FNV-1a hash; see http://www.isthe.com/chongo/tech/comp/fnv/
+	 */
+	public static long fnv1a64(byte[] inData, int inOffset, int inLength) {
+
+		long h = 0xcbf29ce484222325L;
+
+		for (int i = inOffset, end = inOffset + inLength; i < end; i++) {
+			h ^= inData[i] & 0xff;
+			h *= 0x100000001b3L;
+		}
+
+		return h;
+	}
+
+	/**
+	 * MurmurHash3 (x86, 32 bit) of the UTF-8 bytes of the value; a fast hash with uniform distribution.
+	 */
+	public static int murmur3(String inValue, int inSeed) {
+		return murmur3(inValue.getBytes(CHARSET_UTF8), inSeed);
+	}
+
+	/**
+	 * MurmurHash3 (x86, 32 bit); see https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp
+	 */
+	public static int murmur3(byte[] inData, int inSeed) {
+
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+		final int blocks = inData.length / 4;
+
+		int h = inSeed;
+
+		for (int i = 0; i < blocks; i++) {
+
+			final int idx = i * 4;
+			int k = (inData[idx] & 0xff) | (inData[idx + 1] & 0xff) << 8 | (inData[idx + 2] & 0xff) << 16 | (inData[idx + 3] & 0xff) << 24;
+
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h * 5 + 0xe6546b64;
+		}
+
+		int k = 0;
+		final int tail = blocks * 4;
+
+		switch (inData.length & 3) {
+		case 3:
+			k ^= (inData[tail + 2] & 0xff) << 16;
+		case 2:
+			k ^= (inData[tail + 1] & 0xff) << 8;
+		case 1:
+			k ^= inData[tail] & 0xff;
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+		}
+
+		h ^= inData.length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+
 	public static class Wrapper<T> {
 		public T value;
 
@@ -424,7 +544,8 @@ public class Utils {
 				continue;
 			}
 
-			Stream.of(dir.listFiles()).filter((f) -> we.value == null).forEach((f) -> {
+			// a directory may be deleted meanwhile
+			Stream.of(defaultIfNull(dir.listFiles(), EMPTY_FILES)).filter((f) -> we.value == null).forEach((f) -> {
 				if (f.isDirectory()) {
 					dirs.add(0, f);
 				} else if (f.isFile()) {
@@ -436,6 +557,10 @@ public class Utils {
 				}
 			});
 		}
+		
+		if (we.isNotNull()) {
+			throw we.value;
+		}
 	}
 
 	@FunctionalInterface
@@ -448,6 +573,11 @@ public class Utils {
 	}
 	
 	
+	/**
+	 * Copies up to the given amount of bytes; no byte beyond is read from the stream, so it may be read on afterwards.
+	 * 
+	 * @return amount of copied bytes
+	 */
 	public static long copy(InputStream in, OutputStream out, long maxBytes, MessageDigest md) throws IOException {
 		
 		if (in == null || out == null) {
@@ -456,19 +586,18 @@ public class Utils {
 		
 		if ( maxBytes < 1 ) { return 0; }
 		
+		final byte[] buffer = new byte[ (int)Math.min( maxBytes, 64*1024 ) ];
 		long count = 0;
+		int n;
 		
-		int r;
-		
-		while( maxBytes > 0 && EOF < (r=in.read()) ) {
+		while( count < maxBytes && EOF != (n = in.read( buffer, 0, (int)Math.min( buffer.length, maxBytes-count ) )) ) {
 			
 			if ( md != null ) {
-        		md.update( (byte)r );
-        	}
+				md.update( buffer, 0, n );
+			}
 			
-			maxBytes--;
-			out.write( r );
-			count++;
+			out.write( buffer, 0, n );
+			count += n;
 		}
 		
 		return count;
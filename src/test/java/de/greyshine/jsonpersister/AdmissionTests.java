@@ -0,0 +1,270 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.AdmissionController.Operation;
+import de.greyshine.jsonpersister.exceptions.OverloadedException;
+import de.greyshine.jsonpersister.objects.CcListElement;
+import de.greyshine.jsonpersister.objects.FeedObject;
+import de.greyshine.jsonpersister.objects.SimpleObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class AdmissionTests {
+
+	private static final File STORAGE = new File( "target/test/storage/"+ AdmissionTests.class.getSimpleName() );
+
+	@BeforeClass
+	public static void beforeClass() {
+
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		}
+
+		STORAGE.mkdirs();
+
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+
+	/**
+	 * While a list holds the only admission of scans, another scan is rejected, but reads within the list's callback and reads of other threads are admitted.
+	 */
+	@Test
+	public void rejectBeyondLimit() throws Exception {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "limit" ) );
+
+		for (int i = 0; i < 3; i++) {
+			jp.upsert( newObject( "o"+ i, "text"+ i ) );
+		}
+
+		jp.getAdmissionController().setLimit( Operation.SCAN, 1, 0, 0 );
+		jp.getAdmissionController().setLimit( Operation.READ, 1, 0, 0 );
+
+		final CountDownLatch listing = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+
+		final Thread lister = new Thread( ()->{
+			try {
+				jp.list( SimpleObject.class, (o)->{
+					try {
+						// nested in the admitted scan
+						Assert.assertNotNull( jp.read( SimpleObject.class, o.id ) );
+						listing.countDown();
+						release.await();
+					} catch (Exception e) {
+						failure.set( e );
+					}
+					return false;
+				} );
+			} catch (Exception e) {
+				failure.set( e );
+			}
+		} );
+
+		lister.start();
+		listing.await();
+
+		Assert.assertEquals( 1, jp.getAdmissionController().getRunning( Operation.SCAN ) );
+
+		try {
+			jp.getList( SimpleObject.class, null );
+			Assert.fail();
+		} catch (OverloadedException e) {
+			Assert.assertEquals( "SCAN", e.operation );
+			Assert.assertEquals( 1, e.limit );
+		}
+
+		Assert.assertEquals( 1, jp.getMetrics().getOverloads() );
+		Assert.assertEquals( "text1", jp.read( SimpleObject.class, "o1" ).text );
+
+		release.countDown();
+		lister.join();
+
+		Assert.assertNull( failure.get() );
+		Assert.assertEquals( 0, jp.getAdmissionController().getRunning( Operation.SCAN ) );
+		Assert.assertEquals( 3, jp.getList( SimpleObject.class, null ).size() );
+
+		jp.close();
+	}
+
+	/**
+	 * A queued operation is admitted once the running one completes; beyond the queue operations are rejected.
+	 */
+	@Test
+	public void queue() throws Exception {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "queue" ) );
+		jp.upsert( newObject( "o", "text" ) );
+
+		jp.getAdmissionController().setLimit( Operation.SCAN, 1, 1, 5000 );
+
+		final CountDownLatch listing = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+
+		final Thread lister = new Thread( ()->jp.list( SimpleObject.class, (o)->{
+			listing.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		} ) );
+
+		lister.start();
+		listing.await();
+
+		final AtomicReference<Integer> size = new AtomicReference<>();
+		final Thread queued = new Thread( ()->size.set( jp.getList( SimpleObject.class, null ).size() ) );
+		queued.start();
+
+		while ( jp.getAdmissionController().getQueued( Operation.SCAN ) == 0 ) {
+			Thread.sleep( 1 );
+		}
+
+		// the queue is full
+		try {
+			jp.getList( SimpleObject.class, null );
+			Assert.fail();
+		} catch (OverloadedException e) {
+			// expected
+		}
+
+		release.countDown();
+		lister.join();
+		queued.join();
+
+		Assert.assertEquals( Integer.valueOf( 1 ), size.get() );
+
+		jp.close();
+	}
+
+	/**
+	 * Chunk operations and counting are admitted as well; being admitted by one persister does not admit operations of another.
+	 */
+	@Test
+	public void chunksCountsAndInstances() throws Exception {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "chunks" ) );
+		final JsonPersister other = new JsonPersister( new File( STORAGE, "other" ) );
+
+		final FeedObject feed = new FeedObject();
+		final String feedId = jp.upsert( feed );
+
+		for (int i = 0; i < 3; i++) {
+			final CcListElement element = new CcListElement();
+			element.id = "e"+ i;
+			jp.appendElements( FeedObject.class, feedId, "elements", Collections.singletonList( element ) );
+		}
+
+		other.upsert( newObject( "o", "text" ) );
+
+		jp.getAdmissionController().setLimit( Operation.READ, 1, 0, 0 );
+		jp.getAdmissionController().setLimit( Operation.SCAN, 1, 0, 0 );
+		other.getAdmissionController().setLimit( Operation.SCAN, 1, 0, 0 );
+
+		final CountDownLatch reading = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+
+		// holds the only admission of reads and, by the other persister, of scans
+		final Thread reader = new Thread( ()->{
+			try {
+				jp.listElements( FeedObject.class, feedId, "elements", (CcListElement e)->{
+					try {
+						other.list( SimpleObject.class, (o)->{
+							reading.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException ie) {
+								Thread.currentThread().interrupt();
+							}
+							return false;
+						} );
+					} catch (Exception ex) {
+						failure.set( ex );
+					}
+					return null;
+				} );
+			} catch (Exception e) {
+				failure.set( e );
+			}
+		} );
+
+		reader.start();
+		reading.await();
+
+		try {
+			jp.countElements( FeedObject.class, feedId, "elements" );
+			Assert.fail();
+		} catch (OverloadedException e) {
+			Assert.assertEquals( "READ", e.operation );
+		}
+
+		// admitted by jp, which does not admit scans of the other persister
+		jp.list( FeedObject.class, (f)->{
+			try {
+				other.count( SimpleObject.class );
+				Assert.fail();
+			} catch (OverloadedException e) {
+				Assert.assertEquals( "SCAN", e.operation );
+			} catch (IOException e) {
+				failure.set( e );
+			}
+			return false;
+		} );
+
+		release.countDown();
+		reader.join();
+
+		Assert.assertNull( failure.get() );
+		Assert.assertEquals( 3, jp.countElements( FeedObject.class, feedId, "elements" ) );
+		Assert.assertEquals( 1, other.count( SimpleObject.class ) );
+
+		jp.close();
+		other.close();
+	}
+
+	@Test
+	public void adaptiveLimit() throws IOException {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "adaptive" ) );
+
+		jp.getAdmissionController().setAdaptiveLimit( Operation.WRITE, 2, 8, 100, 1000 );
+
+		Assert.assertEquals( 2, jp.getAdmissionController().getLimit( Operation.WRITE ) );
+
+		for (int i = 0; i < 100; i++) {
+			jp.upsert( newObject( "o"+ i, "text"+ i ) );
+			final int limit = jp.getAdmissionController().getLimit( Operation.WRITE );
+			Assert.assertTrue( String.valueOf( limit ), limit >= 2 && limit <= 8 );
+		}
+
+		Assert.assertEquals( -1, jp.getAdmissionController().getLimit( Operation.READ ) );
+
+		try {
+			jp.getAdmissionController().setAdaptiveLimit( Operation.READ, 4, 2, 0, 0 );
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		jp.close();
+	}
+
+	private static SimpleObject newObject(String id, String text) {
+		final SimpleObject o = new SimpleObject();
+		o.id = id;
+		o.text = text;
+		return o;
+	}
+}
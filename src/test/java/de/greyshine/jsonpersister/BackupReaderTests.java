@@ -0,0 +1,159 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.AttachmentObject;
+import de.greyshine.jsonpersister.objects.CcListElement;
+import de.greyshine.jsonpersister.objects.FeedObject;
+import de.greyshine.jsonpersister.objects.SimpleObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class BackupReaderTests {
+
+	private static final File STORAGE = new File( "target/test/storage/"+ BackupReaderTests.class.getSimpleName() );
+
+	@BeforeClass
+	public static void beforeClass() {
+
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		}
+
+		STORAGE.mkdirs();
+
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+
+	@Test
+	public void verifyAndList() throws IOException {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "verify" ) );
+		final File backup = prepare( jp, new File( STORAGE, "verify.backup" ) );
+
+		final BackupReader reader = new BackupReader( backup );
+		final BackupReader.Contents listed = reader.list();
+
+		Assert.assertEquals( "1.1", listed.getVersion() );
+		Assert.assertEquals( Integer.valueOf( 20 ), listed.getCounts().get( SimpleObject.class.getTypeName() ) );
+		Assert.assertEquals( Integer.valueOf( 1 ), listed.getCounts().get( FeedObject.class.getTypeName() ) );
+		Assert.assertEquals( Integer.valueOf( 1 ), listed.getCounts().get( AttachmentObject.class.getTypeName() ) );
+		Assert.assertTrue( listed.getLength() > 1024 * 1024 );
+
+		final BackupReader.Contents verified = reader.verify();
+
+		Assert.assertEquals( listed.getCounts(), verified.getCounts() );
+		Assert.assertEquals( listed.getChecksum(), verified.getChecksum() );
+
+		reader.setParallelism( 1 );
+		Assert.assertEquals( listed.getChecksum(), reader.verify().getChecksum() );
+
+		// the middle of the backup is within the content of the blob
+		try (RandomAccessFile raf = new RandomAccessFile( backup, "rw" )) {
+			raf.seek( raf.length() / 2 );
+			final int b = raf.read();
+			raf.seek( raf.length() / 2 );
+			raf.write( b ^ 0xff );
+		}
+
+		Assert.assertEquals( listed.getCounts(), reader.list().getCounts() );
+
+		try {
+			reader.verify();
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue( e.getMessage(), e.getMessage().startsWith( "Bad CRC32" ) );
+		}
+
+		jp.close();
+	}
+
+	@Test
+	public void extract() throws IOException {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "extract" ) );
+		final File backup = prepare( jp, new File( STORAGE, "extract.backup" ) );
+		final String feedId = jp.getList( FeedObject.class, null ).get( 0 ).id;
+		final AttachmentObject attachment = jp.getList( AttachmentObject.class, null ).get( 0 );
+
+		jp.upsert( newObject( "o1", "changed" ) );
+		jp.upsert( newObject( "o2", "changed" ) );
+		jp.delete( SimpleObject.class, "o3" );
+		jp.clearElements( FeedObject.class, feedId, "elements" );
+		Utils.delete( new File( new File( jp.getBaseDir(), AttachmentObject.class.getTypeName() ), BlobStore.DIR_NAME ) );
+
+		final BackupReader reader = new BackupReader( backup );
+
+		Assert.assertEquals( 2, reader.extract( jp, SimpleObject.class, Arrays.asList( "o1", "o3" ) ) );
+		Assert.assertEquals( "text1", jp.read( SimpleObject.class, "o1" ).text );
+		Assert.assertEquals( "changed", jp.read( SimpleObject.class, "o2" ).text );
+		Assert.assertEquals( "text3", jp.read( SimpleObject.class, "o3" ).text );
+
+		Assert.assertEquals( 1, reader.extract( jp, FeedObject.class, Collections.singleton( feedId ) ) );
+		Assert.assertEquals( 5, jp.countElements( FeedObject.class, feedId, "elements" ) );
+
+		Assert.assertEquals( 1, reader.extract( jp, AttachmentObject.class ) );
+
+		try (InputStream in = jp.openBlob( AttachmentObject.class, attachment.content )) {
+			Assert.assertEquals( attachment.content.getLength(), Utils.copy( in, new ByteArrayOutputStream() ) );
+		}
+
+		Assert.assertEquals( 20, reader.extract( jp, SimpleObject.class ) );
+		Assert.assertEquals( "text2", jp.read( SimpleObject.class, "o2" ).text );
+
+		jp.close();
+	}
+
+	private static File prepare(JsonPersister jp, File backup) throws IOException {
+
+		for (int i = 0; i < 20; i++) {
+			jp.upsert( newObject( "o"+ i, "text"+ i ) );
+		}
+
+		final FeedObject feed = new FeedObject();
+		feed.title = "feed";
+		final String feedId = jp.upsert( feed );
+
+		for (int i = 0; i < 5; i++) {
+			final CcListElement element = new CcListElement();
+			element.id = "e"+ i;
+			jp.appendElements( FeedObject.class, feedId, "elements", Collections.singletonList( element ) );
+		}
+
+		final byte[] bytes = new byte[ 2 * 1024 * 1024 ];
+
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)(i * 31 + i / 1024);
+		}
+
+		final AttachmentObject attachment = new AttachmentObject();
+		attachment.name = "attachment";
+		attachment.content = jp.writeBlob( AttachmentObject.class, new ByteArrayInputStream( bytes ) );
+		jp.upsert( attachment );
+
+		try (OutputStream out = new FileOutputStream( backup )) {
+			jp.writeBackup( out );
+		}
+
+		return backup;
+	}
+
+	private static SimpleObject newObject(String id, String text) {
+		final SimpleObject o = new SimpleObject();
+		o.id = id;
+		o.text = text;
+		return o;
+	}
+}
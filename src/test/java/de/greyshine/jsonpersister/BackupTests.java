@@ -2,10 +2,15 @@ package de.greyshine.jsonpersister;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -55,6 +60,29 @@ private static final File STORAGE = new File( "target/test/storage/"+ BackupTest
 		bais.close();
 	}
 
+	@Test
+	public void readVersion10() throws Exception {
+		
+		final byte[] json = "{\"id\":\"legacy\",\"text\":\"text\"}".getBytes( Utils.CHARSET_UTF8 );
+		final String path = "/"+ SimpleObject.class.getTypeName() +"/00/legacy.json";
+		
+		// version 1.0 is a gzip stream of the plain file contents
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		
+		try (DataOutputStream dos = new DataOutputStream( new GZIPOutputStream( baos ) )) {
+			dos.writeUTF( "v:1.0\n" );
+			dos.writeUTF( "F:"+ path );
+			dos.writeLong( json.length );
+			dos.write( json );
+			dos.writeUTF( "$:"+ String.format( "%064x", new BigInteger( 1, MessageDigest.getInstance( "SHA-256" ).digest( json ) ) ) );
+		}
+		
+		final JsonPersister legacy = new JsonPersister( new File( STORAGE, "legacy" ) );
+		legacy.readBackup( new ByteArrayInputStream( baos.toByteArray() ), false );
+		
+		Assert.assertArrayEquals( json, Files.readAllBytes( new File( legacy.getBaseDir(), path ).toPath() ) );
+	}
+
 	private List<Object> prepare() throws IOException {
 		
 		final List<Object> objects = new ArrayList<>();
@@ -0,0 +1,116 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.AttachmentObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class BlobTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ BlobTests.class.getSimpleName() );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void blobs() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "blobs" ) );
+		final byte[] bytes = new byte[ 3 * 1024 * 1024 ];
+		
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)(i * 31 + i / 1024);
+		}
+		
+		final Blob blob = jp.writeBlob( AttachmentObject.class, new ByteArrayInputStream( bytes ) );
+		
+		Assert.assertEquals( bytes.length, blob.getLength() );
+		Assert.assertEquals( 64, blob.getHash().length() );
+		
+		// equal content is stored once, also when transferred from a file
+		final File source = new File( STORAGE, "source.bin" );
+		Utils.writeFile( source, bytes, 0, bytes.length );
+		
+		try (FileChannel channel = FileChannel.open( source.toPath(), StandardOpenOption.READ )) {
+			Assert.assertEquals( blob, jp.writeBlob( AttachmentObject.class, channel ) );
+		}
+		
+		final File blobsDir = new File( new File( jp.getBaseDir(), AttachmentObject.class.getTypeName() ), BlobStore.DIR_NAME );
+		Assert.assertEquals( 1, blobsDir.listFiles().length );
+		
+		final AttachmentObject object = new AttachmentObject();
+		object.name = "attachment";
+		object.content = blob;
+		final String id = jp.upsert( object );
+		
+		final AttachmentObject read = jp.read( AttachmentObject.class, id );
+		Assert.assertEquals( blob, read.content );
+		
+		try (InputStream in = jp.openBlob( AttachmentObject.class, read.content )) {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			Utils.copy( in, baos );
+			Assert.assertArrayEquals( bytes, baos.toByteArray() );
+		}
+		
+		final ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+		Assert.assertEquals( bytes.length, jp.transferBlob( AttachmentObject.class, blob, Channels.newChannel( transferred ) ) );
+		Assert.assertArrayEquals( bytes, transferred.toByteArray() );
+		
+		// blobs are stored as they are in backups
+		final ByteArrayOutputStream backup = new ByteArrayOutputStream();
+		jp.writeBackup( backup );
+		
+		final JsonPersister restored = new JsonPersister( new File( STORAGE, "restored" ) );
+		restored.readBackup( new ByteArrayInputStream( backup.toByteArray() ), false );
+		
+		try (InputStream in = restored.openBlob( AttachmentObject.class, restored.read( AttachmentObject.class, id ).content )) {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			Utils.copy( in, baos );
+			Assert.assertArrayEquals( bytes, baos.toByteArray() );
+		}
+		
+		// referenced blobs are kept, unreferenced ones deleted
+		final Blob unused = jp.writeBlob( AttachmentObject.class, new ByteArrayInputStream( "unused".getBytes( Utils.CHARSET_UTF8 ) ) );
+		
+		Assert.assertEquals( 0, jp.collectBlobs( AttachmentObject.class, 60 * 1000 ) );
+		
+		for (File dir : blobsDir.listFiles()) {
+			for (File file : dir.listFiles()) {
+				Assert.assertTrue( file.setLastModified( System.currentTimeMillis() - 2 * 60 * 1000 ) );
+			}
+		}
+		
+		Assert.assertEquals( 1, jp.collectBlobs( AttachmentObject.class, 60 * 1000 ) );
+		Assert.assertNull( jp.openBlob( AttachmentObject.class, unused ) );
+		Assert.assertNotNull( jp.openBlob( AttachmentObject.class, blob ) );
+		
+		jp.delete( AttachmentObject.class, id );
+		
+		Assert.assertEquals( 1, jp.collectBlobs( AttachmentObject.class, 0 ) );
+		Assert.assertTrue( Arrays.stream( blobsDir.listFiles() ).allMatch( (d)->d.list().length == 0 ) );
+		
+		jp.close();
+		restored.close();
+	}
+}
@@ -0,0 +1,152 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.objects.VersionedObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class ChangeFeedTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ ChangeFeedTests.class.getSimpleName() );
+	
+	final JsonPersister jp = new JsonPersister( STORAGE );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void subscribe() throws Exception {
+		
+		jp.configureChangeFeed( 16, true );
+		
+		final List<ChangeFeed.Event> events = new CopyOnWriteArrayList<>();
+		final ChangeFeed.Subscription subscription = jp.subscribe( VersionedObject.class, events::add );
+		
+		final VersionedObject vo = new VersionedObject( "v1" );
+		vo.version = 3;
+		jp.upsert( vo );
+		jp.upsert( new IdObject( "ignored" ) );
+		jp.delete( VersionedObject.class, "v1" );
+		
+		awaitSize( events, 2 );
+		subscription.cancel();
+		
+		Assert.assertEquals( ChangeFeed.Type.UPSERT, events.get(0).type );
+		Assert.assertEquals( "v1", events.get(0).id );
+		Assert.assertEquals( Long.valueOf( 3 ), events.get(0).version );
+		Assert.assertNotNull( events.get(0).json );
+		Assert.assertEquals( ChangeFeed.Type.DELETE, events.get(1).type );
+		Assert.assertTrue( events.get(0).sequence < events.get(1).sequence );
+	}
+	
+	@Test
+	public void resume() throws Exception {
+		
+		jp.configureChangeFeed( 4, false );
+		
+		for (int i = 0; i < 6; i++) {
+			jp.upsert( new IdObject( "r"+ i ) );
+		}
+		
+		final List<ChangeFeed.Event> events = new CopyOnWriteArrayList<>();
+		final List<Long> missed = new CopyOnWriteArrayList<>();
+		
+		try (ChangeFeed.Subscription subscription = jp.subscribe( null, new ChangeFeed.Listener() {
+			
+			@Override
+			public void onChange(ChangeFeed.Event event) {
+				events.add( event );
+			}
+			
+			@Override
+			public void onMissed(long fromSequence, long resumedSequence) {
+				missed.add( fromSequence );
+			}
+		}, 0 )) {
+			
+			awaitSize( events, 4 );
+		}
+		
+		Assert.assertEquals( 1, missed.size() );
+		Assert.assertEquals( 1L, missed.get(0).longValue() );
+		Assert.assertEquals( 3L, events.get(0).sequence );
+		Assert.assertNull( events.get(0).json );
+	}
+	
+	/**
+	 * A subscription kept busy by continuous publishing does not starve the others.
+	 */
+	@Test
+	public void fairness() throws Exception {
+		
+		final ChangeFeed feed = new ChangeFeed( 1000, false );
+		final List<ChangeFeed.Event> slow = new CopyOnWriteArrayList<>();
+		final List<ChangeFeed.Event> fast = new CopyOnWriteArrayList<>();
+		final List<Long> missed = new CopyOnWriteArrayList<>();
+		
+		final ChangeFeed.Listener slowListener = new ChangeFeed.Listener() {
+			
+			@Override
+			public void onChange(ChangeFeed.Event event) {
+				slow.add( event );
+				try {
+					Thread.sleep( 2 );
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			
+			@Override
+			public void onMissed(long fromSequence, long resumedSequence) {
+				missed.add( fromSequence );
+			}
+		};
+		
+		try (ChangeFeed.Subscription s1 = feed.subscribe( null, slowListener, -1 );
+				ChangeFeed.Subscription s2 = feed.subscribe( null, fast::add, -1 )) {
+			
+			for (int i = 0; i < 300; i++) {
+				feed.publish( ChangeFeed.Type.UPSERT, IdObject.class, "f"+ i, null, null );
+				Thread.sleep( 1 );
+			}
+			
+			// served while the slow subscription is still busy
+			Assert.assertTrue( fast.size() +" of 300", fast.size() > 50 );
+			
+			for (int i = 0; i < 500 && slow.size() < 300; i++) {
+				Thread.sleep( 20 );
+			}
+			
+			awaitSize( fast, 300 );
+			Assert.assertEquals( 300, slow.size() );
+			Assert.assertTrue( missed.isEmpty() );
+		}
+	}
+	
+	private static void awaitSize(List<?> list, int size) throws InterruptedException {
+		
+		for (int i = 0; i < 100 && list.size() < size; i++) {
+			Thread.sleep( 20 );
+		}
+		
+		Assert.assertEquals( size, list.size() );
+	}
+
+}
@@ -0,0 +1,153 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import de.greyshine.jsonpersister.objects.CcListElement;
+import de.greyshine.jsonpersister.objects.FeedObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class ChunkTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ ChunkTests.class.getSimpleName() );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void elements() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "elements" ) );
+		
+		final FeedObject feed = new FeedObject();
+		feed.title = "feed";
+		final String id = jp.upsert( feed );
+		
+		Assert.assertFalse( jp.appendElements( FeedObject.class, "unknown", "elements", Arrays.asList( newElement( "x" ) ) ) );
+		
+		Assert.assertTrue( jp.appendElements( FeedObject.class, id, "elements", Arrays.asList( newElement( "e0" ), newElement( "e1" ) ) ) );
+		
+		final List<CcListElement> appended = new ArrayList<>();
+		for (int i = 2; i < 8; i++) {
+			appended.add( newElement( "e"+ i ) );
+		}
+		Assert.assertTrue( jp.appendElements( FeedObject.class, id, "elements", appended ) );
+		
+		final File typeDir = new File( jp.getBaseDir(), FeedObject.class.getTypeName() );
+		final File chunksDir = new File( Chunks.getDir( typeDir, id ), "elements" );
+		
+		// 8 elements in chunks of 3
+		Assert.assertEquals( Arrays.asList( "00000000.jsonl", "00000001.jsonl", "00000002.jsonl", Chunks.STATE_FILE_NAME ), Arrays.asList( chunksDir.list() ).stream().sorted().collect( Collectors.toList() ) );
+		Assert.assertEquals( 8, jp.countElements( FeedObject.class, id, "elements" ) );
+		
+		// the object itself carries no elements
+		final FeedObject read = jp.read( FeedObject.class, id );
+		Assert.assertEquals( "feed", read.title );
+		Assert.assertTrue( read.elements.isEmpty() );
+		
+		final List<String> ids = new ArrayList<>();
+		jp.listElements( FeedObject.class, id, "elements", (CcListElement e)->ids.add( e.id ) );
+		Assert.assertEquals( Arrays.asList( "e0", "e1", "e2", "e3", "e4", "e5", "e6", "e7" ), ids );
+		
+		final List<CcListElement> page = jp.pageElements( FeedObject.class, id, "elements", 4, 3 );
+		Assert.assertEquals( Arrays.asList( "e4", "e5", "e6" ), Arrays.asList( page.get(0).id, page.get(1).id, page.get(2).id ) );
+		Assert.assertEquals( 1, jp.pageElements( FeedObject.class, id, "elements", 7, 3 ).size() );
+		Assert.assertTrue( jp.pageElements( FeedObject.class, id, "elements", 8, 3 ).isEmpty() );
+		
+		// upserting the object leaves the elements alone; elements in the field are ignored
+		read.title = "changed";
+		jp.upsert( read );
+		Assert.assertEquals( 8, jp.countElements( FeedObject.class, id, "elements" ) );
+		
+		read.elements.add( newElement( "ignored" ) );
+		read.title = "changed again";
+		jp.upsert( read );
+		Assert.assertEquals( "changed again", jp.read( FeedObject.class, id ).title );
+		Assert.assertTrue( jp.read( FeedObject.class, id ).elements.isEmpty() );
+		Assert.assertEquals( 8, jp.countElements( FeedObject.class, id, "elements" ) );
+		
+		try {
+			jp.appendElements( FeedObject.class, id, "title", Collections.emptyList() );
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		Assert.assertTrue( jp.delete( FeedObject.class, id ) );
+		Assert.assertFalse( chunksDir.exists() );
+		Assert.assertEquals( 0, jp.countElements( FeedObject.class, id, "elements" ) );
+		
+		jp.close();
+	}
+	
+	/**
+	 * Appends and clears are published on the change feed; snapshots do not version the elements.
+	 */
+	@Test
+	public void changeFeedAndSnapshots() throws Exception {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "changeFeed" ) );
+		jp.configureChangeFeed( 16, true );
+		
+		final String id = jp.upsert( new FeedObject() );
+		final List<ChangeFeed.Event> events = new CopyOnWriteArrayList<>();
+		
+		try (ChangeFeed.Subscription subscription = jp.subscribe( FeedObject.class, events::add );
+				JsonPersister.Snapshot snapshot = jp.openSnapshot()) {
+			
+			jp.appendElements( FeedObject.class, id, "elements", Arrays.asList( newElement( "e0" ), newElement( "e1" ) ) );
+			jp.appendElements( FeedObject.class, id, "elements", Collections.emptyList() );
+			
+			// seen live, though appended after the snapshot was opened
+			Assert.assertEquals( 2, jp.countElements( FeedObject.class, id, "elements" ) );
+			Assert.assertNotNull( snapshot.read( FeedObject.class, id ) );
+			
+			Assert.assertTrue( jp.clearElements( FeedObject.class, id, "elements" ) );
+			Assert.assertFalse( jp.clearElements( FeedObject.class, id, "elements" ) );
+			
+			final long timeout = System.currentTimeMillis() + 5000;
+			
+			while ( events.size() < 2 && System.currentTimeMillis() < timeout ) {
+				Thread.sleep( 5 );
+			}
+		}
+		
+		Assert.assertEquals( 2, events.size() );
+		Assert.assertEquals( ChangeFeed.Type.APPEND, events.get(0).type );
+		Assert.assertEquals( id, events.get(0).id );
+		Assert.assertEquals( "elements", events.get(0).field );
+		Assert.assertEquals( 2, new Gson().fromJson( events.get(0).json, CcListElement[].class ).length );
+		Assert.assertEquals( ChangeFeed.Type.CLEAR, events.get(1).type );
+		Assert.assertNull( events.get(1).json );
+		
+		jp.close();
+	}
+	
+	private static CcListElement newElement(String id) {
+		
+		final CcListElement element = new CcListElement();
+		element.id = id;
+		return element;
+	}
+}
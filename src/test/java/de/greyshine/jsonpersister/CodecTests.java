@@ -0,0 +1,84 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import de.greyshine.jsonpersister.codegen.JsonCodecs;
+import de.greyshine.jsonpersister.objects.CcListElement;
+import de.greyshine.jsonpersister.objects.CodecObject;
+import de.greyshine.jsonpersister.objects.CrossReferenceRoot;
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class CodecTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ CodecTests.class.getSimpleName() );
+	
+	final JsonPersister jp = new JsonPersister( STORAGE );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void generated() {
+		Assert.assertNotNull( JsonCodecs.get( IdObject.class ) );
+		Assert.assertNotNull( JsonCodecs.get( CodecObject.class ) );
+		// final fields are left to reflection
+		Assert.assertNull( JsonCodecs.get( CrossReferenceRoot.class ) );
+	}
+	
+	@Test
+	public void sameJsonAsReflection() throws IOException {
+		
+		final CodecObject co = new CodecObject();
+		co.version = 7L;
+		co.count = 3;
+		co.ratio = 0.5;
+		co.flag = true;
+		co.color = CodecObject.Color.GREEN;
+		co.tags = Arrays.asList( "a", "b" );
+		co.amounts = Collections.singletonMap( "x", 1 );
+		co.numbers = new long[] { 1, 2 };
+		co.any = new IdObject( "nested" );
+		co.element = new CcListElement();
+		co.ignored = "ignored";
+		
+		final String id = jp.upsert( co );
+		Assert.assertEquals( id, co.id );
+		
+		final Gson reflective = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
+		final Gson generated = new GsonBuilder().registerTypeAdapterFactory( JsonCodecs.getTypeAdapterFactory() ).setPrettyPrinting().serializeNulls().create();
+		
+		Assert.assertEquals( reflective.toJson( co ), generated.toJson( co ) );
+		
+		final CodecObject read = jp.read( CodecObject.class, id );
+		
+		Assert.assertEquals( reflective.toJson( reflective.fromJson( reflective.toJson( co ), CodecObject.class ) ), reflective.toJson( read ) );
+		Assert.assertEquals( Long.valueOf( 7 ), read.version );
+		Assert.assertEquals( CodecObject.Color.GREEN, read.color );
+		Assert.assertEquals( Arrays.asList( "a", "b" ), read.tags );
+		Assert.assertNull( read.ignored );
+		
+		Assert.assertTrue( jp.patch( CodecObject.class, id, Collections.singletonMap( "count", 4 ) ) );
+		Assert.assertEquals( 4, jp.read( CodecObject.class, id ).count );
+		Assert.assertEquals( Long.valueOf( 8 ), jp.read( CodecObject.class, id ).version );
+	}
+}
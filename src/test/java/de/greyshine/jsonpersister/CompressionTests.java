@@ -0,0 +1,92 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.VersionedObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class CompressionTests {
+
+	private static final File STORAGE = new File( "target/test/storage/"+ CompressionTests.class.getSimpleName() );
+
+	final JsonPersister jp = new JsonPersister( STORAGE );
+
+	@BeforeClass
+	public static void beforeClass() {
+
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		}
+
+		STORAGE.mkdirs();
+
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+
+	@Test
+	public void compress() throws IOException {
+
+		try {
+			jp.enableCompression( VersionedObject.class );
+			Assert.fail("must not be here");
+		} catch (IllegalStateException e) {
+			// nothing to train from
+		}
+
+		for (int i = 0; i < 50; i++) {
+			final VersionedObject vo = new VersionedObject( "vo"+ i );
+			vo.text = "some text shared by the objects "+ i;
+			jp.upsert( vo );
+		}
+
+		final long plainLength = getFile( "vo1" ).length();
+
+		jp.enableCompression( VersionedObject.class );
+		Assert.assertEquals( 50, jp.recompress( VersionedObject.class ) );
+
+		final byte[] compressed = Files.readAllBytes( getFile( "vo1" ).toPath() );
+		Assert.assertEquals( 0, compressed[0] );
+		Assert.assertTrue( compressed.length +" < "+ plainLength, compressed.length * 2 < plainLength );
+
+		Assert.assertEquals( "some text shared by the objects 1", jp.read( VersionedObject.class, "vo1" ).text );
+		Assert.assertEquals( 1, jp.getList( VersionedObject.class, (vo)->"vo2".equals( vo.id ) ).size() );
+
+		jp.patch( VersionedObject.class, "vo2", Collections.singletonMap( "text", "patched" ) );
+		Assert.assertEquals( "patched", jp.read( VersionedObject.class, "vo2" ).text );
+
+		// snapshots retain versions as stored
+		try (JsonPersister.Snapshot snapshot = jp.openSnapshot()) {
+			jp.patch( VersionedObject.class, "vo4", Collections.singletonMap( "text", "patched" ) );
+			Assert.assertEquals( "some text shared by the objects 4", snapshot.read( VersionedObject.class, "vo4" ).text );
+		}
+
+		// backups carry the compressed files as stored along with their dictionaries
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		jp.writeBackup( baos );
+		beforeClass();
+		jp.readBackup( new ByteArrayInputStream( baos.toByteArray() ), false );
+
+		Assert.assertEquals( 0, Files.readAllBytes( getFile( "vo1" ).toPath() )[0] );
+		Assert.assertEquals( "some text shared by the objects 3", new JsonPersister( STORAGE ).read( VersionedObject.class, "vo3" ).text );
+		Assert.assertEquals( "patched", new JsonPersister( STORAGE ).read( VersionedObject.class, "vo4" ).text );
+
+		jp.disableCompression( VersionedObject.class );
+		jp.recompress( VersionedObject.class );
+
+		Assert.assertEquals( '{', Files.readAllBytes( getFile( "vo1" ).toPath() )[0] );
+		Assert.assertEquals( "some text shared by the objects 1", jp.read( VersionedObject.class, "vo1" ).text );
+	}
+
+	private static File getFile(String id) throws IOException {
+		return Files.walk( STORAGE.toPath() ).filter( (p)->p.getFileName().toString().equals( id +".json" ) ).findFirst().get().toFile();
+	}
+}
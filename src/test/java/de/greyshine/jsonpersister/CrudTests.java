@@ -2,9 +2,16 @@ package de.greyshine.jsonpersister;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -12,6 +19,7 @@ import org.junit.Test;
 
 import de.greyshine.jsonpersister.objects.IdObject;
 import de.greyshine.jsonpersister.objects.SimpleObject;
+import de.greyshine.jsonpersister.objects.VersionedObject;
 import de.greyshine.jsonpersister.util.Utils;
 
 public class CrudTests {
@@ -117,6 +125,165 @@ public class CrudTests {
 		Assert.assertTrue( ids.isEmpty() );
 	}
 	
+	@Test
+	public void patch() throws Exception {
+		
+		final VersionedObject vo = new VersionedObject( "patched" );
+		vo.text = "before";
+		jp.upsert( vo );
+		
+		final Map<String,Object> patch = new HashMap<>();
+		patch.put( "text", "after" );
+		
+		Assert.assertTrue( jp.patch( VersionedObject.class, "patched", patch ) );
+		Assert.assertFalse( jp.patch( VersionedObject.class, "unknown", patch ) );
+		
+		VersionedObject read = jp.read( VersionedObject.class, "patched" );
+		Assert.assertEquals( "after", read.text );
+		Assert.assertEquals( 1, read.version );
+		
+		patch.put( "text", null );
+		jp.patch( VersionedObject.class, "patched", patch );
+		read = jp.read( VersionedObject.class, "patched" );
+		Assert.assertNull( read.text );
+		Assert.assertEquals( 2, read.version );
+		
+		// concurrent patches do not lose updates
+		final ExecutorService executor = Executors.newFixedThreadPool( 4 );
+		for (int i = 0; i < 40; i++) {
+			executor.submit( ()->jp.patch( VersionedObject.class, "patched", new HashMap<>() ) );
+		}
+		executor.shutdown();
+		Assert.assertTrue( executor.awaitTermination( 10, TimeUnit.SECONDS ) );
+		Assert.assertEquals( 42, jp.read( VersionedObject.class, "patched" ).version );
+		
+		try {
+			jp.patch( VersionedObject.class, "patched", Collections.singletonMap( "id", "other" ) );
+			Assert.fail("must not be here");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void unicode() throws IOException {
+		
+		final SimpleObject so = new SimpleObject();
+		so.text = "\u00e4\u20ac\uD83D\uDE00<&>\"\\";
+		so.text2 = "lone \uD83D surrogate";
+		
+		final String id = jp.upsert( so );
+		final SimpleObject read = jp.read( SimpleObject.class, id );
+		
+		Assert.assertEquals( so.text, read.text );
+		// encoded as String.getBytes does
+		Assert.assertEquals( new String( so.text2.getBytes( Utils.CHARSET_UTF8 ), Utils.CHARSET_UTF8 ), read.text2 );
+	}
+	
+	@Test
+	public void skipUnchanged() throws IOException {
+		
+		final IdObject io = new IdObject( "unchanged" );
+		jp.upsert( io );
+		
+		final long writes = jp.getMetrics().getWrites();
+		final long skipped = jp.getMetrics().getSkippedWrites();
+		final long sequence = jp.getChangeFeed().getLastSequence();
+		
+		jp.upsert( io );
+		
+		Assert.assertEquals( writes, jp.getMetrics().getWrites() );
+		Assert.assertEquals( skipped+1, jp.getMetrics().getSkippedWrites() );
+		Assert.assertEquals( sequence, jp.getChangeFeed().getLastSequence() );
+		
+		io.time++;
+		jp.upsert( io );
+		
+		Assert.assertEquals( writes+1, jp.getMetrics().getWrites() );
+		Assert.assertEquals( io.time, jp.read( IdObject.class, "unchanged" ).time );
+		
+		// a fresh instance learns the fingerprint by reading
+		final JsonPersister jp2 = new JsonPersister( STORAGE );
+		jp2.upsert( jp2.read( IdObject.class, "unchanged" ) );
+		Assert.assertEquals( 1, jp2.getMetrics().getSkippedWrites() );
+		Assert.assertEquals( 0, jp2.getMetrics().getWrites() );
+		
+		// scans take no fingerprints
+		final JsonPersister jp3 = new JsonPersister( STORAGE );
+		final IdObject scanned = jp3.getList( IdObject.class, (o)->o.id.equals( "unchanged" ) ).get( 0 );
+		jp3.upsert( scanned );
+		Assert.assertEquals( 0, jp3.getMetrics().getSkippedWrites() );
+		Assert.assertEquals( 1, jp3.getMetrics().getWrites() );
+		
+		// nor does a persister in multi process mode, as other processes may change a file keeping its size and modification time
+		final JsonPersister multi = new JsonPersister( new File( STORAGE.getParentFile(), CrudTests.class.getSimpleName() +"-multi" ), true );
+		multi.upsert( io );
+		multi.upsert( multi.read( IdObject.class, "unchanged" ) );
+		Assert.assertEquals( 0, multi.getMetrics().getSkippedWrites() );
+		Assert.assertEquals( 2, multi.getMetrics().getWrites() );
+		multi.close();
+	}
+	
+	@Test
+	public void offHeapCache() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( STORAGE );
+		jp.enableOffHeapCache( 1024 * 1024 );
+		
+		final IdObject io = new IdObject( "cached" );
+		jp.upsert( io );
+		
+		Assert.assertEquals( io.time, jp.read( IdObject.class, "cached" ).time );
+		Assert.assertEquals( 1, jp.getMetrics().getCacheHits() );
+		Assert.assertEquals( 0, jp.getMetrics().getReads() );
+		
+		io.time++;
+		jp.upsert( io );
+		Assert.assertEquals( io.time, jp.read( IdObject.class, "cached" ).time );
+		Assert.assertEquals( 2, jp.getMetrics().getCacheHits() );
+		
+		Assert.assertTrue( jp.delete( IdObject.class, "cached" ) );
+		Assert.assertNull( jp.read( IdObject.class, "cached" ) );
+		Assert.assertEquals( 1, jp.getMetrics().getCacheMisses() );
+		
+		// a cache larger than a segment evicts the oldest objects first
+		final JsonPersister jp2 = new JsonPersister( STORAGE );
+		jp2.enableOffHeapCache( 4 * 1024 );
+		
+		for (int i = 0; i < 200; i++) {
+			jp2.upsert( new IdObject( "evicted-"+ i ) );
+		}
+		
+		Assert.assertNotNull( jp2.read( IdObject.class, "evicted-0" ) );
+		Assert.assertNotNull( jp2.read( IdObject.class, "evicted-199" ) );
+		Assert.assertEquals( 1, jp2.getMetrics().getCacheMisses() );
+		Assert.assertEquals( 1, jp2.getMetrics().getCacheHits() );
+		
+		for (int i = 0; i < 200; i++) {
+			jp2.delete( IdObject.class, "evicted-"+ i );
+		}
+	}
+	
+	@Test
+	public void readAll() throws IOException {
+		
+		final List<String> ids = new ArrayList<>();
+		
+		for (int i = 0; i < 50; i++) {
+			ids.add( jp.upsert( new IdObject( "readAll"+ i ) ) );
+		}
+		
+		ids.add( 7, "readAll-missing" );
+		ids.add( "readAll3" );
+		
+		final Map<String,IdObject> objects = jp.readAll( IdObject.class, ids );
+		
+		Assert.assertEquals( 50, objects.size() );
+		Assert.assertFalse( objects.containsKey( "readAll-missing" ) );
+		Assert.assertEquals( "readAll0", objects.keySet().iterator().next() );
+		objects.forEach( (id, o)->Assert.assertEquals( id, o.id ) );
+	}
+	
 	
 	
 
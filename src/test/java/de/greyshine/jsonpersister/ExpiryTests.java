@@ -0,0 +1,98 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.objects.SessionObject;
+import de.greyshine.jsonpersister.query.Aggregate;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class ExpiryTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ ExpiryTests.class.getSimpleName() );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void expires() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "expires" ) );
+		final long now = System.currentTimeMillis();
+		
+		// expired two minutes ago, so its minute of the index is due
+		jp.upsert( new SessionObject( "expired", now - TimeUnit.MINUTES.toMillis( 2 ) ) );
+		jp.upsert( new SessionObject( "future", now + TimeUnit.HOURS.toMillis( 1 ) ) );
+		jp.upsert( new SessionObject( "never", 0 ) );
+		
+		final File expiredFile = find( jp, SessionObject.class, "expired" );
+		
+		Assert.assertNotNull( expiredFile );
+		Assert.assertNull( jp.read( SessionObject.class, "expired" ) );
+		Assert.assertFalse( jp.isExisting( SessionObject.class, "expired" ) );
+		Assert.assertTrue( jp.isExisting( SessionObject.class, "future" ) );
+		Assert.assertEquals( 2, jp.getList( SessionObject.class, null ).size() );
+		Assert.assertEquals( Arrays.asList( 2L ), jp.aggregate( SessionObject.class, null, Aggregate.count() ) );
+		
+		Assert.assertEquals( 1, jp.sweepExpired() );
+		Assert.assertFalse( expiredFile.exists() );
+		Assert.assertNotNull( jp.read( SessionObject.class, "future" ) );
+		Assert.assertNotNull( jp.read( SessionObject.class, "never" ) );
+		Assert.assertEquals( 2, jp.count( SessionObject.class ) );
+		
+		// renewed before the sweep
+		jp.upsert( new SessionObject( "renewed", now - TimeUnit.MINUTES.toMillis( 2 ) ) );
+		jp.upsert( new SessionObject( "renewed", 0 ) );
+		
+		Assert.assertEquals( 0, jp.sweepExpired() );
+		Assert.assertNotNull( jp.read( SessionObject.class, "renewed" ) );
+		
+		jp.close();
+	}
+	
+	@Test
+	public void timeToLive() throws IOException, InterruptedException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "timeToLive" ) );
+		jp.setTimeToLive( IdObject.class, 1 );
+		
+		final IdObject object = new IdObject();
+		final String id = jp.upsert( object );
+		
+		Thread.sleep( 20 );
+		
+		Assert.assertNull( jp.read( IdObject.class, id ) );
+		Assert.assertTrue( find( jp, IdObject.class, id ) != null );
+		
+		jp.setTimeToLive( IdObject.class, TimeUnit.HOURS.toMillis( 1 ) );
+		
+		Assert.assertNotNull( jp.read( IdObject.class, id ) );
+		
+		jp.close();
+	}
+	
+	private static File find(JsonPersister jp, Class<?> clazz, String id) throws IOException {
+		try (Stream<Path> paths = Files.walk( new File( jp.getBaseDir(), clazz.getTypeName() ).toPath() )) {
+			return paths.map( Path::toFile ).filter( (f)->f.getName().equals( id +".json" ) ).findFirst().orElse( null );
+		}
+	}
+}
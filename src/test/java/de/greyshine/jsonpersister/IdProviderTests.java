@@ -0,0 +1,78 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class IdProviderTests {
+
+	private static final File STORAGE = new File( "target/test/storage/"+ IdProviderTests.class.getSimpleName() );
+
+	final JsonPersister jp = new JsonPersister( STORAGE );
+
+	@BeforeClass
+	public static void beforeClass() {
+
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		}
+
+		STORAGE.mkdirs();
+
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+
+	@Test
+	public void timeOrdered() throws Exception {
+
+		final long start = System.currentTimeMillis();
+
+		String former = TimeOrderedIdProvider.nextId();
+
+		for (int i = 0; i < 10000; i++) {
+			final String id = TimeOrderedIdProvider.nextId();
+			Assert.assertEquals( TimeOrderedIdProvider.LENGTH, id.length() );
+			Assert.assertTrue( former +" < "+ id, former.compareTo( id ) < 0 );
+			former = id;
+		}
+
+		final long timestamp = TimeOrderedIdProvider.getTimestamp( former );
+		Assert.assertTrue( timestamp >= start && timestamp <= System.currentTimeMillis() );
+
+		final Set<String> ids = ConcurrentHashMap.newKeySet();
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		for (int i = 0; i < 8; i++) {
+			executor.submit( ()->{
+				for (int j = 0; j < 10000; j++) {
+					ids.add( TimeOrderedIdProvider.nextId() );
+				}
+			} );
+		}
+		executor.shutdown();
+		Assert.assertTrue( executor.awaitTermination( 10, TimeUnit.SECONDS ) );
+		Assert.assertEquals( 80000, ids.size() );
+	}
+
+	@Test
+	public void provider() throws IOException {
+
+		Assert.assertEquals( TimeOrderedIdProvider.LENGTH, jp.upsert( new IdObject() ).length() );
+
+		jp.setIdProvider( (object)->"custom-"+ ((IdObject)object).time );
+
+		final IdObject io = new IdObject();
+		Assert.assertEquals( "custom-"+ io.time, jp.upsert( io ) );
+		Assert.assertNotNull( jp.read( IdObject.class, "custom-"+ io.time ) );
+	}
+}
@@ -0,0 +1,93 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.objects.SimpleObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class LayoutTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ LayoutTests.class.getSimpleName() );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void hashedLayout() {
+		
+		final DirectoryLayout layout = DirectoryLayout.hashed( 2, 16 );
+		
+		Assert.assertEquals( layout, DirectoryLayout.parse( layout.toString() ) );
+		Assert.assertEquals( DirectoryLayout.LEGACY, DirectoryLayout.parse( "legacy" ) );
+		Assert.assertTrue( layout.getBucket( "some-id" ).matches( "[0-9a-f]/[0-9a-f]" ) );
+		Assert.assertTrue( DirectoryLayout.hashed( 1, 256 ).getBucket( "some-id" ).matches( "[0-9a-f]{2}" ) );
+		
+		final Map<String,Integer> counts = new HashMap<>();
+		for (int i = 0; i < 16000; i++) {
+			counts.merge( DirectoryLayout.hashed( 1, 16 ).getBucket( "id"+ i ), 1, Integer::sum );
+		}
+		
+		Assert.assertEquals( 16, counts.size() );
+		counts.values().forEach( (c)->Assert.assertTrue( "uneven distribution: "+ counts, c > 800 && c < 1200 ) );
+	}
+	
+	@Test
+	public void defaultLayout() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "default" ) );
+		jp.upsert( new IdObject( "1" ) );
+		
+		Assert.assertEquals( "hashed:1:256", Utils.readToString( new File( jp.getBaseDir(), IdObject.class.getTypeName() +"/"+ DirectoryLayout.FILE_NAME ), null ) );
+		Assert.assertNotNull( jp.read( IdObject.class, "1" ) );
+	}
+	
+	@Test
+	public void migrateLegacy() throws IOException {
+		
+		final File storage = new File( STORAGE, "legacy" );
+		
+		// files written before layouts were configurable
+		for (int i = 0; i < 50; i++) {
+			final String id = "id"+ i;
+			Utils.writeFile( new File( storage, SimpleObject.class.getTypeName() +"/"+ DirectoryLayout.LEGACY.getBucket( id ) +"/"+ id +".json" ), "{\"id\":\""+ id +"\"}" );
+		}
+		
+		final JsonPersister jp = new JsonPersister( storage );
+		
+		Assert.assertEquals( DirectoryLayout.LEGACY, jp.getLayout( SimpleObject.class ) );
+		Assert.assertNotNull( jp.read( SimpleObject.class, "id7" ) );
+		Assert.assertEquals( 50, jp.getList( SimpleObject.class, null ).size() );
+		
+		Assert.assertEquals( 50, jp.migrateLayout( SimpleObject.class, DirectoryLayout.hashed( 2, 4 ) ) );
+		
+		Assert.assertEquals( 50, jp.getList( SimpleObject.class, null ).size() );
+		
+		final JsonPersister jp2 = new JsonPersister( storage );
+		Assert.assertEquals( DirectoryLayout.hashed( 2, 4 ), jp2.getLayout( SimpleObject.class ) );
+		
+		for (int i = 0; i < 50; i++) {
+			Assert.assertNotNull( jp2.read( SimpleObject.class, "id"+ i ) );
+		}
+		
+		Assert.assertEquals( 0, jp2.migrateLayout( SimpleObject.class, DirectoryLayout.hashed( 2, 4 ) ) );
+		Assert.assertEquals( 4, Utils.list( new File( storage, SimpleObject.class.getTypeName() ), File::isDirectory ).size() );
+	}
+
+}
@@ -0,0 +1,116 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.SimpleObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class MaintenanceTests {
+
+	private static final File STORAGE = new File( "target/test/storage/"+ MaintenanceTests.class.getSimpleName() );
+
+	@BeforeClass
+	public static void beforeClass() {
+
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		}
+
+		STORAGE.mkdirs();
+
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+
+	/**
+	 * A throttled backup does not block writers and contains the objects as they were when it started.
+	 */
+	@Test
+	public void throttledBackup() throws Exception {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "backup" ) );
+		final char[] text = new char[ 1000 ];
+		Arrays.fill( text, 'x' );
+
+		for (int i = 0; i < 40; i++) {
+			jp.upsert( newObject( "o"+ i, new String( text ) ) );
+		}
+
+		jp.setMaintenanceRate( 20 * 1024 );
+
+		final ByteArrayOutputStream backup = new ByteArrayOutputStream();
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+
+		final Thread backupThread = new Thread( ()->{
+			try {
+				jp.writeBackup( backup );
+			} catch (Exception e) {
+				failure.set( e );
+			}
+		} );
+
+		backupThread.start();
+
+		while ( backupThread.isAlive() && jp.getMetrics().getMaintenanceProgress().isEmpty() ) {
+			Thread.sleep( 1 );
+		}
+
+		jp.upsert( newObject( "o0", "changed" ) );
+		jp.delete( SimpleObject.class, "o1" );
+		jp.upsert( newObject( "new", "new" ) );
+
+		// the writes did not wait for the backup
+		Assert.assertTrue( jp.getMetrics().getMaintenanceProgress().containsKey( "backup" ) );
+
+		backupThread.join();
+
+		Assert.assertNull( failure.get() );
+		Assert.assertTrue( jp.getMetrics().getMaintenanceThrottledMillis() > 0 );
+		Assert.assertTrue( jp.getMetrics().getMaintenanceBytes() >= 40 * text.length );
+		Assert.assertTrue( jp.getMetrics().getMaintenanceProgress().isEmpty() );
+
+		final JsonPersister restored = new JsonPersister( new File( STORAGE, "restored" ) );
+		restored.readBackup( new ByteArrayInputStream( backup.toByteArray() ), false );
+
+		Assert.assertEquals( 40, restored.count( SimpleObject.class ) );
+		Assert.assertEquals( new String( text ), restored.read( SimpleObject.class, "o0" ).text );
+		Assert.assertNotNull( restored.read( SimpleObject.class, "o1" ) );
+		Assert.assertNull( restored.read( SimpleObject.class, "new" ) );
+
+		jp.close();
+		restored.close();
+	}
+
+	@Test
+	public void throttledPacking() throws IOException {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "pack" ) );
+
+		for (int i = 0; i < 10; i++) {
+			jp.upsert( newObject( "o"+ i, "text"+ i ) );
+		}
+
+		final long bytes = jp.getMetrics().getMaintenanceBytes();
+
+		Assert.assertEquals( 10, jp.packColdObjects( SimpleObject.class, 0 ) );
+		Assert.assertTrue( jp.getMetrics().getMaintenanceBytes() > bytes );
+		Assert.assertEquals( "text3", jp.read( SimpleObject.class, "o3" ).text );
+
+		jp.close();
+	}
+
+	private static SimpleObject newObject(String id, String text) {
+		final SimpleObject o = new SimpleObject();
+		o.id = id;
+		o.text = text;
+		return o;
+	}
+}
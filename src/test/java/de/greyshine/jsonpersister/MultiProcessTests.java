@@ -0,0 +1,92 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class MultiProcessTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ MultiProcessTests.class.getSimpleName() );
+	
+	final JsonPersister jp1 = new JsonPersister( STORAGE, true );
+	final JsonPersister jp2 = new JsonPersister( STORAGE, true );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void generations() throws Exception {
+		
+		final long generation = jp2.getGeneration( IdObject.class );
+		
+		jp1.upsert( new IdObject( "g1" ) );
+		
+		Assert.assertNotEquals( generation, jp2.getGeneration( IdObject.class ) );
+		Assert.assertNotNull( jp2.read( IdObject.class, "g1" ) );
+		
+		final long generation2 = jp1.getGeneration( IdObject.class );
+		jp2.delete( IdObject.class, "g1" );
+		
+		Assert.assertNotEquals( generation2, jp1.getGeneration( IdObject.class ) );
+		Assert.assertNull( jp1.read( IdObject.class, "g1" ) );
+	}
+	
+	@Test
+	public void concurrentWriters() throws Exception {
+		
+		final List<Thread> threads = new ArrayList<>();
+		final List<Exception> exceptions = new ArrayList<>();
+		
+		for (int t = 0; t < 4; t++) {
+			
+			final JsonPersister jp = t % 2 == 0 ? jp1 : jp2;
+			
+			threads.add( new Thread( ()->{
+				try {
+					for (int i = 0; i < 25; i++) {
+						jp.upsert( new IdObject( "c"+ i ) );
+						jp.read( IdObject.class, "c"+ i );
+					}
+				} catch (Exception e) {
+					synchronized (exceptions) {
+						exceptions.add( e );
+					}
+				}
+			} ) );
+		}
+		
+		threads.forEach( Thread::start );
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		Assert.assertTrue( exceptions.toString(), exceptions.isEmpty() );
+		Assert.assertEquals( 25, jp2.getList( IdObject.class, (o)->o.id.startsWith( "c" ) ).size() );
+		
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		jp1.writeBackup( baos );
+		
+		final long generation = jp2.getGeneration( IdObject.class );
+		jp2.readBackup( new ByteArrayInputStream( baos.toByteArray() ), true );
+		Assert.assertNotEquals( generation, jp1.getGeneration( IdObject.class ) );
+	}
+
+}
@@ -0,0 +1,169 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.SimpleObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class PackTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ PackTests.class.getSimpleName() );
+	
+	private static final long DAY = TimeUnit.DAYS.toMillis( 1 );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void packs() throws IOException {
+		
+		final File dir = new File( STORAGE, "packs" );
+		final JsonPersister jp = new JsonPersister( dir );
+		
+		for (int i = 0; i < 10; i++) {
+			jp.upsert( newObject( "s"+ i, "name"+ i ) );
+		}
+		
+		// all but s9 were last written a week ago
+		for (File file : getObjectFiles( jp )) {
+			if ( !file.getName().equals( "s9.json" ) ) {
+				Assert.assertTrue( file.setLastModified( System.currentTimeMillis() - 7 * DAY ) );
+			}
+		}
+		
+		Assert.assertEquals( 9, jp.packColdObjects( SimpleObject.class, DAY ) );
+		Assert.assertEquals( 1, getObjectFiles( jp ).size() );
+		Assert.assertEquals( 0, jp.packColdObjects( SimpleObject.class, DAY ) );
+		
+		Assert.assertEquals( "name3", jp.read( SimpleObject.class, "s3" ).text );
+		Assert.assertEquals( 10, jp.getList( SimpleObject.class, null ).size() );
+		Assert.assertEquals( 10, jp.count( SimpleObject.class ) );
+		Assert.assertTrue( jp.isExisting( SimpleObject.class, "s0" ) );
+		
+		// a write brings the object back to a file
+		jp.upsert( newObject( "s3", "changed" ) );
+		Assert.assertEquals( 2, getObjectFiles( jp ).size() );
+		Assert.assertEquals( "changed", jp.read( SimpleObject.class, "s3" ).text );
+		
+		Assert.assertTrue( jp.delete( SimpleObject.class, "s4" ) );
+		Assert.assertNull( jp.read( SimpleObject.class, "s4" ) );
+		Assert.assertEquals( 9, jp.count( SimpleObject.class ) );
+		Assert.assertEquals( 9, jp.getList( SimpleObject.class, null ).size() );
+		
+		// the deleted entries are known to another instance
+		final JsonPersister jp2 = new JsonPersister( dir );
+		Assert.assertNull( jp2.read( SimpleObject.class, "s4" ) );
+		Assert.assertEquals( "changed", jp2.read( SimpleObject.class, "s3" ).text );
+		Assert.assertEquals( 9, jp2.count( SimpleObject.class ) );
+		
+		jp2.delete( SimpleObject.class, "s3" );
+		Assert.assertNull( jp2.read( SimpleObject.class, "s3" ) );
+		
+		// packs are part of backups
+		final ByteArrayOutputStream backup = new ByteArrayOutputStream();
+		jp2.writeBackup( backup );
+		
+		final JsonPersister restored = new JsonPersister( new File( STORAGE, "restored" ) );
+		restored.readBackup( new ByteArrayInputStream( backup.toByteArray() ), false );
+		
+		Assert.assertEquals( "name5", restored.read( SimpleObject.class, "s5" ).text );
+		Assert.assertNull( restored.read( SimpleObject.class, "s3" ) );
+		Assert.assertEquals( 8, restored.getList( SimpleObject.class, null ).size() );
+		
+		jp.close();
+		jp2.close();
+		restored.close();
+	}
+	
+	/**
+	 * Recompressing leaves packed objects packed, and a backup restores them as packs.
+	 */
+	@Test
+	public void recompressAndBackup() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "recompress" ) );
+		
+		for (int i = 0; i < 10; i++) {
+			jp.upsert( newObject( "r"+ i, "name"+ i ) );
+		}
+		
+		for (File file : getObjectFiles( jp )) {
+			Assert.assertTrue( file.setLastModified( System.currentTimeMillis() - 7 * DAY ) );
+		}
+		
+		Assert.assertEquals( 10, jp.packColdObjects( SimpleObject.class, DAY ) );
+		Assert.assertTrue( jp.delete( SimpleObject.class, "r0" ) );
+		
+		Assert.assertEquals( 0, jp.recompress( SimpleObject.class ) );
+		Assert.assertEquals( 0, getObjectFiles( jp ).size() );
+		Assert.assertEquals( "name5", jp.read( SimpleObject.class, "r5" ).text );
+		
+		final File backup = new File( STORAGE, "recompress.backup" );
+		
+		try (OutputStream out = new FileOutputStream( backup )) {
+			jp.writeBackup( out );
+		}
+		
+		Assert.assertEquals( Integer.valueOf( 9 ), new BackupReader( backup ).verify().getCounts().get( SimpleObject.class.getTypeName() ) );
+		
+		final JsonPersister restored = new JsonPersister( new File( STORAGE, "recompress-restored" ) );
+		
+		try (InputStream in = new FileInputStream( backup )) {
+			restored.readBackup( in, false );
+		}
+		
+		Assert.assertEquals( 0, getObjectFiles( restored ).size() );
+		Assert.assertEquals( 9, restored.count( SimpleObject.class ) );
+		Assert.assertNull( restored.read( SimpleObject.class, "r0" ) );
+		Assert.assertEquals( "name5", restored.read( SimpleObject.class, "r5" ).text );
+		
+		// packed objects are extracted from the backup
+		Assert.assertTrue( restored.delete( SimpleObject.class, "r5" ) );
+		Assert.assertEquals( 9, new BackupReader( backup ).extract( restored, SimpleObject.class ) );
+		Assert.assertEquals( "name5", restored.read( SimpleObject.class, "r5" ).text );
+		
+		jp.close();
+		restored.close();
+	}
+	
+	private static SimpleObject newObject(String id, String text) {
+		
+		final SimpleObject object = new SimpleObject();
+		object.id = id;
+		object.text = text;
+		return object;
+	}
+	
+	private static List<File> getObjectFiles(JsonPersister jp) throws IOException {
+		
+		try (Stream<Path> paths = Files.walk( new File( jp.getBaseDir(), SimpleObject.class.getTypeName() ).toPath() )) {
+			return paths.map( Path::toFile ).filter( (f)->f.isFile() && f.getName().endsWith( ".json" ) ).collect( Collectors.toList() );
+		}
+	}
+}
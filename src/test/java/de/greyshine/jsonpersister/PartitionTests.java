@@ -0,0 +1,188 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.EventObject;
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class PartitionTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ PartitionTests.class.getSimpleName() );
+	
+	private static final long DAY = TimeUnit.DAYS.toMillis( 1 );
+	/**
+	 * 2024-05-01T00:00:00Z
+	 */
+	private static final long START = 1714521600000L;
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void partitions() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "partitions" ) );
+		
+		for (int i = 0; i < 5; i++) {
+			jp.upsert( new EventObject( "e"+ i, START + i * DAY + 1000 ) );
+		}
+		
+		final String id = jp.upsert( new EventObject( null, START + 2 * DAY ) );
+		final File typeDir = new File( jp.getBaseDir(), EventObject.class.getTypeName() );
+		
+		Assert.assertEquals( "DAY", Utils.readToString( new File( typeDir, Partitioning.FILE_NAME ), Utils.CHARSET_UTF8 ) );
+		Assert.assertTrue( new File( typeDir, "2024-05-03" ).isDirectory() );
+		Assert.assertEquals( START + 3 * DAY + 1000, jp.read( EventObject.class, "e3" ).time );
+		Assert.assertNotNull( jp.read( EventObject.class, id ) );
+		Assert.assertEquals( 6, jp.count( EventObject.class ) );
+		
+		// a changed timestamp moves the object
+		final EventObject e4 = jp.read( EventObject.class, "e4" );
+		e4.time = START + 10 * DAY;
+		jp.upsert( e4 );
+		
+		Assert.assertTrue( Utils.list( new File( typeDir, "2024-05-05" ), (f)->true ).stream().allMatch( (bucket)->Utils.list( bucket ).isEmpty() ) );
+		Assert.assertEquals( e4.time, jp.read( EventObject.class, "e4" ).time );
+		Assert.assertEquals( 6, jp.count( EventObject.class ) );
+		
+		final List<String> ids = new ArrayList<>();
+		jp.listRange( EventObject.class, START + DAY, START + 3 * DAY, null, (e)->ids.add( e.id ) );
+		ids.sort( null );
+		
+		Assert.assertEquals( Arrays.asList( id, "e1", "e2" ), ids );
+		
+		Assert.assertEquals( Arrays.asList( "2024-05-01", "2024-05-02" ), jp.dropPartitionsBefore( EventObject.class, START + 2 * DAY ) );
+		Assert.assertNull( jp.read( EventObject.class, "e0" ) );
+		Assert.assertNull( jp.read( EventObject.class, "e1" ) );
+		Assert.assertNotNull( jp.read( EventObject.class, "e2" ) );
+		Assert.assertEquals( 4, jp.getList( EventObject.class, null ).size() );
+		Assert.assertEquals( 4, jp.count( EventObject.class ) );
+		Assert.assertFalse( new File( typeDir, "2024-05-01" ).exists() );
+		
+		try {
+			jp.upsert( new EventObject( "unset", 0 ) );
+			jp.migrateLayout( EventObject.class, DirectoryLayout.hashed( 2, 16 ) );
+			Assert.fail("must not be here");
+		} catch (IllegalStateException e) {
+			Assert.assertTrue( e.getMessage().startsWith( "The layout of the partitioned type" ) );
+		}
+	}
+	
+	/**
+	 * Updating an object within its partition once the objects are counted neither fails nor changes the count.
+	 */
+	@Test
+	public void updateAfterCount() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "updateAfterCount" ) );
+		
+		final EventObject event = new EventObject( "e", START );
+		jp.upsert( event );
+		
+		Assert.assertEquals( 1, jp.count( EventObject.class ) );
+		
+		event.text = "changed";
+		jp.upsert( event );
+		jp.upsert( new EventObject( "other", START ) );
+		
+		Assert.assertEquals( "changed", jp.read( EventObject.class, "e" ).text );
+		Assert.assertEquals( 2, jp.count( EventObject.class ) );
+		
+		jp.close();
+	}
+	
+	/**
+	 * Concurrent writes moving an object to different partitions leave a single file of the object.
+	 */
+	@Test
+	public void concurrentMoves() throws Exception {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "moves" ) );
+		jp.upsert( new EventObject( "moving", START ) );
+		
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final List<Thread> threads = new ArrayList<>();
+		
+		for (int t = 0; t < 4; t++) {
+			
+			final long time = START + t * DAY;
+			
+			threads.add( new Thread( ()->{
+				try {
+					for (int i = 0; i < 100; i++) {
+						jp.upsert( new EventObject( "moving", time ) );
+						jp.patch( EventObject.class, "moving", Collections.singletonMap( "time", time + DAY ) );
+					}
+				} catch (Exception e) {
+					failure.set( e );
+				}
+			} ) );
+		}
+		
+		threads.forEach( Thread::start );
+		
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		Assert.assertNull( failure.get() );
+		
+		try (Stream<Path> paths = Files.walk( new File( jp.getBaseDir(), EventObject.class.getTypeName() ).toPath() )) {
+			Assert.assertEquals( 1, paths.filter( (p)->p.getFileName().toString().equals( "moving.json" ) ).count() );
+		}
+		
+		Assert.assertEquals( 1, jp.count( EventObject.class ) );
+	}
+	
+	@Test
+	public void backupSkipsUnchangedPartitions() throws IOException, InterruptedException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "backup" ) );
+		
+		jp.upsert( new EventObject( "old", START ) );
+		jp.upsert( new IdObject( "unpartitioned" ) );
+		
+		Thread.sleep( 20 );
+		final long since = System.currentTimeMillis();
+		Thread.sleep( 20 );
+		
+		jp.upsert( new EventObject( "new", START + DAY ) );
+		
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		jp.writeBackup( baos, since );
+		
+		final JsonPersister restored = new JsonPersister( new File( STORAGE, "restored" ) );
+		restored.readBackup( new ByteArrayInputStream( baos.toByteArray() ), true );
+		
+		Assert.assertNotNull( restored.read( EventObject.class, "new" ) );
+		Assert.assertNotNull( restored.read( IdObject.class, "unpartitioned" ) );
+		Assert.assertNull( restored.read( EventObject.class, "old" ) );
+	}
+
+}
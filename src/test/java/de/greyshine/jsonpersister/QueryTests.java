@@ -0,0 +1,235 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.ContactObject;
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.objects.SessionObject;
+import de.greyshine.jsonpersister.objects.SimpleObject;
+import de.greyshine.jsonpersister.query.Aggregate;
+import de.greyshine.jsonpersister.query.Filter;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class QueryTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ QueryTests.class.getSimpleName() );
+	
+	final JsonPersister jp = new JsonPersister( STORAGE );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void filter() throws IOException {
+		
+		for (int i = 0; i < 10; i++) {
+			final SimpleObject so = new SimpleObject( i );
+			so.text = "text"+ i;
+			so.text2 = i % 2 == 0 ? "even" : null;
+			jp.upsert( so );
+		}
+		
+		Assert.assertEquals( 1, jp.getList( SimpleObject.class, Filter.eq( "text", "text3" ), null ).size() );
+		Assert.assertEquals( 5, jp.getList( SimpleObject.class, Filter.eq( "text2", null ), null ).size() );
+		Assert.assertEquals( 5, jp.getList( SimpleObject.class, Filter.ne( "text2", null ), null ).size() );
+		Assert.assertEquals( 3, jp.getList( SimpleObject.class, Filter.in( "id", "1", "2", "3", "42" ), null ).size() );
+		Assert.assertEquals( 10, jp.getList( SimpleObject.class, Filter.prefix( "text", "text" ), null ).size() );
+		Assert.assertEquals( 2, jp.getList( SimpleObject.class, Filter.and( Filter.gt( "text", "text1" ), Filter.lt( "text", "text4" ) ), null ).size() );
+		Assert.assertEquals( 3, jp.getList( SimpleObject.class, Filter.or( Filter.eq( "text", "text9" ), Filter.and( Filter.eq( "text2", "even" ), Filter.lt( "text", "text3" ) ) ), null ).size() );
+		Assert.assertEquals( 0, jp.getList( SimpleObject.class, Filter.eq( "unknown.path", "x" ), null ).size() );
+	}
+	
+	/**
+	 * Fields holding an object or array are present: they are not null, but equal no value.
+	 */
+	@Test
+	public void nonScalars() throws IOException {
+		
+		final ContactObject withAddress = new ContactObject( "c1" );
+		withAddress.address = new ContactObject.Address();
+		withAddress.address.city = "Berlin";
+		withAddress.tags = Arrays.asList( "a", "b" );
+		jp.upsert( withAddress );
+		jp.upsert( new ContactObject( "c2" ) );
+		
+		Assert.assertEquals( "c2", jp.getList( ContactObject.class, Filter.eq( "address", null ), null ).get( 0 ).id );
+		Assert.assertEquals( "c1", jp.getList( ContactObject.class, Filter.ne( "address", null ), null ).get( 0 ).id );
+		Assert.assertEquals( 1, jp.getList( ContactObject.class, Filter.eq( "tags", null ), null ).size() );
+		Assert.assertEquals( 1, jp.getList( ContactObject.class, Filter.ne( "tags", null ), null ).size() );
+		Assert.assertEquals( 0, jp.getList( ContactObject.class, Filter.eq( "tags", "a" ), null ).size() );
+		Assert.assertEquals( 1, jp.getList( ContactObject.class, Filter.eq( "address.city", "Berlin" ), null ).size() );
+		
+		// ordering by an object treats it as null
+		Assert.assertEquals( 2, jp.page( ContactObject.class, Filter.ne( "id", null ), "address", null, 10 ).getItems().size() );
+	}
+	
+	@Test
+	public void numbers() throws IOException {
+		
+		for (int i = 0; i < 5; i++) {
+			final IdObject io = new IdObject( "n"+ i );
+			io.time = i * 10;
+			jp.upsert( io );
+		}
+		
+		final List<IdObject> objects = jp.getList( IdObject.class, Filter.gt( "time", 15 ), (o)->o.time < 40 );
+		
+		Assert.assertEquals( 2, objects.size() );
+		Assert.assertEquals( 1, jp.getList( IdObject.class, Filter.eq( "time", 20L ), null ).size() );
+		Assert.assertEquals( 1, jp.getList( IdObject.class, Filter.eq( "time", 20.0 ), null ).size() );
+	}
+
+	@Test
+	public void page() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "page" ) );
+		
+		for (int i = 0; i < 25; i++) {
+			final IdObject io = new IdObject( String.format( "p%02d", i ) );
+			io.time = (i * 7) % 5;
+			jp.upsert( io );
+		}
+		
+		final List<String> ids = new ArrayList<>();
+		String key = null;
+		
+		do {
+			final Page<IdObject> page = jp.page( IdObject.class, null, key, 10 );
+			page.getItems().forEach( (o)->ids.add( o.id ) );
+			key = page.getNextKey();
+		} while ( key != null );
+		
+		Assert.assertEquals( 25, ids.size() );
+		Assert.assertEquals( "p00", ids.get( 0 ) );
+		Assert.assertEquals( "p24", ids.get( 24 ) );
+		
+		// by a field with ties, resumed after the last key
+		final List<IdObject> objects = new ArrayList<>();
+		key = null;
+		
+		do {
+			final Page<IdObject> page = jp.page( IdObject.class, "time", key, 4 );
+			Assert.assertTrue( page.getItems().size() <= 4 );
+			objects.addAll( page.getItems() );
+			key = page.getNextKey();
+		} while ( key != null );
+		
+		Assert.assertEquals( 25, objects.size() );
+		
+		for (int i = 1; i < objects.size(); i++) {
+			final IdObject o1 = objects.get( i-1 );
+			final IdObject o2 = objects.get( i );
+			Assert.assertTrue( o1.time < o2.time || ( o1.time == o2.time && o1.id.compareTo( o2.id ) < 0 ) );
+		}
+		
+		final Page<IdObject> filtered = jp.page( IdObject.class, Filter.eq( "time", 3 ), null, "p05", 3 );
+		Assert.assertEquals( 3, filtered.getItems().size() );
+		Assert.assertEquals( "p09", filtered.getItems().get( 0 ).id );
+		Assert.assertEquals( "p24", jp.page( IdObject.class, Filter.eq( "time", 3 ), null, filtered.getNextKey(), 3 ).getItems().get( 0 ).id );
+		
+		// spilling to sorted runs
+		jp.setMaxSortEntries( 3 );
+		final List<IdObject> ordered = new ArrayList<>();
+		jp.listOrdered( IdObject.class, Filter.gt( "time", 0 ), "time", (o)->ordered.add( o ) );
+		
+		Assert.assertEquals( 20, ordered.size() );
+		Assert.assertEquals( "p03", ordered.get( 0 ).id );
+		Assert.assertEquals( 4, ordered.get( 19 ).time );
+		Assert.assertEquals( 0, Utils.list( new File( jp.getMetaDir(), "sort" ) ).size() );
+	}
+	
+	/**
+	 * Objects left out when reading a page, here expired but not yet swept, neither shorten the page nor hide the next one.
+	 */
+	@Test
+	public void pageLeavingOut() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "pageLeavingOut" ) );
+		
+		for (int i = 0; i < 8; i++) {
+			jp.upsert( new SessionObject( "s"+ i, i < 3 ? 1 : Long.MAX_VALUE ) );
+		}
+		
+		Page<SessionObject> page = jp.page( SessionObject.class, null, null, 2 );
+		Assert.assertEquals( Arrays.asList( "s3", "s4" ), page.getItems().stream().map( (o)->o.id ).collect( Collectors.toList() ) );
+		Assert.assertEquals( "s4", page.getNextKey() );
+		
+		page = jp.page( SessionObject.class, null, page.getNextKey(), 2 );
+		Assert.assertEquals( "s6", page.getNextKey() );
+		
+		page = jp.page( SessionObject.class, null, page.getNextKey(), 2 );
+		Assert.assertEquals( 1, page.getItems().size() );
+		Assert.assertFalse( page.hasNext() );
+		
+		// the last object of a page is the last one
+		Assert.assertFalse( jp.page( SessionObject.class, null, "s5", 2 ).hasNext() );
+	}
+
+	@Test
+	public void aggregate() throws IOException {
+		
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "aggregate" ) );
+		jp.setDefaultLayout( DirectoryLayout.hashed( 2, 4 ) );
+		
+		for (int i = 0; i < 40; i++) {
+			final SimpleObject so = new SimpleObject( i );
+			so.text = i % 3 == 0 ? null : "t"+ (i % 3);
+			so.text2 = String.valueOf( i );
+			jp.upsert( so );
+		}
+		
+		Assert.assertEquals( 40, jp.count( SimpleObject.class ) );
+		
+		final List<Object> results = jp.aggregate( SimpleObject.class, Filter.ne( "text", null ), Aggregate.count(), Aggregate.sum( "text2" ), Aggregate.min( "text2" ), Aggregate.max( "id" ), Aggregate.avg( "text" ) );
+		
+		Assert.assertEquals( 26L, results.get( 0 ) );
+		// numbers written as JSON strings are not numbers
+		Assert.assertEquals( BigDecimal.ZERO, results.get( 1 ) );
+		Assert.assertEquals( "1", results.get( 2 ) );
+		Assert.assertEquals( "8", results.get( 3 ) );
+		Assert.assertNull( results.get( 4 ) );
+		
+		final Map<Object, List<Object>> groups = jp.groupBy( SimpleObject.class, null, "text", 10, Aggregate.count(), Aggregate.count( "text" ) );
+		
+		Assert.assertEquals( 3, groups.size() );
+		Assert.assertEquals( null, groups.keySet().iterator().next() );
+		Assert.assertEquals( 14L, groups.get( null ).get( 0 ) );
+		Assert.assertEquals( 0L, groups.get( null ).get( 1 ) );
+		Assert.assertEquals( 13L, groups.get( "t2" ).get( 0 ) );
+		
+		try {
+			jp.groupBy( SimpleObject.class, null, "id", 10, Aggregate.count() );
+			Assert.fail("must not be here");
+		} catch (IllegalStateException e) {
+			Assert.assertTrue( e.getMessage().startsWith( "More than 10 groups" ) );
+		}
+		
+		// the count is maintained by writes and deletes
+		jp.upsert( new SimpleObject( 40 ) );
+		jp.upsert( jp.read( SimpleObject.class, "1" ) );
+		Assert.assertTrue( jp.delete( SimpleObject.class, "2" ) );
+		Assert.assertEquals( 40, jp.count( SimpleObject.class ) );
+		Assert.assertEquals( 40L, jp.aggregate( SimpleObject.class, null, Aggregate.count() ).get( 0 ) );
+	}
+
+}
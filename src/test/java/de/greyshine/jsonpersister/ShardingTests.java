@@ -0,0 +1,265 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.AttachmentObject;
+import de.greyshine.jsonpersister.objects.CcListElement;
+import de.greyshine.jsonpersister.objects.FeedObject;
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.query.Filter;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class ShardingTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ ShardingTests.class.getSimpleName() );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void distributeAndRebalance() throws Exception {
+		
+		final ShardedJsonPersister sjp = new ShardedJsonPersister( new File( STORAGE, "s1" ), new File( STORAGE, "s2" ) );
+		
+		for (int i = 0; i < 100; i++) {
+			sjp.upsert( new IdObject( "id"+ i ) );
+		}
+		
+		for (JsonPersister shard : sjp.getShards()) {
+			Assert.assertFalse( shard.getList( IdObject.class, null ).isEmpty() );
+		}
+		
+		Assert.assertEquals( 100, sjp.getList( IdObject.class, null, null ).size() );
+		Assert.assertEquals( 1, sjp.getList( IdObject.class, Filter.eq( "id", "id42" ), null ).size() );
+		
+		final int moved = sjp.addShard( new File( STORAGE, "s3" ) );
+		
+		Assert.assertTrue( moved > 0 && moved < 100 );
+		Assert.assertEquals( moved, sjp.getShards().get(2).getList( IdObject.class, null ).size() );
+		Assert.assertEquals( 100, sjp.getList( IdObject.class, null, null ).size() );
+		
+		for (int i = 0; i < 100; i++) {
+			Assert.assertNotNull( sjp.read( IdObject.class, "id"+ i ) );
+		}
+		
+		Assert.assertTrue( sjp.delete( IdObject.class, "id1" ) );
+		Assert.assertNull( sjp.read( IdObject.class, "id1" ) );
+	}
+	
+	@Test
+	public void backup() throws Exception {
+		
+		final ShardedJsonPersister sjp = new ShardedJsonPersister( new File( STORAGE, "b1" ), new File( STORAGE, "b2" ) );
+		
+		for (int i = 0; i < 20; i++) {
+			sjp.upsert( new IdObject( "id"+ i ) );
+		}
+		
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		sjp.writeBackup( baos );
+		
+		final ShardedJsonPersister restored = new ShardedJsonPersister( new File( STORAGE, "r1" ), new File( STORAGE, "r2" ), new File( STORAGE, "r3" ) );
+		restored.readBackup( new ByteArrayInputStream( baos.toByteArray() ), false );
+		
+		final Set<String> ids = new HashSet<>();
+		restored.getList( IdObject.class, null, null ).forEach( (o)->ids.add( o.id ) );
+		
+		Assert.assertEquals( 20, ids.size() );
+		
+		for (int i = 0; i < 20; i++) {
+			Assert.assertNotNull( restored.read( IdObject.class, "id"+ i ) );
+		}
+	}
+	
+	/**
+	 * A backup of three shards restored into two: objects go to the shard they belong to, and objects stored before are removed.
+	 */
+	@Test
+	public void restoreIntoFewerShards() throws Exception {
+		
+		final ShardedJsonPersister sjp = new ShardedJsonPersister( new File( STORAGE, "f1" ), new File( STORAGE, "f2" ), new File( STORAGE, "f3" ) );
+		
+		for (int i = 0; i < 50; i++) {
+			sjp.upsert( new IdObject( "id"+ i ) );
+		}
+		
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		sjp.writeBackup( baos );
+		
+		final ShardedJsonPersister restored = new ShardedJsonPersister( new File( STORAGE, "g1" ), new File( STORAGE, "g2" ) );
+		restored.upsert( new IdObject( "stale" ) );
+		restored.readBackup( new ByteArrayInputStream( baos.toByteArray() ), false );
+		
+		Assert.assertNull( restored.read( IdObject.class, "stale" ) );
+		Assert.assertEquals( 50, restored.count( IdObject.class ) );
+		
+		for (int i = 0; i < 50; i++) {
+			Assert.assertNotNull( restored.getShard( "id"+ i ).read( IdObject.class, "id"+ i ) );
+		}
+		
+		// additively the objects are added again
+		restored.upsert( new IdObject( "added" ) );
+		restored.readBackup( new ByteArrayInputStream( baos.toByteArray() ), true );
+		
+		Assert.assertEquals( 51, restored.count( IdObject.class ) );
+	}
+	
+	/**
+	 * Objects deleted while a new shard takes them over are not written again by the move.
+	 */
+	@Test
+	public void deleteWhileAddingShard() throws Exception {
+		
+		final ShardedJsonPersister sjp = new ShardedJsonPersister( new File( STORAGE, "d1" ), new File( STORAGE, "d2" ) );
+		
+		for (int i = 0; i < 300; i++) {
+			sjp.upsert( new IdObject( "id"+ i ) );
+		}
+		
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final Thread deleter = new Thread( ()->{
+			try {
+				for (int i = 0; i < 300; i++) {
+					sjp.delete( IdObject.class, "id"+ i );
+				}
+			} catch (Exception e) {
+				failure.set( e );
+			}
+		} );
+		
+		deleter.start();
+		sjp.addShard( new File( STORAGE, "d3" ) );
+		deleter.join();
+		
+		Assert.assertNull( failure.get() );
+		Assert.assertEquals( 0, sjp.count( IdObject.class ) );
+	}
+	
+	/**
+	 * Moved objects take the elements of their chunked fields along.
+	 */
+	@Test
+	public void moveChunks() throws Exception {
+		
+		final ShardedJsonPersister sjp = new ShardedJsonPersister( new File( STORAGE, "c1" ), new File( STORAGE, "c2" ) );
+		
+		for (int i = 0; i < 20; i++) {
+			
+			final FeedObject feed = new FeedObject();
+			feed.id = "feed"+ i;
+			sjp.upsert( feed );
+			
+			final List<CcListElement> elements = new ArrayList<>();
+			for (int j = 0; j < 4; j++) {
+				final CcListElement element = new CcListElement();
+				element.id = feed.id +"-"+ j;
+				elements.add( element );
+			}
+			sjp.getShard( feed.id ).appendElements( FeedObject.class, feed.id, "elements", elements );
+		}
+		
+		Assert.assertTrue( sjp.addShard( new File( STORAGE, "c3" ) ) > 0 );
+		
+		for (int i = 0; i < 20; i++) {
+			
+			final JsonPersister shard = sjp.getShard( "feed"+ i );
+			final List<CcListElement> elements = shard.pageElements( FeedObject.class, "feed"+ i, "elements", 0, 10 );
+			
+			Assert.assertEquals( 4, elements.size() );
+			Assert.assertEquals( "feed"+ i +"-3", elements.get( 3 ).id );
+			
+			for (JsonPersister other : sjp.getShards()) {
+				if ( other != shard ) {
+					Assert.assertEquals( 0, other.countElements( FeedObject.class, "feed"+ i, "elements" ) );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Moved objects take the blobs they refer to along.
+	 */
+	@Test
+	public void moveBlobs() throws Exception {
+		
+		final ShardedJsonPersister sjp = new ShardedJsonPersister( new File( STORAGE, "a1" ), new File( STORAGE, "a2" ) );
+		
+		for (int i = 0; i < 20; i++) {
+			
+			final AttachmentObject attachment = new AttachmentObject();
+			attachment.id = "attachment"+ i;
+			attachment.content = sjp.getShard( attachment.id ).writeBlob( AttachmentObject.class, new ByteArrayInputStream( attachment.id.getBytes( Utils.CHARSET_UTF8 ) ) );
+			sjp.upsert( attachment );
+		}
+		
+		Assert.assertTrue( sjp.addShard( new File( STORAGE, "a3" ) ) > 0 );
+		
+		for (int i = 0; i < 20; i++) {
+			
+			final AttachmentObject attachment = sjp.read( AttachmentObject.class, "attachment"+ i );
+			
+			try (InputStream in = sjp.getShard( attachment.id ).openBlob( AttachmentObject.class, attachment.content )) {
+				Assert.assertNotNull( attachment.id, in );
+				Assert.assertEquals( attachment.id, Utils.readToString( in, Utils.CHARSET_UTF8 ) );
+			}
+		}
+	}
+	
+	/**
+	 * Objects written while a shard is added are found on the shard they belong to afterwards.
+	 */
+	@Test
+	public void upsertWhileAddingShard() throws Exception {
+		
+		final ShardedJsonPersister sjp = new ShardedJsonPersister( new File( STORAGE, "u1" ), new File( STORAGE, "u2" ) );
+		
+		for (int i = 0; i < 300; i++) {
+			sjp.upsert( new IdObject( "old"+ i ) );
+		}
+		
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final Thread writer = new Thread( ()->{
+			try {
+				for (int i = 0; i < 300; i++) {
+					sjp.upsert( new IdObject( "new"+ i ) );
+				}
+			} catch (Exception e) {
+				failure.set( e );
+			}
+		} );
+		
+		writer.start();
+		sjp.addShard( new File( STORAGE, "u3" ) );
+		writer.join();
+		
+		Assert.assertNull( failure.get() );
+		Assert.assertEquals( 600, sjp.count( IdObject.class ) );
+		
+		for (int i = 0; i < 300; i++) {
+			Assert.assertTrue( sjp.getShard( "new"+ i ).isExisting( IdObject.class, "new"+ i ) );
+			Assert.assertTrue( sjp.getShard( "old"+ i ).isExisting( IdObject.class, "old"+ i ) );
+		}
+	}
+
+}
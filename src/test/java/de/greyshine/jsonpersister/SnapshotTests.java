@@ -0,0 +1,258 @@
+package de.greyshine.jsonpersister;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.AttachmentObject;
+import de.greyshine.jsonpersister.objects.CcListElement;
+import de.greyshine.jsonpersister.objects.FeedObject;
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class SnapshotTests {
+
+	private static final File STORAGE = new File( "target/test/storage/"+ SnapshotTests.class.getSimpleName() );
+
+	@BeforeClass
+	public static void beforeClass() {
+
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		}
+
+		STORAGE.mkdirs();
+
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+
+	@Test
+	public void snapshot() throws IOException {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "snapshot" ) );
+
+		for (int i = 1; i <= 3; i++) {
+			jp.upsert( newObject( "o"+ i, i ) );
+		}
+
+		final JsonPersister.Snapshot snapshot = jp.openSnapshot();
+
+		jp.upsert( newObject( "o1", 10 ) );
+		jp.upsert( newObject( "o1", 11 ) );
+		jp.delete( IdObject.class, "o2" );
+		jp.upsert( newObject( "o4", 4 ) );
+
+		final JsonPersister.Snapshot laterSnapshot = jp.openSnapshot();
+
+		jp.upsert( newObject( "o1", 12 ) );
+
+		Assert.assertEquals( 1, snapshot.read( IdObject.class, "o1" ).time );
+		Assert.assertEquals( 2, snapshot.read( IdObject.class, "o2" ).time );
+		Assert.assertNull( snapshot.read( IdObject.class, "o4" ) );
+		Assert.assertEquals( "o1=1, o2=2, o3=3", toString( snapshot.getList( IdObject.class, null ) ) );
+
+		Assert.assertEquals( 11, laterSnapshot.read( IdObject.class, "o1" ).time );
+		Assert.assertEquals( "o1=11, o3=3, o4=4", toString( laterSnapshot.getList( IdObject.class, null ) ) );
+
+		Assert.assertEquals( "o1=12, o3=3, o4=4", toString( jp.getList( IdObject.class, null ) ) );
+
+		snapshot.close();
+
+		Assert.assertEquals( 11, laterSnapshot.read( IdObject.class, "o1" ).time );
+
+		laterSnapshot.close();
+
+		try {
+			laterSnapshot.read( IdObject.class, "o1" );
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		// no copies are left once all snapshots are closed
+		Assert.assertEquals( 0, Utils.list( new File( jp.getMetaDir(), "snapshots" ), File::isDirectory ).stream().mapToInt( (d)->d.list().length ).sum() );
+
+		jp.close();
+	}
+
+	/**
+	 * A writer updates the objects in rounds, one after another; a snapshot sees all objects of a round up to some object and the former round after it.
+	 */
+	@Test
+	public void concurrentWrites() throws Exception {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "concurrent" ) );
+		final int objects = 50;
+
+		for (int i = 0; i < objects; i++) {
+			jp.upsert( newObject( String.format( "o%03d", i ), 0 ) );
+		}
+
+		final AtomicBoolean stop = new AtomicBoolean( false );
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+
+		final Thread writer = new Thread( ()->{
+			try {
+				for (long round = 1; !stop.get(); round++) {
+					for (int i = 0; i < objects; i++) {
+						jp.upsert( newObject( String.format( "o%03d", i ), round ) );
+					}
+				}
+			} catch (Exception e) {
+				failure.set( e );
+			}
+		} );
+
+		writer.start();
+
+		try {
+
+			for (int i = 0; i < 20; i++) {
+
+				try (JsonPersister.Snapshot snapshot = jp.openSnapshot()) {
+
+					final List<IdObject> list = snapshot.getList( IdObject.class, null );
+					list.sort( Comparator.comparing( (o)->o.id ) );
+
+					Assert.assertEquals( objects, list.size() );
+
+					final long round = list.get( 0 ).time;
+					boolean isFormerRound = false;
+
+					for (IdObject o : list) {
+
+						if ( o.time == round - 1 ) {
+							isFormerRound = true;
+						} else {
+							Assert.assertFalse( list.toString(), isFormerRound );
+							Assert.assertEquals( list.toString(), round, o.time );
+						}
+					}
+				}
+			}
+
+		} finally {
+			stop.set( true );
+			writer.join();
+		}
+
+		Assert.assertNull( failure.get() );
+
+		jp.close();
+	}
+
+	/**
+	 * Appends go on during a backup; the element files of an object are read together, so the restored elements match their count.
+	 */
+	@Test
+	public void backupWhileAppending() throws Exception {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "chunks" ) );
+		final String id = jp.upsert( new FeedObject() );
+		jp.appendElements( FeedObject.class, id, "elements", Arrays.asList( new CcListElement(), new CcListElement() ) );
+
+		final CountDownLatch writing = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final ByteArrayOutputStream backup = new ByteArrayOutputStream();
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+
+		final Thread backupThread = new Thread( ()->{
+			try {
+				jp.writeBackup( new FilterOutputStream( backup ) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						writing.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IOException( e );
+						}
+						out.write( b, off, len );
+					}
+				} );
+			} catch (Exception e) {
+				failure.set( e );
+			}
+		} );
+
+		final Thread appender = new Thread( ()->{
+			try {
+				jp.appendElements( FeedObject.class, id, "elements", Collections.singletonList( new CcListElement() ) );
+			} catch (Exception e) {
+				failure.set( e );
+			}
+		} );
+
+		backupThread.start();
+		writing.await();
+		appender.start();
+		appender.join( 5000 );
+
+		Assert.assertFalse( appender.isAlive() );
+
+		release.countDown();
+		backupThread.join();
+
+		Assert.assertNull( failure.get() );
+		Assert.assertEquals( 3, jp.countElements( FeedObject.class, id, "elements" ) );
+
+		final JsonPersister restored = new JsonPersister( new File( STORAGE, "restored" ) );
+		restored.readBackup( new ByteArrayInputStream( backup.toByteArray() ), false );
+
+		final long count = restored.countElements( FeedObject.class, id, "elements" );
+
+		Assert.assertTrue( String.valueOf( count ), count == 2 || count == 3 );
+		Assert.assertEquals( count, restored.pageElements( FeedObject.class, id, "elements", 0, 10 ).size() );
+
+		jp.close();
+		restored.close();
+	}
+
+	/**
+	 * Blobs of objects deleted while a snapshot is open are kept until it is closed.
+	 */
+	@Test
+	public void collectBlobsOfSnapshot() throws Exception {
+
+		final JsonPersister jp = new JsonPersister( new File( STORAGE, "blobs" ) );
+		final AttachmentObject attachment = new AttachmentObject();
+		attachment.content = jp.writeBlob( AttachmentObject.class, new ByteArrayInputStream( "content".getBytes( Utils.CHARSET_UTF8 ) ) );
+		final String id = jp.upsert( attachment );
+
+		try (JsonPersister.Snapshot snapshot = jp.openSnapshot()) {
+
+			jp.delete( AttachmentObject.class, id );
+
+			Assert.assertEquals( 0, jp.collectBlobs( AttachmentObject.class, 0 ) );
+			Assert.assertEquals( id, snapshot.read( AttachmentObject.class, id ).id );
+		}
+
+		Assert.assertEquals( 1, jp.collectBlobs( AttachmentObject.class, 0 ) );
+
+		jp.close();
+	}
+
+	private static IdObject newObject(String id, long time) {
+		final IdObject o = new IdObject( id );
+		o.time = time;
+		return o;
+	}
+
+	private static String toString(List<IdObject> objects) {
+		return objects.stream().sorted( Comparator.comparing( (o)->o.id ) ).map( (o)->o.id +"="+ o.time ).collect( Collectors.joining( ", " ) );
+	}
+}
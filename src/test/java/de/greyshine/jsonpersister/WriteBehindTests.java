@@ -0,0 +1,204 @@
+package de.greyshine.jsonpersister;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.greyshine.jsonpersister.objects.IdObject;
+import de.greyshine.jsonpersister.util.Utils;
+
+public class WriteBehindTests {
+	
+	private static final File STORAGE = new File( "target/test/storage/"+ WriteBehindTests.class.getSimpleName() );
+	
+	@BeforeClass
+	public static void beforeClass() {
+		
+		if ( STORAGE.exists() ) {
+			Utils.delete( STORAGE );
+		} 
+		
+		STORAGE.mkdirs();
+		
+		Assert.assertTrue( STORAGE.isDirectory() );
+	}
+	
+	@Test
+	public void coalesce() throws IOException {
+		
+		final JsonPersister other = new JsonPersister( STORAGE );
+		
+		try (JsonPersister jp = new JsonPersister( STORAGE )) {
+			
+			jp.enableWriteBehind( 1000, 60 * 1000 );
+			
+			final IdObject counter = new IdObject( "counter" );
+			
+			for (int i = 0; i < 50; i++) {
+				counter.time = i;
+				jp.upsert( counter );
+				Assert.assertEquals( i, jp.read( IdObject.class, "counter" ).time );
+			}
+			
+			// not written yet
+			Assert.assertNull( other.read( IdObject.class, "counter" ) );
+			Assert.assertTrue( jp.isExisting( IdObject.class, "counter" ) );
+			
+			jp.upsert( new IdObject( "deleted" ) );
+			Assert.assertTrue( jp.delete( IdObject.class, "deleted" ) );
+			Assert.assertNull( jp.read( IdObject.class, "deleted" ) );
+			Assert.assertFalse( jp.delete( IdObject.class, "deleted" ) );
+			
+			// scans see pending writes
+			Assert.assertEquals( 1, jp.getList( IdObject.class, null ).size() );
+			Assert.assertEquals( 49, other.read( IdObject.class, "counter" ).time );
+			
+			counter.time = 100;
+			jp.upsert( counter );
+		}
+		
+		Assert.assertEquals( 100, other.read( IdObject.class, "counter" ).time );
+		Assert.assertNull( other.read( IdObject.class, "deleted" ) );
+	}
+	
+	@Test
+	public void flushOnThreshold() throws Exception {
+		
+		try (JsonPersister jp = new JsonPersister( STORAGE )) {
+			
+			jp.enableWriteBehind( 10, 60 * 1000 );
+			
+			for (int i = 0; i < 10; i++) {
+				jp.upsert( new IdObject( "t"+ i ) );
+			}
+			
+			final File file = new File( STORAGE, IdObject.class.getTypeName() +"/"+ jp.getLayout( IdObject.class ).getBucket( "t9" ) +"/t9.json" );
+			
+			for (int i = 0; i < 100 && !file.exists(); i++) {
+				Thread.sleep( 20 );
+			}
+			
+			Assert.assertTrue( file.exists() );
+		}
+	}
+	
+	/**
+	 * Writes running while the write behind is disabled are neither lost nor overwritten by older pending writes.
+	 */
+	@Test
+	public void disableWhileWriting() throws Exception {
+		
+		final File dir = new File( STORAGE, "disable" );
+		final int writers = 4;
+		final int rounds = 200;
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final CountDownLatch halfway = new CountDownLatch( writers );
+		
+		try (JsonPersister jp = new JsonPersister( dir )) {
+			
+			jp.enableWriteBehind( 50, 60 * 1000 );
+			
+			final List<Thread> threads = new ArrayList<>();
+			
+			for (int w = 0; w < writers; w++) {
+				
+				final int writer = w;
+				
+				threads.add( new Thread( ()->{
+					try {
+						for (int i = 0; i < rounds; i++) {
+							
+							final IdObject o = new IdObject( "w"+ writer +"-"+ (i % 20) );
+							o.time = i;
+							jp.upsert( o );
+							
+							if ( i == rounds / 2 ) {
+								halfway.countDown();
+							}
+							
+							if ( i % 20 == 19 ) {
+								jp.delete( IdObject.class, "w"+ writer +"-deleted" );
+								jp.upsert( new IdObject( "w"+ writer +"-deleted" ) );
+							}
+						}
+					} catch (Exception e) {
+						failure.set( e );
+					}
+				} ) );
+			}
+			
+			threads.forEach( Thread::start );
+			
+			halfway.await();
+			jp.disableWriteBehind();
+			
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+		
+		Assert.assertNull( failure.get() );
+		
+		final JsonPersister other = new JsonPersister( dir );
+		
+		for (int w = 0; w < writers; w++) {
+			
+			for (int i = 0; i < 20; i++) {
+				Assert.assertEquals( rounds - 20 + i, other.read( IdObject.class, "w"+ w +"-"+ i ).time );
+			}
+			
+			Assert.assertNotNull( other.read( IdObject.class, "w"+ w +"-deleted" ) );
+		}
+	}
+	
+	/**
+	 * A failed pending write does not keep the others from being written; it stays pending.
+	 */
+	@Test
+	public void flushFailure() throws Exception {
+		
+		final File dir = new File( STORAGE, "failure" );
+		
+		try (JsonPersister jp = new JsonPersister( dir )) {
+			
+			jp.upsert( new IdObject( "bad" ) );
+			
+			// a directory in place of the object's file fails its write
+			final File file = new File( dir, IdObject.class.getTypeName() +"/"+ jp.getLayout( IdObject.class ).getBucket( "bad" ) +"/bad.json" );
+			Assert.assertTrue( file.delete() );
+			Assert.assertTrue( new File( file, "blocking" ).mkdirs() );
+			
+			jp.enableWriteBehind( 1000, 60 * 1000 );
+			
+			final IdObject bad = new IdObject( "bad" );
+			bad.time = 1;
+			jp.upsert( bad );
+			jp.upsert( new IdObject( "good1" ) );
+			jp.upsert( new IdObject( "good2" ) );
+			
+			try {
+				jp.flush();
+				Assert.fail();
+			} catch (IOException e) {
+				Assert.assertEquals( 1, e.getSuppressed().length );
+			}
+			
+			final JsonPersister other = new JsonPersister( dir );
+			Assert.assertNotNull( other.read( IdObject.class, "good1" ) );
+			Assert.assertNotNull( other.read( IdObject.class, "good2" ) );
+			Assert.assertEquals( 1, jp.read( IdObject.class, "bad" ).time );
+			
+			Utils.delete( file );
+			jp.disableWriteBehind();
+			
+			Assert.assertEquals( 1, other.read( IdObject.class, "bad" ).time );
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package de.greyshine.jsonpersister.objects;
+
+import de.greyshine.jsonpersister.Blob;
+import de.greyshine.jsonpersister.annotations.Id;
+
+public class AttachmentObject {
+	
+	@Id
+	public String id;
+	
+	public String name;
+	
+	public Blob content;
+	
+}
@@ -0,0 +1,36 @@
+package de.greyshine.jsonpersister.objects;
+
+import java.util.List;
+import java.util.Map;
+
+import de.greyshine.jsonpersister.annotations.Id;
+import de.greyshine.jsonpersister.annotations.Version;
+
+/**
+ * Covers the field kinds a generated codec handles differently.
+ */
+public class CodecObject {
+	
+	public enum Color { RED, GREEN }
+	
+	@Id
+	public String id;
+	
+	@Version
+	public Long version;
+	
+	public int count;
+	public double ratio;
+	public boolean flag;
+	public char letter = 'x';
+	public Integer boxed;
+	public Color color;
+	public List<String> tags;
+	public Map<String,Integer> amounts;
+	public long[] numbers;
+	public Object any;
+	public CcListElement element;
+	public transient String ignored;
+	public static String STATIC;
+	
+}
@@ -0,0 +1,28 @@
+package de.greyshine.jsonpersister.objects;
+
+import java.util.List;
+
+import de.greyshine.jsonpersister.annotations.Id;
+
+public class ContactObject {
+	
+	@Id
+	public String id;
+	
+	public Address address;
+	
+	public List<String> tags;
+	
+	public ContactObject() {}
+	
+	public ContactObject(String id) {
+		this.id = id;
+	}
+	
+	public static class Address {
+		
+		public String city;
+		
+	}
+	
+}
@@ -0,0 +1,23 @@
+package de.greyshine.jsonpersister.objects;
+
+import de.greyshine.jsonpersister.annotations.Id;
+import de.greyshine.jsonpersister.annotations.Partition;
+
+public class EventObject {
+	
+	@Id
+	public String id;
+	
+	@Partition
+	public long time;
+	
+	public String text;
+	
+	public EventObject() {}
+	
+	public EventObject(String id, long time) {
+		this.id = id;
+		this.time = time;
+	}
+	
+}
@@ -0,0 +1,19 @@
+package de.greyshine.jsonpersister.objects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.greyshine.jsonpersister.annotations.Chunked;
+import de.greyshine.jsonpersister.annotations.Id;
+
+public class FeedObject {
+	
+	@Id
+	public String id;
+	
+	public String title;
+	
+	@Chunked(3)
+	public final List<CcListElement> elements = new ArrayList<>();
+	
+}
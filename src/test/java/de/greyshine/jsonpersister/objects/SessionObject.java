@@ -0,0 +1,23 @@
+package de.greyshine.jsonpersister.objects;
+
+import de.greyshine.jsonpersister.annotations.Expires;
+import de.greyshine.jsonpersister.annotations.Id;
+
+public class SessionObject {
+	
+	@Id
+	public String id;
+	
+	@Expires
+	public long expiresAt;
+	
+	public String user;
+	
+	public SessionObject() {}
+	
+	public SessionObject(String id, long expiresAt) {
+		this.id = id;
+		this.expiresAt = expiresAt;
+	}
+	
+}
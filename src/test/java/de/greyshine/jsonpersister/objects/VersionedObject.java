@@ -0,0 +1,22 @@
+package de.greyshine.jsonpersister.objects;
+
+import de.greyshine.jsonpersister.annotations.Id;
+import de.greyshine.jsonpersister.annotations.Version;
+
+public class VersionedObject {
+	
+	@Id
+	public String id;
+	
+	@Version
+	public long version;
+	
+	public String text;
+	
+	public VersionedObject() {}
+	
+	public VersionedObject(String id) {
+		this.id = id;
+	}
+	
+}